@@ -0,0 +1,581 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+// Timing harness for the front end and the execution engines.
+//
+//   java interpreter.Benchmark lex [script]
+//   java interpreter.Benchmark edit [size]
+//   java interpreter.Benchmark parse [script]
+//   java interpreter.Benchmark cache [script]
+//   java interpreter.Benchmark fuse [script]
+//   java interpreter.Benchmark specialize [script]
+//   java interpreter.Benchmark profile [script]
+//   java interpreter.Benchmark bytecode [script]
+//   java interpreter.Benchmark closures [script]
+//   java interpreter.Benchmark aot [script]
+//   java interpreter.Benchmark jit [script]
+//   java interpreter.Benchmark tagged [script]
+//
+// Without a script a synthetic source of about 64 MB is generated. Compile
+// the simd source root and start the JVM with --add-modules
+// jdk.incubator.vector to include the SIMD lexer. The edit mode types into a
+// generated source of 'size' chars (4 MB by default) through
+// IncrementalDocument and compares with a full lex and parse. The
+// parse mode compares eager and lazy parsing; its generated source is mostly
+// IF bodies that never run. The cache mode compares a full lex and parse with
+// hits in the memory and disk tiers of ProgramCache. The fuse mode runs a
+// program with no pattern fused, each Fuser pattern alone and all of them;
+// its generated source is a loop of the shapes fusing targets. The specialize
+// mode runs the same program, bound and folded, through the visitor
+// interpreter and as a NodeTree. The profile mode times fresh NodeTrees, as
+// each run of a script gets, with no profile and with one recorded from an
+// earlier run. The bytecode mode runs the program through the visitor
+// interpreter and compiled for the VirtualMachine. The closures mode runs it,
+// through all the passes, in the visitor interpreter and compiled to
+// Closures. The aot mode runs it, bound and folded, through the visitor
+// interpreter and compiled to a JVM class by the ClassCompiler, timing the
+// compile with the loading of the class. The jit mode runs it, through all
+// the passes, in the visitor interpreter with and without a Tracer; each run
+// gets a fresh one, so that recording and compiling the traces is timed.
+// The tagged mode runs the bytecode on the VirtualMachine and the
+// TaggedMachine, with the bytes each allocates in a run; its generated
+// source is a loop of INT arithmetic only, which the TaggedMachine must run
+// allocating nothing but its frames, and the mode exits with 1 if it
+// allocates more than TAGGED_BYTES. What the TaggedMachine gains is that
+// allocation, not time: on one core it has measured from 0.66x to 1.15x the
+// speed of the VirtualMachine on that loop, as the boxes it saves are cheap
+// to allocate and it writes a tag beside every value.
+// Output the programs print is discarded.
+public class Benchmark {
+    private static final int WARMUP = 3;
+    private static final int RUNS = 5;
+    // The most a run of the generated tagged source may allocate on the
+    // TaggedMachine: its frames and the tagged constants of the chunk.
+    private static final long TAGGED_BYTES = 16 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            usage();
+        }
+        switch (args[0]) {
+            case "lex":
+                lex(args.length > 1 ? read(args[1]) : generate(64 * 1024 * 1024));
+                break;
+            case "parse":
+                parse(args.length > 1 ? read(args[1]) : generateBranches(16 * 1024 * 1024));
+                break;
+            case "cache":
+                cache(args.length > 1 ? read(args[1]) : generate(4 * 1024 * 1024));
+                break;
+            case "fuse":
+                fuse(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "specialize":
+                specialize(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "profile":
+                profile(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "bytecode":
+                bytecode(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "closures":
+                closures(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "aot":
+                aot(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "jit":
+                jit(args.length > 1 ? read(args[1]) : generateLoop(1000000));
+                break;
+            case "tagged":
+                if (args.length > 1) {
+                    tagged(read(args[1]));
+                } else if (tagged(generateCounting(1000000)) > TAGGED_BYTES) {
+                    System.out.println("tagged machine allocates more than " + TAGGED_BYTES + " bytes a run");
+                    System.exit(1);
+                }
+                break;
+            case "edit":
+                edit(generate(args.length > 1 ? Integer.parseInt(args[1]) : 4 * 1024 * 1024));
+                break;
+            default:
+                usage();
+        }
+    }
+
+    private static void usage() {
+        System.out.println("Usage: benchmark lex [script] | edit [size] | parse [script] | cache [script]"
+                + " | fuse [script] | specialize [script] | profile [script] | bytecode [script]"
+                + " | closures [script] | aot [script] | jit [script] | tagged [script]");
+        System.exit(64);
+    }
+
+    private static String read(String path) throws IOException {
+        return new String(Files.readAllBytes(Paths.get(path)), Charset.defaultCharset());
+    }
+
+    static String generate(int size) {
+        String body = "# generated block\n"
+                + "total = total + (count * 3)\n"
+                + "DISPLAY: \"line \" & total & $ & [#] & 'c'\n"
+                + "IF (total > 1000)\nBEGIN IF\n  total = total - 1000.25\nEND IF\n"
+                + "DISPLAY: \"a string that\nspans lines\"\n";
+        StringBuilder source = new StringBuilder(size + body.length());
+        source.append("BEGIN CODE\nFLOAT total = 0.0\nINT count = 1\n");
+        while (source.length() < size) {
+            source.append(body);
+        }
+        source.append("END CODE\n");
+        return source.toString();
+    }
+
+    private static String generateBranches(int size) {
+        StringBuilder branch = new StringBuilder("IF (count > 1000000)\nBEGIN IF\n");
+        for (int i = 0; i < 40; i++) {
+            branch.append("  total = total + (count * ").append(i).append(")\n");
+            branch.append("  DISPLAY: \"step \" & total & $\n");
+        }
+        branch.append("END IF\nELSE\nBEGIN IF\n  count = count + 1\nEND IF\n");
+        StringBuilder source = new StringBuilder(size + branch.length());
+        source.append("BEGIN CODE\nFLOAT total = 0.0\nINT count = 1\n");
+        while (source.length() < size) {
+            source.append(branch);
+        }
+        source.append("END CODE\n");
+        return source.toString();
+    }
+
+    private static String generateLoop(int iterations) {
+        return "BEGIN CODE\nINT i = 0, total = 0, even = 0\nSTRING text = \"\"\n"
+                + "WHILE (i < " + iterations + ")\nBEGIN WHILE\n"
+                + "  total = total + (i % 7)\n"
+                + "  IF (total > 100000)\n  BEGIN IF\n    total = total - 100000\n  END IF\n"
+                + "  IF ((i % 2) == 0)\n  BEGIN IF\n    even = even + 1\n  END IF\n"
+                + "  text = \"i=\" & i & \" total=\" & total\n"
+                + "  i = i + 1\nEND WHILE\n"
+                + "DISPLAY: text & $ & even\nEND CODE\n";
+    }
+
+    private static String generateCounting(int iterations) {
+        return "BEGIN CODE\nINT i = 0, total = 0, even = 0\nBOOL odd = \"FALSE\"\n"
+                + "WHILE (i < " + iterations + ")\nBEGIN WHILE\n"
+                + "  total = total + ((i * 3) % 7)\n"
+                + "  IF (total > 100000)\n  BEGIN IF\n    total = total - 100000\n  END IF\n"
+                + "  odd = NOT odd\n"
+                + "  IF (odd == \"FALSE\")\n  BEGIN IF\n    even = even + 1\n  END IF\n"
+                + "  i = i + 1\nEND WHILE\n"
+                + "DISPLAY: total & $ & even\nEND CODE\n";
+    }
+
+    private static void fuse(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        List<String> names = new ArrayList<>();
+        List<Set<Fuser.Pattern>> configurations = new ArrayList<>();
+        names.add("none");
+        configurations.add(EnumSet.noneOf(Fuser.Pattern.class));
+        for (Fuser.Pattern pattern : Fuser.Pattern.values()) {
+            names.add(pattern.name().toLowerCase(Locale.ROOT));
+            configurations.add(EnumSet.of(pattern));
+        }
+        names.add("all");
+        configurations.add(EnumSet.allOf(Fuser.Pattern.class));
+
+        PrintStream out = System.out;
+        double none = 0;
+        for (int i = 0; i < configurations.size(); i++) {
+            // Each configuration runs a tree of its own, since the passes
+            // and the interpreter keep state on the nodes.
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = new Parser(new Lexer(source).scanPacked().stream(), source).parse();
+            new Resolver(interpreter).resolve(statements);
+            statements = new ConstantFolder().rewrite(statements);
+            statements = new CommonSubexpressions().rewrite(statements);
+            statements = new TypeChecker().check(statements);
+            statements = new LoopOptimizer().rewrite(statements);
+            List<Stmt> program = new Fuser(configurations.get(i)).rewrite(statements);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            double run;
+            try {
+                run = time(() -> interpreter.interpret(program));
+            } finally {
+                System.setOut(out);
+            }
+            if (i == 0)
+                none = run;
+            System.out.printf("%-19s %8.1f ms  %5.2fx%n", names.get(i), run, none / run);
+        }
+    }
+
+    private static void specialize(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double visitor;
+        double nodes;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = bound(source, interpreter);
+            visitor = time(() -> interpreter.interpret(statements));
+            Interpreter specializing = new Interpreter();
+            NodeTree tree = NodeTree.of(bound(source, specializing));
+            nodes = time(() -> specializing.interpret(tree));
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("visitor             %8.1f ms%n", visitor);
+        System.out.printf("self-specializing   %8.1f ms  %5.2fx  (%s)%n", nodes, visitor / nodes, NodeTree.report());
+    }
+
+    private static void profile(String source) throws IOException {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        Path file = Files.createTempFile("benchmark", ".profile");
+        PrintStream out = System.out;
+        double cold;
+        double profiled;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Profile recording = Profile.recording();
+            Interpreter interpreter = new Interpreter();
+            interpreter.interpret(NodeTree.of(bound(source, interpreter), recording));
+            recording.save(file);
+            Profile profile = Profile.load(file);
+            cold = time(() -> {
+                Interpreter fresh = new Interpreter();
+                fresh.interpret(NodeTree.of(bound(source, fresh)));
+            });
+            profiled = time(() -> {
+                Interpreter fresh = new Interpreter();
+                fresh.interpret(NodeTree.of(bound(source, fresh), profile));
+            });
+        } finally {
+            System.setOut(out);
+            Files.deleteIfExists(file);
+        }
+        System.out.printf("cold                %8.1f ms%n", cold);
+        System.out.printf("profiled            %8.1f ms  %5.2fx%n", profiled, cold / profiled);
+    }
+
+    private static void bytecode(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double visitor;
+        double compile;
+        double machine;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = bound(source, interpreter);
+            visitor = time(() -> interpreter.interpret(statements));
+            Interpreter compiled = new Interpreter();
+            List<Stmt> program = bound(source, compiled);
+            compile = time(() -> BytecodeCompiler.compile(program));
+            Chunk chunk = BytecodeCompiler.compile(program);
+            machine = time(() -> compiled.interpret(chunk));
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("visitor             %8.1f ms%n", visitor);
+        System.out.printf("compile             %8.1f ms%n", compile);
+        System.out.printf("virtual machine     %8.1f ms  %5.2fx%n", machine, visitor / machine);
+    }
+
+    // Returns the bytes a run on the TaggedMachine allocates.
+    private static long tagged(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double machine;
+        double tagged;
+        long machineBytes;
+        long taggedBytes;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter boxed = new Interpreter();
+            Chunk chunk = BytecodeCompiler.compile(bound(source, boxed));
+            machine = time(() -> boxed.interpret(chunk));
+            machineBytes = allocated(() -> boxed.interpret(chunk));
+            Interpreter unboxed = new Interpreter();
+            Chunk program = BytecodeCompiler.compile(bound(source, unboxed));
+            tagged = time(() -> unboxed.interpretTagged(program));
+            taggedBytes = allocated(() -> unboxed.interpretTagged(program));
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("virtual machine     %8.1f ms  %,14d bytes%n", machine, machineBytes);
+        System.out.printf("tagged machine      %8.1f ms  %,14d bytes  %5.2fx%n", tagged, taggedBytes,
+                machine / tagged);
+        return taggedBytes;
+    }
+
+    private static void closures(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double visitor;
+        double compile;
+        double closures;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = optimized(source, interpreter);
+            visitor = time(() -> interpreter.interpret(statements));
+            Interpreter compiled = new Interpreter();
+            List<Stmt> program = optimized(source, compiled);
+            compile = time(() -> Closures.of(program));
+            Closures closed = Closures.of(program);
+            closures = time(() -> compiled.interpret(closed));
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("visitor             %8.1f ms%n", visitor);
+        System.out.printf("compile             %8.1f ms%n", compile);
+        System.out.printf("closures            %8.1f ms  %5.2fx%n", closures, visitor / closures);
+    }
+
+    private static void aot(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double visitor;
+        double compile;
+        double compiled;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = bound(source, interpreter);
+            visitor = time(() -> interpreter.interpret(statements));
+            compile = time(() -> Loader.load(ClassCompiler.compile(statements, "Benchmarked", null)));
+            Runnable program = Loader.load(ClassCompiler.compile(statements, "Benchmarked", null));
+            compiled = time(program);
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("visitor             %8.1f ms%n", visitor);
+        System.out.printf("compile             %8.1f ms%n", compile);
+        System.out.printf("compiled class      %8.1f ms  %5.2fx%n", compiled, visitor / compiled);
+    }
+
+    private static void jit(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        PrintStream out = System.out;
+        double visitor;
+        double traced;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            Interpreter interpreter = new Interpreter();
+            List<Stmt> statements = optimized(source, interpreter);
+            visitor = time(() -> interpreter.interpret(statements));
+            Interpreter jit = new Interpreter();
+            List<Stmt> program = optimized(source, jit);
+            traced = time(() -> {
+                jit.useTracer(new Tracer());
+                jit.interpret(program);
+            });
+        } finally {
+            System.setOut(out);
+        }
+        System.out.printf("visitor             %8.1f ms%n", visitor);
+        System.out.printf("jit                 %8.1f ms  %5.2fx%n", traced, visitor / traced);
+    }
+
+    // Defines one compiled class, in a loader of its own so that the same
+    // name can be compiled again.
+    private static final class Loader extends ClassLoader {
+        private Loader() {
+            super(Benchmark.class.getClassLoader());
+        }
+
+        static Runnable load(byte[] bytes) {
+            try {
+                Class<?> type = new Loader().defineClass(null, bytes, 0, bytes.length);
+                return (Runnable) type.getConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // The program parsed, bound for the interpreter and folded.
+    private static List<Stmt> bound(String source, Interpreter interpreter) {
+        List<Stmt> statements = new Parser(new Lexer(source).scanPacked().stream(), source).parse();
+        new Resolver(interpreter).resolve(statements);
+        return new ConstantFolder().rewrite(statements);
+    }
+
+    // The same, through the passes the tree path runs.
+    private static List<Stmt> optimized(String source, Interpreter interpreter) {
+        List<Stmt> statements = bound(source, interpreter);
+        statements = new CommonSubexpressions().rewrite(statements);
+        statements = new TypeChecker().check(statements);
+        statements = new LoopOptimizer().rewrite(statements);
+        statements = new Fuser().rewrite(statements);
+        return new SwitchLowerer().rewrite(statements);
+    }
+
+    private static void parse(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        TokenBuffer tokens = new Lexer(source).scanPacked();
+        double eager = time(() -> new Parser(tokens.stream(), source).parse());
+        System.out.printf("eager parse         %8.1f ms%n", eager);
+        double lazy = time(() -> {
+            Parser parser = new Parser(tokens.stream(), source);
+            parser.parseLazily();
+            parser.parse();
+        });
+        System.out.printf("lazy parse          %8.1f ms  %5.2fx%n", lazy, eager / lazy);
+    }
+
+    private static void cache(String source) throws IOException {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        double full = time(() -> new Parser(new Lexer(source).scanPacked().stream(), source).parse());
+        System.out.printf("lex + parse         %8.1f ms%n", full);
+
+        Path directory = Files.createTempDirectory("program-cache");
+        String key = ProgramCache.key(source);
+        ProgramCache cache = new ProgramCache(1, directory);
+        cache.put(key, new Parser(new Lexer(source).scanPacked().stream(), source).parse());
+        double memory = time(() -> cache.get(ProgramCache.key(source)));
+        System.out.printf("memory hit          %8.1f ms  %5.1fx%n", memory, full / memory);
+        double disk = time(() -> new ProgramCache(1, directory).get(ProgramCache.key(source)));
+        System.out.printf("disk hit            %8.1f ms  %5.1fx  (%,d bytes)%n",
+                disk, full / disk, Files.size(directory.resolve(key + ".ast")));
+        System.out.printf("hits %d, misses %d, evictions %d%n", cache.hits(), cache.misses(), cache.evictions());
+    }
+
+    private static void lex(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        TokenBuffer expected = new Lexer(source).scanPacked();
+        double sequential = time(() -> new Lexer(source).scanPacked());
+        System.out.printf("sequential          %8.1f ms  (%,d tokens)%n", sequential, expected.size());
+
+        ScanKernel kernel = ScanKernel.vector();
+        if (kernel != null) {
+            char[] sourceChars = source.toCharArray();
+            Lexer check = new Lexer(source);
+            check.useKernel(kernel, sourceChars);
+            if (!sameTokens(expected, check.scanPacked())) {
+                System.out.println("SIMD output differs");
+                System.exit(1);
+            }
+            double simd = time(() -> {
+                Lexer lexer = new Lexer(source);
+                lexer.useKernel(kernel, sourceChars);
+                lexer.scanPacked();
+            });
+            System.out.printf("sequential SIMD     %8.1f ms  %5.2fx%n", simd, sequential / simd);
+        }
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            TokenBuffer tokens = new ParallelLexer(source, Lexer.symbols, pool).scanTokens();
+            if (!sameTokens(expected, tokens)) {
+                System.out.println("parallel output differs with " + threads + " threads");
+                System.exit(1);
+            }
+            double parallel = time(() -> new ParallelLexer(source, Lexer.symbols, pool).scanTokens());
+            System.out.printf("parallel %2d threads %8.1f ms  %5.2fx%n", threads, parallel, sequential / parallel);
+            pool.shutdown();
+        }
+    }
+
+    private static void edit(String source) {
+        System.out.printf("source: %,d chars%n", source.length());
+
+        double full = time(() -> new Parser(new Lexer(source).scanTokens(), source).parse());
+        System.out.printf("full lex + parse    %10.3f ms%n", full);
+
+        // Retype the digit in 'count * 3' in a few neighbouring repetitions of
+        // the body in the middle of the file, and add and remove a statement
+        // next to it.
+        IncrementalDocument document = new IncrementalDocument(source);
+        List<Integer> digits = new ArrayList<>();
+        for (int i = source.indexOf("count * 3"); i >= 0; i = source.indexOf("count * 3", i + 1)) {
+            digits.add(i + 8);
+        }
+        Random random = new Random(1);
+        String statement = "count = count + 1\n";
+        long relexed = 0;
+        long reparsed = 0;
+        int edits = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 2000; i++) {
+            int digit = digits.get(digits.size() / 2 + i % 8);
+            document.edit(digit, 1, String.valueOf((char) ('0' + random.nextInt(10))));
+            relexed += document.lastRelexed();
+            reparsed += document.lastReparsed();
+            int line = digit - 25;
+            document.edit(line, 0, statement);
+            document.edit(line, statement.length(), "");
+            relexed += document.lastRelexed();
+            reparsed += document.lastReparsed();
+            edits += 3;
+        }
+        double incremental = (System.nanoTime() - start) / 1e6 / edits;
+        System.out.printf("incremental edit    %10.3f ms  %5.0fx  (%.1f tokens relexed, %.1f reparsed)%n",
+                incremental, full / incremental, (double) relexed / edits, (double) reparsed / edits);
+    }
+
+    private static boolean sameTokens(TokenBuffer a, TokenBuffer b) {
+        if (a.size() != b.size())
+            return false;
+        for (int i = 0; i < a.size(); i++) {
+            if (a.type(i) != b.type(i) || a.start(i) != b.start(i) || a.length(i) != b.length(i)
+                    || a.line(i) != b.line(i) || a.symbol(i) != b.symbol(i)
+                    || !Objects.equals(a.literal(i), b.literal(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // Mean bytes the thread allocates in one run, after warming up.
+    static long allocated(Runnable task) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long start = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < RUNS; i++) {
+            task.run();
+        }
+        return (threads.getCurrentThreadAllocatedBytes() - start) / RUNS;
+    }
+
+    // Mean wall time of one run in milliseconds, after warming up.
+    static double time(Runnable task) {
+        for (int i = 0; i < WARMUP; i++) {
+            task.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            task.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / RUNS;
+    }
+}
@@ -0,0 +1,516 @@
+package interpreter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles a bound program into a Chunk for the VirtualMachine, in one pass
+// over the tree. Variables keep the frames and slots the Resolver gave
+// them. The forms the tree passes leave are compiled from what they stand
+// for: a Switch as its chain, fused nodes unfused and invariants in place,
+// since a Lazy body is the only place they turn up here.
+//
+// Jumps are emitted with a placeholder target and patched once the target
+// is known. The compiler counts what each instruction pushes and pops to
+// size the operand stack.
+final class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // Where to list each chunk as it is compiled, or null; set from
+    // --disassemble.
+    static PrintStream listing = null;
+
+    private byte[] code = new byte[256];
+    private int size = 0;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIds = new HashMap<>();
+    private int[] lines = new int[16];
+    private int lineCount = 0;
+    private int line = -1;
+    private final List<Integer> blocks = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+
+    private BytecodeCompiler() {
+    }
+
+    static Chunk compile(List<Stmt> statements) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        for (Stmt statement : statements) {
+            compiler.statement(statement);
+        }
+        return compiler.finish("script");
+    }
+
+    // Compiles a body a lazy parse skipped, now that it has been parsed.
+    static Chunk compile(Stmt.Lazy stub) {
+        BytecodeCompiler compiler = new BytecodeCompiler();
+        compiler.statement(stub.body());
+        return compiler.finish("body at line " + stub.begin.line);
+    }
+
+    private Chunk finish(String name) {
+        emit(Chunk.RETURN, 0);
+        int[] sizes = new int[blocks.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = blocks.get(i);
+        }
+        Chunk chunk = new Chunk(Arrays.copyOf(code, size), constants.toArray(), Arrays.copyOf(lines, lineCount),
+                sizes, maxStack);
+        if (listing != null)
+            listing.print(chunk.disassemble(name));
+        return chunk;
+    }
+
+    private void statement(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // A chain is compiled down its left spine in a loop: the operand at the
+    // bottom, then what each node does with the value of its left operand.
+    private void expression(Expr expr) {
+        if (Expr.leftOf(expr) == null) {
+            expr.accept(this);
+            return;
+        }
+        List<Expr> spine = Expr.spine(expr);
+        expression(Expr.bottom(expr));
+        for (Expr node : spine) {
+            if (node instanceof Expr.Binary) {
+                binary((Expr.Binary) node);
+            } else if (node instanceof Expr.Logical) {
+                logical((Expr.Logical) node);
+            } else {
+                specialized((Expr.Specialized) node);
+            }
+        }
+    }
+
+    // Instructions emitted from here on come from the line.
+    private void mark(Token token) {
+        if (token.line == line)
+            return;
+        line = token.line;
+        if (lineCount > 0 && lines[lineCount - 2] == size) {
+            lines[lineCount - 1] = line;
+            return;
+        }
+        if (lineCount == lines.length)
+            lines = Arrays.copyOf(lines, lineCount * 2);
+        lines[lineCount++] = size;
+        lines[lineCount++] = line;
+    }
+
+    // Emits an opcode that changes the stack height by 'effect'.
+    private void emit(byte opcode, int effect) {
+        u8(opcode);
+        stack += effect;
+        if (stack > maxStack)
+            maxStack = stack;
+    }
+
+    private void u8(int value) {
+        if (size == code.length)
+            code = Arrays.copyOf(code, size * 2);
+        code[size++] = (byte) value;
+    }
+
+    private void u16(int value) {
+        u8(value >> 8);
+        u8(value);
+    }
+
+    private void i32(int value) {
+        u16(value >>> 16);
+        u16(value);
+    }
+
+    private static int checked(int value, int limit, String what) {
+        if (value > limit)
+            throw new IllegalStateException("Too many " + what + " for bytecode: " + value);
+        return value;
+    }
+
+    private int constant(Object value) {
+        Integer id = constantIds.get(value);
+        if (id == null) {
+            id = constants.size();
+            constants.add(value);
+            constantIds.put(value, id);
+        }
+        return id;
+    }
+
+    // Emits a jump to be patched, returning where its target goes.
+    private int jump(byte opcode, int effect) {
+        emit(opcode, effect);
+        int at = size;
+        i32(-1);
+        return at;
+    }
+
+    // Points the jump at the next instruction.
+    private void patch(int at) {
+        code[at] = (byte) (size >>> 24);
+        code[at + 1] = (byte) (size >>> 16);
+        code[at + 2] = (byte) (size >>> 8);
+        code[at + 3] = (byte) size;
+    }
+
+    private void variable(byte local, byte outer, int depth, int slot, int effect) {
+        if (depth == 0) {
+            emit(local, effect);
+        } else {
+            emit(outer, effect);
+            u8(checked(depth, 0xff, "nested frames"));
+        }
+        u16(checked(slot, 0xffff, "variables in a block"));
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expression(expr.value);
+        mark(expr.name);
+        variable(Chunk.SET_LOCAL, Chunk.SET, expr.depth, expr.slot, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        expression(expr.left);
+        binary(expr);
+        return null;
+    }
+
+    private void binary(Expr.Binary expr) {
+        expression(expr.right);
+        mark(expr.operator);
+        emit(opcode(expr.operator.type), -1);
+        i32(constant(expr.operator));
+    }
+
+    // The opcode of a binary operator: one of its own for those INTs are
+    // most often given, else the generic one.
+    private static byte opcode(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+                return Chunk.ADD;
+            case MINUS:
+                return Chunk.SUBTRACT;
+            case STAR:
+                return Chunk.MULTIPLY;
+            case MODULO:
+                return Chunk.MODULO;
+            case LESS_THAN:
+                return Chunk.LESS;
+            case LESS_OR_EQUAL:
+                return Chunk.LESS_EQUAL;
+            case GREATER_THAN:
+                return Chunk.GREATER;
+            case GREATER_OR_EQUAL:
+                return Chunk.GREATER_EQUAL;
+            case EQUAL_EVAL:
+                return Chunk.EQUAL;
+            case NOT_EQUAL:
+                return Chunk.NOT_EQUAL;
+            default:
+                return Chunk.BINARY;
+        }
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expression(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emit(Chunk.NIL, 1);
+        } else {
+            emit(Chunk.CONSTANT, 1);
+            i32(constant(expr.value));
+        }
+        return null;
+    }
+
+    // The left operand decides: it is kept as the value if it does, else
+    // dropped for the right one.
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        expression(expr.left);
+        logical(expr);
+        return null;
+    }
+
+    private void logical(Expr.Logical expr) {
+        mark(expr.operator);
+        int end = jump(expr.operator.type == TokenType.OR ? Chunk.OR : Chunk.AND, 0);
+        emit(Chunk.POP, -1);
+        expression(expr.right);
+        patch(end);
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expression(expr.right);
+        mark(expr.operator);
+        emit(Chunk.UNARY, 0);
+        i32(constant(expr.operator));
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        mark(expr.name);
+        variable(Chunk.GET_LOCAL, Chunk.GET, expr.depth, expr.slot, 1);
+        return null;
+    }
+
+    @Override
+    public Void visitSpecializedExpr(Expr.Specialized expr) {
+        if (expr.left != null)
+            expression(expr.left);
+        specialized(expr);
+        return null;
+    }
+
+    private void specialized(Expr.Specialized expr) {
+        expression(expr.right);
+        mark(expr.operator);
+        if (expr.left == null) {
+            emit(Chunk.UNARY_OPERATION, 0);
+        } else {
+            emit(Chunk.OPERATION, -1);
+        }
+        u8(expr.operation.ordinal());
+        i32(constant(expr.operator));
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        expression(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        expression(Fuser.unfused(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        expression(Fuser.unfused(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitConcatExpr(Expr.Concat expr) {
+        expression(Fuser.unfused(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.framed) {
+            emit(Chunk.ENTER, 0);
+            u16(checked(blocks.size(), 0xffff, "blocks"));
+            blocks.add(stmt.size);
+        }
+        for (Stmt statement : stmt.statements) {
+            statement(statement);
+        }
+        if (stmt.framed)
+            emit(Chunk.EXIT, 0);
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        expression(stmt.expression);
+        emit(Chunk.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitDisplayStmt(Stmt.Display stmt) {
+        expression(stmt.expression);
+        emit(Chunk.DISPLAY, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitScanStmt(Stmt.Scan stmt) {
+        mark(stmt.name);
+        emit(Chunk.SCAN, 0);
+        u8(checked(stmt.depth, 0xff, "nested frames"));
+        u16(checked(stmt.slot, 0xffff, "variables in a block"));
+        i32(constant(stmt.name));
+        i32(stmt.type == null ? -1 : constant(stmt.type));
+        return null;
+    }
+
+    // Evaluates a condition and jumps, to be patched, when it does not hold.
+    // A comparison tests and jumps in one instruction, without pushing the
+    // Boolean in between.
+    private int branch(Expr condition) {
+        while (condition instanceof Expr.Grouping || condition instanceof Expr.Invariant
+                || condition instanceof Expr.Compare) {
+            if (condition instanceof Expr.Grouping)
+                condition = ((Expr.Grouping) condition).expression;
+            else if (condition instanceof Expr.Invariant)
+                condition = ((Expr.Invariant) condition).expression;
+            else
+                condition = Fuser.unfused((Expr.Compare) condition);
+        }
+        byte opcode = condition instanceof Expr.Binary ? branch(((Expr.Binary) condition).operator.type) : -1;
+        if (opcode < 0) {
+            expression(condition);
+            return jump(Chunk.JUMP_IF_FALSE, -1);
+        }
+        Expr.Binary binary = (Expr.Binary) condition;
+        expression(binary.left);
+        expression(binary.right);
+        mark(binary.operator);
+        emit(opcode, -2);
+        i32(constant(binary.operator));
+        int at = size;
+        i32(-1);
+        return at;
+    }
+
+    private static byte branch(TokenType operator) {
+        switch (operator) {
+            case LESS_THAN:
+                return Chunk.JUMP_UNLESS_LESS;
+            case LESS_OR_EQUAL:
+                return Chunk.JUMP_UNLESS_LESS_EQUAL;
+            case GREATER_THAN:
+                return Chunk.JUMP_UNLESS_GREATER;
+            case GREATER_OR_EQUAL:
+                return Chunk.JUMP_UNLESS_GREATER_EQUAL;
+            case EQUAL_EVAL:
+                return Chunk.JUMP_UNLESS_EQUAL;
+            case NOT_EQUAL:
+                return Chunk.JUMP_UNLESS_NOT_EQUAL;
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        int otherwise = branch(stmt.condition);
+        statement(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patch(otherwise);
+            return null;
+        }
+        int end = jump(Chunk.JUMP, 0);
+        patch(otherwise);
+        statement(stmt.elseBranch);
+        patch(end);
+        return null;
+    }
+
+    private void loop(Expr condition, Stmt body) {
+        int start = size;
+        int end = branch(condition);
+        statement(body);
+        emit(Chunk.JUMP, 0);
+        i32(start);
+        patch(end);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitLoopStmt(Stmt.Loop stmt) {
+        loop(stmt.condition, stmt.body);
+        return null;
+    }
+
+    private void declare(Token name, int slot, Expr initializer, int kind, boolean typed) {
+        mark(name);
+        if (initializer == null) {
+            emit(Chunk.NIL, 1);
+        } else {
+            expression(initializer);
+            if (kind >= 0) {
+                emit(Chunk.CHECK, 0);
+                u8(typed ? kind | Chunk.TYPED : kind);
+                i32(constant(name));
+            }
+        }
+        emit(Chunk.DEFINE, -1);
+        u16(checked(slot, 0xffff, "variables in a block"));
+    }
+
+    @Override
+    public Void visitIntStmt(Stmt.Int stmt) {
+        declare(stmt.name, stmt.slot, stmt.intializer, Chunk.INT, stmt.typed);
+        return null;
+    }
+
+    @Override
+    public Void visitFloatStmt(Stmt.Float stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, Chunk.FLOAT, stmt.typed);
+        return null;
+    }
+
+    @Override
+    public Void visitCharStmt(Stmt.Char stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, Chunk.CHAR, stmt.typed);
+        return null;
+    }
+
+    @Override
+    public Void visitStringStmt(Stmt.String stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, Chunk.STRING, stmt.typed);
+        return null;
+    }
+
+    // BOOL takes anything.
+    @Override
+    public Void visitBoolStmt(Stmt.Bool stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, -1, false);
+        return null;
+    }
+
+    @Override
+    public Void visitMultiVarStmt(Stmt.MultiVar stmt) {
+        for (int i = 0; i < stmt.names.size(); i++) {
+            Expr initializer = stmt.initializers.get(i);
+            mark(stmt.names.get(i));
+            if (initializer == null) {
+                emit(Chunk.NIL, 1);
+            } else {
+                expression(initializer);
+            }
+            variable(Chunk.SET_LOCAL, Chunk.SET, stmt.depths[i], stmt.slots[i], 0);
+            emit(Chunk.POP, -1);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLazyStmt(Stmt.Lazy stmt) {
+        mark(stmt.begin);
+        emit(Chunk.LAZY, 0);
+        i32(constant(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitSwitchStmt(Stmt.Switch stmt) {
+        statement(SwitchLowerer.unlowered(stmt));
+        return null;
+    }
+}
@@ -0,0 +1,243 @@
+package interpreter;
+
+// A program compiled to bytecode for the VirtualMachine: a code array of
+// one-byte opcodes, each followed by its operands, a constant pool and a
+// line table. Operands are big-endian; a 'u8' or 'u16' is unsigned, an
+// 'i32' is a constant index or an absolute jump target.
+//
+//   CONSTANT        i32 constant          push the constant
+//   NIL                                   push null
+//   POP                                   drop the top
+//   GET_LOCAL       u16 slot              push a variable of the current frame
+//   SET_LOCAL       u16 slot              store the top in it, keeping it
+//   GET             u8 depth, u16 slot    push a variable 'depth' frames out
+//   SET             u8 depth, u16 slot    store the top in it, keeping it
+//   DEFINE          u16 slot              pop into the current frame
+//   CHECK           u8 kind, i32 name     fail unless the top fits the declaration
+//   BINARY          i32 operator          pop two, push what Operators makes of them
+//   ADD             i32 operator          the same for '+', two INTs added in place;
+//                                         SUBTRACT to NOT_EQUAL likewise
+//   OPERATION       u8 operation, i32 operator
+//   UNARY           i32 operator
+//   UNARY_OPERATION u8 operation, i32 operator
+//   JUMP            i32 target
+//   JUMP_IF_FALSE   i32 target            pop, jump if not truthy
+//   JUMP_UNLESS_LESS i32 operator, i32 target
+//                                         pop two, jump unless the first is less;
+//                                         ..._LESS_EQUAL to ..._NOT_EQUAL likewise
+//   AND             i32 target            jump keeping the top if it is not truthy, else pop
+//   OR              i32 target            jump keeping the top if it is truthy, else pop
+//   DISPLAY                               pop and display
+//   SCAN            u8 depth, u16 slot, i32 name, i32 type
+//   ENTER           u16 block             push the block's frame
+//   EXIT                                  pop back to the enclosing frame
+//   LAZY            i32 stub              compile and run a skipped body
+//   RETURN                                end of the chunk
+//
+// Operators, names and declared types are Tokens and Strings in the
+// constant pool, so that errors report the tokens the tree path reports. A
+// SCAN with no declared type has -1 for it.
+//
+// Like the tree path, each block with a frame keeps it from one run to the
+// next, in 'frames'.
+final class Chunk {
+    static final byte CONSTANT = 0;
+    static final byte NIL = 1;
+    static final byte POP = 2;
+    static final byte GET_LOCAL = 3;
+    static final byte SET_LOCAL = 4;
+    static final byte GET = 5;
+    static final byte SET = 6;
+    static final byte DEFINE = 7;
+    static final byte CHECK = 8;
+    static final byte BINARY = 9;
+    static final byte ADD = 10;
+    static final byte SUBTRACT = 11;
+    static final byte MULTIPLY = 12;
+    static final byte MODULO = 13;
+    static final byte LESS = 14;
+    static final byte LESS_EQUAL = 15;
+    static final byte GREATER = 16;
+    static final byte GREATER_EQUAL = 17;
+    static final byte EQUAL = 18;
+    static final byte NOT_EQUAL = 19;
+    static final byte OPERATION = 20;
+    static final byte UNARY = 21;
+    static final byte UNARY_OPERATION = 22;
+    static final byte JUMP = 23;
+    static final byte JUMP_IF_FALSE = 24;
+    static final byte JUMP_UNLESS_LESS = 25;
+    static final byte JUMP_UNLESS_LESS_EQUAL = 26;
+    static final byte JUMP_UNLESS_GREATER = 27;
+    static final byte JUMP_UNLESS_GREATER_EQUAL = 28;
+    static final byte JUMP_UNLESS_EQUAL = 29;
+    static final byte JUMP_UNLESS_NOT_EQUAL = 30;
+    static final byte AND = 31;
+    static final byte OR = 32;
+    static final byte DISPLAY = 33;
+    static final byte SCAN = 34;
+    static final byte ENTER = 35;
+    static final byte EXIT = 36;
+    static final byte LAZY = 37;
+    static final byte RETURN = 38;
+
+    private static final String[] NAMES = { "CONSTANT", "NIL", "POP", "GET_LOCAL", "SET_LOCAL", "GET", "SET",
+            "DEFINE", "CHECK", "BINARY", "ADD", "SUBTRACT", "MULTIPLY", "MODULO", "LESS", "LESS_EQUAL", "GREATER",
+            "GREATER_EQUAL", "EQUAL", "NOT_EQUAL", "OPERATION", "UNARY", "UNARY_OPERATION", "JUMP", "JUMP_IF_FALSE",
+            "JUMP_UNLESS_LESS", "JUMP_UNLESS_LESS_EQUAL", "JUMP_UNLESS_GREATER", "JUMP_UNLESS_GREATER_EQUAL",
+            "JUMP_UNLESS_EQUAL", "JUMP_UNLESS_NOT_EQUAL", "AND", "OR", "DISPLAY", "SCAN", "ENTER", "EXIT", "LAZY",
+            "RETURN" };
+
+    // The kinds of declaration CHECK tests for, with TYPED added when the
+    // TypeChecker found the initializer can only yield the declared type or
+    // null, so that it only has to be non-null.
+    static final int INT = 0;
+    static final int FLOAT = 1;
+    static final int CHAR = 2;
+    static final int STRING = 3;
+    static final int TYPED = 4;
+
+    static final Operation[] OPERATIONS = Operation.values();
+
+    final byte[] code;
+    final Object[] constants;
+    // Pairs of the offset where a line starts and the line, in code order.
+    final int[] lines;
+    // The frame size of each block with a frame, by ENTER operand.
+    final int[] blocks;
+    final Object[][] frames;
+    // The most values the operand stack holds at once.
+    final int maxStack;
+
+    Chunk(byte[] code, Object[] constants, int[] lines, int[] blocks, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.lines = lines;
+        this.blocks = blocks;
+        this.frames = new Object[blocks.length][];
+        this.maxStack = maxStack;
+    }
+
+    // The source line of the instruction at the offset, or -1.
+    int line(int offset) {
+        int line = -1;
+        for (int i = 0; i < lines.length && lines[i] <= offset; i += 2) {
+            line = lines[i + 1];
+        }
+        return line;
+    }
+
+    int u8(int offset) {
+        return code[offset] & 0xff;
+    }
+
+    int u16(int offset) {
+        return (code[offset] & 0xff) << 8 | code[offset + 1] & 0xff;
+    }
+
+    int i32(int offset) {
+        return code[offset] << 24 | (code[offset + 1] & 0xff) << 16 | (code[offset + 2] & 0xff) << 8
+                | code[offset + 3] & 0xff;
+    }
+
+    // A listing of the code, one instruction per line, with the source line
+    // where it changes and constants shown by value.
+    String disassemble(String name) {
+        StringBuilder out = new StringBuilder();
+        out.append("== ").append(name).append(" (").append(code.length).append(" bytes, ")
+                .append(constants.length).append(" constants, stack ").append(maxStack).append(") ==\n");
+        int previous = -1;
+        int offset = 0;
+        while (offset < code.length) {
+            int line = line(offset);
+            out.append(String.format("%05d ", offset));
+            out.append(line == previous ? "   | " : line < 0 ? "   - " : String.format("%4d ", line));
+            previous = line;
+            offset = instruction(out, offset);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private int instruction(StringBuilder out, int offset) {
+        byte opcode = code[offset];
+        out.append(String.format("%-16s", opcode >= 0 && opcode < NAMES.length ? NAMES[opcode] : "?" + opcode));
+        switch (opcode) {
+            case CONSTANT:
+            case BINARY:
+            case ADD:
+            case SUBTRACT:
+            case MULTIPLY:
+            case MODULO:
+            case LESS:
+            case LESS_EQUAL:
+            case GREATER:
+            case GREATER_EQUAL:
+            case EQUAL:
+            case NOT_EQUAL:
+            case UNARY:
+            case LAZY:
+                out.append(i32(offset + 1)).append(' ').append(constant(i32(offset + 1)));
+                return offset + 5;
+            case GET_LOCAL:
+            case SET_LOCAL:
+            case DEFINE:
+                out.append("slot ").append(u16(offset + 1));
+                return offset + 3;
+            case ENTER:
+                int block = u16(offset + 1);
+                out.append("block ").append(block).append(" size ").append(blocks[block]);
+                return offset + 3;
+            case GET:
+            case SET:
+                out.append("depth ").append(u8(offset + 1)).append(" slot ").append(u16(offset + 2));
+                return offset + 4;
+            case CHECK:
+                int kind = u8(offset + 1);
+                out.append(new String[] { "INT", "FLOAT", "CHAR", "STRING" }[kind & 3])
+                        .append((kind & TYPED) != 0 ? " typed " : " ").append(constant(i32(offset + 2)));
+                return offset + 6;
+            case OPERATION:
+            case UNARY_OPERATION:
+                out.append(OPERATIONS[u8(offset + 1)]).append(' ').append(constant(i32(offset + 2)));
+                return offset + 6;
+            case JUMP:
+            case JUMP_IF_FALSE:
+            case AND:
+            case OR:
+                out.append("-> ").append(String.format("%05d", i32(offset + 1)));
+                return offset + 5;
+            case JUMP_UNLESS_LESS:
+            case JUMP_UNLESS_LESS_EQUAL:
+            case JUMP_UNLESS_GREATER:
+            case JUMP_UNLESS_GREATER_EQUAL:
+            case JUMP_UNLESS_EQUAL:
+            case JUMP_UNLESS_NOT_EQUAL:
+                out.append(constant(i32(offset + 1))).append(" -> ").append(String.format("%05d", i32(offset + 5)));
+                return offset + 9;
+            case SCAN:
+                out.append("depth ").append(u8(offset + 1)).append(" slot ").append(u16(offset + 2)).append(' ')
+                        .append(constant(i32(offset + 4))).append(' ').append(constant(i32(offset + 8)));
+                return offset + 12;
+            default:
+                return offset + 1;
+        }
+    }
+
+    private String constant(int index) {
+        if (index < 0)
+            return "-";
+        Object value = constants[index];
+        if (value instanceof Token)
+            return "'" + ((Token) value).getLexeme() + "'";
+        if (value instanceof String)
+            return "\"" + ((String) value).replace("\n", "\\n") + "\"";
+        if (value instanceof Character)
+            return "'" + value + "'";
+        if (value instanceof Stmt.Lazy)
+            return "<skipped body>";
+        if (value instanceof Chunk)
+            return "<compiled body>";
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,1168 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import interpreter.ClassWriter.Label;
+import interpreter.ClassWriter.MethodWriter;
+
+// Compiles a bound program ahead of time to a JVM class, which runs it with
+// no lexing, parsing or interpreting: a Runnable whose run() is the whole
+// program, and a main() that runs it through the CompiledRuntime. Every
+// variable of every frame the Resolver laid out is a local of run(), and
+// IFs and WHILEs are the JVM's own branches and loops.
+//
+// A variable is an int local, read and written with no boxing, when every
+// value it is ever given is an INT: it is declared INT, always with an
+// initializer, and everything assigned to it is INT arithmetic on such
+// variables and INT literals. That is found by starting from all the
+// variables declared INT and dropping those with a store that may not be,
+// until none is left to drop. Arithmetic and comparisons on INT operands are
+// JVM instructions; everything else is a boxed value handed to the
+// CompiledRuntime, which does what the tree path does with it.
+//
+// The Tracer has single hot loops compiled the same way, into a Trace run on
+// the frames of the interpreter. The variables of the frames around the loop
+// are then loaded into locals when the trace starts, those that hold an INT
+// at that moment as ints, and stored back when it stops.
+final class ClassCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    private static final String RUNTIME = "interpreter/CompiledRuntime";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String BINARY = "(" + OBJECT + OBJECT + "I)" + OBJECT;
+    private static final String UNARY = "(" + OBJECT + "I)" + OBJECT;
+
+    // What a compiled class needs at run time, written into its jars.
+    private static final String[] RUNTIME_CLASSES = { "CompiledRuntime", "Operators", "Operators$1", "Operation",
+            "RuntimeError", "Token", "TokenType" };
+
+    // A frame the Resolver laid out: its variables are the locals from
+    // 'base' on.
+    private static final class Frame {
+        final int id;
+        final int base;
+
+        Frame(int id, int base) {
+            this.id = id;
+            this.base = base;
+        }
+    }
+
+    // A store into a variable, by frame id and slot. 'value' is null for a
+    // declaration without an initializer; 'integral' is false for a store
+    // that never keeps a variable an int, a declaration of another type or
+    // a SCAN.
+    private static final class Store {
+        final long variable;
+        final Expr value;
+        final boolean integral;
+
+        Store(long variable, Expr value, boolean integral) {
+            this.variable = variable;
+            this.value = value;
+            this.integral = integral;
+        }
+    }
+
+    private final MethodWriter code;
+    private final List<Frame> frames = new ArrayList<>();
+    private int next = 1;
+    private final Map<Stmt.Block, Integer> ids = new IdentityHashMap<>();
+    // The variable each Variable and Assign refers to.
+    private final Map<Expr, Long> variables = new IdentityHashMap<>();
+    private final List<Store> stores = new ArrayList<>();
+    // The variables kept in int locals.
+    private final Set<Long> ints = new HashSet<>();
+    // For a trace, the local of each variable of the frames around the
+    // loop, and those of them the loop stores into. Their frame ids count
+    // down from -1, the frame the loop runs in, outwards.
+    private final Map<Long, Integer> outer = new LinkedHashMap<>();
+    private final Set<Long> written = new LinkedHashSet<>();
+    private boolean tracing = false;
+    private boolean unparsed = false;
+    // Fused and lowered nodes are compiled as what they stand for, built
+    // once so that both passes see the same nodes.
+    private final Map<Object, Object> expanded = new IdentityHashMap<>();
+    // Whether each node down a chain is INT arithmetic, found for the whole
+    // chain in one go, and found again when a variable is dropped from the
+    // ints.
+    private final Map<Expr, Boolean> integral = new IdentityHashMap<>();
+
+    private ClassCompiler(MethodWriter code) {
+        this.code = code;
+    }
+
+    // The class, of the binary name, for a program bound and folded but
+    // not otherwise rewritten.
+    static byte[] compile(List<Stmt> statements, String name, String source) {
+        String internal = name.replace('.', '/');
+        ClassWriter writer = new ClassWriter(internal);
+        writer.implement("java/lang/Runnable");
+        if (source != null)
+            writer.source(source);
+
+        MethodWriter init = writer.method(ClassWriter.PUBLIC, "<init>", "()V");
+        init.local(MethodWriter.ALOAD, 0);
+        init.invoke(MethodWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(MethodWriter.RETURN, 0);
+
+        MethodWriter main = writer.method(ClassWriter.PUBLIC | ClassWriter.STATIC, "main", "([Ljava/lang/String;)V");
+        main.newObject(internal);
+        main.op(MethodWriter.DUP, 1);
+        main.invoke(MethodWriter.INVOKESPECIAL, internal, "<init>", "()V");
+        main.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "execute", "(Ljava/lang/Runnable;)V");
+        main.op(MethodWriter.RETURN, 0);
+
+        MethodWriter run = writer.method(ClassWriter.PUBLIC, "run", "()V");
+        new ClassCompiler(run).program(statements);
+        run.op(MethodWriter.RETURN, 0);
+
+        return writer.toByteArray(ClassWriter.PUBLIC | ClassWriter.FINAL | ClassWriter.SUPER, "java/lang/Object");
+    }
+
+    // The Trace, of the binary name, for a WHILE or planned loop about to
+    // run in the frame, specialized to the classes of the values in it; or
+    // null when the loop has a body that has not been parsed yet.
+    static byte[] trace(Stmt loop, Object[] frame, String name) {
+        String internal = name.replace('.', '/');
+        ClassWriter writer = new ClassWriter(internal);
+        writer.implement("interpreter/Tracer$Trace");
+
+        MethodWriter init = writer.method(ClassWriter.PUBLIC, "<init>", "()V");
+        init.local(MethodWriter.ALOAD, 0);
+        init.invoke(MethodWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        init.op(MethodWriter.RETURN, 0);
+
+        MethodWriter run = writer.method(ClassWriter.PUBLIC, "run", "([Ljava/lang/Object;)Z");
+        if (!new ClassCompiler(run).loop(loop, frame))
+            return null;
+
+        return writer.toByteArray(ClassWriter.FINAL | ClassWriter.SUPER, "java/lang/Object");
+    }
+
+    // Writes the program to a class file, named after the class, or to a jar
+    // that runs with 'java -jar', with the runtime classes in it.
+    static void write(List<Stmt> statements, Path target, String source) throws IOException {
+        String file = target.getFileName().toString();
+        boolean jar = file.endsWith(".jar");
+        String name = file.substring(0, Math.max(0, file.lastIndexOf('.')));
+        if (!jar && !file.endsWith(".class"))
+            throw new IllegalArgumentException(file + " is neither a .class nor a .jar file");
+        if (!jar && !isName(name))
+            throw new IllegalArgumentException(name + " is not a class name");
+        if (jar)
+            name = className(name);
+        byte[] bytes = compile(statements, name, source);
+
+        // The temporary file goes next to the target, so that the move at the
+        // end stays on one file system; the directory may not exist yet.
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, "compile", ".tmp");
+        try {
+            if (jar) {
+                Manifest manifest = new Manifest();
+                manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+                manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, name);
+                try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(temporary), manifest)) {
+                    entry(out, name + ".class", bytes);
+                    for (String runtime : RUNTIME_CLASSES) {
+                        try (InputStream in = ClassCompiler.class.getResourceAsStream(runtime + ".class")) {
+                            if (in == null)
+                                throw new IOException("Runtime class " + runtime + " not found");
+                            entry(out, "interpreter/" + runtime + ".class", in.readAllBytes());
+                        }
+                    }
+                }
+            } else {
+                Files.write(temporary, bytes);
+            }
+            Files.move(temporary, target, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static void entry(JarOutputStream out, String name, byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(name));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private static boolean isName(String name) {
+        if (name.isEmpty() || !Character.isJavaIdentifierStart(name.charAt(0)))
+            return false;
+        for (int i = 1; i < name.length(); i++) {
+            if (!Character.isJavaIdentifierPart(name.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    // The name with what cannot be in a class name replaced.
+    private static String className(String name) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            builder.append(i == 0 ? Character.isJavaIdentifierStart(c) ? c : '_'
+                    : Character.isJavaIdentifierPart(c) ? c : '_');
+        }
+        return builder.length() == 0 ? "Main" : builder.toString();
+    }
+
+    private void program(List<Stmt> statements) {
+        Analysis analysis = new Analysis();
+        analysis.frames.add(0);
+        analysis.rewrite(statements);
+        integers();
+
+        // The globals are the slots the top level declares.
+        int size = 0;
+        for (Stmt statement : statements) {
+            size = Math.max(size, declared(statement));
+        }
+        enter(0, size);
+        for (Stmt statement : statements) {
+            statement(statement);
+        }
+        frames.remove(frames.size() - 1);
+    }
+
+    private static int declared(Stmt stmt) {
+        if (stmt instanceof Stmt.Int)
+            return ((Stmt.Int) stmt).slot;
+        if (stmt instanceof Stmt.Float)
+            return ((Stmt.Float) stmt).slot;
+        if (stmt instanceof Stmt.Char)
+            return ((Stmt.Char) stmt).slot;
+        if (stmt instanceof Stmt.String)
+            return ((Stmt.String) stmt).slot;
+        if (stmt instanceof Stmt.Bool)
+            return ((Stmt.Bool) stmt).slot;
+        return 0;
+    }
+
+    // Starts a frame, every variable of it cleared as the tree path clears a
+    // block's frame each time it runs it.
+    private void enter(int id, int size) {
+        Frame frame = new Frame(id, next);
+        frames.add(frame);
+        next += size;
+        code.locals(next);
+        for (int slot = 1; slot <= size; slot++) {
+            if (ints.contains(variable(id, slot))) {
+                code.push(0);
+                code.local(MethodWriter.ISTORE, frame.base + slot - 1);
+            } else {
+                code.op(MethodWriter.ACONST_NULL, 1);
+                code.local(MethodWriter.ASTORE, frame.base + slot - 1);
+            }
+        }
+    }
+
+    // The frame 'this' and the frame argument of a trace are below its
+    // locals. It loads the variables around the loop, checking that those
+    // to be ints are INTs, or fails before it has done anything, and runs
+    // the loop. The variables the loop stores into are stored back as it
+    // stops, by an exception too.
+    private boolean loop(Stmt loop, Object[] frame) {
+        tracing = true;
+        new Analysis().rewrite(loop);
+        if (unparsed)
+            return false;
+        for (long variable : outer.keySet()) {
+            if (value(frame, variable) instanceof Integer)
+                ints.add(variable);
+        }
+        integers();
+
+        next = 2;
+        Label fail = new Label();
+        for (Map.Entry<Long, Integer> entry : outer.entrySet()) {
+            int local = next++;
+            entry.setValue(local);
+            frame(entry.getKey());
+            code.push((int) (long) entry.getKey());
+            code.op(MethodWriter.AALOAD, -1);
+            code.local(MethodWriter.ASTORE, local);
+            if (ints.contains(entry.getKey())) {
+                code.local(MethodWriter.ALOAD, local);
+                code.type(MethodWriter.INSTANCEOF, "java/lang/Integer");
+                code.jump(MethodWriter.IFEQ, fail, -1);
+                code.local(MethodWriter.ALOAD, local);
+                code.type(MethodWriter.CHECKCAST, "java/lang/Integer");
+                code.invoke(MethodWriter.INVOKEVIRTUAL, "java/lang/Integer", "intValue", "()I");
+                code.local(MethodWriter.ISTORE, local);
+            }
+        }
+        int thrown = next++;
+        code.locals(next);
+
+        Label start = new Label();
+        Label end = new Label();
+        Label handler = new Label();
+        code.place(start);
+        statement(loop);
+        code.place(end);
+        store();
+        code.push(1);
+        code.op(MethodWriter.IRETURN, -1);
+
+        code.stack(1);
+        code.place(handler);
+        code.handler(start, end, handler);
+        code.local(MethodWriter.ASTORE, thrown);
+        store();
+        code.local(MethodWriter.ALOAD, thrown);
+        code.op(MethodWriter.ATHROW, -1);
+
+        code.place(fail);
+        code.push(0);
+        code.op(MethodWriter.IRETURN, -1);
+        return true;
+    }
+
+    private static Object value(Object[] frame, long variable) {
+        for (int level = level(variable); level > 0; level--) {
+            frame = (Object[]) frame[0];
+        }
+        return frame[(int) variable];
+    }
+
+    // How many frames out from the one the loop runs in a variable of a
+    // trace is.
+    private static int level(long variable) {
+        return -(int) (variable >> 32) - 1;
+    }
+
+    // Pushes the frame, of those around a traced loop, of the variable.
+    private void frame(long variable) {
+        code.local(MethodWriter.ALOAD, 1);
+        for (int level = level(variable); level > 0; level--) {
+            code.push(0);
+            code.op(MethodWriter.AALOAD, -1);
+            code.type(MethodWriter.CHECKCAST, "[Ljava/lang/Object;");
+        }
+    }
+
+    // Stores the variables around the loop that it changes back in their
+    // frames.
+    private void store() {
+        for (long variable : written) {
+            frame(variable);
+            code.push((int) variable);
+            int local = outer.get(variable);
+            if (ints.contains(variable)) {
+                code.local(MethodWriter.ILOAD, local);
+                code.invoke(MethodWriter.INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            } else {
+                code.local(MethodWriter.ALOAD, local);
+            }
+            code.op(MethodWriter.AASTORE, -3);
+        }
+    }
+
+    private static long variable(int frame, int slot) {
+        return (long) frame << 32 | slot;
+    }
+
+    // The variable at the depth, from where the code is: in a frame of the
+    // program or of the loop, or in one around the loop.
+    private long variableAt(int depth, int slot) {
+        if (depth < frames.size())
+            return variable(frames.get(frames.size() - 1 - depth).id, slot);
+        return variable(frames.size() - depth - 1, slot);
+    }
+
+    private int local(int depth, int slot) {
+        if (depth < frames.size())
+            return frames.get(frames.size() - 1 - depth).base + slot - 1;
+        return outer.get(variableAt(depth, slot));
+    }
+
+    private boolean isInt(int depth, int slot) {
+        return ints.contains(variableAt(depth, slot));
+    }
+
+    private Expr expanded(Expr expr) {
+        return (Expr) expanded.computeIfAbsent(expr, e -> Fuser.unfused((Expr) e));
+    }
+
+    private Stmt expanded(Stmt.Switch stmt) {
+        return (Stmt) expanded.computeIfAbsent(stmt, s -> SwitchLowerer.unlowered((Stmt.Switch) s));
+    }
+
+    // Walks the program, or the loop, as the compiler will, numbering the
+    // frames and noting what each variable use refers to and every store.
+    private final class Analysis extends Rewriter {
+        private final List<Integer> frames = new ArrayList<>();
+        private int count = 1;
+
+        private long variable(int depth, int slot) {
+            if (depth < frames.size())
+                return ClassCompiler.variable(frames.get(frames.size() - 1 - depth), slot);
+            long variable = ClassCompiler.variable(frames.size() - depth - 1, slot);
+            outer.putIfAbsent(variable, -1);
+            return variable;
+        }
+
+        private void store(int depth, int slot, Expr value, boolean integral) {
+            store(variable(depth, slot), value, integral);
+        }
+
+        private void store(long variable, Expr value, boolean integral) {
+            stores.add(new Store(variable, value, integral));
+            if (outer.containsKey(variable))
+                written.add(variable);
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.framed)
+                return super.visitBlockStmt(stmt);
+            ids.put(stmt, count);
+            frames.add(count++);
+            super.visitBlockStmt(stmt);
+            frames.remove(frames.size() - 1);
+            return stmt;
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            variables.put(expr, variable(expr.depth, expr.slot));
+            return expr;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            rewrite(expr.value);
+            variables.put(expr, variable(expr.depth, expr.slot));
+            store(expr.depth, expr.slot, expr.value, true);
+            return expr;
+        }
+
+        @Override
+        public Stmt visitIntStmt(Stmt.Int stmt) {
+            rewrite(stmt.intializer);
+            long variable = variable(0, stmt.slot);
+            ints.add(variable);
+            store(variable, stmt.intializer, true);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitFloatStmt(Stmt.Float stmt) {
+            rewrite(stmt.initializer);
+            store(0, stmt.slot, stmt.initializer, false);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitCharStmt(Stmt.Char stmt) {
+            rewrite(stmt.initializer);
+            store(0, stmt.slot, stmt.initializer, false);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitStringStmt(Stmt.String stmt) {
+            rewrite(stmt.initializer);
+            store(0, stmt.slot, stmt.initializer, false);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitBoolStmt(Stmt.Bool stmt) {
+            rewrite(stmt.initializer);
+            store(0, stmt.slot, stmt.initializer, false);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitScanStmt(Stmt.Scan stmt) {
+            store(stmt.depth, stmt.slot, null, false);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitMultiVarStmt(Stmt.MultiVar stmt) {
+            for (int i = 0; i < stmt.names.size(); i++) {
+                rewrite(stmt.initializers.get(i));
+                store(stmt.depths[i], stmt.slots[i], stmt.initializers.get(i), true);
+            }
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitLazyStmt(Stmt.Lazy stmt) {
+            // A trace does not parse what has not run yet, which may hold
+            // a syntax error.
+            if (tracing && !stmt.parsed()) {
+                unparsed = true;
+                return stmt;
+            }
+            rewrite(stmt.body());
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitSwitchStmt(Stmt.Switch stmt) {
+            rewrite(expanded(stmt));
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitLoopStmt(Stmt.Loop stmt) {
+            rewrite(stmt.condition);
+            rewrite(stmt.body);
+            return stmt;
+        }
+
+        @Override
+        public Expr visitInvariantExpr(Expr.Invariant expr) {
+            rewrite(expr.expression);
+            return expr;
+        }
+
+        @Override
+        public Expr visitUpdateExpr(Expr.Update expr) {
+            rewrite(expanded(expr));
+            return expr;
+        }
+
+        @Override
+        public Expr visitCompareExpr(Expr.Compare expr) {
+            rewrite(expanded(expr));
+            return expr;
+        }
+
+        @Override
+        public Expr visitConcatExpr(Expr.Concat expr) {
+            rewrite(expanded(expr));
+            return expr;
+        }
+    }
+
+    // Drops the variables declared INT that may be given anything else,
+    // until every store into the rest is an INT.
+    private void integers() {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Store store : stores) {
+                if (ints.contains(store.variable)
+                        && (!store.integral || store.value == null || !isInt(store.value))) {
+                    ints.remove(store.variable);
+                    integral.clear();
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // Whether the expression always yields an INT, so that it can be
+    // compiled to an int.
+    private boolean isInt(Expr expr) {
+        if (Expr.leftOf(expr) != null) {
+            Boolean known = integral.get(expr);
+            if (known != null)
+                return known;
+            boolean isInt = isInt(Expr.bottom(expr));
+            for (Expr node : Expr.spine(expr)) {
+                isInt = isInt && isArithmetic(Expr.operatorOf(node).type) && isInt(Expr.rightOf(node));
+                integral.put(node, isInt);
+            }
+            return isInt;
+        }
+        if (expr instanceof Expr.Literal)
+            return ((Expr.Literal) expr).value instanceof Integer;
+        if (expr instanceof Expr.Variable)
+            return ints.contains(variables.get(expr));
+        if (expr instanceof Expr.Assign)
+            return ints.contains(variables.get(expr)) && isInt(((Expr.Assign) expr).value);
+        if (expr instanceof Expr.Grouping)
+            return isInt(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Invariant)
+            return isInt(((Expr.Invariant) expr).expression);
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            return isSign(unary.operator.type) && isInt(unary.right);
+        }
+        if (expr instanceof Expr.Specialized) {
+            Expr.Specialized specialized = (Expr.Specialized) expr;
+            return isSign(specialized.operator.type) && isInt(specialized.right);
+        }
+        if (expr instanceof Expr.Update)
+            return isInt(expanded(expr));
+        return false;
+    }
+
+    // Whether the node is a comparison of INT operands, which takes its
+    // left operand as an int.
+    private boolean isIntComparison(Expr expr) {
+        return !(expr instanceof Expr.Logical) && isComparison(Expr.operatorOf(expr).type)
+                && isInt(Expr.leftOf(expr)) && isInt(Expr.rightOf(expr));
+    }
+
+    private static boolean isArithmetic(TokenType type) {
+        return type == TokenType.PLUS || type == TokenType.MINUS || type == TokenType.STAR
+                || type == TokenType.MODULO;
+    }
+
+    private static boolean isSign(TokenType type) {
+        return type == TokenType.MINUS || type == TokenType.PLUS;
+    }
+
+    private static boolean isComparison(TokenType type) {
+        switch (type) {
+            case LESS_THAN:
+            case LESS_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_OR_EQUAL:
+            case EQUAL_EVAL:
+            case NOT_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void statement(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    // Pushes the value of the expression, boxed. A chain is compiled down
+    // its left spine in a loop, as far as each node takes its left operand
+    // boxed.
+    private void object(Expr expr) {
+        if (isInt(expr)) {
+            integer(expr);
+            code.invoke(MethodWriter.INVOKESTATIC, "java/lang/Integer", "valueOf", "(I)Ljava/lang/Integer;");
+            return;
+        }
+        List<Expr> pending = new ArrayList<>();
+        Expr node = expr;
+        while (Expr.leftOf(node) != null && !isInt(node) && !isIntComparison(node)) {
+            pending.add(node);
+            node = Expr.leftOf(node);
+        }
+        if (pending.isEmpty()) {
+            expr.accept(this);
+            return;
+        }
+        object(node);
+        for (int i = pending.size() - 1; i >= 0; i--) {
+            node = pending.get(i);
+            if (node instanceof Expr.Logical) {
+                logical(((Expr.Logical) node).operator, Expr.rightOf(node));
+            } else {
+                object(Expr.rightOf(node));
+                generic(Expr.operatorOf(node));
+            }
+        }
+    }
+
+    // Pushes the value of an expression isInt() holds for, as an int.
+    private void integer(Expr expr) {
+        if (Expr.leftOf(expr) != null) {
+            integer(Expr.bottom(expr));
+            for (Expr node : Expr.spine(expr)) {
+                arithmetic(Expr.operatorOf(node), Expr.rightOf(node));
+            }
+        } else if (expr instanceof Expr.Literal) {
+            code.push((int) ((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            code.local(MethodWriter.ILOAD, local(variable.depth, variable.slot));
+        } else if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            integer(assign.value);
+            code.op(MethodWriter.DUP, 1);
+            code.local(MethodWriter.ISTORE, local(assign.depth, assign.slot));
+        } else if (expr instanceof Expr.Grouping) {
+            integer(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Invariant) {
+            integer(((Expr.Invariant) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            sign(unary.operator, unary.right);
+        } else if (expr instanceof Expr.Specialized) {
+            Expr.Specialized specialized = (Expr.Specialized) expr;
+            sign(specialized.operator, specialized.right);
+        } else if (expr instanceof Expr.Update) {
+            integer(expanded(expr));
+        } else {
+            throw new IllegalStateException("Not an INT expression");
+        }
+    }
+
+    // Applies the operator to the int on the stack and the operand.
+    private void arithmetic(Token operator, Expr right) {
+        integer(right);
+        code.line(operator.getLine());
+        switch (operator.type) {
+            case PLUS:
+                code.op(MethodWriter.IADD, -1);
+                break;
+            case MINUS:
+                code.op(MethodWriter.ISUB, -1);
+                break;
+            case STAR:
+                code.op(MethodWriter.IMUL, -1);
+                break;
+            default:
+                // Division by zero throws what it throws on the tree path.
+                code.op(MethodWriter.IREM, -1);
+                break;
+        }
+    }
+
+    private void sign(Token operator, Expr right) {
+        integer(right);
+        if (operator.type == TokenType.MINUS)
+            code.op(MethodWriter.INEG, 0);
+    }
+
+    // Jumps to 'otherwise' unless the condition holds.
+    private void branch(Expr condition, Label otherwise) {
+        if (condition instanceof Expr.Grouping) {
+            branch(((Expr.Grouping) condition).expression, otherwise);
+            return;
+        }
+        if (condition instanceof Expr.Invariant) {
+            branch(((Expr.Invariant) condition).expression, otherwise);
+            return;
+        }
+        if (condition instanceof Expr.Compare) {
+            branch(expanded(condition), otherwise);
+            return;
+        }
+        if (isAnd(condition)) {
+            List<Expr> operands = new ArrayList<>();
+            for (; isAnd(condition); condition = ((Expr.Logical) condition).left) {
+                operands.add(((Expr.Logical) condition).right);
+            }
+            branch(condition, otherwise);
+            for (int i = operands.size() - 1; i >= 0; i--) {
+                branch(operands.get(i), otherwise);
+            }
+            return;
+        }
+        Expr left = null;
+        Token operator = null;
+        Expr right = null;
+        if (condition instanceof Expr.Binary) {
+            left = ((Expr.Binary) condition).left;
+            operator = ((Expr.Binary) condition).operator;
+            right = ((Expr.Binary) condition).right;
+        } else if (condition instanceof Expr.Specialized) {
+            left = ((Expr.Specialized) condition).left;
+            operator = ((Expr.Specialized) condition).operator;
+            right = ((Expr.Specialized) condition).right;
+        }
+        if (left != null && isComparison(operator.type) && isInt(left) && isInt(right)) {
+            integer(left);
+            integer(right);
+            code.jump(unless(operator.type), otherwise, -2);
+            return;
+        }
+        object(condition);
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "truthy", "(" + OBJECT + ")Z");
+        code.jump(MethodWriter.IFEQ, otherwise, -1);
+    }
+
+    private static boolean isAnd(Expr expr) {
+        return expr instanceof Expr.Logical && ((Expr.Logical) expr).operator.type == TokenType.AND;
+    }
+
+    // The int comparison that jumps when the comparison does not hold.
+    private static int unless(TokenType comparison) {
+        switch (comparison) {
+            case LESS_THAN:
+                return MethodWriter.IF_ICMPGE;
+            case LESS_OR_EQUAL:
+                return MethodWriter.IF_ICMPGT;
+            case GREATER_THAN:
+                return MethodWriter.IF_ICMPLE;
+            case GREATER_OR_EQUAL:
+                return MethodWriter.IF_ICMPLT;
+            case EQUAL_EVAL:
+                return MethodWriter.IF_ICMPNE;
+            default:
+                return MethodWriter.IF_ICMPEQ;
+        }
+    }
+
+    private void binary(Expr left, Token operator, Expr right) {
+        if (isComparison(operator.type) && isInt(left) && isInt(right)) {
+            Label otherwise = new Label();
+            Label end = new Label();
+            integer(left);
+            integer(right);
+            code.jump(unless(operator.type), otherwise, -2);
+            code.getStatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+            code.jump(MethodWriter.GOTO, end, 0);
+            code.stack(code.stack() - 1);
+            code.place(otherwise);
+            code.getStatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+            code.place(end);
+            return;
+        }
+        object(left);
+        object(right);
+        generic(operator);
+    }
+
+    // Applies the operator to the two values on the stack.
+    private void generic(Token operator) {
+        String method = method(operator.type);
+        if (method == null) {
+            // Operators has nothing for it.
+            code.op(MethodWriter.POP2, -2);
+            code.op(MethodWriter.ACONST_NULL, 1);
+            return;
+        }
+        code.line(operator.getLine());
+        code.push(operator.getLine());
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, method, BINARY);
+    }
+
+    // The CompiledRuntime method for a binary operator.
+    private static String method(TokenType operator) {
+        switch (operator) {
+            case PLUS:
+                return "add";
+            case MINUS:
+                return "subtract";
+            case STAR:
+                return "multiply";
+            case SLASH:
+                return "divide";
+            case MODULO:
+                return "modulo";
+            case CONCAT:
+                return "concat";
+            case LESS_THAN:
+                return "less";
+            case LESS_OR_EQUAL:
+                return "lessEqual";
+            case GREATER_THAN:
+                return "greater";
+            case GREATER_OR_EQUAL:
+                return "greaterEqual";
+            case EQUAL_EVAL:
+                return "equal";
+            case NOT_EQUAL:
+                return "notEqual";
+            default:
+                return null;
+        }
+    }
+
+    private void unary(Token operator, Expr right) {
+        object(right);
+        String method = operator.type == TokenType.MINUS ? "negate"
+                : operator.type == TokenType.PLUS ? "plus" : operator.type == TokenType.NOT ? "not" : null;
+        if (method == null) {
+            code.op(MethodWriter.POP, -1);
+            code.op(MethodWriter.ACONST_NULL, 1);
+            return;
+        }
+        code.line(operator.getLine());
+        code.push(operator.getLine());
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, method, UNARY);
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        binary(expr.left, expr.operator, expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitSpecializedExpr(Expr.Specialized expr) {
+        if (expr.left == null) {
+            unary(expr.operator, expr.right);
+        } else {
+            binary(expr.left, expr.operator, expr.right);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        unary(expr.operator, expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        object(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        object(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        Object value = expr.value;
+        if (value == null) {
+            code.op(MethodWriter.ACONST_NULL, 1);
+        } else if (value instanceof String) {
+            code.ldc(code.owner().string((String) value));
+        } else if (value instanceof Double) {
+            code.ldc2(code.owner().doubleRef((double) value));
+            code.invoke(MethodWriter.INVOKESTATIC, "java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+        } else if (value instanceof Float) {
+            code.ldc(code.owner().floating((float) value));
+            code.invoke(MethodWriter.INVOKESTATIC, "java/lang/Float", "valueOf", "(F)Ljava/lang/Float;");
+        } else if (value instanceof Character) {
+            code.push((char) value);
+            code.invoke(MethodWriter.INVOKESTATIC, "java/lang/Character", "valueOf", "(C)Ljava/lang/Character;");
+        } else if (value instanceof Boolean) {
+            code.getStatic("java/lang/Boolean", (boolean) value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+        } else {
+            throw new IllegalStateException("Cannot compile a constant of " + value.getClass().getSimpleName());
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        object(expr.left);
+        logical(expr.operator, expr.right);
+        return null;
+    }
+
+    // Yields the value on the stack, or else the operand, as the operator
+    // says.
+    private void logical(Token operator, Expr right) {
+        Label end = new Label();
+        code.op(MethodWriter.DUP, 1);
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "truthy", "(" + OBJECT + ")Z");
+        code.jump(operator.type == TokenType.OR ? MethodWriter.IFNE : MethodWriter.IFEQ, end, -1);
+        code.op(MethodWriter.POP, -1);
+        object(right);
+        code.place(end);
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        code.local(MethodWriter.ALOAD, local(expr.depth, expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        object(expr.value);
+        code.op(MethodWriter.DUP, 1);
+        code.local(MethodWriter.ASTORE, local(expr.depth, expr.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        object(expanded(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        object(expanded(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitConcatExpr(Expr.Concat expr) {
+        object(expanded(expr));
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.framed)
+            enter(ids.get(stmt), stmt.size);
+        for (Stmt statement : stmt.statements) {
+            statement(statement);
+        }
+        if (stmt.framed) {
+            next = frames.remove(frames.size() - 1).base;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        if (isInt(stmt.expression)) {
+            integer(stmt.expression);
+        } else {
+            object(stmt.expression);
+        }
+        code.op(MethodWriter.POP, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitDisplayStmt(Stmt.Display stmt) {
+        object(stmt.expression);
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "display", "(" + OBJECT + ")V");
+        return null;
+    }
+
+    @Override
+    public Void visitScanStmt(Stmt.Scan stmt) {
+        int local = local(stmt.depth, stmt.slot);
+        code.line(stmt.name.getLine());
+        code.local(MethodWriter.ALOAD, local);
+        if (stmt.type == null) {
+            code.op(MethodWriter.ACONST_NULL, 1);
+        } else {
+            code.ldc(code.owner().string(stmt.type));
+        }
+        code.push(stmt.name.getLine());
+        code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "scan", "(" + OBJECT + "Ljava/lang/String;I)" + OBJECT);
+        code.local(MethodWriter.ASTORE, local);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        Label otherwise = new Label();
+        branch(stmt.condition, otherwise);
+        statement(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            code.place(otherwise);
+            return null;
+        }
+        Label end = new Label();
+        code.jump(MethodWriter.GOTO, end, 0);
+        code.place(otherwise);
+        statement(stmt.elseBranch);
+        code.place(end);
+        return null;
+    }
+
+    private void loop(Expr condition, Stmt body) {
+        Label start = new Label();
+        Label end = new Label();
+        code.place(start);
+        branch(condition, end);
+        statement(body);
+        code.jump(MethodWriter.GOTO, start, 0);
+        code.place(end);
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        loop(stmt.condition, stmt.body);
+        return null;
+    }
+
+    // A planned loop is compiled as the WHILE it was; the JIT hoists and
+    // counts on its own.
+    @Override
+    public Void visitLoopStmt(Stmt.Loop stmt) {
+        loop(stmt.condition, stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitSwitchStmt(Stmt.Switch stmt) {
+        statement(expanded(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitLazyStmt(Stmt.Lazy stmt) {
+        statement(stmt.body());
+        return null;
+    }
+
+    private void declare(Token name, int slot, Expr initializer, int kind) {
+        int local = local(0, slot);
+        code.line(name.getLine());
+        if (isInt(0, slot)) {
+            integer(initializer);
+            code.local(MethodWriter.ISTORE, local);
+            return;
+        }
+        if (initializer == null) {
+            code.op(MethodWriter.ACONST_NULL, 1);
+        } else {
+            object(initializer);
+            if (kind >= 0) {
+                code.push(kind);
+                code.push(name.getLine());
+                code.invoke(MethodWriter.INVOKESTATIC, RUNTIME, "declare", "(" + OBJECT + "II)" + OBJECT);
+            }
+        }
+        code.local(MethodWriter.ASTORE, local);
+    }
+
+    @Override
+    public Void visitIntStmt(Stmt.Int stmt) {
+        declare(stmt.name, stmt.slot, stmt.intializer, CompiledRuntime.INT);
+        return null;
+    }
+
+    @Override
+    public Void visitFloatStmt(Stmt.Float stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, CompiledRuntime.FLOAT);
+        return null;
+    }
+
+    @Override
+    public Void visitCharStmt(Stmt.Char stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, CompiledRuntime.CHAR);
+        return null;
+    }
+
+    @Override
+    public Void visitStringStmt(Stmt.String stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, CompiledRuntime.STRING);
+        return null;
+    }
+
+    @Override
+    public Void visitBoolStmt(Stmt.Bool stmt) {
+        declare(stmt.name, stmt.slot, stmt.initializer, -1);
+        return null;
+    }
+
+    @Override
+    public Void visitMultiVarStmt(Stmt.MultiVar stmt) {
+        for (int i = 0; i < stmt.names.size(); i++) {
+            Expr initializer = stmt.initializers.get(i);
+            int local = local(stmt.depths[i], stmt.slots[i]);
+            if (isInt(stmt.depths[i], stmt.slots[i])) {
+                integer(initializer);
+                code.local(MethodWriter.ISTORE, local);
+                continue;
+            }
+            if (initializer == null) {
+                code.op(MethodWriter.ACONST_NULL, 1);
+            } else {
+                object(initializer);
+            }
+            code.local(MethodWriter.ASTORE, local);
+        }
+        return null;
+    }
+}
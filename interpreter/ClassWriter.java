@@ -0,0 +1,500 @@
+package interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Writes a JVM class file: a constant pool, the methods and their code, and
+// nothing else. It targets class file version 49, the last one the JVM
+// verifies by inferring the types of locals and of the operand stack
+// itself, so that the code needs no StackMapTable and no frames have to be
+// computed here. Each method tracks its own operand stack depth from the
+// stack effects its instructions are emitted with.
+final class ClassWriter {
+    static final int PUBLIC = 0x0001;
+    static final int STATIC = 0x0008;
+    static final int FINAL = 0x0010;
+    static final int SUPER = 0x0020;
+
+    private static final int VERSION = 49;
+
+    // Constant pool tags.
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD = 9;
+    private static final int METHOD = 10;
+    private static final int NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int count = 1;
+    private final String name;
+    private final List<MethodWriter> methods = new ArrayList<>();
+    private final List<String> interfaces = new ArrayList<>();
+    private String source;
+
+    // A class of the internal name, such as "pkg/Name".
+    ClassWriter(String name) {
+        this.name = name;
+    }
+
+    String name() {
+        return name;
+    }
+
+    void implement(String name) {
+        interfaces.add(name);
+    }
+
+    void source(String file) {
+        source = file;
+    }
+
+    MethodWriter method(int access, String name, String descriptor) {
+        MethodWriter method = new MethodWriter(this, access, name, descriptor);
+        methods.add(method);
+        return method;
+    }
+
+    // The pool index of a constant, added the first time it is asked for.
+    private int constant(String key, int tag, int size, Writer writer) {
+        Integer index = constants.get(key);
+        if (index != null)
+            return index;
+        try {
+            pool.writeByte(tag);
+            writer.write(pool);
+        } catch (UTFDataFormatException e) {
+            throw new IllegalStateException("A string constant is too long for a class file");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        index = count;
+        count += size;
+        if (count > 0xffff)
+            throw new IllegalStateException("Too many constants for a class file");
+        constants.put(key, index);
+        return index;
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    int utf8(String value) {
+        return constant("U" + value, UTF8, 1, out -> out.writeUTF(value));
+    }
+
+    int classRef(String name) {
+        int utf8 = utf8(name);
+        return constant("C" + name, CLASS, 1, out -> out.writeShort(utf8));
+    }
+
+    int string(String value) {
+        int utf8 = utf8(value);
+        return constant("S" + value, STRING, 1, out -> out.writeShort(utf8));
+    }
+
+    int integer(int value) {
+        return constant("I" + value, INTEGER, 1, out -> out.writeInt(value));
+    }
+
+    int floating(float value) {
+        return constant("F" + java.lang.Float.floatToRawIntBits(value), FLOAT, 1,
+                out -> out.writeFloat(value));
+    }
+
+    // A double takes two entries of the pool.
+    int doubleRef(double value) {
+        return constant("D" + Double.doubleToRawLongBits(value), DOUBLE, 2, out -> out.writeDouble(value));
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descriptorIndex = utf8(descriptor);
+        return constant("N" + name + ":" + descriptor, NAME_AND_TYPE, 1, out -> {
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+        });
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int type = nameAndType(name, descriptor);
+        return constant("M" + owner + "." + name + descriptor, METHOD, 1, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(type);
+        });
+    }
+
+    int fieldRef(String owner, String name, String descriptor) {
+        int ownerIndex = classRef(owner);
+        int type = nameAndType(name, descriptor);
+        return constant("F" + owner + "." + name + ":" + descriptor, FIELD, 1, out -> {
+            out.writeShort(ownerIndex);
+            out.writeShort(type);
+        });
+    }
+
+    byte[] toByteArray(int access, String superName) {
+        // Everything the class refers to goes into the pool before it is
+        // written.
+        int thisIndex = classRef(name);
+        int superIndex = classRef(superName);
+        int[] interfaceIndexes = new int[interfaces.size()];
+        for (int i = 0; i < interfaceIndexes.length; i++) {
+            interfaceIndexes[i] = classRef(interfaces.get(i));
+        }
+        int sourceName = source == null ? 0 : utf8("SourceFile");
+        int sourceIndex = source == null ? 0 : utf8(source);
+        for (MethodWriter method : methods) {
+            method.prepare();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(count);
+            poolBytes.writeTo(out);
+            out.writeShort(access);
+            out.writeShort(thisIndex);
+            out.writeShort(superIndex);
+            out.writeShort(interfaceIndexes.length);
+            for (int index : interfaceIndexes) {
+                out.writeShort(index);
+            }
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (MethodWriter method : methods) {
+                method.write(out);
+            }
+            if (source == null) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(sourceName);
+                out.writeInt(2);
+                out.writeShort(sourceIndex);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // A place in the code of a method that jumps go to. Jumps emitted
+    // before it is placed are patched when it is.
+    static final class Label {
+        private int offset = -1;
+        private final List<Integer> jumps = new ArrayList<>();
+    }
+
+    static final class MethodWriter {
+        // The opcodes the compilers use.
+        static final int ACONST_NULL = 0x01;
+        static final int ICONST_0 = 0x03;
+        static final int BIPUSH = 0x10;
+        static final int SIPUSH = 0x11;
+        static final int LDC = 0x12;
+        static final int LDC_W = 0x13;
+        static final int LDC2_W = 0x14;
+        static final int ILOAD = 0x15;
+        static final int ALOAD = 0x19;
+        static final int AALOAD = 0x32;
+        static final int ISTORE = 0x36;
+        static final int ASTORE = 0x3a;
+        static final int AASTORE = 0x53;
+        static final int POP = 0x57;
+        static final int POP2 = 0x58;
+        static final int DUP = 0x59;
+        static final int IADD = 0x60;
+        static final int ISUB = 0x64;
+        static final int IMUL = 0x68;
+        static final int IREM = 0x70;
+        static final int INEG = 0x74;
+        static final int IFEQ = 0x99;
+        static final int IFNE = 0x9a;
+        static final int IF_ICMPEQ = 0x9f;
+        static final int IF_ICMPNE = 0xa0;
+        static final int IF_ICMPLT = 0xa1;
+        static final int IF_ICMPGE = 0xa2;
+        static final int IF_ICMPGT = 0xa3;
+        static final int IF_ICMPLE = 0xa4;
+        static final int GOTO = 0xa7;
+        static final int IRETURN = 0xac;
+        static final int RETURN = 0xb1;
+        static final int GETSTATIC = 0xb2;
+        static final int INVOKEVIRTUAL = 0xb6;
+        static final int INVOKESPECIAL = 0xb7;
+        static final int INVOKESTATIC = 0xb8;
+        static final int NEW = 0xbb;
+        static final int ATHROW = 0xbf;
+        static final int CHECKCAST = 0xc0;
+        static final int INSTANCEOF = 0xc1;
+        private static final int WIDE = 0xc4;
+
+        private final ClassWriter owner;
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private byte[] code = new byte[256];
+        private int size = 0;
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+        // Pairs of the offset where a line starts and the line.
+        private final List<Integer> lines = new ArrayList<>();
+        // The start, end and handler of each range whose exceptions are
+        // caught, in threes.
+        private final List<Label> handlers = new ArrayList<>();
+        private int nameIndex;
+        private int descriptorIndex;
+        private int codeIndex;
+        private int linesIndex;
+
+        private MethodWriter(ClassWriter owner, int access, String name, String descriptor) {
+            this.owner = owner;
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            // 'this' or the arguments of main.
+            this.maxLocals = 1;
+        }
+
+        ClassWriter owner() {
+            return owner;
+        }
+
+        // Makes room for the locals below 'locals'.
+        void locals(int locals) {
+            maxLocals = Math.max(maxLocals, locals);
+        }
+
+        // Marks where the code of a source line starts.
+        void line(int line) {
+            int last = lines.size();
+            if (line <= 0 || last > 0 && (int) lines.get(last - 1) == line)
+                return;
+            if (last > 0 && (int) lines.get(last - 2) == size) {
+                lines.set(last - 1, line);
+                return;
+            }
+            lines.add(size);
+            lines.add(line);
+        }
+
+        // Emits an opcode that changes the depth of the operand stack by
+        // 'effect'.
+        void op(int opcode, int effect) {
+            u1(opcode);
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int value) {
+            if (size == code.length)
+                code = Arrays.copyOf(code, size * 2);
+            code[size++] = (byte) value;
+        }
+
+        void u2(int value) {
+            u1(value >>> 8);
+            u1(value);
+        }
+
+        void push(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                u2(value);
+            } else {
+                ldc(owner.integer(value));
+            }
+        }
+
+        // Pushes a one-entry constant of the pool.
+        void ldc(int index) {
+            if (index <= 0xff) {
+                op(LDC, 1);
+                u1(index);
+            } else {
+                op(LDC_W, 1);
+                u2(index);
+            }
+        }
+
+        void ldc2(int index) {
+            op(LDC2_W, 2);
+            u2(index);
+        }
+
+        // ILOAD, ALOAD, ISTORE or ASTORE of a local, WIDE past 255.
+        void local(int opcode, int local) {
+            int effect = opcode == ILOAD || opcode == ALOAD ? 1 : -1;
+            if (local > 0xff) {
+                u1(WIDE);
+                op(opcode, effect);
+                u2(local);
+            } else {
+                op(opcode, effect);
+                u1(local);
+            }
+            locals(local + 1);
+        }
+
+        // An INVOKESTATIC or INVOKESPECIAL, its stack effect read off the
+        // descriptor.
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int effect = -arguments(descriptor) + (descriptor.endsWith(")V") ? 0
+                    : descriptor.endsWith(")D") || descriptor.endsWith(")J") ? 2 : 1);
+            if (opcode != INVOKESTATIC)
+                effect--;
+            op(opcode, effect);
+            u2(this.owner.methodRef(owner, name, descriptor));
+        }
+
+        void getStatic(String owner, String name, String descriptor) {
+            op(GETSTATIC, 1);
+            u2(this.owner.fieldRef(owner, name, descriptor));
+        }
+
+        void newObject(String type) {
+            op(NEW, 1);
+            u2(owner.classRef(type));
+        }
+
+        // A CHECKCAST or INSTANCEOF of the class.
+        void type(int opcode, String type) {
+            op(opcode, 0);
+            u2(owner.classRef(type));
+        }
+
+        // Catches whatever is thrown from 'start' up to 'end' at 'handler',
+        // where the operand stack is just what was thrown. The labels are
+        // placed by the time the method is written.
+        void handler(Label start, Label end, Label handler) {
+            handlers.add(start);
+            handlers.add(end);
+            handlers.add(handler);
+        }
+
+        // The stack slots the arguments of a method descriptor take.
+        private static int arguments(String descriptor) {
+            int slots = 0;
+            int i = 1;
+            while (descriptor.charAt(i) != ')') {
+                char c = descriptor.charAt(i);
+                if (c == 'J' || c == 'D') {
+                    slots += 2;
+                    i++;
+                } else {
+                    slots++;
+                    while (descriptor.charAt(i) == '[')
+                        i++;
+                    if (descriptor.charAt(i) == 'L')
+                        i = descriptor.indexOf(';', i);
+                    i++;
+                }
+            }
+            return slots;
+        }
+
+        // A jump of the opcode, with the stack effect of the opcode itself.
+        void jump(int opcode, Label target, int effect) {
+            int at = size;
+            op(opcode, effect);
+            if (target.offset >= 0) {
+                u2(offset(target.offset - at));
+            } else {
+                target.jumps.add(at);
+                u2(0);
+            }
+        }
+
+        void place(Label label) {
+            label.offset = size;
+            for (int at : label.jumps) {
+                int offset = offset(size - at);
+                code[at + 1] = (byte) (offset >>> 8);
+                code[at + 2] = (byte) offset;
+            }
+            label.jumps.clear();
+        }
+
+        private static int offset(int offset) {
+            if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                throw new IllegalStateException("Too much code in one method for a class file");
+            return offset;
+        }
+
+        // The depth of the operand stack where control falls through to,
+        // for code that follows an unconditional jump.
+        void stack(int depth) {
+            stack = depth;
+        }
+
+        int stack() {
+            return stack;
+        }
+
+        private void prepare() {
+            if (size > 0xffff)
+                throw new IllegalStateException("Too much code in one method for a class file");
+            nameIndex = owner.utf8(name);
+            descriptorIndex = owner.utf8(descriptor);
+            codeIndex = owner.utf8("Code");
+            if (!lines.isEmpty())
+                linesIndex = owner.utf8("LineNumberTable");
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+            out.writeShort(codeIndex);
+            int lineTable = lines.isEmpty() ? 0 : 8 + 2 * lines.size();
+            out.writeInt(12 + size + 8 * (handlers.size() / 3) + lineTable);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(size);
+            out.write(code, 0, size);
+            out.writeShort(handlers.size() / 3);
+            for (int i = 0; i < handlers.size(); i += 3) {
+                out.writeShort(handlers.get(i).offset);
+                out.writeShort(handlers.get(i + 1).offset);
+                out.writeShort(handlers.get(i + 2).offset);
+                out.writeShort(0);
+            }
+            if (lines.isEmpty()) {
+                out.writeShort(0);
+            } else {
+                out.writeShort(1);
+                out.writeShort(linesIndex);
+                out.writeInt(2 + 2 * lines.size());
+                out.writeShort(lines.size() / 2);
+                for (int line : lines) {
+                    out.writeShort(line);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,897 @@
+package interpreter;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A bound program compiled once into a tree of closures over the frames the
+// Resolver laid out. Each Expr becomes an Eval and each Stmt an Exec, with
+// what the node is, and which operator it applies, settled while compiling:
+// running the program is calling the closures, with no accept() and no
+// switch on the operator per step. Arithmetic and comparisons each get a
+// closure of their own that works on two INTs directly, so that the JIT
+// finds one implementation behind each call site where it can, and the
+// conditions of IFs and loops are Tests that yield a boolean without boxing
+// it. Anything else is left to Operators, as on the tree path, and errors
+// carry the same tokens.
+//
+// It takes the program as the passes of the tree path leave it, Loop,
+// Switch and fused nodes included. A body the lazy parse skipped is
+// compiled the first time it runs.
+final class Closures {
+    interface Eval {
+        Object evaluate(Object[] frame);
+    }
+
+    interface Test {
+        boolean test(Object[] frame);
+    }
+
+    interface Exec {
+        void execute(Object[] frame);
+    }
+
+    // What a node with two operands yields given the value of its left one.
+    interface Step {
+        Object apply(Object left, Object[] frame);
+    }
+
+    // How deep closures for nodes with two operands may call each other,
+    // down either operand; a chain that would nest deeper runs its Steps in
+    // a loop, so that it does not run out of stack.
+    private static final int TALL = 256;
+
+    private final Exec root;
+    private boolean displayed = false;
+
+    private Closures(List<Stmt> statements) {
+        root = new Compiler().sequence(statements);
+    }
+
+    static Closures of(List<Stmt> statements) {
+        return new Closures(statements);
+    }
+
+    void execute(Object[] globals) {
+        root.execute(globals);
+    }
+
+    // Whether a DISPLAY has run.
+    boolean displayed() {
+        return displayed;
+    }
+
+    private static Object[] frame(Object[] frame, int depth) {
+        for (int i = 0; i < depth; i++) {
+            frame = (Object[]) frame[0];
+        }
+        return frame;
+    }
+
+    // What Operators makes of the operands, with the operator's token on a
+    // failure. 'operation' is null unless the TypeChecker pinned it down.
+    private static Object binary(Operation operation, Token operator, Object left, Object right) {
+        try {
+            return operation != null ? Operators.binary(operation, left, right)
+                    : Operators.binary(operator.type, left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(operator, error.getMessage());
+        }
+    }
+
+    private static Object unary(Operation operation, Token operator, Object right) {
+        try {
+            return operation != null ? Operators.unary(operation, right) : Operators.unary(operator.type, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(operator, error.getMessage());
+        }
+    }
+
+    private static boolean compare(TokenType comparison, int left, int right) {
+        switch (comparison) {
+            case LESS_THAN:
+                return left < right;
+            case LESS_OR_EQUAL:
+                return left <= right;
+            case GREATER_THAN:
+                return left > right;
+            default:
+                return left >= right;
+        }
+    }
+
+    private final class Compiler implements Expr.Visitor<Eval>, Stmt.Visitor<Exec> {
+        // How deep the closures for nodes with two operands in the last
+        // expression compiled nest.
+        private int height;
+
+        // A chain is compiled down its left spine in a loop: the operand at
+        // the bottom, then each node around the closure for its left one.
+        Eval expression(Expr expr) {
+            if (Expr.leftOf(expr) == null) {
+                height = 0;
+                return expr.accept(this);
+            }
+            List<Expr> spine = Expr.spine(expr);
+            Eval bottom = expression(Expr.bottom(expr));
+            int tallest = height;
+            Eval[] rights = new Eval[spine.size()];
+            for (int i = 0; i < rights.length; i++) {
+                rights[i] = expression(Expr.rightOf(spine.get(i)));
+                tallest = Math.max(tallest, height);
+            }
+            if (tallest + spine.size() > TALL) {
+                Step[] steps = new Step[spine.size()];
+                for (int i = 0; i < steps.length; i++) {
+                    steps[i] = step(spine.get(i), rights[i]);
+                }
+                height = tallest + 1;
+                return frame -> {
+                    Object value = bottom.evaluate(frame);
+                    for (Step step : steps) {
+                        value = step.apply(value, frame);
+                    }
+                    return value;
+                };
+            }
+            Eval left = bottom;
+            for (int i = 0; i < rights.length; i++) {
+                Expr node = spine.get(i);
+                if (node instanceof Expr.Binary) {
+                    left = compile((Expr.Binary) node, left, rights[i]);
+                } else if (node instanceof Expr.Logical) {
+                    left = compile((Expr.Logical) node, left, rights[i]);
+                } else {
+                    left = compile((Expr.Specialized) node, left, rights[i]);
+                }
+            }
+            height = tallest + spine.size();
+            return left;
+        }
+
+        private Step step(Expr node, Eval right) {
+            Token operator = Expr.operatorOf(node);
+            if (node instanceof Expr.Logical) {
+                if (operator.type == TokenType.OR)
+                    return (value, frame) -> Operators.isTruthy(value) ? value : right.evaluate(frame);
+                return (value, frame) -> Operators.isTruthy(value) ? right.evaluate(frame) : value;
+            }
+            Operation operation = node instanceof Expr.Specialized ? ((Expr.Specialized) node).operation : null;
+            return (value, frame) -> binary(operation, operator, value, right.evaluate(frame));
+        }
+
+        // A counted loop's body shares its statements with the loop's, and
+        // those compile to the same closures.
+        private final Map<Stmt, Exec> compiled = new IdentityHashMap<>();
+
+        Exec statement(Stmt stmt) {
+            Exec exec = compiled.get(stmt);
+            if (exec == null) {
+                exec = stmt.accept(this);
+                compiled.put(stmt, exec);
+            }
+            return exec;
+        }
+
+        Exec sequence(List<Stmt> statements) {
+            Exec[] steps = new Exec[statements.size()];
+            for (int i = 0; i < steps.length; i++) {
+                steps[i] = statement(statements.get(i));
+            }
+            switch (steps.length) {
+                case 0:
+                    return frame -> {
+                    };
+                case 1:
+                    return steps[0];
+                case 2: {
+                    Exec first = steps[0];
+                    Exec second = steps[1];
+                    return frame -> {
+                        first.execute(frame);
+                        second.execute(frame);
+                    };
+                }
+                default:
+                    return frame -> {
+                        for (Exec step : steps) {
+                            step.execute(frame);
+                        }
+                    };
+            }
+        }
+
+        // A condition, as a Test. A comparison yields its boolean as it is;
+        // anything else is evaluated and tested for truth.
+        Test condition(Expr condition) {
+            while (condition instanceof Expr.Grouping || condition instanceof Expr.Compare) {
+                condition = condition instanceof Expr.Grouping ? ((Expr.Grouping) condition).expression
+                        : Fuser.unfused(condition);
+            }
+            if (condition instanceof Expr.Binary && isComparison(((Expr.Binary) condition).operator.type)) {
+                Expr.Binary binary = (Expr.Binary) condition;
+                return comparison(binary.operator.type, null, binary.operator, expression(binary.left),
+                        expression(binary.right));
+            }
+            if (condition instanceof Expr.Specialized && ((Expr.Specialized) condition).left != null
+                    && isInt(((Expr.Specialized) condition).operation)
+                    && isComparison(((Expr.Specialized) condition).operation.operator)) {
+                Expr.Specialized specialized = (Expr.Specialized) condition;
+                return comparison(specialized.operation.operator, specialized.operation, specialized.operator,
+                        expression(specialized.left), expression(specialized.right));
+            }
+            Eval value = expression(condition);
+            return frame -> Operators.isTruthy(value.evaluate(frame));
+        }
+
+        private boolean isComparison(TokenType type) {
+            switch (type) {
+                case LESS_THAN:
+                case LESS_OR_EQUAL:
+                case GREATER_THAN:
+                case GREATER_OR_EQUAL:
+                case EQUAL_EVAL:
+                case NOT_EQUAL:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private boolean isInt(Operation operation) {
+            return operation.ordinal() <= Operation.INT_NOT_EQUAL.ordinal();
+        }
+
+        private Test comparison(TokenType type, Operation operation, Token operator, Eval left, Eval right) {
+            switch (type) {
+                case LESS_THAN:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l < (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                case LESS_OR_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l <= (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                case GREATER_THAN:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l > (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                case GREATER_OR_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l >= (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                case EQUAL_EVAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l == (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                case NOT_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l != (int) r;
+                        return Operators.isTruthy(binary(operation, operator, l, r));
+                    };
+                default:
+                    throw new IllegalStateException("Not a comparison: " + type);
+            }
+        }
+
+        // A binary operation with a closure of its own for two INTs, or null
+        // when the operator has none.
+        private Eval arithmetic(TokenType type, Operation operation, Token operator, Eval left, Eval right) {
+            switch (type) {
+                case PLUS:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l + (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case MINUS:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l - (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case STAR:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l * (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case MODULO:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l % (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case LESS_THAN:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l < (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case LESS_OR_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l <= (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case GREATER_THAN:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l > (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case GREATER_OR_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l >= (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case EQUAL_EVAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l == (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                case NOT_EQUAL:
+                    return frame -> {
+                        Object l = left.evaluate(frame);
+                        Object r = right.evaluate(frame);
+                        if (l instanceof Integer && r instanceof Integer)
+                            return (int) l != (int) r;
+                        return binary(operation, operator, l, r);
+                    };
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public Eval visitBinaryExpr(Expr.Binary expr) {
+            return compile(expr, expression(expr.left), expression(expr.right));
+        }
+
+        private Eval compile(Expr.Binary expr, Eval left, Eval right) {
+            Token operator = expr.operator;
+            Eval fast = arithmetic(operator.type, null, operator, left, right);
+            if (fast != null)
+                return fast;
+            return frame -> binary(null, operator, left.evaluate(frame), right.evaluate(frame));
+        }
+
+        @Override
+        public Eval visitSpecializedExpr(Expr.Specialized expr) {
+            if (expr.left != null)
+                return compile(expr, expression(expr.left), expression(expr.right));
+            Operation operation = expr.operation;
+            Token operator = expr.operator;
+            Eval right = expression(expr.right);
+            return frame -> unary(operation, operator, right.evaluate(frame));
+        }
+
+        private Eval compile(Expr.Specialized expr, Eval left, Eval right) {
+            Operation operation = expr.operation;
+            Token operator = expr.operator;
+            if (isInt(operation))
+                return arithmetic(operation.operator, operation, operator, left, right);
+            return frame -> binary(operation, operator, left.evaluate(frame), right.evaluate(frame));
+        }
+
+        @Override
+        public Eval visitUnaryExpr(Expr.Unary expr) {
+            Token operator = expr.operator;
+            Eval right = expression(expr.right);
+            return frame -> unary(null, operator, right.evaluate(frame));
+        }
+
+        @Override
+        public Eval visitGroupingExpr(Expr.Grouping expr) {
+            return expression(expr.expression);
+        }
+
+        @Override
+        public Eval visitLiteralExpr(Expr.Literal expr) {
+            Object value = expr.value;
+            return frame -> value;
+        }
+
+        @Override
+        public Eval visitLogicalExpr(Expr.Logical expr) {
+            return compile(expr, expression(expr.left), expression(expr.right));
+        }
+
+        private Eval compile(Expr.Logical expr, Eval left, Eval right) {
+            if (expr.operator.type == TokenType.OR) {
+                return frame -> {
+                    Object value = left.evaluate(frame);
+                    return Operators.isTruthy(value) ? value : right.evaluate(frame);
+                };
+            }
+            return frame -> {
+                Object value = left.evaluate(frame);
+                return Operators.isTruthy(value) ? right.evaluate(frame) : value;
+            };
+        }
+
+        @Override
+        public Eval visitVariableExpr(Expr.Variable expr) {
+            int depth = expr.depth;
+            int slot = expr.slot;
+            switch (depth) {
+                case 0:
+                    return frame -> frame[slot];
+                case 1:
+                    return frame -> ((Object[]) frame[0])[slot];
+                default:
+                    return frame -> frame(frame, depth)[slot];
+            }
+        }
+
+        @Override
+        public Eval visitAssignExpr(Expr.Assign expr) {
+            int depth = expr.depth;
+            int slot = expr.slot;
+            Eval value = expression(expr.value);
+            if (depth == 0) {
+                return frame -> frame[slot] = value.evaluate(frame);
+            }
+            return frame -> {
+                Object result = value.evaluate(frame);
+                frame(frame, depth)[slot] = result;
+                return result;
+            };
+        }
+
+        @Override
+        public Eval visitInvariantExpr(Expr.Invariant expr) {
+            // The value is kept on the node, where the loop that owns it
+            // forgets it.
+            Eval value = expression(expr.expression);
+            return frame -> {
+                if (!expr.known) {
+                    expr.value = value.evaluate(frame);
+                    expr.known = true;
+                }
+                return expr.value;
+            };
+        }
+
+        @Override
+        public Eval visitUpdateExpr(Expr.Update expr) {
+            return expression(Fuser.unfused(expr));
+        }
+
+        @Override
+        public Eval visitCompareExpr(Expr.Compare expr) {
+            return expression(Fuser.unfused(expr));
+        }
+
+        // Builds the string the chain of concatenations would, including the
+        // line break stringify() prints for a partial result of "new_line".
+        @Override
+        public Eval visitConcatExpr(Expr.Concat expr) {
+            Eval[] operands = new Eval[expr.operands.size()];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = expression(expr.operands.get(i));
+            }
+            return frame -> {
+                Object first = operands[0].evaluate(frame);
+                Object second = operands[1].evaluate(frame);
+                StringBuilder builder = new StringBuilder(Operators.stringify(first))
+                        .append(Operators.stringify(second));
+                for (int i = 2; i < operands.length; i++) {
+                    Object value = operands[i].evaluate(frame);
+                    if (builder.length() == 8 && builder.toString().equals("new_line"))
+                        System.out.println();
+                    builder.append(Operators.stringify(value));
+                }
+                return builder.toString();
+            };
+        }
+
+        @Override
+        public Exec visitBlockStmt(Stmt.Block stmt) {
+            Exec body = sequence(stmt.statements);
+            if (!stmt.framed)
+                return body;
+            return new BlockExec(stmt.size, body);
+        }
+
+        @Override
+        public Exec visitExpressionStmt(Stmt.Expression stmt) {
+            Eval value = expression(stmt.expression);
+            return frame -> value.evaluate(frame);
+        }
+
+        @Override
+        public Exec visitDisplayStmt(Stmt.Display stmt) {
+            Eval value = expression(stmt.expression);
+            return frame -> {
+                Operators.display(value.evaluate(frame));
+                displayed = true;
+            };
+        }
+
+        @Override
+        public Exec visitScanStmt(Stmt.Scan stmt) {
+            Token name = stmt.name;
+            int depth = stmt.depth;
+            int slot = stmt.slot;
+            String type = stmt.type;
+            return frame -> {
+                try {
+                    Object value = Operators.scanned(type, Operators.scanInput());
+                    if (value == null)
+                        throw new RuntimeError(name, "Input must be " + type);
+                    frame(frame, depth)[slot] = value;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            };
+        }
+
+        @Override
+        public Exec visitIfStmt(Stmt.If stmt) {
+            Test condition = condition(stmt.condition);
+            Exec thenBranch = statement(stmt.thenBranch);
+            if (stmt.elseBranch == null) {
+                return frame -> {
+                    if (condition.test(frame))
+                        thenBranch.execute(frame);
+                };
+            }
+            Exec elseBranch = statement(stmt.elseBranch);
+            return frame -> {
+                if (condition.test(frame)) {
+                    thenBranch.execute(frame);
+                } else {
+                    elseBranch.execute(frame);
+                }
+            };
+        }
+
+        @Override
+        public Exec visitWhileStmt(Stmt.While stmt) {
+            Test condition = condition(stmt.condition);
+            Exec body = statement(stmt.body);
+            return frame -> {
+                while (condition.test(frame)) {
+                    body.execute(frame);
+                }
+            };
+        }
+
+        @Override
+        public Exec visitLoopStmt(Stmt.Loop stmt) {
+            if (stmt.body instanceof Stmt.Lazy)
+                return new LazyLoopExec(this, stmt);
+            return new LoopExec(this, stmt);
+        }
+
+        @Override
+        public Exec visitSwitchStmt(Stmt.Switch stmt) {
+            return new SwitchExec(this, stmt);
+        }
+
+        private Exec declare(Token name, int slot, Expr initializer, boolean typed, Class<?> type, String message) {
+            if (initializer == null)
+                return frame -> frame[slot] = null;
+            Eval value = expression(initializer);
+            if (type == null)
+                return frame -> frame[slot] = value.evaluate(frame);
+            if (typed) {
+                return frame -> {
+                    Object result = value.evaluate(frame);
+                    if (result == null)
+                        throw new RuntimeError(name, message);
+                    frame[slot] = result;
+                };
+            }
+            return frame -> {
+                Object result = value.evaluate(frame);
+                if (!type.isInstance(result))
+                    throw new RuntimeError(name, message);
+                frame[slot] = result;
+            };
+        }
+
+        @Override
+        public Exec visitIntStmt(Stmt.Int stmt) {
+            return declare(stmt.name, stmt.slot, stmt.intializer, stmt.typed, Integer.class,
+                    "Input must be an Integer");
+        }
+
+        @Override
+        public Exec visitFloatStmt(Stmt.Float stmt) {
+            return declare(stmt.name, stmt.slot, stmt.initializer, stmt.typed, Double.class, "Input must be a float");
+        }
+
+        @Override
+        public Exec visitCharStmt(Stmt.Char stmt) {
+            return declare(stmt.name, stmt.slot, stmt.initializer, stmt.typed, Character.class,
+                    "Input must be a character");
+        }
+
+        @Override
+        public Exec visitStringStmt(Stmt.String stmt) {
+            return declare(stmt.name, stmt.slot, stmt.initializer, stmt.typed, String.class,
+                    "Input must be a String");
+        }
+
+        @Override
+        public Exec visitBoolStmt(Stmt.Bool stmt) {
+            return declare(stmt.name, stmt.slot, stmt.initializer, false, null, null);
+        }
+
+        @Override
+        public Exec visitMultiVarStmt(Stmt.MultiVar stmt) {
+            Exec[] steps = new Exec[stmt.names.size()];
+            for (int i = 0; i < steps.length; i++) {
+                int depth = stmt.depths[i];
+                int slot = stmt.slots[i];
+                Expr initializer = stmt.initializers.get(i);
+                if (initializer == null) {
+                    steps[i] = frame -> frame(frame, depth)[slot] = null;
+                } else {
+                    Eval value = expression(initializer);
+                    steps[i] = frame -> frame(frame, depth)[slot] = value.evaluate(frame);
+                }
+            }
+            return frame -> {
+                for (Exec step : steps) {
+                    step.execute(frame);
+                }
+            };
+        }
+
+        @Override
+        public Exec visitLazyStmt(Stmt.Lazy stmt) {
+            return new LazyExec(this, stmt);
+        }
+    }
+
+    // Like the tree path, a block keeps its frame from one run to the next.
+    private static final class BlockExec implements Exec {
+        private final int size;
+        private final Exec body;
+        private Object[] kept;
+
+        BlockExec(int size, Exec body) {
+            this.size = size;
+            this.body = body;
+        }
+
+        @Override
+        public void execute(Object[] frame) {
+            Object[] inner = kept;
+            if (inner == null) {
+                inner = new Object[size + 1];
+                kept = inner;
+            } else {
+                Arrays.fill(inner, 1, inner.length, null);
+            }
+            inner[0] = frame;
+            body.execute(inner);
+        }
+    }
+
+    // A loop the LoopOptimizer has planned: its invariants are forgotten
+    // each time it is entered, and a counted loop keeps its count in an int
+    // while the count and the bound are INTs.
+    private static final class LoopExec implements Exec {
+        private final Expr.Invariant[] invariants;
+        private final Test condition;
+        private final Exec body;
+        private final Exec counted;
+        private final int depth;
+        private final int slot;
+        private final TokenType comparison;
+        private final Eval bound;
+        private final int step;
+
+        LoopExec(Compiler compiler, Stmt.Loop stmt) {
+            invariants = stmt.invariants.toArray(new Expr.Invariant[0]);
+            condition = compiler.condition(stmt.condition);
+            body = compiler.statement(stmt.body);
+            counted = stmt.counted == null ? null : compiler.statement(stmt.counted);
+            depth = stmt.depth;
+            slot = stmt.slot;
+            comparison = stmt.comparison;
+            bound = stmt.counted == null ? null : compiler.expression(stmt.bound);
+            step = stmt.step;
+        }
+
+        @Override
+        public void execute(Object[] frame) {
+            for (Expr.Invariant invariant : invariants) {
+                invariant.known = false;
+            }
+            run(frame);
+        }
+
+        void run(Object[] frame) {
+            if (counted != null && count(frame))
+                return;
+            while (condition.test(frame)) {
+                body.execute(frame);
+            }
+        }
+
+        void body(Object[] frame) {
+            body.execute(frame);
+        }
+
+        private boolean count(Object[] frame) {
+            Object[] target = frame(frame, depth);
+            Object start = target[slot];
+            Object limit = bound.evaluate(frame);
+            if (!(start instanceof Integer) || !(limit instanceof Integer))
+                return false;
+            int count = (int) start;
+            int last = (int) limit;
+            while (compare(comparison, count, last)) {
+                counted.execute(frame);
+                count += step;
+                target[slot] = count;
+            }
+            return true;
+        }
+    }
+
+    // A loop whose body the lazy parse skipped. The first time it runs and
+    // its condition holds, the body is parsed and the loop planned and
+    // compiled, as the tree path does.
+    private static final class LazyLoopExec implements Exec {
+        private final Compiler compiler;
+        private final Stmt.Loop stmt;
+        private LoopExec loop;
+
+        LazyLoopExec(Compiler compiler, Stmt.Loop stmt) {
+            this.compiler = compiler;
+            this.stmt = stmt;
+        }
+
+        @Override
+        public void execute(Object[] frame) {
+            if (loop != null) {
+                loop.execute(frame);
+                return;
+            }
+            for (Expr.Invariant invariant : stmt.invariants) {
+                invariant.known = false;
+            }
+            if (!(stmt.body instanceof Stmt.Lazy)) {
+                // Another run has parsed and planned it.
+                loop = new LoopExec(compiler, stmt);
+                loop.execute(frame);
+                return;
+            }
+            if (!compiler.condition(stmt.condition).test(frame))
+                return;
+            stmt.body = ((Stmt.Lazy) stmt.body).body();
+            LoopOptimizer.plan(stmt);
+            loop = new LoopExec(compiler, stmt);
+            loop.body(frame);
+            loop.run(frame);
+        }
+    }
+
+    private static final class LazyExec implements Exec {
+        private final Compiler compiler;
+        private final Stmt.Lazy stmt;
+        private Exec body;
+
+        LazyExec(Compiler compiler, Stmt.Lazy stmt) {
+            this.compiler = compiler;
+            this.stmt = stmt;
+        }
+
+        @Override
+        public void execute(Object[] frame) {
+            if (body == null)
+                body = compiler.statement(stmt.body());
+            body.execute(frame);
+        }
+    }
+
+    // Looks the branch up as the tree path does: in a table when the
+    // SwitchLowerer made one, else by hash. A constant equals only values of
+    // its own class.
+    private static final class SwitchExec implements Exec {
+        private final int depth;
+        private final int slot;
+        private final Exec[] table;
+        private final boolean characters;
+        private final int low;
+        private final Map<Object, Exec> cases = new HashMap<>();
+        private final Exec otherwise;
+
+        SwitchExec(Compiler compiler, Stmt.Switch stmt) {
+            depth = stmt.depth;
+            slot = stmt.slot;
+            for (Map.Entry<Object, Stmt> entry : stmt.cases.entrySet()) {
+                cases.put(entry.getKey(), compiler.statement(entry.getValue()));
+            }
+            if (stmt.table != null) {
+                table = new Exec[stmt.table.length];
+                for (int i = 0; i < table.length; i++) {
+                    if (stmt.table[i] != null)
+                        table[i] = compiler.statement(stmt.table[i]);
+                }
+            } else {
+                table = null;
+            }
+            characters = stmt.characters;
+            low = stmt.low;
+            otherwise = stmt.otherwise == null ? null : compiler.statement(stmt.otherwise);
+        }
+
+        @Override
+        public void execute(Object[] frame) {
+            Exec branch = branch(frame(frame, depth)[slot]);
+            if (branch != null) {
+                branch.execute(frame);
+            } else if (otherwise != null) {
+                otherwise.execute(frame);
+            }
+        }
+
+        private Exec branch(Object value) {
+            if (table == null)
+                return cases.get(value);
+            long key;
+            if (characters && value instanceof Character) {
+                key = (char) value;
+            } else if (!characters && value instanceof Integer) {
+                key = (int) value;
+            } else {
+                return null;
+            }
+            long index = key - low;
+            return index >= 0 && index < table.length ? table[(int) index] : null;
+        }
+    }
+}
@@ -5,34 +5,170 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Code {
     private static final Interpreter interpreter = new Interpreter();
+    private static final Resolver resolver = new Resolver(interpreter);
+    private static final TypeChecker checker = new TypeChecker();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    private static boolean streaming = false;
+    private static boolean parallelLex = false;
+    private static ScanKernel kernel = null;
+    // Set from --lazy: IF and WHILE bodies are parsed when they first run.
+    private static boolean lazy = false;
+    private static boolean flat = false;
+    private static ProgramCache cache = null;
+    private static boolean cseReport = false;
+    private static boolean cacheStats = false;
+    private static boolean specialize = false;
+    // Set from --profile: the run records a profile of the script instead
+    // of applying the one it has.
+    private static boolean profiling = false;
+    private static Profile profile = null;
+    private static boolean bytecode = false;
+    // Set from --tagged: the bytecode runs on the TaggedMachine.
+    private static boolean tagged = false;
+    private static boolean closures = false;
+    // Set from --compile=: the script is written out as a class or a jar
+    // instead of being run.
+    private static Path compileTarget = null;
+    private static String compileSource = null;
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: code [script]");
-            System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        List<String> scripts = new ArrayList<>();
+        boolean caching = false;
+        Path cacheDirectory = null;
+        int cacheSize = 256;
+        for (String arg : args) {
+            if (arg.equals("--stream")) {
+                streaming = true;
+            } else if (arg.equals("--parallel-lex")) {
+                parallelLex = true;
+            } else if (arg.equals("--lazy")) {
+                lazy = true;
+            } else if (arg.equals("--eager-validate")) {
+                lazy = false;
+            } else if (arg.equals("--flat")) {
+                flat = true;
+            } else if (arg.equals("--specialize")) {
+                specialize = true;
+            } else if (arg.equals("--profile")) {
+                specialize = true;
+                profiling = true;
+            } else if (arg.equals("--bytecode")) {
+                bytecode = true;
+            } else if (arg.equals("--tagged")) {
+                bytecode = true;
+                tagged = true;
+            } else if (arg.equals("--disassemble")) {
+                bytecode = true;
+                BytecodeCompiler.listing = System.err;
+            } else if (arg.equals("--closures")) {
+                closures = true;
+            } else if (arg.equals("--jit")) {
+                interpreter.useTracer(new Tracer());
+            } else if (arg.startsWith("--compile=")) {
+                compileTarget = Paths.get(arg.substring("--compile=".length()));
+            } else if (arg.equals("--cse-report")) {
+                cseReport = true;
+            } else if (arg.startsWith("--fuse=")) {
+                try {
+                    Fuser.patterns = Fuser.parse(arg.substring("--fuse=".length()));
+                } catch (IllegalArgumentException error) {
+                    usage();
+                }
+            } else if (arg.equals("--cache")) {
+                caching = true;
+            } else if (arg.startsWith("--cache=")) {
+                caching = true;
+                cacheDirectory = Paths.get(arg.substring("--cache=".length()));
+            } else if (arg.equals("--cache-stats")) {
+                cacheStats = true;
+            } else if (arg.startsWith("--cache-size=")) {
+                try {
+                    cacheSize = Integer.parseInt(arg.substring("--cache-size=".length()));
+                } catch (NumberFormatException error) {
+                    usage();
+                }
+                if (cacheSize <= 0)
+                    usage();
+            } else if (arg.equals("--simd")) {
+                kernel = ScanKernel.vector();
+                if (kernel == null)
+                    System.err.println("--simd needs simd/interpreter/VectorScan.java compiled and --add-modules jdk.incubator.vector; using the scalar lexer.");
+            } else if (arg.startsWith("--")) {
+                usage();
+            } else {
+                scripts.add(arg);
+            }
+        }
+
+        if (caching)
+            cache = new ProgramCache(cacheSize, cacheDirectory);
+
+        if (scripts.size() > 1) {
+            usage();
+        } else if (scripts.size() == 1) {
+            runFile(scripts.get(0));
         } else {
             runPrompt();
         }
     }
 
+    private static void usage() {
+        System.out.println("Usage: code [--stream | --parallel-lex] [--simd] [--lazy | --eager-validate]"
+                + " [--flat | --specialize | --profile | --bytecode | --tagged | --closures]"
+                + " [--disassemble] [--jit] [--compile=file.class|file.jar] [--cache[=dir]] [--cache-size=n] [--cache-stats] [--cse-report]"
+                + " [--fuse=all|none|increment,accumulate,compare,concat] [script]");
+        System.exit(64);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        Path profileFile = Profile.of(Paths.get(path));
+        compileSource = Paths.get(path).getFileName().toString();
+        if (specialize)
+            profile = profiling ? Profile.recording() : Profile.load(profileFile);
+        if (streaming) {
+            runStream(SourceWindow.map(Paths.get(path), Charset.defaultCharset()));
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            run(new String(bytes, Charset.defaultCharset()));
+        }
+        if (cseReport)
+            System.err.println(CommonSubexpressions.report());
+        if (cacheStats && cache != null)
+            System.err.println(cache.report());
+        if (profiling && !hadError)
+            profile.save(profileFile);
         if (hadError)
             System.exit(65);
         if (hadRuntimeError)
             System.exit(70);
     }
 
+    // Lexes and parses straight off the window: the parser pulls tokens as it
+    // needs them, so neither the source text nor the token list is ever
+    // materialized in full.
+    private static void runStream(SourceWindow window) {
+        if (isFlat()) {
+            runFlat(new Lexer(window));
+            return;
+        }
+        Parser parser = new Parser(new Lexer(window), null);
+        List<Stmt> statements = parser.parse();
+
+        if (hadError)
+            return;
+
+        execute(statements);
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -45,28 +181,122 @@ public class Code {
             run(line);
             hadError = false;
         }
+        if (cacheStats && cache != null)
+            System.err.println(cache.report());
     }
 
     private static void run(String source) {
-        Lexer scanner = new Lexer(source);
-        List<Token> tokens = scanner.scanTokens();
+        String key = null;
+        if (cache != null && !isFlat()) {
+            key = ProgramCache.key(source);
+            List<Stmt> cached = cache.get(key);
+            if (cached != null) {
+                execute(cached);
+                return;
+            }
+        }
+
+        TokenBuffer tokens;
+        char[] sourceChars = kernel != null ? source.toCharArray() : null;
+        if (parallelLex) {
+            ParallelLexer scanner = new ParallelLexer(source, Lexer.symbols, ForkJoinPool.commonPool());
+            scanner.useKernel(kernel, sourceChars);
+            tokens = scanner.scanTokens();
+        } else {
+            Lexer scanner = new Lexer(source);
+            scanner.useKernel(kernel, sourceChars);
+            tokens = scanner.scanPacked();
+        }
 
         // printing the tokens
-        // for(Token token: tokens) {
-        // System.out.println(token);
+        // for(int i = 0; i < tokens.size(); i++) {
+        // System.out.println(tokens.token(i));
         // }
 
-        Parser parser = new Parser(tokens, source);
+        if (isFlat()) {
+            runFlat(tokens.stream());
+            return;
+        }
+
+        // With --lazy, IF and WHILE bodies are parsed when they first run,
+        // so syntax errors in them only show up then. A program going into
+        // the cache is parsed whole, so that it can be stored, and so is one
+        // being compiled.
+        Parser parser = new Parser(tokens.stream(), source);
+        if (lazy && cache == null && compileTarget == null)
+            parser.parseLazily();
         List<Stmt> statements = parser.parse();
 
         if (hadError)
             return;
 
+        if (key != null)
+            cache.put(key, statements);
+
         // System.out.println(expression);
 
         // System.out.println(new AstPrinter().print(expression));
 
-        interpreter.interpret(statements);
+        execute(statements);
+    }
+
+    // A --flat program is parsed straight into its arena, bound as it is
+    // parsed, so it goes around the cache, which holds trees, and is never
+    // parsed lazily.
+    private static boolean isFlat() {
+        return flat && compileTarget == null;
+    }
+
+    private static void runFlat(TokenStream tokens) {
+        FlatAst program = new FlatParser(tokens, resolver).parse();
+        if (program != null)
+            interpreter.interpret(program);
+    }
+
+    private static void execute(List<Stmt> statements) {
+        resolver.resolve(statements);
+
+        if (hadError)
+            return;
+
+        statements = new ConstantFolder().rewrite(statements);
+        if (compileTarget != null) {
+            compile(statements);
+        } else if (tagged) {
+            interpreter.interpretTagged(BytecodeCompiler.compile(statements));
+        } else if (bytecode) {
+            interpreter.interpret(BytecodeCompiler.compile(statements));
+        } else if (specialize) {
+            interpreter.interpret(NodeTree.of(statements, profile));
+        } else {
+            statements = new CommonSubexpressions().rewrite(statements);
+            statements = checker.check(statements);
+            statements = new LoopOptimizer().rewrite(statements);
+            if (!Fuser.patterns.isEmpty())
+                statements = new Fuser().rewrite(statements);
+            statements = new SwitchLowerer().rewrite(statements);
+            if (closures) {
+                interpreter.interpret(Closures.of(statements));
+            } else {
+                interpreter.interpret(statements);
+            }
+        }
+    }
+
+    private static void compile(List<Stmt> statements) {
+        try {
+            ClassCompiler.write(statements, compileTarget, compileSource);
+        } catch (IllegalArgumentException error) {
+            System.err.println(error.getMessage());
+            System.exit(64);
+        } catch (IllegalStateException error) {
+            // More code or constants than a class file holds.
+            System.err.println("Cannot compile: " + error.getMessage());
+            System.exit(65);
+        } catch (IOException error) {
+            System.err.println("Cannot write " + compileTarget + ": " + error.getMessage());
+            System.exit(74);
+        }
     }
 
     static void error(int line, String message) {
@@ -75,14 +305,15 @@ public class Code {
 
     static void error(Token token, String message) {
         if (token.type == TokenType.EOF) {
-            report(token.line, "end", message);
+            report(token.getLine(), "end", message);
         } else {
-            report(token.line, "'" + token.lexeme + "'", message);
+            report(token.getLine(), "'" + token.getLexeme() + "'", message);
         }
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() + "\n[line " + error.token.line + "]");
+        if (!error.reported())
+            System.err.println(error.getMessage() + "\n[line " + error.token.getLine() + "]");
         hadRuntimeError = true;
     }
 
@@ -0,0 +1,405 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Evaluates an operation only once when the same one comes up again further
+// down a run of statements of a block, with nothing in between assigning a
+// variable it reads. The first evaluation stores its value into a temporary,
+// a slot added to the frame the block runs in, and the later ones read the
+// temporary instead.
+//
+// A run ends at an IF, a WHILE or a nested block, since what they assign
+// depends on how they run; the condition of an IF still belongs to the run
+// before it. Only arithmetic, comparisons and negation over variables and
+// literals are taken: concatenation can print, and the right operand of AND
+// and OR may not be evaluated at all.
+class CommonSubexpressions extends Rewriter {
+    // Totals over the program, lazily parsed bodies included, for
+    // --cse-report.
+    static int eliminated = 0;
+    static int temporaries = 0;
+
+    // The framed block whose frame the statements being visited run in, or
+    // null at the top level, where the frame is the globals.
+    private Stmt.Block owner;
+
+    // Eliminates in a body a lazy parse skipped, now that it has been
+    // parsed and resolved. The frame around it is already running by then,
+    // so a body without a frame of its own is left as it is.
+    static Stmt.Block eliminateSkipped(Stmt.Block body) {
+        return (Stmt.Block) new CommonSubexpressions().rewrite(body);
+    }
+
+    static String report() {
+        return "Common subexpressions: " + eliminated + " evaluations eliminated using " + temporaries
+                + " temporaries";
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        Stmt.Block previous = owner;
+        if (stmt.framed)
+            owner = stmt;
+        try {
+            Stmt.Block block = (Stmt.Block) super.visitBlockStmt(stmt);
+            if (owner == null)
+                return block;
+            List<Stmt> statements = eliminate(block.statements);
+            if (statements != block.statements) {
+                block = new Stmt.Block(statements);
+                block.framed = stmt.framed;
+            }
+            // temporaries may have been added to this block's frame
+            block.size = stmt.size;
+            return block;
+        } finally {
+            owner = previous;
+        }
+    }
+
+    private List<Stmt> eliminate(List<Stmt> statements) {
+        Analysis analysis = new Analysis();
+        for (Stmt statement : statements) {
+            analysis.statement(statement);
+        }
+
+        Map<Expr, Integer> firsts = new IdentityHashMap<>();
+        Map<Expr, Integer> repeats = new IdentityHashMap<>();
+        for (Occurrences occurrences : analysis.found) {
+            if (occurrences.repeats.isEmpty())
+                continue;
+            int slot = ++owner.size;
+            firsts.put(occurrences.first, slot);
+            for (Expr repeat : occurrences.repeats) {
+                repeats.put(repeat, slot);
+            }
+            temporaries++;
+            eliminated += occurrences.repeats.size();
+        }
+        if (firsts.isEmpty())
+            return statements;
+        return new Substitution(firsts, repeats).rewrite(statements);
+    }
+
+    // Where an operation is first evaluated in a run and where it is then
+    // evaluated again.
+    private static class Occurrences {
+        final Expr first;
+        final Set<Long> reads;
+        final List<Expr> repeats = new ArrayList<>();
+
+        Occurrences(Expr first, Set<Long> reads) {
+            this.first = first;
+            this.reads = reads;
+        }
+    }
+
+    // Goes over the statements of a block in the order they evaluate their
+    // expressions, keeping the operations evaluated so far that are still
+    // valid by a key spelling them out. A variable is named by its depth in
+    // the high 32 bits and its slot in the low ones.
+    private static class Analysis {
+        final List<Occurrences> found = new ArrayList<>();
+        private final Map<String, Occurrences> available = new HashMap<>();
+        // Kept by node, as each operation down a chain is looked up in turn.
+        private final Map<Expr, String> keys = new IdentityHashMap<>();
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final Map<Expr, Set<Long>> readsOf = new IdentityHashMap<>();
+
+        void statement(Stmt stmt) {
+            if (stmt instanceof Stmt.Expression) {
+                expression(((Stmt.Expression) stmt).expression);
+            } else if (stmt instanceof Stmt.Display) {
+                expression(((Stmt.Display) stmt).expression);
+            } else if (stmt instanceof Stmt.Int) {
+                expression(((Stmt.Int) stmt).intializer);
+                kill(0, ((Stmt.Int) stmt).slot);
+            } else if (stmt instanceof Stmt.Float) {
+                expression(((Stmt.Float) stmt).initializer);
+                kill(0, ((Stmt.Float) stmt).slot);
+            } else if (stmt instanceof Stmt.Char) {
+                expression(((Stmt.Char) stmt).initializer);
+                kill(0, ((Stmt.Char) stmt).slot);
+            } else if (stmt instanceof Stmt.String) {
+                expression(((Stmt.String) stmt).initializer);
+                kill(0, ((Stmt.String) stmt).slot);
+            } else if (stmt instanceof Stmt.Bool) {
+                expression(((Stmt.Bool) stmt).initializer);
+                kill(0, ((Stmt.Bool) stmt).slot);
+            } else if (stmt instanceof Stmt.MultiVar) {
+                Stmt.MultiVar multiVar = (Stmt.MultiVar) stmt;
+                for (int i = 0; i < multiVar.names.size(); i++) {
+                    expression(multiVar.initializers.get(i));
+                    kill(multiVar.depths[i], multiVar.slots[i]);
+                }
+            } else if (stmt instanceof Stmt.Scan) {
+                kill(((Stmt.Scan) stmt).depth, ((Stmt.Scan) stmt).slot);
+            } else if (stmt instanceof Stmt.If) {
+                expression(((Stmt.If) stmt).condition);
+                available.clear();
+            } else {
+                available.clear();
+            }
+        }
+
+        private void kill(int depth, int slot) {
+            long variable = (long) depth << 32 | slot;
+            available.values().removeIf(occurrences -> occurrences.reads.contains(variable));
+        }
+
+        // A chain is gone down its left spine in a loop: keys are looked up
+        // top down, as far as the first one already available, then the
+        // right operands are gone over and the operations taken bottom up.
+        private void expression(Expr expr) {
+            if (expr == null)
+                return;
+            List<Expr> pending = new ArrayList<>();
+            List<String> pendingKeys = new ArrayList<>();
+            Expr node = expr;
+            for (;;) {
+                String key = isOperation(node) ? key(node) : null;
+                if (key != null) {
+                    Occurrences occurrences = available.get(key);
+                    if (occurrences != null) {
+                        occurrences.repeats.add(node);
+                        break;
+                    }
+                }
+                if (Expr.leftOf(node) == null) {
+                    operands(node);
+                    take(node, key);
+                    break;
+                }
+                pending.add(node);
+                pendingKeys.add(key);
+                node = Expr.leftOf(node);
+            }
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                node = pending.get(i);
+                if (node instanceof Expr.Logical) {
+                    // may or may not run, so it only ever invalidates
+                    stores(Expr.rightOf(node));
+                } else {
+                    expression(Expr.rightOf(node));
+                }
+                take(node, pendingKeys.get(i));
+            }
+        }
+
+        private void take(Expr expr, String key) {
+            if (key == null)
+                return;
+            Occurrences occurrences = new Occurrences(expr, reads(expr));
+            available.put(key, occurrences);
+            found.add(occurrences);
+        }
+
+        private void operands(Expr expr) {
+            if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign) expr;
+                expression(assign.value);
+                kill(assign.depth, assign.slot);
+            } else if (expr instanceof Expr.Specialized) {
+                // a unary one
+                expression(((Expr.Specialized) expr).right);
+            } else if (expr instanceof Expr.Unary) {
+                expression(((Expr.Unary) expr).right);
+            } else if (expr instanceof Expr.Grouping) {
+                expression(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Invariant) {
+                expression(((Expr.Invariant) expr).expression);
+            }
+        }
+
+        private void stores(Expr expr) {
+            if (Expr.leftOf(expr) != null) {
+                stores(Expr.bottom(expr));
+                for (Expr node : Expr.spine(expr)) {
+                    stores(Expr.rightOf(node));
+                }
+            } else if (expr instanceof Expr.Assign) {
+                stores(((Expr.Assign) expr).value);
+                kill(((Expr.Assign) expr).depth, ((Expr.Assign) expr).slot);
+            } else if (expr instanceof Expr.Specialized) {
+                stores(((Expr.Specialized) expr).right);
+            } else if (expr instanceof Expr.Unary) {
+                stores(((Expr.Unary) expr).right);
+            } else if (expr instanceof Expr.Grouping) {
+                stores(((Expr.Grouping) expr).expression);
+            } else if (expr instanceof Expr.Invariant) {
+                stores(((Expr.Invariant) expr).expression);
+            }
+        }
+
+        // Spells out an operation that can be taken, groupings left out, or
+        // returns null. An operand is spelled by the number given to its
+        // own key, so that a key stays short however long the chain under
+        // it.
+        private String key(Expr expr) {
+            if (keys.containsKey(expr))
+                return keys.get(expr);
+            List<Expr> pending = new ArrayList<>();
+            for (Expr node = expr; Expr.leftOf(node) != null && !keys.containsKey(node); node = Expr.leftOf(node)) {
+                pending.add(node);
+            }
+            for (int i = pending.size() - 1; i >= 0; i--) {
+                keys.put(pending.get(i), spell(pending.get(i)));
+            }
+            if (pending.isEmpty())
+                keys.put(expr, spell(expr));
+            return keys.get(expr);
+        }
+
+        private String spell(Expr expr) {
+            if (expr instanceof Expr.Grouping)
+                return key(((Expr.Grouping) expr).expression);
+            if (expr instanceof Expr.Literal) {
+                Object value = ((Expr.Literal) expr).value;
+                if (value == null)
+                    return "nil";
+                String text = value.toString();
+                return value.getClass().getSimpleName() + text.length() + ':' + text;
+            }
+            if (expr instanceof Expr.Variable)
+                return "v" + ((Expr.Variable) expr).depth + '.' + ((Expr.Variable) expr).slot;
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary) expr;
+                if (binary.operator.type == TokenType.CONCAT)
+                    return null;
+                return spell(binary.operator.type.toString(), binary.left, binary.right);
+            }
+            if (expr instanceof Expr.Specialized) {
+                Expr.Specialized specialized = (Expr.Specialized) expr;
+                if (specialized.operation == Operation.CONCAT)
+                    return null;
+                return spell(specialized.operation.toString(), specialized.left, specialized.right);
+            }
+            if (expr instanceof Expr.Unary)
+                return spell(((Expr.Unary) expr).operator.type.toString(), null, ((Expr.Unary) expr).right);
+            return null;
+        }
+
+        private String spell(String operator, Expr left, Expr right) {
+            StringBuilder key = new StringBuilder("(").append(operator);
+            if (left != null) {
+                String operand = key(left);
+                if (operand == null)
+                    return null;
+                key.append(" #").append(number(operand));
+            }
+            String operand = key(right);
+            if (operand == null)
+                return null;
+            return key.append(" #").append(number(operand)).append(')').toString();
+        }
+
+        private int number(String key) {
+            Integer number = numbers.get(key);
+            if (number == null) {
+                number = numbers.size();
+                numbers.put(key, number);
+            }
+            return number;
+        }
+
+        // The variables an operation that can be taken reads.
+        private Set<Long> reads(Expr expr) {
+            Set<Long> found = readsOf.get(expr);
+            if (found != null)
+                return found;
+            if (Expr.leftOf(expr) != null) {
+                List<Expr> pending = new ArrayList<>();
+                for (Expr node = expr; Expr.leftOf(node) != null && !readsOf.containsKey(node);
+                        node = Expr.leftOf(node)) {
+                    pending.add(node);
+                }
+                for (int i = pending.size() - 1; i >= 0; i--) {
+                    Expr node = pending.get(i);
+                    Set<Long> union = new HashSet<>(reads(Expr.leftOf(node)));
+                    union.addAll(reads(Expr.rightOf(node)));
+                    readsOf.put(node, union);
+                }
+                return readsOf.get(expr);
+            }
+            found = new HashSet<>();
+            if (expr instanceof Expr.Variable) {
+                found.add((long) ((Expr.Variable) expr).depth << 32 | ((Expr.Variable) expr).slot);
+            } else if (expr instanceof Expr.Grouping) {
+                found.addAll(reads(((Expr.Grouping) expr).expression));
+            } else if (expr instanceof Expr.Specialized) {
+                found.addAll(reads(((Expr.Specialized) expr).right));
+            } else if (expr instanceof Expr.Unary) {
+                found.addAll(reads(((Expr.Unary) expr).right));
+            }
+            readsOf.put(expr, found);
+            return found;
+        }
+    }
+
+    private static boolean isOperation(Expr expr) {
+        return expr instanceof Expr.Binary || expr instanceof Expr.Unary || expr instanceof Expr.Specialized;
+    }
+
+    // Stores the first evaluation of each repeated operation into its
+    // temporary and reads the temporary in place of the others.
+    private static class Substitution extends Rewriter {
+        private final Map<Expr, Integer> firsts;
+        private final Map<Expr, Integer> repeats;
+
+        Substitution(Map<Expr, Integer> firsts, Map<Expr, Integer> repeats) {
+            this.firsts = firsts;
+            this.repeats = repeats;
+        }
+
+        private static Token temporary(int slot) {
+            return new Token(TokenType.IDENTIFIER, "$" + slot, null, 0);
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            Integer slot = repeats.get(expr);
+            if (slot != null) {
+                Expr.Variable variable = new Expr.Variable(temporary(slot));
+                variable.slot = slot;
+                return variable;
+            }
+            slot = firsts.get(expr);
+            if (slot != null) {
+                Expr.Assign assign = new Expr.Assign(temporary(slot), super.rewrite(expr));
+                assign.slot = slot;
+                return assign;
+            }
+            return super.rewrite(expr);
+        }
+
+        @Override
+        boolean inSpine(Expr expr) {
+            return !repeats.containsKey(expr) && !firsts.containsKey(expr);
+        }
+
+        // Only the statements of the run itself are rewritten.
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitIfStmt(Stmt.If stmt) {
+            Expr condition = rewrite(stmt.condition);
+            if (condition == stmt.condition)
+                return stmt;
+            return new Stmt.If(condition, stmt.thenBranch, stmt.elseBranch);
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package interpreter;
+
+import java.io.IOException;
+
+// What a program compiled to a class by the ClassCompiler calls for
+// everything it does not do in JVM instructions itself: operators on values
+// of unknown classes, the checks of declarations, DISPLAY and SCAN. It is
+// public, unlike the rest of the interpreter, since the compiled class is
+// not in this package. Each operator tries two INTs first and leaves the
+// rest to Operators, so that values, errors and their lines are those of the
+// tree path. A compiled class only needs this and the classes Operators
+// uses at run time, which the ClassCompiler writes into its jars.
+public final class CompiledRuntime {
+    // The kinds of declaration declare() checks for.
+    public static final int INT = 0;
+    public static final int FLOAT = 1;
+    public static final int CHAR = 2;
+    public static final int STRING = 3;
+
+    // Set by display(), for the Interpreter to see whether a Trace has
+    // displayed anything.
+    static boolean displayed = false;
+
+    private CompiledRuntime() {
+    }
+
+    // Runs a compiled program as Code runs one: a runtime error is reported
+    // with its line and ends the process with status 70, and a program
+    // that neither fails nor displays anything says that it ran.
+    public static void execute(Runnable program) {
+        displayed = false;
+        try {
+            program.run();
+        } catch (RuntimeError error) {
+            System.err.println(error.getMessage() + "\n[line " + error.token.getLine() + "]");
+            System.exit(70);
+        }
+        if (!displayed)
+            System.out.println("Run successfully without errors.");
+    }
+
+    private static Object binary(TokenType type, Object left, Object right, int line) {
+        try {
+            return Operators.binary(type, left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(new Token(type, null, null, line), error.getMessage());
+        }
+    }
+
+    private static Object unary(TokenType type, Object right, int line) {
+        try {
+            return Operators.unary(type, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(new Token(type, null, null, line), error.getMessage());
+        }
+    }
+
+    public static Object add(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left + (int) right;
+        return binary(TokenType.PLUS, left, right, line);
+    }
+
+    public static Object subtract(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left - (int) right;
+        return binary(TokenType.MINUS, left, right, line);
+    }
+
+    public static Object multiply(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left * (int) right;
+        return binary(TokenType.STAR, left, right, line);
+    }
+
+    public static Object divide(Object left, Object right, int line) {
+        return binary(TokenType.SLASH, left, right, line);
+    }
+
+    public static Object modulo(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left % (int) right;
+        return binary(TokenType.MODULO, left, right, line);
+    }
+
+    public static Object concat(Object left, Object right, int line) {
+        return binary(TokenType.CONCAT, left, right, line);
+    }
+
+    public static Object less(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left < (int) right;
+        return binary(TokenType.LESS_THAN, left, right, line);
+    }
+
+    public static Object lessEqual(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left <= (int) right;
+        return binary(TokenType.LESS_OR_EQUAL, left, right, line);
+    }
+
+    public static Object greater(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left > (int) right;
+        return binary(TokenType.GREATER_THAN, left, right, line);
+    }
+
+    public static Object greaterEqual(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left >= (int) right;
+        return binary(TokenType.GREATER_OR_EQUAL, left, right, line);
+    }
+
+    public static Object equal(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left == (int) right;
+        return binary(TokenType.EQUAL_EVAL, left, right, line);
+    }
+
+    public static Object notEqual(Object left, Object right, int line) {
+        if (left instanceof Integer && right instanceof Integer)
+            return (int) left != (int) right;
+        return binary(TokenType.NOT_EQUAL, left, right, line);
+    }
+
+    public static Object negate(Object right, int line) {
+        return unary(TokenType.MINUS, right, line);
+    }
+
+    public static Object plus(Object right, int line) {
+        return unary(TokenType.PLUS, right, line);
+    }
+
+    public static Object not(Object right, int line) {
+        return unary(TokenType.NOT, right, line);
+    }
+
+    public static boolean truthy(Object value) {
+        return Operators.isTruthy(value);
+    }
+
+    // The value of a declaration of the kind, if it fits.
+    public static Object declare(Object value, int kind, int line) {
+        switch (kind) {
+            case INT:
+                if (value instanceof Integer)
+                    return value;
+                throw new RuntimeError(new Token(TokenType.IDENTIFIER, null, null, line), "Input must be an Integer");
+            case FLOAT:
+                if (value instanceof Double)
+                    return value;
+                throw new RuntimeError(new Token(TokenType.IDENTIFIER, null, null, line), "Input must be a float");
+            case CHAR:
+                if (value instanceof Character)
+                    return value;
+                throw new RuntimeError(new Token(TokenType.IDENTIFIER, null, null, line),
+                        "Input must be a character");
+            default:
+                if (value instanceof String)
+                    return value;
+                throw new RuntimeError(new Token(TokenType.IDENTIFIER, null, null, line), "Input must be a String");
+        }
+    }
+
+    public static void display(Object value) {
+        Operators.display(value);
+        displayed = true;
+    }
+
+    // A line of input for a variable declared with the type, or its current
+    // value when the input could not be read.
+    public static Object scan(Object current, String type, int line) {
+        try {
+            Object value = Operators.scanned(type, Operators.scanInput());
+            if (value == null)
+                throw new RuntimeError(new Token(TokenType.IDENTIFIER, null, null, line), "Input must be " + type);
+            return value;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return current;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package interpreter;
+
+// Evaluates ahead of time what does not depend on anything that happens
+// while the program runs: an operator whose operands are all literals
+// becomes the literal it yields, and an IF or WHILE whose condition is a
+// literal is replaced with the branch it takes. The operators are the ones
+// in Operators, so a folded value is exactly the one the interpreter would
+// have computed. An operation that fails, like a division by zero, is left
+// in place to fail when it runs.
+class ConstantFolder extends Rewriter {
+    // Folds a body a lazy parse skipped, now that it has been parsed.
+    static Stmt.Block foldSkipped(Stmt.Block body) {
+        return (Stmt.Block) new ConstantFolder().rewrite(body);
+    }
+
+    private static boolean isLiteral(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // Turning this value into text prints a line, so it has to wait until
+    // the program runs.
+    private static boolean printsWhenStringified(Object value) {
+        return value != null && value.toString().equals("new_line");
+    }
+
+    @Override
+    Expr binary(Expr.Binary expr, Expr left) {
+        Expr folded = super.binary(expr, left);
+        if (folded instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) folded;
+            if (isLiteral(binary.left) && isLiteral(binary.right)) {
+                return fold(folded, binary.operator.type, value(binary.left), value(binary.right));
+            }
+        }
+        return folded;
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (isLiteral(expression))
+            return expression;
+        if (expression == expr.expression)
+            return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    // Yields its left operand, or else evaluates to its right one, so a
+    // literal on the left decides which.
+    @Override
+    Expr logical(Expr.Logical expr, Expr left) {
+        Expr right = rewrite(expr.right);
+        if (isLiteral(left)) {
+            boolean truthy = Operators.isTruthy(value(left));
+            if (expr.operator.type == TokenType.OR ? truthy : !truthy)
+                return left;
+            return right;
+        }
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr folded = super.visitUnaryExpr(expr);
+        if (folded instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) folded;
+            if (isLiteral(unary.right)) {
+                try {
+                    Object value = Operators.unary(unary.operator.type, value(unary.right));
+                    if (value != null)
+                        return new Expr.Literal(value);
+                } catch (RuntimeException error) {
+                    // fails when it runs
+                }
+            }
+        }
+        return folded;
+    }
+
+    @Override
+    Expr specialized(Expr.Specialized expr, Expr left) {
+        Expr folded = super.specialized(expr, left);
+        if (folded instanceof Expr.Specialized) {
+            Expr.Specialized specialized = (Expr.Specialized) folded;
+            if (specialized.left == null) {
+                if (isLiteral(specialized.right)) {
+                    try {
+                        Object value = Operators.unary(specialized.operation, value(specialized.right));
+                        if (value != null)
+                            return new Expr.Literal(value);
+                    } catch (RuntimeException error) {
+                        // fails when it runs
+                    }
+                }
+            } else if (isLiteral(specialized.left) && isLiteral(specialized.right)) {
+                return fold(folded, specialized.operation.operator, value(specialized.left),
+                        value(specialized.right));
+            }
+        }
+        return folded;
+    }
+
+    private static Expr fold(Expr expr, TokenType operator, Object left, Object right) {
+        if (operator == TokenType.CONCAT && (printsWhenStringified(left) || printsWhenStringified(right)))
+            return expr;
+        try {
+            Object value = Operators.binary(operator, left, right);
+            if (value != null)
+                return new Expr.Literal(value);
+        } catch (RuntimeException error) {
+            // fails when it runs
+        }
+        return expr;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (isLiteral(condition)) {
+            if (Operators.isTruthy(value(condition)))
+                return rewrite(stmt.thenBranch);
+            return rewrite(stmt.elseBranch);
+        }
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+            return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        if (isLiteral(condition) && !Operators.isTruthy(value(condition)))
+            return null;
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body)
+            return stmt;
+        return new Stmt.While(condition, body);
+    }
+}
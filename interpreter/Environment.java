@@ -1,12 +1,15 @@
 package interpreter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// Variables are keyed by the symbol id the lexer interned for their name, so
+// a lookup is an int probe instead of hashing the lexeme at every level.
 public class Environment {
     final Environment enclosing;
-    private final Map<String, Object> values = new HashMap<>();
-    private final Map<String, String> token = new HashMap<>();
+    private int[] keys = new int[8]; // symbol id + 1, 0 means empty
+    private Object[] values = new Object[8];
+    private String[] token = new String[8];
+    private int size = 0;
 
     public Environment() {
         this.enclosing = null;
@@ -16,44 +19,108 @@ public class Environment {
         this.enclosing = enclosing;
     }
 
+    // Returned by lookup() when no frame defines the symbol.
+    static final Object ABSENT = new Object();
+
     Object get(Token name) {
-        if (values.containsKey(name.lexeme)) {
-            return values.get(name.lexeme);
-        }
+        Object value = lookup(name.symbol);
+        if (value == ABSENT)
+            throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + "'.");
+        return value;
+    }
 
-        if (enclosing != null)
-            return enclosing.get(name);
+    void assign(Token name, Object value) {
+        if (!store(name.symbol, value))
+            throw new RuntimeError(name, "Undefined variable '" + name.getLexeme() + ".");
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    void define(Token name, Object value, String token_type) {
+        define(name.symbol, value, token_type);
     }
 
-    void assign(Token name, Object value) {
-        if (values.containsKey(name.lexeme)) {
-            values.put(name.lexeme, value);
-            return;
+    // The symbol's value in the nearest frame that defines it, or ABSENT.
+    Object lookup(int symbol) {
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            int slot = environment.find(symbol);
+            if (slot >= 0)
+                return environment.values[slot];
         }
+        return ABSENT;
+    }
 
-        if (enclosing != null) {
-            enclosing.assign(name, value);
-            return;
+    // False when no frame defines the symbol.
+    boolean store(int symbol, Object value) {
+        for (Environment environment = this; environment != null; environment = environment.enclosing) {
+            int slot = environment.find(symbol);
+            if (slot >= 0) {
+                environment.values[slot] = value;
+                return true;
+            }
         }
+        return false;
+    }
 
-        throw new RuntimeError(name, "Undefined variable '" + name.lexeme + ".");
+    void define(int symbol, Object value, String token_type) {
+        int slot = find(symbol);
+        if (slot < 0) {
+            if ((size + 1) * 2 > keys.length)
+                grow();
+            slot = probe(symbol);
+            keys[slot] = symbol + 1;
+            size++;
+        }
+        values[slot] = value;
+        token[slot] = token_type;
     }
 
-    void define(String name, Object value, String token_type) {
-        values.put(name, value);
-        token.put(name, token_type);
+    // Forgets every variable, for the environment to be used again.
+    void clear() {
+        Arrays.fill(keys, 0);
+        Arrays.fill(values, null);
+        Arrays.fill(token, null);
+        size = 0;
     }
 
-    public Map<String, String> getTokenMap() {
-        return token;
+    public String getTokenFromName(Token name) {
+        return getTokenFromName(name.symbol);
     }
 
-    public String getTokenFromName(String name) {
-        String tokenType = token.get(name);
+    String getTokenFromName(int symbol) {
+        int slot = find(symbol);
+        String tokenType = slot < 0 ? null : token[slot];
         //System.out.println("Token for name '" + name + "': " + tokenType);
         return tokenType;
     }
 
+    private int find(int symbol) {
+        int slot = probe(symbol);
+        return keys[slot] == 0 ? -1 : slot;
+    }
+
+    // Slot holding the symbol, or the empty slot where it would go.
+    private int probe(int symbol) {
+        int mask = keys.length - 1;
+        int slot = (symbol * 0x9E3779B1) >>> 16 & mask;
+        while (keys[slot] != 0 && keys[slot] != symbol + 1)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        String[] oldToken = token;
+        keys = new int[oldKeys.length * 2];
+        values = new Object[keys.length];
+        token = new String[keys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = probe(oldKeys[i] - 1);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                token[slot] = oldToken[i];
+            }
+        }
+    }
+
 }
@@ -1,5 +1,9 @@
 package interpreter;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 abstract class Expr {
     interface Visitor<R> {
         R visitAssignExpr(Assign expr);
@@ -15,6 +19,16 @@ abstract class Expr {
         R visitUnaryExpr(Unary expr);
 
         R visitVariableExpr(Variable expr);
+
+        R visitSpecializedExpr(Specialized expr);
+
+        R visitInvariantExpr(Invariant expr);
+
+        R visitUpdateExpr(Update expr);
+
+        R visitCompareExpr(Compare expr);
+
+        R visitConcatExpr(Concat expr);
     }
 
     static class Assign extends Expr {
@@ -30,6 +44,9 @@ abstract class Expr {
 
         final Token name;
         final Expr value;
+        // Set by the Resolver.
+        int depth;
+        int slot;
     }
 
     static class Binary extends Expr {
@@ -118,7 +135,170 @@ abstract class Expr {
         }
 
         final Token name;
+        // Set by the Resolver.
+        int depth;
+        int slot;
+    }
+
+    // A Binary or Unary the TypeChecker has pinned down to one operation on
+    // known classes of operands. 'left' is null for a unary operation.
+    static class Specialized extends Expr {
+        Specialized(Operation operation, Expr left, Token operator, Expr right) {
+            this.operation = operation;
+            this.left = left;
+            this.operator = operator;
+            this.right = right;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSpecializedExpr(this);
+        }
+
+        final Operation operation;
+        final Expr left;
+        final Token operator;
+        final Expr right;
+    }
+
+    // An expression whose value cannot change while the loop that owns it
+    // runs, computed the first time it is needed in each run of the loop.
+    static class Invariant extends Expr {
+        Invariant(Expr expression) {
+            this.expression = expression;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitInvariantExpr(this);
+        }
+
+        final Expr expression;
+        boolean known;
+        Object value;
+    }
+
+    // 'x = x + e' or 'x = x - e', fused by the Fuser: the variable is read,
+    // combined with the operand and stored in one step. 'operation' is null
+    // unless the TypeChecker specialized the operator.
+    static class Update extends Expr {
+        Update(Token name, int depth, int slot, Operation operation, Token operator, Expr operand) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.operation = operation;
+            this.operator = operator;
+            this.operand = operand;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitUpdateExpr(this);
+        }
+
+        final Token name;
+        final int depth;
+        final int slot;
+        final Operation operation;
+        final Token operator;
+        final Expr operand;
+    }
+
+    // A variable compared with a literal, fused by the Fuser.
+    static class Compare extends Expr {
+        Compare(Token name, int depth, int slot, Operation operation, Token operator, Object constant) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.operation = operation;
+            this.operator = operator;
+            this.constant = constant;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompareExpr(this);
+        }
+
+        final Token name;
+        final int depth;
+        final int slot;
+        final Operation operation;
+        final Token operator;
+        final Object constant;
+    }
+
+    // A chain of concatenations 'a & b & c ...', fused by the Fuser into one
+    // node over its operands, in order.
+    static class Concat extends Expr {
+        Concat(List<Expr> operands, Token operator) {
+            this.operands = operands;
+            this.operator = operator;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitConcatExpr(this);
+        }
+
+        final List<Expr> operands;
+        final Token operator;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
+
+    // The operands of a node with two of them, or null for any other node.
+    // Operators associate to the left, so a chain like 'a & b & c ...' nests
+    // down its left operands as deep as it is long: whatever walks a tree
+    // goes down that spine in a loop rather than by recursing, so that a
+    // long chain does not run out of stack.
+    static Expr leftOf(Expr expr) {
+        if (expr instanceof Binary)
+            return ((Binary) expr).left;
+        if (expr instanceof Logical)
+            return ((Logical) expr).left;
+        if (expr instanceof Specialized)
+            return ((Specialized) expr).left;
+        return null;
+    }
+
+    static Expr rightOf(Expr expr) {
+        if (expr instanceof Binary)
+            return ((Binary) expr).right;
+        if (expr instanceof Logical)
+            return ((Logical) expr).right;
+        if (expr instanceof Specialized)
+            return ((Specialized) expr).right;
+        return null;
+    }
+
+    static Token operatorOf(Expr expr) {
+        if (expr instanceof Binary)
+            return ((Binary) expr).operator;
+        if (expr instanceof Logical)
+            return ((Logical) expr).operator;
+        if (expr instanceof Specialized)
+            return ((Specialized) expr).operator;
+        return null;
+    }
+
+    // The nodes down the left spine of the expression, itself included, in
+    // the order they apply once the operand at the bottom is evaluated:
+    // deepest first. Empty if the expression has no left operand.
+    static List<Expr> spine(Expr expr) {
+        List<Expr> spine = new ArrayList<>();
+        for (Expr node = expr; leftOf(node) != null; node = leftOf(node)) {
+            spine.add(node);
+        }
+        Collections.reverse(spine);
+        return spine;
+    }
+
+    // The operand at the bottom of the left spine.
+    static Expr bottom(Expr expr) {
+        while (leftOf(expr) != null) {
+            expr = leftOf(expr);
+        }
+        return expr;
+    }
 }
\ No newline at end of file
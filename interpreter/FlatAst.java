@@ -0,0 +1,329 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// A parsed program stored in flat arrays instead of linked Expr and Stmt
+// objects, built by the FlatParser straight from the tokens. A node is an
+// id; its fields are four ints in 'nodes' and its line is in 'lines'.
+// Children are node ids, operators are TokenType ordinals and literal values
+// and names live once each in a constant pool. Statement lists are a count
+// followed by the elements in 'lists'. Variables are bound to the frame and
+// slot they live in, as the Resolver binds them on the tree path.
+//
+//   kind        high bits  a           b             c
+//   ASSIGN      depth      slot        value         name
+//   BINARY      operator   left        right         lexeme
+//   GROUPING               expression
+//   LITERAL                constant
+//   LOGICAL     operator   left        right         lexeme
+//   UNARY       operator               right         lexeme
+//   VARIABLE    depth      slot                      name
+//   BLOCK                  list        size
+//   EXPRESSION             expression
+//   DISPLAY                expression
+//   SCAN        depth      slot        type          name
+//   IF                     condition   then branch   else branch
+//   WHILE                  condition   body
+//   INT..BOOL              slot        initializer   name
+//
+// The high bits are the rest of the first int, over the kind's low byte.
+// Missing children are -1. A BLOCK's size is the number of variables it
+// declares; it runs in a frame of its own unless that is 0. A SCAN's type
+// is the constant naming the type its variable was declared with in the
+// block the SCAN is in, or -1.
+final class FlatAst {
+    static final int ASSIGN = 0;
+    static final int BINARY = 1;
+    static final int GROUPING = 2;
+    static final int LITERAL = 3;
+    static final int LOGICAL = 4;
+    static final int UNARY = 5;
+    static final int VARIABLE = 6;
+    static final int BLOCK = 7;
+    static final int EXPRESSION = 8;
+    static final int DISPLAY = 9;
+    static final int SCAN = 10;
+    static final int IF = 11;
+    static final int WHILE = 12;
+    static final int INT = 13;
+    static final int FLOAT = 14;
+    static final int CHAR = 15;
+    static final int STRING = 16;
+    static final int BOOL = 17;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    interface ExprVisitor<R> {
+        R visitAssignExpr(int node);
+
+        R visitBinaryExpr(int node);
+
+        R visitGroupingExpr(int node);
+
+        R visitLiteralExpr(int node);
+
+        R visitLogicalExpr(int node);
+
+        R visitUnaryExpr(int node);
+
+        R visitVariableExpr(int node);
+    }
+
+    interface StmtVisitor<R> {
+        R visitBlockStmt(int node);
+
+        R visitExpressionStmt(int node);
+
+        R visitDisplayStmt(int node);
+
+        R visitScanStmt(int node);
+
+        R visitIfStmt(int node);
+
+        R visitWhileStmt(int node);
+
+        R visitIntStmt(int node);
+
+        R visitFloatStmt(int node);
+
+        R visitCharStmt(int node);
+
+        R visitStringStmt(int node);
+
+        R visitBoolStmt(int node);
+    }
+
+    private int[] nodes = new int[64 * 4];
+    private int[] lines = new int[64];
+    private int count = 0;
+    private int[] lists = new int[64];
+    private int listsSize = 0;
+    private Object[] constants = new Object[16];
+    private int constantCount = 0;
+    private final Map<Object, Integer> constantIds = new HashMap<>();
+    private int program;
+
+    // Ends the building with the top-level statement list, dropping the
+    // spare capacity left by doubling.
+    void finish(int program) {
+        this.program = program;
+        nodes = Arrays.copyOf(nodes, count * 4);
+        lines = Arrays.copyOf(lines, count);
+        lists = Arrays.copyOf(lists, listsSize);
+    }
+
+    // The top-level statement list.
+    int program() {
+        return program;
+    }
+
+    int size() {
+        return count;
+    }
+
+    <R> R acceptExpr(int node, ExprVisitor<R> visitor) {
+        switch (kind(node)) {
+            case ASSIGN:
+                return visitor.visitAssignExpr(node);
+            case BINARY:
+                return visitor.visitBinaryExpr(node);
+            case GROUPING:
+                return visitor.visitGroupingExpr(node);
+            case LITERAL:
+                return visitor.visitLiteralExpr(node);
+            case LOGICAL:
+                return visitor.visitLogicalExpr(node);
+            case UNARY:
+                return visitor.visitUnaryExpr(node);
+            case VARIABLE:
+                return visitor.visitVariableExpr(node);
+            default:
+                throw new IllegalStateException("Not an expression: " + kind(node));
+        }
+    }
+
+    <R> R acceptStmt(int node, StmtVisitor<R> visitor) {
+        switch (kind(node)) {
+            case BLOCK:
+                return visitor.visitBlockStmt(node);
+            case EXPRESSION:
+                return visitor.visitExpressionStmt(node);
+            case DISPLAY:
+                return visitor.visitDisplayStmt(node);
+            case SCAN:
+                return visitor.visitScanStmt(node);
+            case IF:
+                return visitor.visitIfStmt(node);
+            case WHILE:
+                return visitor.visitWhileStmt(node);
+            case INT:
+                return visitor.visitIntStmt(node);
+            case FLOAT:
+                return visitor.visitFloatStmt(node);
+            case CHAR:
+                return visitor.visitCharStmt(node);
+            case STRING:
+                return visitor.visitStringStmt(node);
+            case BOOL:
+                return visitor.visitBoolStmt(node);
+            default:
+                throw new IllegalStateException("Not a statement: " + kind(node));
+        }
+    }
+
+    // Field access, named after the fields of the Expr and Stmt classes.
+
+    int kind(int node) {
+        return nodes[node * 4] & 0xFF;
+    }
+
+    TokenType operator(int node) {
+        return TYPES[nodes[node * 4] >>> 8];
+    }
+
+    int line(int node) {
+        return lines[node];
+    }
+
+    int depth(int node) {
+        return nodes[node * 4] >>> 8;
+    }
+
+    int slot(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int left(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int condition(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int expression(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int statements(int node) {
+        return nodes[node * 4 + 1];
+    }
+
+    int size(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int right(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int value(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int initializer(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int thenBranch(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int body(int node) {
+        return nodes[node * 4 + 2];
+    }
+
+    int elseBranch(int node) {
+        return nodes[node * 4 + 3];
+    }
+
+    Object literal(int node) {
+        return constants[nodes[node * 4 + 1]];
+    }
+
+    String type(int node) {
+        int type = nodes[node * 4 + 2];
+        return type < 0 ? null : (String) constants[type];
+    }
+
+    String name(int node) {
+        return (String) constants[nodes[node * 4 + 3]];
+    }
+
+    // Length and elements of a list from statements() or program().
+    int length(int list) {
+        return lists[list];
+    }
+
+    int element(int list, int index) {
+        return lists[list + 1 + index];
+    }
+
+    // A token for error messages about the node: its name or operator on
+    // its line.
+    Token token(int node) {
+        switch (kind(node)) {
+            case BINARY:
+            case LOGICAL:
+            case UNARY:
+                return new Token(operator(node), name(node), null, line(node));
+            default:
+                return new Token(TokenType.IDENTIFIER, name(node), null, line(node));
+        }
+    }
+
+    // Building. Children are added before their parent, so they get lower
+    // ids.
+
+    int add(int kind, int high, int a, int b, int c, int line) {
+        if (count == lines.length) {
+            lines = Arrays.copyOf(lines, lines.length * 2 + 64);
+            nodes = Arrays.copyOf(nodes, lines.length * 4);
+        }
+        int base = count * 4;
+        nodes[base] = kind | high << 8;
+        nodes[base + 1] = a;
+        nodes[base + 2] = b;
+        nodes[base + 3] = c;
+        lines[count] = line;
+        return count++;
+    }
+
+    int add(int kind, TokenType operator, int a, int b, int c, int line) {
+        return add(kind, operator.ordinal(), a, b, c, line);
+    }
+
+    // Binds an ASSIGN, VARIABLE or SCAN node to its variable.
+    void bind(int node, int depth, int slot) {
+        nodes[node * 4] = kind(node) | depth << 8;
+        nodes[node * 4 + 1] = slot;
+    }
+
+    int intern(Object value) {
+        Integer id = constantIds.get(value);
+        if (id == null) {
+            if (constantCount == constants.length) {
+                constants = Arrays.copyOf(constants, constantCount * 2);
+            }
+            id = constantCount;
+            constants[constantCount++] = value;
+            constantIds.put(value, id);
+        }
+        return id;
+    }
+
+    // A list of the elements from 'from' to 'to' in the array.
+    int list(int[] elements, int from, int to) {
+        int length = to - from;
+        if (listsSize + length + 1 > lists.length) {
+            lists = Arrays.copyOf(lists, Math.max(lists.length * 2, listsSize + length + 1));
+        }
+        int list = listsSize;
+        lists[list] = length;
+        System.arraycopy(elements, from, lists, list + 1, length);
+        listsSize += length + 1;
+        return list;
+    }
+}
@@ -0,0 +1,571 @@
+package interpreter;
+
+import static interpreter.TokenType.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Parses tokens straight into a FlatAst for --flat, so that no Expr or Stmt
+// object is made on that path. It follows the Parser statement for
+// statement, with the same errors, and binds variables to frame slots as it
+// goes, the way the Resolver binds a tree. Whether a block gets a frame is
+// only known once it closes, so every open block is taken to have one, and
+// a block that turns out to declare nothing makes the uses bound across it
+// one frame shallower. Undefined names are reported once the program has
+// parsed, and only if it parsed without errors, as on the tree path. Bodies
+// are always parsed up front.
+final class FlatParser {
+    private static class ParseError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    // Kinds of operator stack entries, as in the Parser.
+    private static final byte BINARY = 0;
+    private static final byte PREFIX = 1;
+    private static final byte GROUP = 2;
+    private static final byte ASSIGN_TARGET = 3;
+
+    private static final int[] LEVEL = new int[TokenType.values().length];
+    private static final int[] RIGHT = new int[TokenType.values().length];
+    private static final int UNARY_ONLY = 7;
+
+    private final TokenStream tokens;
+    private final Resolver resolver;
+    private final FlatAst ast = new FlatAst();
+    private int current = 0;
+    private Token previous;
+    private boolean executableStarted = false;
+    private boolean findBEGIN = false;
+    private boolean findEND = false;
+
+    private int[] operands = new int[16];
+    private int[] depths = new int[16];
+    private int operandCount = 0;
+    private Token[] operators = new Token[16];
+    private byte[] kinds = new byte[16];
+    private int operatorCount = 0;
+
+    // The statements of the bodies being parsed, innermost on top.
+    private int[] statements = new int[16];
+    private int statementCount = 0;
+
+    // The scope of the innermost open block, how many blocks are open, and
+    // for each the nodes bound to a variable across it.
+    private Resolver.Scope scope;
+    private int blocks = 0;
+    private int[][] crossings = new int[8][];
+    private int[] crossingCounts = new int[8];
+
+    // Names not found, reported at the end.
+    private final List<Token> undefined = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+
+    static {
+        level(1, OR);
+        level(2, AND);
+        level(3, NOT_EQUAL, EQUAL_EVAL);
+        level(4, GREATER_THAN, GREATER_OR_EQUAL, LESS_THAN, LESS_OR_EQUAL);
+        level(5, MINUS, PLUS, CONCAT);
+        level(6, STAR, SLASH, MODULO);
+        RIGHT[MINUS.ordinal()] = UNARY_ONLY;
+        RIGHT[PLUS.ordinal()] = UNARY_ONLY;
+        RIGHT[CONCAT.ordinal()] = UNARY_ONLY;
+    }
+
+    private static void level(int level, TokenType... types) {
+        for (TokenType type : types) {
+            LEVEL[type.ordinal()] = level;
+            RIGHT[type.ordinal()] = level + 1;
+        }
+    }
+
+    // Declares into the resolver's global scope, so that a prompt session
+    // keeps its variables from one line to the next.
+    FlatParser(TokenStream tokens, Resolver resolver) {
+        this.tokens = tokens;
+        this.resolver = resolver;
+    }
+
+    // The program, or null once its errors are reported.
+    FlatAst parse() {
+        scope = resolver.beginProgram();
+        int program = body(null);
+        if (!Code.hadError) {
+            for (int i = 0; i < undefined.size(); i++) {
+                Code.error(undefined.get(i), messages.get(i));
+            }
+        }
+        resolver.endProgram(!Code.hadError);
+        if (Code.hadError)
+            return null;
+        ast.finish(program);
+        return ast;
+    }
+
+    // Binding.
+
+    // Binds an ASSIGN, VARIABLE or SCAN node, made with the symbol id of its
+    // name in place of the slot.
+    private void bind(int node, String message) {
+        long binding = scope.find(ast.slot(node));
+        if (binding < 0) {
+            undefined.add(ast.token(node));
+            messages.add(message);
+            return;
+        }
+        int depth = (int) (binding >> 32);
+        ast.bind(node, depth, (int) binding);
+        for (int i = 0; i < depth; i++) {
+            int block = blocks - i;
+            if (crossingCounts[block] == crossings[block].length)
+                crossings[block] = Arrays.copyOf(crossings[block], crossingCounts[block] * 2);
+            crossings[block][crossingCounts[block]++] = node;
+        }
+    }
+
+    // The statements up to the END of a BEGIN kind block, as a BLOCK.
+    private int block(TokenType kind) {
+        scope = new Resolver.Scope(scope);
+        blocks++;
+        if (blocks == crossings.length) {
+            crossings = Arrays.copyOf(crossings, blocks * 2);
+            crossingCounts = Arrays.copyOf(crossingCounts, blocks * 2);
+        }
+        if (crossings[blocks] == null)
+            crossings[blocks] = new int[16];
+        crossingCounts[blocks] = 0;
+
+        int statements = body(kind);
+        int size = scope.size;
+        if (size == 0) {
+            for (int i = 0; i < crossingCounts[blocks]; i++) {
+                int node = crossings[blocks][i];
+                ast.bind(node, ast.depth(node) - 1, ast.slot(node));
+            }
+        }
+        scope = scope.enclosing;
+        blocks--;
+        return ast.add(FlatAst.BLOCK, 0, statements, size, -1, -1);
+    }
+
+    // Expressions, with the Parser's operator stacks and the same trees.
+
+    private int expression() {
+        operandCount = 0;
+        operatorCount = 0;
+
+        operand:
+        while (true) {
+            while (match(NOT, MINUS, PLUS)) {
+                pushOperator(previous(), PREFIX);
+            }
+            int expr = primary();
+            if (expr < 0) {
+                pushOperator(previous(), GROUP);
+                continue;
+            }
+            int depth = 1;
+
+            while (true) {
+                while (operatorCount > 0 && kinds[operatorCount - 1] == PREFIX) {
+                    expr = operation(FlatAst.UNARY, -1, operators[--operatorCount], expr);
+                    depth++;
+                    executableStarted = true;
+                }
+                pushOperand(expr, depth);
+
+                int level = LEVEL[peek().type.ordinal()];
+                if (level > 0 && shifts(level)) {
+                    pushOperator(advance(), BINARY);
+                    continue operand;
+                }
+                while (operatorCount > 0 && kinds[operatorCount - 1] == BINARY) {
+                    reduce();
+                }
+                if (match(ASSIGN)) {
+                    pushOperator(previous(), ASSIGN_TARGET);
+                    continue operand;
+                }
+
+                expr = assignments();
+                depth = depths[operandCount];
+                if (operatorCount == 0)
+                    return expr;
+                operatorCount--;
+                consume(RIGHT_PAREN, "Expect ')' after the expression.");
+                expr = ast.add(FlatAst.GROUPING, 0, expr, -1, -1, ast.line(expr));
+                depth = deeper(depth, previous());
+            }
+        }
+    }
+
+    private boolean shifts(int level) {
+        while (true) {
+            int top = operatorCount - 1;
+            if (top < 0 || kinds[top] != BINARY || level >= RIGHT[operators[top].type.ordinal()])
+                return true;
+            int topLevel = LEVEL[operators[top].type.ordinal()];
+            reduce();
+            if (level == topLevel)
+                return true;
+            if (level > topLevel)
+                return false;
+        }
+    }
+
+    private void reduce() {
+        Token operator = operators[--operatorCount];
+        int right = operands[--operandCount];
+        int rightDepth = depths[operandCount];
+        int left = operands[--operandCount];
+        depths[operandCount] = Math.max(depths[operandCount], deeper(rightDepth, operator));
+        if (operator.type == OR || operator.type == AND) {
+            operands[operandCount++] = operation(FlatAst.LOGICAL, left, operator, right);
+        } else {
+            operands[operandCount++] = operation(FlatAst.BINARY, left, operator, right);
+            executableStarted = true;
+        }
+    }
+
+    private int operation(int kind, int left, Token operator, int right) {
+        return ast.add(kind, operator.type, left, right, ast.intern(operator.getLexeme()), operator.getLine());
+    }
+
+    private int deeper(int depth, Token at) {
+        if (depth >= Parser.MAX_DEPTH)
+            throw error(at, "Expression is nested too deeply.");
+        return depth + 1;
+    }
+
+    // Pops the operand and the assignments waiting for it, innermost first.
+    // A target is bound after its value, as the Resolver does.
+    private int assignments() {
+        int value = operands[--operandCount];
+        int depth = depths[operandCount];
+        while (operatorCount > 0 && kinds[operatorCount - 1] == ASSIGN_TARGET) {
+            Token assign = operators[--operatorCount];
+            int target = operands[--operandCount];
+            if (ast.kind(target) == FlatAst.VARIABLE) {
+                String name = ast.name(target);
+                value = ast.add(FlatAst.ASSIGN, 0, ast.slot(target), value, ast.intern(name), ast.line(target));
+                bind(value, "Undefined variable '" + name + ".");
+                depth = deeper(depth, assign);
+            } else {
+                error(assign, "Invalid assignment target.");
+                value = target;
+                depth = depths[operandCount];
+            }
+        }
+        depths[operandCount] = depth;
+        return value;
+    }
+
+    private void pushOperand(int expr, int depth) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+            depths = Arrays.copyOf(depths, operandCount * 2);
+        }
+        depths[operandCount] = depth;
+        operands[operandCount++] = expr;
+    }
+
+    private void pushOperator(Token operator, byte kind) {
+        if (operatorCount >= Parser.MAX_DEPTH)
+            throw error(operator, "Expression is nested too deeply.");
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            kinds = Arrays.copyOf(kinds, operatorCount * 2);
+        }
+        operators[operatorCount] = operator;
+        kinds[operatorCount++] = kind;
+    }
+
+    // A literal or a variable, or -1 after an opening parenthesis. A
+    // variable is bound here unless it is about to be assigned to.
+    private int primary() {
+        if (match(FALSE))
+            return literal(false);
+        if (match(TRUE))
+            return literal(true);
+        // As in the Parser, a NULL is stepped over.
+        match(NULL);
+
+        if (match(TYPEFLOAT, TYPEINT, TYPESTRING, TYPECHAR, ESCAPECHAR))
+            return literal(previous().getLiteral());
+
+        if (match(IDENTIFIER)) {
+            Token name = previous();
+            int node = ast.add(FlatAst.VARIABLE, 0, name.symbol, -1, ast.intern(name.getLexeme()), name.getLine());
+            if (!check(ASSIGN))
+                bind(node, "Undefined variable '" + name.getLexeme() + "'.");
+            return node;
+        }
+
+        if (match(LEFT_PAREN))
+            return -1;
+        if (match(NEW_LINE))
+            return literal("\n");
+
+        throw error(peek(), "Expect expression.");
+    }
+
+    private int literal(Object value) {
+        return ast.add(FlatAst.LITERAL, 0, ast.intern(value), -1, -1, -1);
+    }
+
+    // Statements, pushed onto 'statements' as they are made.
+
+    // Statements up to the END that closes a BEGIN kind block, or up to the
+    // end of the program when kind is null, as a list.
+    private int body(TokenType kind) {
+        int base = statementCount;
+        while (!atBodyEnd(kind)) {
+            declaration();
+        }
+        int list = ast.list(statements, base, statementCount);
+        statementCount = base;
+        return list;
+    }
+
+    private boolean atBodyEnd(TokenType kind) {
+        if (kind == null)
+            return isAtEnd();
+        return check(END) || checkNext(kind) || isAtEnd();
+    }
+
+    private void push(int statement) {
+        if (statementCount == statements.length)
+            statements = Arrays.copyOf(statements, statementCount * 2);
+        statements[statementCount++] = statement;
+    }
+
+    private void declaration() {
+        try {
+            if (match(INT)) {
+                varDeclaration(FlatAst.INT, "Integer");
+            } else if (match(FLOAT)) {
+                varDeclaration(FlatAst.FLOAT, "Float");
+            } else if (match(CHAR)) {
+                varDeclaration(FlatAst.CHAR, "Character");
+            } else if (match(STRING)) {
+                varDeclaration(FlatAst.STRING, "String");
+            } else if (match(BOOL)) {
+                varDeclaration(FlatAst.BOOL, "Boolean");
+            } else {
+                push(statement());
+            }
+        } catch (ParseError error) {
+            synchronize();
+        }
+    }
+
+    private int statement() {
+        if (peek().getType().equals(IDENTIFIER))
+            return expressionStatement();
+        if (match(IF))
+            return ifStatement();
+        if (match(DISPLAY) && match(COLON))
+            return ast.add(FlatAst.DISPLAY, 0, expression(), -1, -1, -1);
+        if (match(WHILE))
+            return whileStatement();
+        if (match(BEGIN) && match(CODE)) {
+            if (findBEGIN) {
+                throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
+            }
+            findBEGIN = true;
+            return codeBlock();
+        }
+        if (match(END) && match(CODE) && findEND) {
+            throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
+        }
+        if (match(SCAN) && match(COLON))
+            return scanStatement();
+        return expressionStatement();
+    }
+
+    private int ifStatement() {
+        consume(LEFT_PAREN, "Expect '(' after 'IF'");
+        int condition = expression();
+        consume(RIGHT_PAREN, "Expect ')' after if condition");
+        int thenBranch = parseBranch();
+        int elseBranch = parseElseIfOrElse();
+        return ast.add(FlatAst.IF, 0, condition, thenBranch, elseBranch, -1);
+    }
+
+    private int parseBranch() {
+        if (match(BEGIN) && match(IF)) {
+            int body = block(IF);
+            if (!(match(END) && match(IF))) {
+                throw error(peek(), "Expect 'END IF' after block");
+            }
+            return body;
+        } else {
+            throw error(peek(), "Expect 'BEGIN IF' before block");
+        }
+    }
+
+    private int parseElseIfOrElse() {
+        if (match(ELSE)) {
+            if (match(IF)) {
+                consume(LEFT_PAREN, "Expect '(' after 'ELSE IF'");
+                int condition = expression();
+                consume(RIGHT_PAREN, "Expect ')' after else if condition");
+                int thenBranch = parseBranch();
+                int elseBranch = parseElseIfOrElse();
+                return ast.add(FlatAst.IF, 0, condition, thenBranch, elseBranch, -1);
+            } else {
+                return parseBranch();
+            }
+        }
+        return -1;
+    }
+
+    private int whileStatement() {
+        consume(LEFT_PAREN, "Expect '(' after 'WHILE'.");
+        int condition = expression();
+        consume(RIGHT_PAREN, "Expect ')' after while condition.");
+
+        consume(BEGIN, "Expect 'BEGIN' before 'WHILE'.");
+        consume(WHILE, "Expect 'WHILE' after 'BEGIN'.");
+        int body = block(WHILE);
+
+        consume(END, "Expect 'END' after 'WHILE' body.");
+        consume(WHILE, "Expect 'WHILE' after 'END'.");
+
+        return ast.add(FlatAst.WHILE, 0, condition, body, -1, -1);
+    }
+
+    // SCAN takes the type its variable was declared with in the block the
+    // SCAN is in, as the Resolver has it.
+    private int scanStatement() {
+        Token name = consume(IDENTIFIER, "Expect variable name after SCAN:");
+        String type = scope.types.get(name.symbol);
+        int node = ast.add(FlatAst.SCAN, 0, name.symbol, type == null ? -1 : ast.intern(type),
+                ast.intern(name.getLexeme()), name.getLine());
+        bind(node, "Undefined variable '" + name.getLexeme() + ".");
+        return node;
+    }
+
+    // Each name is declared after its initializer is parsed, and before
+    // the next one's.
+    private void varDeclaration(int kind, String type) {
+        if (executableStarted) {
+            Code.error(current, "Cannot declare variable after executable code");
+        }
+
+        if (!peek().getType().equals(IDENTIFIER)) {
+            throw error(peek(), "Cannot use reserved keywords as variable name.");
+        }
+
+        do {
+            Token name = consume(IDENTIFIER, "Expect variable name.");
+
+            int initializer = -1;
+            if (match(ASSIGN)) {
+                initializer = expression();
+            }
+
+            int slot = scope.declare(name.symbol, type);
+            push(ast.add(kind, 0, slot, initializer, ast.intern(name.getLexeme()), name.getLine()));
+        } while (match(COMMA));
+    }
+
+    private int expressionStatement() {
+        return ast.add(FlatAst.EXPRESSION, 0, expression(), -1, -1, -1);
+    }
+
+    private int codeBlock() {
+        int block = block(CODE);
+        if ((findBEGIN && findEND) || (check(BEGIN) && findBEGIN)) {
+            throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
+        }
+
+        consume(END, "Expect END after block.");
+        consume(CODE, "Expect CODE after END.");
+        findEND = true;
+        return block;
+    }
+
+    // Tokens.
+
+    private Token consume(TokenType type, String message) {
+        if (check(type))
+            return advance();
+
+        throw error(peek(), message);
+    }
+
+    private boolean match(TokenType... types) {
+        for (TokenType type : types) {
+            if (check(type)) {
+                advance();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean check(TokenType type) {
+        if (isAtEnd())
+            return false;
+        return peek().type == type;
+    }
+
+    private boolean checkNext(TokenType type) {
+        if (isAtEnd())
+            return false;
+        return tokens.peek(1).type == type;
+    }
+
+    private Token advance() {
+        if (!isAtEnd()) {
+            previous = tokens.next();
+            current++;
+        }
+        return previous();
+    }
+
+    private boolean isAtEnd() {
+        return peek().type == EOF;
+    }
+
+    private Token peek() {
+        return tokens.peek(0);
+    }
+
+    private Token previous() {
+        return previous;
+    }
+
+    private ParseError error(Token token, String message) {
+        Code.error(token, message);
+        return new ParseError();
+    }
+
+    private void synchronize() {
+        advance();
+
+        while (!isAtEnd()) {
+            if (previous().type == CODE)
+                return;
+
+            switch (peek().type) {
+                case INT:
+                case FLOAT:
+                case TYPECHAR:
+                case BOOL:
+                case IF:
+                case WHILE:
+                case SCAN:
+                case DISPLAY:
+                case END:
+                    return;
+                default:
+                    break;
+            }
+
+            advance();
+        }
+    }
+}
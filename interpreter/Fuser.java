@@ -0,0 +1,223 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Rewrites the shapes programs spend most of their time in into single
+// nodes the interpreter runs in one step, the last pass before a tree
+// runs:
+//
+//   INCREMENT   x = x + 1, x = x - 2            Update over a literal
+//   ACCUMULATE  x = x + e, x = x - e            Update over any expression
+//   COMPARE     x < 10, x == 'c', ...           Compare
+//   CONCAT      a & b & $ ...                   Concat, three operands or more
+//
+// Which patterns are fused can be chosen, to measure each on its own.
+class Fuser extends Rewriter {
+    enum Pattern {
+        INCREMENT, ACCUMULATE, COMPARE, CONCAT
+    }
+
+    // The patterns fused, for the whole program; set from --fuse.
+    static Set<Pattern> patterns = EnumSet.allOf(Pattern.class);
+
+    private final Set<Pattern> enabled;
+
+    Fuser() {
+        this(patterns);
+    }
+
+    Fuser(Set<Pattern> enabled) {
+        this.enabled = enabled;
+    }
+
+    // Parses a comma-separated list of pattern names, or 'all' or 'none'.
+    static Set<Pattern> parse(String list) {
+        if (list.equals("all"))
+            return EnumSet.allOf(Pattern.class);
+        Set<Pattern> parsed = EnumSet.noneOf(Pattern.class);
+        if (list.equals("none"))
+            return parsed;
+        for (String name : list.split(",")) {
+            parsed.add(Pattern.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+        }
+        return parsed;
+    }
+
+    // Fuses a body a lazy parse skipped, after the other passes.
+    static Stmt.Block fuseSkipped(Stmt.Block body) {
+        if (patterns.isEmpty())
+            return body;
+        return (Stmt.Block) new Fuser().rewrite(body);
+    }
+
+    private static Expr ungrouped(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = ungrouped(expr.value);
+        Expr left = null;
+        Token operator = null;
+        Operation operation = null;
+        Expr right = null;
+        if (value instanceof Expr.Binary) {
+            left = ((Expr.Binary) value).left;
+            operator = ((Expr.Binary) value).operator;
+            right = ((Expr.Binary) value).right;
+        } else if (value instanceof Expr.Specialized && ((Expr.Specialized) value).left != null) {
+            left = ((Expr.Specialized) value).left;
+            operator = ((Expr.Specialized) value).operator;
+            operation = ((Expr.Specialized) value).operation;
+            right = ((Expr.Specialized) value).right;
+        }
+        if (operator != null && (operator.type == TokenType.PLUS || operator.type == TokenType.MINUS)
+                && right != null && isVariable(left, expr.depth, expr.slot)) {
+            Pattern pattern = ungrouped(right) instanceof Expr.Literal ? Pattern.INCREMENT : Pattern.ACCUMULATE;
+            if (enabled.contains(pattern))
+                return new Expr.Update(expr.name, expr.depth, expr.slot, operation, operator, rewrite(right));
+        }
+        return super.visitAssignExpr(expr);
+    }
+
+    private static boolean isVariable(Expr expr, int depth, int slot) {
+        expr = ungrouped(expr);
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).depth == depth
+                && ((Expr.Variable) expr).slot == slot;
+    }
+
+    private static boolean isComparison(TokenType operator) {
+        switch (operator) {
+            case LESS_THAN:
+            case LESS_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_OR_EQUAL:
+            case EQUAL_EVAL:
+            case NOT_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // A chain of concatenations is taken whole, down its left spine.
+    @Override
+    Expr rewrite(Expr expr) {
+        if (enabled.contains(Pattern.CONCAT) && isConcat(expr)) {
+            List<Expr> operands = chain(expr);
+            if (operands.size() >= 3) {
+                for (int i = 0; i < operands.size(); i++) {
+                    operands.set(i, rewrite(operands.get(i)));
+                }
+                Token operator = expr instanceof Expr.Binary ? ((Expr.Binary) expr).operator
+                        : ((Expr.Specialized) expr).operator;
+                return new Expr.Concat(operands, operator);
+            }
+        }
+        return super.rewrite(expr);
+    }
+
+    @Override
+    boolean inSpine(Expr expr) {
+        return !(enabled.contains(Pattern.CONCAT) && isConcat(expr));
+    }
+
+    @Override
+    Expr binary(Expr.Binary expr, Expr left) {
+        Expr fused = compare(null, expr.left, expr.operator, expr.right);
+        return fused != null ? fused : super.binary(expr, left);
+    }
+
+    @Override
+    Expr specialized(Expr.Specialized expr, Expr left) {
+        if (expr.left != null) {
+            Expr fused = compare(expr.operation, expr.left, expr.operator, expr.right);
+            if (fused != null)
+                return fused;
+        }
+        return super.specialized(expr, left);
+    }
+
+    private Expr compare(Operation operation, Expr left, Token operator, Expr right) {
+        if (isComparison(operator.type) && enabled.contains(Pattern.COMPARE)) {
+            Expr variable = ungrouped(left);
+            Expr constant = ungrouped(right);
+            if (variable instanceof Expr.Variable && constant instanceof Expr.Literal) {
+                Expr.Variable read = (Expr.Variable) variable;
+                return new Expr.Compare(read.name, read.depth, read.slot, operation, operator,
+                        ((Expr.Literal) constant).value);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isConcat(Expr expr) {
+        return expr instanceof Expr.Binary && ((Expr.Binary) expr).operator.type == TokenType.CONCAT
+                || expr instanceof Expr.Specialized && ((Expr.Specialized) expr).operation == Operation.CONCAT;
+    }
+
+    // The operands of a left-leaning chain of concatenations, in the order
+    // they are evaluated. A concatenation on the right is one operand: it
+    // is stringified as a whole.
+    private static List<Expr> chain(Expr expr) {
+        List<Expr> operands = new ArrayList<>();
+        Expr left = expr;
+        while (isConcat(ungrouped(left))) {
+            operands.add(Expr.rightOf(ungrouped(left)));
+            left = Expr.leftOf(ungrouped(left));
+        }
+        operands.add(left);
+        Collections.reverse(operands);
+        return operands;
+    }
+
+    // The expression a fused node stands for, for the forms that store or
+    // flatten the tree; any other expression as it is.
+    static Expr unfused(Expr expr) {
+        if (expr instanceof Expr.Update) {
+            Expr.Update update = (Expr.Update) expr;
+            Expr.Variable variable = new Expr.Variable(update.name);
+            variable.depth = update.depth;
+            variable.slot = update.slot;
+            Expr.Assign assign = new Expr.Assign(update.name, new Expr.Binary(variable, update.operator, update.operand));
+            assign.depth = update.depth;
+            assign.slot = update.slot;
+            return assign;
+        }
+        if (expr instanceof Expr.Compare) {
+            Expr.Compare compare = (Expr.Compare) expr;
+            Expr.Variable variable = new Expr.Variable(compare.name);
+            variable.depth = compare.depth;
+            variable.slot = compare.slot;
+            return new Expr.Binary(variable, compare.operator, new Expr.Literal(compare.constant));
+        }
+        if (expr instanceof Expr.Concat) {
+            Expr.Concat concat = (Expr.Concat) expr;
+            Expr chain = concat.operands.get(0);
+            for (int i = 1; i < concat.operands.size(); i++) {
+                chain = new Expr.Binary(chain, concat.operator, concat.operands.get(i));
+            }
+            return chain;
+        }
+        return expr;
+    }
+
+    // A planned loop is fused in place, so that its plan still refers to
+    // the nodes that run.
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.body = rewrite(stmt.body);
+        if (stmt.counted != null)
+            stmt.counted = (Stmt.Block) rewrite(stmt.counted);
+        return stmt;
+    }
+}
@@ -0,0 +1,542 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static interpreter.TokenType.*;
+
+// Keeps the text, tokens and statements of one document alive across edits,
+// for the editor integration. An edit re-lexes from the token before the
+// change until the new tokens line up with the old ones again, then
+// re-parses inside the innermost BEGIN x ... END x block around the changed
+// tokens, only from the declaration before them until the parser is back in
+// step with the old declarations. Every other Stmt is kept.
+//
+// Text and tokens both live in gap buffers with the gap parked at the last
+// edit. Tokens after the gap store their offset, line and index counted from
+// the end of the document, so an edit never has to touch them: they move
+// when the document's totals change.
+class IncrementalDocument {
+    private final GapText text = new GapText();
+    private DocToken[] tokens = new DocToken[64];
+    private int gapStart = 0;
+    private int gapEnd = tokens.length;
+    private int lineTotal = 0; // line of the EOF token
+
+    private Span root;
+
+    private int lastRelexed = 0;
+    private int lastReparsed = 0;
+
+    // A BEGIN kind ... END kind block, or the whole program when begin and
+    // end are null. The body's statement list is the one inside the block's
+    // Stmt.Block, so splicing it updates the tree in place.
+    private static class Span {
+        final DocToken begin;
+        final DocToken end;
+        final TokenType kind;
+        final Parser.Body body;
+        Span parent;
+        List<Span> children = new ArrayList<>();
+
+        Span(DocToken begin, DocToken end, TokenType kind, Parser.Body body) {
+            this.begin = begin;
+            this.end = end;
+            this.kind = kind;
+            this.body = body;
+        }
+
+        int bodyStart() {
+            return begin == null ? 0 : begin.index() + 2;
+        }
+    }
+
+    private final class DocToken extends Token {
+        private int offset;
+        private int row;
+        private int index;
+        private boolean tail = false;
+        private boolean removed = false;
+
+        DocToken(TokenType type, String lexeme, Object literal, int symbol, int offset, int line) {
+            super(type, lexeme, literal, -1, symbol);
+            this.offset = offset;
+            this.row = line;
+        }
+
+        @Override
+        public int getLine() {
+            return tail ? lineTotal - row : row;
+        }
+
+        int offset() {
+            return tail ? text.length() - offset : offset;
+        }
+
+        int end() {
+            return offset() + length;
+        }
+
+        int index() {
+            return tail ? count() - index : index;
+        }
+
+        void toTail() {
+            offset = text.length() - offset;
+            row = lineTotal - row;
+            index = count() - index;
+            tail = true;
+        }
+
+        void toHead() {
+            offset = text.length() - offset;
+            row = lineTotal - row;
+            index = count() - index;
+            tail = false;
+        }
+    }
+
+    IncrementalDocument(String source) {
+        text.replace(0, 0, source);
+        Lexer lexer = new Lexer(text, Lexer.symbols);
+        TokenBuffer scanned = lexer.scanRange(0, text.length());
+        for (int i = 0; i < scanned.size(); i++) {
+            insert(token(scanned, i, 0));
+        }
+        insert(new DocToken(EOF, "", null, -1, text.length(), lexer.line()));
+        lineTotal = lexer.line();
+        report(lexer, 0);
+        lastRelexed = count();
+        parseAll();
+    }
+
+    List<Stmt> statements() {
+        return root.body.statements;
+    }
+
+    String text() {
+        return text.toString();
+    }
+
+    // Tokens lexed and parsed again by the last edit, for measuring.
+    int lastRelexed() {
+        return lastRelexed;
+    }
+
+    int lastReparsed() {
+        return lastReparsed;
+    }
+
+    // Replaces 'removed' chars at 'offset' with 'inserted'.
+    void edit(int offset, int removed, String inserted) {
+        // Everything before the first token touching the edit is unaffected,
+        // and the lexer is in its default state right after the token before
+        // it.
+        int first = firstEndingAtOrAfter(offset);
+        int restart = first == 0 ? 0 : get(first - 1).end();
+        int line = first == 0 ? 0 : lineAfter(get(first - 1));
+        int reusable = firstStartingAtOrAfter(offset + removed, first);
+
+        moveGap(first);
+        text.replace(offset, removed, inserted);
+
+        // Lex until a new token starts exactly where an old one past the edit
+        // did; from there on the old tokens are still right.
+        Lexer lexer = new Lexer(text, Lexer.symbols);
+        List<DocToken> fresh = new ArrayList<>();
+        TokenBuffer scanned = lexer.scanRange(restart, offset + inserted.length());
+        int position = lexer.position();
+        int match = reusable;
+        int lineDelta;
+        resync:
+        while (true) {
+            for (int i = 0; i < scanned.size(); i++) {
+                int start = scanned.start(i);
+                while (get(match).type != EOF && get(match).offset() < start)
+                    match++;
+                DocToken old = get(match);
+                if (start >= offset + inserted.length() && old.offset() == start
+                        && old.type == scanned.type(i) && old.length == scanned.length(i)) {
+                    lineDelta = line + scanned.line(i) - old.getLine();
+                    break resync;
+                }
+                fresh.add(token(scanned, i, line));
+            }
+            if (position >= text.length()) {
+                match = count() - 1;
+                lineDelta = line + lexer.line() - get(match).getLine();
+                break;
+            }
+            scanned = lexer.scanRange(position, position + 1);
+            position = lexer.position();
+        }
+        report(lexer, line);
+
+        for (int i = first; i < match; i++) {
+            DocToken old = tokens[gapEnd];
+            tokens[gapEnd++] = null;
+            old.removed = true;
+            old.tail = false;
+            old.index = first;
+        }
+        for (DocToken token : fresh) {
+            insert(token);
+        }
+        lineTotal += lineDelta;
+
+        lastRelexed = fresh.size();
+        lastReparsed = 0;
+        if (fresh.isEmpty() && match == first)
+            return;
+        reparse(innermost(first, first + fresh.size()), first, first + fresh.size());
+    }
+
+    private DocToken token(TokenBuffer scanned, int i, int line) {
+        return new DocToken(scanned.type(i), scanned.lexeme(i), scanned.literal(i), scanned.symbol(i),
+                scanned.start(i), line + scanned.line(i));
+    }
+
+    private void report(Lexer lexer, int line) {
+        for (Lexer.LexError error : lexer.errors()) {
+            Code.error(line + error.line, error.message);
+        }
+        lexer.errors().clear();
+    }
+
+    private static int lineAfter(Token token) {
+        return token.getLine() + (token.type == NEW_LINE ? 1 : 0);
+    }
+
+    // Innermost body that strictly contains the token range [from, to).
+    private Span innermost(int from, int to) {
+        Span span = root;
+        while (true) {
+            Span child = lastBodyStartingBy(span.children, from);
+            if (child == null || child.begin.removed || child.end.removed || to > child.end.index())
+                return span;
+            span = child;
+        }
+    }
+
+    // First child that begins at or after 'index'.
+    private static int firstBeginningAt(List<Span> spans, int index) {
+        int low = 0;
+        int high = spans.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (spans.get(mid).begin.index() < index)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    // Last child whose body starts at or before 'index'. Removed tokens
+    // report the index of the edit, so the searches stay monotonic.
+    private static Span lastBodyStartingBy(List<Span> spans, int index) {
+        int low = 0;
+        int high = spans.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (spans.get(mid).begin.index() + 2 <= index)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low == 0 ? null : spans.get(low - 1);
+    }
+
+    // Re-parses the declarations of the body around the damaged tokens
+    // [from, to), starting with the one holding the token before the damage
+    // (it may now run into it) and stopping at the first old declaration past
+    // the damage that starts in the same parser state. If instead the body
+    // ends somewhere else or leaves the parser in another state, the code
+    // after it may parse differently and the enclosing body is redone.
+    private void reparse(Span span, int from, int to) {
+        for (;; span = span.parent) {
+            Parser.Body body = span.body;
+            int k = lastStartBefore(body, from - 1);
+            int resumeAt = k < 0 ? span.bodyStart() : index(body.starts.get(k));
+            int state = k < 0 ? body.stateBefore : body.states.get(k);
+            k = Math.max(k, 0);
+
+            List<Span> found = new ArrayList<>();
+            Parser parser = new Parser(stream(resumeAt), null);
+            parser.reportBlocks(collector(found));
+            parser.resume(state, resumeAt);
+
+            Parser.Body fresh = new Parser.Body();
+            int j = k;
+            int n = body.starts.size();
+            int position;
+            boolean synced;
+            while (true) {
+                position = parser.position();
+                if (position >= to) {
+                    while (j < n && (removed(body, j) || index(body.starts.get(j)) < position))
+                        j++;
+                    if (j < n && index(body.starts.get(j)) == position && body.states.get(j) == parser.state()) {
+                        synced = true;
+                        break;
+                    }
+                }
+                if (parser.atBodyEnd(span.kind)) {
+                    j = n;
+                    synced = span.end == null
+                            || (position == span.end.index() && parser.state() == body.stateAfter);
+                    break;
+                }
+                fresh.mark(get(position), parser.state());
+                fresh.statements.addAll(parser.declaration());
+            }
+            if (!synced)
+                continue;
+
+            splice(span, k, j, fresh);
+            int lower = firstBeginningAt(span.children, resumeAt);
+            int upper = lower;
+            while (upper < span.children.size()
+                    && (span.children.get(upper).begin.removed || span.children.get(upper).begin.index() < position))
+                upper++;
+            for (Span child : found) {
+                child.parent = span;
+            }
+            replace(span.children, lower, upper, found);
+            lastReparsed = position - resumeAt;
+            return;
+        }
+    }
+
+    // Replaces declarations [k, j) of the span's body with the fresh ones.
+    // Retyping inside a statement keeps the counts, and then nothing past
+    // the replaced range moves.
+    private static void splice(Span span, int k, int j, Parser.Body fresh) {
+        Parser.Body body = span.body;
+        int n = body.starts.size();
+        int firstOld = k < n ? body.firsts.get(k) : body.statements.size();
+        int endOld = j < n ? body.firsts.get(j) : body.statements.size();
+        int delta = fresh.statements.size() - (endOld - firstOld);
+
+        replace(body.statements, firstOld, endOld, fresh.statements);
+        if (delta != 0) {
+            for (int i = j; i < n; i++) {
+                body.firsts.set(i, body.firsts.get(i) + delta);
+            }
+        }
+        for (int i = 0; i < fresh.firsts.size(); i++) {
+            fresh.firsts.set(i, fresh.firsts.get(i) + firstOld);
+        }
+        replace(body.starts, k, j, fresh.starts);
+        replace(body.states, k, j, fresh.states);
+        replace(body.firsts, k, j, fresh.firsts);
+    }
+
+    private static <T> void replace(List<T> list, int from, int to, List<T> replacement) {
+        if (to - from == replacement.size()) {
+            for (int i = 0; i < replacement.size(); i++) {
+                list.set(from + i, replacement.get(i));
+            }
+        } else {
+            list.subList(from, to).clear();
+            list.addAll(from, replacement);
+        }
+    }
+
+    // Last declaration starting at or before 'index', or -1.
+    private static int lastStartBefore(Parser.Body body, int index) {
+        int low = 0;
+        int high = body.starts.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (index(body.starts.get(mid)) <= index)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low - 1;
+    }
+
+    private static boolean removed(Parser.Body body, int declaration) {
+        return ((DocToken) body.starts.get(declaration)).removed;
+    }
+
+    private static int index(Token token) {
+        return ((DocToken) token).index();
+    }
+
+    private void parseAll() {
+        List<Span> found = new ArrayList<>();
+        Parser parser = new Parser(stream(0), null);
+        parser.reportBlocks(collector(found));
+        root = new Span(null, null, null, parser.parseBody());
+        root.children = found;
+        for (Span child : found) {
+            child.parent = root;
+        }
+        lastReparsed = count();
+    }
+
+    // Blocks are reported innermost first, so a new block adopts the blocks
+    // reported since it began.
+    private Parser.BlockSink collector(List<Span> found) {
+        return (begin, end, body) -> {
+            int beginIndex = index(begin);
+            Span span = new Span((DocToken) begin, (DocToken) end, get(beginIndex + 1).type, body);
+            int firstChild = found.size();
+            while (firstChild > 0 && found.get(firstChild - 1).begin.index() > beginIndex)
+                firstChild--;
+            List<Span> children = found.subList(firstChild, found.size());
+            span.children = new ArrayList<>(children);
+            for (Span child : span.children) {
+                child.parent = span;
+            }
+            children.clear();
+            found.add(span);
+        };
+    }
+
+    // The tokens from 'from' on, repeating EOF at the end.
+    private TokenStream stream(int from) {
+        return new TokenStream() {
+            private int current = from;
+
+            @Override
+            public Token peek(int k) {
+                return get(Math.min(current + k, count() - 1));
+            }
+
+            @Override
+            public Token next() {
+                Token token = peek(0);
+                if (current < count() - 1)
+                    current++;
+                return token;
+            }
+        };
+    }
+
+    private int firstEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = count() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).end() >= offset)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    private int firstStartingAtOrAfter(int offset, int low) {
+        int high = count() - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (get(mid).offset() >= offset)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return low;
+    }
+
+    private int count() {
+        return tokens.length - (gapEnd - gapStart);
+    }
+
+    private DocToken get(int index) {
+        return index < gapStart ? tokens[index] : tokens[index + gapEnd - gapStart];
+    }
+
+    // Tokens crossing the gap switch between counting from the start and
+    // counting from the end.
+    private void moveGap(int index) {
+        while (gapStart > index) {
+            DocToken token = tokens[--gapStart];
+            tokens[gapStart] = null;
+            tokens[--gapEnd] = token;
+            token.toTail();
+        }
+        while (gapStart < index) {
+            DocToken token = tokens[gapEnd];
+            tokens[gapEnd++] = null;
+            tokens[gapStart++] = token;
+            token.toHead();
+        }
+    }
+
+    private void insert(DocToken token) {
+        if (gapStart == gapEnd) {
+            DocToken[] grown = new DocToken[tokens.length * 2];
+            int tail = tokens.length - gapEnd;
+            System.arraycopy(tokens, 0, grown, 0, gapStart);
+            System.arraycopy(tokens, gapEnd, grown, grown.length - tail, tail);
+            gapEnd = grown.length - tail;
+            tokens = grown;
+        }
+        token.index = gapStart;
+        tokens[gapStart++] = token;
+    }
+
+    // Char gap buffer that the lexer reads through CharSequence.
+    private static final class GapText implements CharSequence {
+        private char[] buffer = new char[256];
+        private int gapStart = 0;
+        private int gapEnd = buffer.length;
+
+        @Override
+        public int length() {
+            return buffer.length - (gapEnd - gapStart);
+        }
+
+        @Override
+        public char charAt(int index) {
+            return index < gapStart ? buffer[index] : buffer[index + gapEnd - gapStart];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            int gap = gapEnd - gapStart;
+            if (end <= gapStart)
+                return new String(buffer, start, end - start);
+            if (start >= gapStart)
+                return new String(buffer, start + gap, end - start);
+            return new String(buffer, start, gapStart - start) + new String(buffer, gapEnd, end - gapStart);
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+
+        void replace(int offset, int removed, String inserted) {
+            moveGap(offset);
+            gapEnd += removed;
+            if (gapEnd - gapStart < inserted.length()) {
+                int tail = buffer.length - gapEnd;
+                char[] grown = new char[Math.max(buffer.length * 2, length() + inserted.length() + 256)];
+                System.arraycopy(buffer, 0, grown, 0, gapStart);
+                System.arraycopy(buffer, gapEnd, grown, grown.length - tail, tail);
+                gapEnd = grown.length - tail;
+                buffer = grown;
+            }
+            inserted.getChars(0, inserted.length(), buffer, gapStart);
+            gapStart += inserted.length();
+        }
+
+        private void moveGap(int offset) {
+            if (offset < gapStart) {
+                int n = gapStart - offset;
+                System.arraycopy(buffer, offset, buffer, gapEnd - n, n);
+                gapStart = offset;
+                gapEnd -= n;
+            } else if (offset > gapStart) {
+                int n = offset - gapStart;
+                System.arraycopy(buffer, gapEnd, buffer, gapStart, n);
+                gapStart += n;
+                gapEnd += n;
+            }
+        }
+    }
+}
@@ -1,8 +1,7 @@
 package interpreter;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.List;
 
 import interpreter.Expr.Assign;
@@ -23,12 +22,41 @@ import interpreter.Stmt.Scan;
 import interpreter.Stmt.While;
 
 class Interpreter implements Expr.Visitor<Object>,
-        Stmt.Visitor<Void>{
+        Stmt.Visitor<Void>, FlatAst.ExprVisitor<Object>, FlatAst.StmtVisitor<Void> {
 
-    private Environment environment = new Environment();
+    // Variables live in frames laid out by the Resolver, or by the
+    // FlatParser for the flat path: slot 0 links to the enclosing frame.
+    private Object[] globals = new Object[1];
+    private Object[] frame = globals;
     private Boolean errFlag = false;
     private Boolean usedDisplay = false;
+    private FlatAst program;
+    // The frame each BLOCK of the flat program with variables runs in, by
+    // node id, cleared for every run as on the tree path.
+    private Object[][] blocks;
+    // Set for --jit: hot loops are compiled as they run.
+    private Tracer tracer = null;
+    // The nodes of the chains being evaluated that are still to be applied,
+    // innermost chain last: the first 'pending' of 'chains' on the tree
+    // path, the first 'pendingNodes' of 'chainNodes' on the flat one.
+    private Expr[] chains = new Expr[16];
+    private int pending = 0;
+    private int[] chainNodes = new int[16];
+    private int pendingNodes = 0;
+
+    void useTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
 
+    // Makes room for the global variables the Resolver has seen so far.
+    void reserveGlobals(int size) {
+        if (size + 1 > globals.length) {
+            globals = Arrays.copyOf(globals, size + 1);
+            frame = globals;
+        }
+    }
+
+    // Runs a program the Resolver has bound.
     void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
@@ -44,12 +72,110 @@ class Interpreter implements Expr.Visitor<Object>,
         }
     }
 
+    // Runs a program as a tree of self-specializing nodes, in the same
+    // frames as the tree path.
+    void interpret(NodeTree program) {
+        try {
+            program.execute(globals);
+        } catch (RuntimeError error) {
+            errFlag = true;
+            Code.runtimeError(error);
+        }
+        if (program.displayed())
+            usedDisplay = true;
+
+        if(errFlag.equals(false) & usedDisplay.equals(false)){
+            System.out.println("Run successfully without errors.");
+        }
+    }
+
+    // Runs a program compiled to bytecode, in the same frames as the tree
+    // path.
+    void interpret(Chunk program) {
+        VirtualMachine machine = new VirtualMachine();
+        try {
+            machine.run(program, globals);
+        } catch (RuntimeError error) {
+            errFlag = true;
+            Code.runtimeError(error);
+        }
+        if (machine.displayed())
+            usedDisplay = true;
+
+        if(errFlag.equals(false) & usedDisplay.equals(false)){
+            System.out.println("Run successfully without errors.");
+        }
+    }
+
+    // Runs a program compiled to bytecode with its values unboxed, from and
+    // back into the same frames as the tree path.
+    void interpretTagged(Chunk program) {
+        TaggedMachine machine = new TaggedMachine();
+        try {
+            machine.run(program, globals);
+        } catch (RuntimeError error) {
+            errFlag = true;
+            Code.runtimeError(error);
+        }
+        if (machine.displayed())
+            usedDisplay = true;
+
+        if(errFlag.equals(false) & usedDisplay.equals(false)){
+            System.out.println("Run successfully without errors.");
+        }
+    }
+
+    // Runs a program compiled to closures, in the same frames as the tree
+    // path.
+    void interpret(Closures program) {
+        try {
+            program.execute(globals);
+        } catch (RuntimeError error) {
+            errFlag = true;
+            Code.runtimeError(error);
+        }
+        if (program.displayed())
+            usedDisplay = true;
+
+        if(errFlag.equals(false) & usedDisplay.equals(false)){
+            System.out.println("Run successfully without errors.");
+        }
+    }
+
+    // Runs a program in its flat form. The visit methods taking a node id
+    // below mirror the ones taking Expr and Stmt objects.
+    void interpret(FlatAst program) {
+        this.program = program;
+        this.blocks = new Object[program.size()][];
+        try {
+            int statements = program.program();
+            for (int i = 0; i < program.length(statements); i++) {
+                execute(program.element(statements, i));
+            }
+        } catch (RuntimeError error) {
+            errFlag = true;
+            Code.runtimeError(error);
+        }
+
+        if(errFlag.equals(false) & usedDisplay.equals(false)){
+            System.out.println("Run successfully without errors.");
+        }
+    }
+
+    private Object[] frame(int depth) {
+        Object[] frame = this.frame;
+        for (int i = 0; i < depth; i++) {
+            frame = (Object[]) frame[0];
+        }
+        return frame;
+    }
+
     @Override
     public Object visitVariableExpr(Variable expr) {
         // return environment.get(expr.name);
-        Object value = environment.get(expr.name);
+        Object value = frame(expr.depth)[expr.slot];
         // if (value == null) {
-        //     throw new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'.");
+        //     throw new RuntimeError(expr.name, "Undefined variable '" + expr.name.getLexeme() + "'.");
         // }
         return value;
     }
@@ -61,9 +187,7 @@ class Interpreter implements Expr.Visitor<Object>,
             value = evaluate(stmt.initializer);
         } 
 
-        String Tokentype = "Boolean";
-
-        environment.define(stmt.name.lexeme, value, Tokentype);
+        frame[stmt.slot] = value;
         // System.out.println("var = " + stmt.initializer.accept(this));
         return null;
     }
@@ -73,13 +197,11 @@ class Interpreter implements Expr.Visitor<Object>,
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
-            if (!(value instanceof Character)) {
+            if (stmt.typed ? value == null : !(value instanceof Character)) {
                 throw new RuntimeError(stmt.name, "Input must be a character");
             }
         }
-        String Tokentype = "Character";
-
-        environment.define(stmt.name.lexeme, value, Tokentype);
+        frame[stmt.slot] = value;
         // System.out.println("var = " + stmt.initializer.accept(this));
         return null;
     }
@@ -89,7 +211,7 @@ class Interpreter implements Expr.Visitor<Object>,
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
-            if (!(value instanceof Double)) {
+            if (stmt.typed ? value == null : !(value instanceof Double)) {
                 throw new RuntimeError(stmt.name, "Input must be a float");
             }
         } 
@@ -98,9 +220,7 @@ class Interpreter implements Expr.Visitor<Object>,
         //     value = 0.0;
         // }
 
-        String Tokentype = "Float";
-
-        environment.define(stmt.name.lexeme, value, Tokentype);
+        frame[stmt.slot] = value;
         // System.out.println("var = " + stmt.initializer.accept(this));
         return null;
     }
@@ -110,7 +230,7 @@ class Interpreter implements Expr.Visitor<Object>,
         Object value = null;
         if (stmt.intializer != null) {
             value = evaluate(stmt.intializer);
-            if (!(value instanceof Integer)) {
+            if (stmt.typed ? value == null : !(value instanceof Integer)) {
                 throw new RuntimeError(stmt.name, "Input must be an Integer");
             }
         } 
@@ -119,10 +239,8 @@ class Interpreter implements Expr.Visitor<Object>,
         //     value = 0;
         // }
 
-        String Tokentype = "Integer";
-
-        environment.define(stmt.name.lexeme, value, Tokentype);
-        //System.out.println("Declared variable: " + stmt.name.lexeme + " = " + value);
+        frame[stmt.slot] = value;
+        //System.out.println("Declared variable: " + stmt.name.getLexeme() + " = " + value);
         // System.out.println("var = " + stmt.initializer.accept(this));
         return null;
     }
@@ -132,58 +250,62 @@ class Interpreter implements Expr.Visitor<Object>,
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
-            if (!(value instanceof String)) {
+            if (stmt.typed ? value == null : !(value instanceof String)) {
                 throw new RuntimeError(stmt.name, "Input must be a String");
             }
         }
 
-        String Tokentype = "String";
-
-        environment.define(stmt.name.lexeme, value, Tokentype);
+        frame[stmt.slot] = value;
         // System.out.println("var = " + stmt.initializer.accept(this));
         return null;
     }
 
-    private Number getArithmetic(Object obj) {
-        if (obj instanceof Integer) {
-            return (int) obj;
-        }
-        if (obj instanceof Double) {
-            return (double) obj;
-        }
-        return null;
-    }
-
     @Override
     public Void visitBlockStmt(Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
+        if (!stmt.framed) {
+            for (Stmt statement : stmt.statements) {
+                execute(statement);
+            }
+            return null;
+        }
+        // Nothing can run a block again before it has finished, so each
+        // block keeps one frame and clears it for every run, instead of a
+        // loop body allocating a frame per iteration.
+        Object[] frame = stmt.frame;
+        if (frame == null || frame.length != stmt.size + 1) {
+            frame = new Object[stmt.size + 1];
+            stmt.frame = frame;
+        } else {
+            Arrays.fill(frame, 1, frame.length, null);
+        }
+        frame[0] = this.frame;
+        executeBlock(stmt.statements, frame);
         return null;
     }
 
-    void executeBlock(List<Stmt> statements, Environment environment) {
-        Environment previous = this.environment;
+    void executeBlock(List<Stmt> statements, Object[] frame) {
+        Object[] previous = this.frame;
         try {
-            this.environment = environment;
+            this.frame = frame;
 
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } finally {
-            this.environment = previous;
+            this.frame = previous;
         }
     }
 
     @Override
     public Object visitAssignExpr(Assign expr) {
         Object value = evaluate(expr.value);
-        environment.assign(expr.name, value);
+        frame(expr.depth)[expr.slot] = value;
         return value;
     }
 
     @Override
     public Void visitMultiVarStmt(Stmt.MultiVar stmt) {
         for (int i = 0; i < stmt.names.size(); i++) {
-            Token name = stmt.names.get(i);
             Expr initializer = stmt.initializers.get(i);
 
             Object value = null;
@@ -193,95 +315,55 @@ class Interpreter implements Expr.Visitor<Object>,
                 value = null;
             }
 
-            environment.assign(name, value);
+            frame(stmt.depths[i])[stmt.slots[i]] = value;
         }
         return null;
     }
 
     @Override
     public Object visitBinaryExpr(Binary expr) {
-        Object left = expr.left.accept(this);
-        Object right = expr.right.accept(this);
-        Number leftValue = getArithmetic(left);
-        Number rightValue = getArithmetic(right);
-        //System.out.println("Left Value: " + leftValue + ", Right Value: " + rightValue);
-        switch (expr.operator.type) {
-            // case NEW_LINE:
-            //     return (stringify(left) + "\n" + stringify(right));
-            case CONCAT:
-                return stringify(left) + stringify(right);
-            case MINUS:
-                if (leftValue instanceof Integer && rightValue instanceof Integer) {
-                    return leftValue.intValue() - rightValue.intValue();
-                }
-                return leftValue.floatValue() - rightValue.floatValue();
-            case PLUS:
-                if (leftValue instanceof Integer && rightValue instanceof Integer) {
-                    return leftValue.intValue() + rightValue.intValue();
-                }
-                return leftValue.floatValue() + rightValue.floatValue();
-            case STAR:
-                // System.out.println(rightValue instanceof Integer);
-                if (leftValue instanceof Integer && rightValue instanceof Integer) {
-                    return leftValue.intValue() * rightValue.intValue();
-                }
-                return leftValue.floatValue() * rightValue.floatValue();
-            case SLASH:
-                if (rightValue.floatValue() == 0) {
-                    throw new RuntimeError(expr.operator, "Division by zero.");
-                }
-                return leftValue.floatValue() / rightValue.floatValue();
-            case MODULO:
-                if (leftValue instanceof Integer && rightValue instanceof Integer) {
-                    return leftValue.intValue() % rightValue.intValue();
-                }
-                if (left instanceof Integer) {
-                    left = Double.parseDouble(left.toString());
-                }
-                if (right instanceof Integer) {
-                    right = Double.parseDouble(right.toString());
-                }
-                return (double) left % (double) right;
-            case GREATER_THAN:
-                if (left instanceof Integer) {
-                    left = Double.parseDouble(left.toString());
-                }
-                if (right instanceof Integer) {
-                    right = Double.parseDouble(right.toString());
-                }
-                return (double) left > (double) right;
-            case GREATER_OR_EQUAL:
-                if (left instanceof Integer) {
-                    left = Double.parseDouble(left.toString());
-                }
-                if (right instanceof Integer) {
-                    right = Double.parseDouble(right.toString());
-                }
-                return (double) left >= (double) right;
-            case LESS_THAN:
-                if (left instanceof Integer) {
-                    left = Double.parseDouble(left.toString());
-                }
-                if (right instanceof Integer) {
-                    right = Double.parseDouble(right.toString());
-                }
-                return (double) left < (double) right;
-            case LESS_OR_EQUAL:
-                if (left instanceof Integer) {
-                    left = Double.parseDouble(left.toString());
-                }
-                if (right instanceof Integer) {
-                    right = Double.parseDouble(right.toString());
+        if (Expr.leftOf(expr.left) != null)
+            return chain(expr);
+        return binary(expr, expr.left.accept(this));
+    }
+
+    // Evaluates a chain like 'a & b & ...', which nests down its left
+    // operands as deep as it is long, in a loop: down the spine to the
+    // operand at the bottom, then up it, each node applied to the value so
+    // far.
+    private Object chain(Expr expr) {
+        int base = pending;
+        try {
+            Expr node = expr;
+            for (; Expr.leftOf(node) != null; node = Expr.leftOf(node)) {
+                if (pending == chains.length)
+                    chains = Arrays.copyOf(chains, pending * 2);
+                chains[pending++] = node;
+            }
+            Object value = evaluate(node);
+            while (pending > base) {
+                node = chains[--pending];
+                if (node instanceof Binary) {
+                    value = binary((Binary) node, value);
+                } else if (node instanceof Logical) {
+                    value = logical((Logical) node, value);
+                } else {
+                    value = specialized((Expr.Specialized) node, value);
                 }
-                return (double) left <= (double) right;
-            case NOT_EQUAL:
-                return !isEqual(left, right);
-            case EQUAL_EVAL:
-                return isEqual(left, right);
-            default:
-                break;
+            }
+            return value;
+        } finally {
+            pending = base;
+        }
+    }
+
+    private Object binary(Binary expr, Object left) {
+        Object right = expr.right.accept(this);
+        try {
+            return Operators.binary(expr.operator.type, left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(expr.operator, error.getMessage());
         }
-        return null;
     }
 
     @Override
@@ -306,71 +388,20 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Void visitDisplayStmt(Display stmt) {
         Object value = evaluate(stmt.expression);
-        if(value.equals("\n")) {
-            System.out.print(stringify(value));
-        } else
-        System.out.println(stringify(value));
+        Operators.display(value);
         usedDisplay = true;
         return null;
     }
 
-    private Object scanInput() throws IOException {
-        InputStreamReader input = new InputStreamReader(System.in);
-        BufferedReader reader = new BufferedReader(input);
-        String line = reader.readLine().trim();
-
-        try {
-            Integer intValue = Integer.parseInt(line);
-            // System.out.println("scanInput : " + intValue);
-            return intValue;
-        } catch (NumberFormatException ignored) {
-        }
-
-        try {
-            Double doubleValue = Double.parseDouble(line);
-            // System.out.println("scanInput : " + doubleValue);
-            return doubleValue;
-        } catch (NumberFormatException ignored) {
-        }
-
-        if (line.length() == 1) {
-            char charValue = line.charAt(0);
-            return charValue;
-        }
-
-        return line;
-    }
-
     @Override
     public Void visitScanStmt(Scan stmt) {
         try {
-            Object scannedValue = scanInput();
-            String tokenType = environment.getTokenFromName(stmt.name.lexeme);
-
-            // Check if tokenType == scannedValue Type
-            // NOTE: Debug this please the token type recognized for boolean is character
-            // Check the hashMap under Environment to debug
-            // Problem: the saved token type in the hashmap for type BOOL is character
-            if (tokenType.equals("Boolean") & (scannedValue.equals("TRUE") || scannedValue.equals("FALSE"))) {
-                if(scannedValue.equals("TRUE")) {
-                    environment.assign(stmt.name, true);
-                } else {
-                    environment.assign(stmt.name, false);
-                }
-                return null;
-            }
-
-            if(tokenType.equals("Float") && scannedValue instanceof Double) {
-                environment.assign(stmt.name, scannedValue);
-                return null;
-            }
-
-            if(tokenType.equals(scannedValue.getClass().getSimpleName())) {
-                environment.assign(stmt.name, scannedValue);
-                return null;
-            }
-
-            throw new RuntimeError(stmt.name, "Input must be " + tokenType);
+            Object scannedValue = Operators.scanInput();
+            String tokenType = stmt.type;
+            Object value = Operators.scanned(tokenType, scannedValue);
+            if (value == null)
+                throw new RuntimeError(stmt.name, "Input must be " + tokenType);
+            frame(stmt.depth)[stmt.slot] = value;
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -388,12 +419,16 @@ class Interpreter implements Expr.Visitor<Object>,
 
     @Override
     public Object visitLogicalExpr(Logical expr) {
-      Object left = evaluate(expr.left);
-  
+      if (Expr.leftOf(expr.left) != null)
+        return chain(expr);
+      return logical(expr, evaluate(expr.left));
+    }
+
+    private Object logical(Logical expr, Object left) {
       if (expr.operator.type == TokenType.OR) {
-        if (isTruthy(left)) return left;
+        if (Operators.isTruthy(left)) return left;
       } else {
-        if (!isTruthy(left)) return left;
+        if (!Operators.isTruthy(left)) return left;
       }
   
       return evaluate(expr.right);
@@ -403,93 +438,442 @@ class Interpreter implements Expr.Visitor<Object>,
     @Override
     public Object visitUnaryExpr(Unary expr) {
         Object right = expr.right.accept(this);
+        try {
+            return Operators.unary(expr.operator.type, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(expr.operator, error.getMessage());
+        }
+    }
 
-        switch (expr.operator.type) {
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                if(right instanceof Integer) {
-                    return -1 * (int) right;
-                }
-                return -1 * (double) right;
-            case PLUS:
-                if(right instanceof Integer) {
-                    return (int) right;
-                }
-                checkNumberOperand(expr.operator, right);
-                return (double) right;
-            case NOT:
-                return !isTruthy(right);
-            // case NEW_LINE:
-            //     return "\n" + stringify(right);
-            default:
-                break;
+    @Override
+    public Object visitSpecializedExpr(Expr.Specialized expr) {
+        if (expr.left == null)
+            return specialized(expr, null);
+        if (Expr.leftOf(expr.left) != null)
+            return chain(expr);
+        return specialized(expr, expr.left.accept(this));
+    }
+
+    private Object specialized(Expr.Specialized expr, Object left) {
+        Object right = expr.right.accept(this);
+        try {
+            if (expr.left == null)
+                return Operators.unary(expr.operation, right);
+            return Operators.binary(expr.operation, left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(expr.operator, error.getMessage());
         }
+    }
 
+    @Override
+    public Void visitIfStmt(If stmt) {
+        if(Operators.isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.thenBranch);
+        } else if(stmt.elseBranch != null) {
+            execute(stmt.elseBranch);
+        }
         return null;
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
-        if (operand instanceof Double || operand instanceof Integer)
-            return;
-        throw new RuntimeError(operator, "Operand must be a number.");
+    @Override
+    public Void visitSwitchStmt(Stmt.Switch stmt) {
+        Stmt branch = branch(stmt, frame(stmt.depth)[stmt.slot]);
+        if (branch != null) {
+            execute(branch);
+        } else if (stmt.otherwise != null) {
+            execute(stmt.otherwise);
+        }
+        return null;
+    }
+
+    // The branch for the value, or null when no constant equals it. A
+    // constant equals only values of its own class.
+    private static Stmt branch(Stmt.Switch stmt, Object value) {
+        if (stmt.table == null)
+            return stmt.cases.get(value);
+        long key;
+        if (stmt.characters && value instanceof Character) {
+            key = (char) value;
+        } else if (!stmt.characters && value instanceof Integer) {
+            key = (int) value;
+        } else {
+            return null;
+        }
+        long index = key - stmt.low;
+        return index >= 0 && index < stmt.table.length ? stmt.table[(int) index] : null;
+    }
+
+    @Override
+    public Void visitWhileStmt(While stmt) {
+        Tracer.Site site = tracer != null ? tracer.site(stmt) : null;
+        if (site != null && traced(site))
+            return null;
+        while (Operators.isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.body);
+            if (site != null && site.hot() && traced(site))
+                return null;
+        }
+        return null;
+    }
+
+    // Runs the rest of a loop through its trace, if it has one that fits.
+    private boolean traced(Tracer.Site site) {
+        CompiledRuntime.displayed = false;
+        try {
+            return site.run(frame);
+        } finally {
+            if (CompiledRuntime.displayed)
+                usedDisplay = true;
+        }
     }
 
-    private boolean isTruthy(Object object) {
-        if (object == null)
+    @Override
+    public Void visitLoopStmt(Stmt.Loop stmt) {
+        for (Expr.Invariant invariant : stmt.invariants) {
+            invariant.known = false;
+        }
+        if (stmt.body instanceof Stmt.Lazy) {
+            // The body is parsed, and the loop planned, the first time it runs.
+            if (!Operators.isTruthy(evaluate(stmt.condition)))
+                return null;
+            stmt.body = ((Stmt.Lazy) stmt.body).body();
+            LoopOptimizer.plan(stmt);
+            execute(stmt.body);
+        }
+        Tracer.Site site = tracer != null ? tracer.site(stmt) : null;
+        if (site != null && traced(site))
+            return null;
+        if (stmt.counted != null && count(stmt, site))
+            return null;
+        while (Operators.isTruthy(evaluate(stmt.condition))) {
+            execute(stmt.body);
+            if (site != null && site.hot() && traced(site))
+                return null;
+        }
+        return null;
+    }
+
+    // Runs a counted loop with its count in an int, storing each step back
+    // for the body to read, if the count and the bound are INTs.
+    private boolean count(Stmt.Loop stmt, Tracer.Site site) {
+        Object[] frame = frame(stmt.depth);
+        Object start = frame[stmt.slot];
+        Object bound = evaluate(stmt.bound);
+        if (!(start instanceof Integer) || !(bound instanceof Integer))
             return false;
-        if (object instanceof Boolean)
-            return (boolean) object;
+        int count = (int) start;
+        int limit = (int) bound;
+        while (compare(stmt.comparison, count, limit)) {
+            execute(stmt.counted);
+            count += stmt.step;
+            frame[stmt.slot] = count;
+            if (site != null && site.hot() && traced(site))
+                return true;
+        }
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
-        if (a == null && b == null)
-            return true;
-        if (a == null)
-            return false;
+    private static boolean compare(TokenType comparison, int left, int right) {
+        switch (comparison) {
+            case LESS_THAN:
+                return left < right;
+            case LESS_OR_EQUAL:
+                return left <= right;
+            case GREATER_THAN:
+                return left > right;
+            default:
+                return left >= right;
+        }
+    }
+
+    @Override
+    public Object visitInvariantExpr(Expr.Invariant expr) {
+        if (!expr.known) {
+            expr.value = evaluate(expr.expression);
+            expr.known = true;
+        }
+        return expr.value;
+    }
 
-        return a.equals(b);
+    @Override
+    public Object visitUpdateExpr(Expr.Update expr) {
+        Object[] frame = frame(expr.depth);
+        Object current = frame[expr.slot];
+        Object operand = evaluate(expr.operand);
+        Object value;
+        if (current instanceof Integer && operand instanceof Integer) {
+            value = expr.operator.type == TokenType.PLUS ? (int) current + (int) operand
+                    : (int) current - (int) operand;
+        } else {
+            try {
+                value = expr.operation != null ? Operators.binary(expr.operation, current, operand)
+                        : Operators.binary(expr.operator.type, current, operand);
+            } catch (RuntimeError error) {
+                throw new RuntimeError(expr.operator, error.getMessage());
+            }
+        }
+        frame[expr.slot] = value;
+        return value;
     }
 
-    private String stringify(Object object) {
-        if (object == null)
-            return "null";
+    @Override
+    public Object visitCompareExpr(Expr.Compare expr) {
+        Object value = frame(expr.depth)[expr.slot];
+        if (value instanceof Integer && expr.constant instanceof Integer) {
+            int left = (int) value;
+            int right = (int) expr.constant;
+            switch (expr.operator.type) {
+                case EQUAL_EVAL:
+                    return left == right;
+                case NOT_EQUAL:
+                    return left != right;
+                default:
+                    return compare(expr.operator.type, left, right);
+            }
+        }
+        try {
+            return expr.operation != null ? Operators.binary(expr.operation, value, expr.constant)
+                    : Operators.binary(expr.operator.type, value, expr.constant);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(expr.operator, error.getMessage());
+        }
+    }
 
-        if (object.toString().equals("new_line")) {
-            System.out.println();
+    // Builds the string the chain of concatenations would, including the
+    // line break stringify() prints for a partial result of "new_line".
+    @Override
+    public Object visitConcatExpr(Expr.Concat expr) {
+        Object first = evaluate(expr.operands.get(0));
+        Object second = evaluate(expr.operands.get(1));
+        StringBuilder builder = new StringBuilder(Operators.stringify(first)).append(Operators.stringify(second));
+        for (int i = 2; i < expr.operands.size(); i++) {
+            Object value = evaluate(expr.operands.get(i));
+            if (builder.length() == 8 && builder.toString().equals("new_line"))
+                System.out.println();
+            builder.append(Operators.stringify(value));
         }
+        return builder.toString();
+    }
+
+    @Override
+    public Void visitLazyStmt(Stmt.Lazy stmt) {
+        execute(stmt.body());
+        return null;
+    }
+
+    // The same, over the nodes of a FlatAst.
 
-        if (object instanceof Boolean) {
-            return object.toString().toUpperCase();
+    private Object evaluate(int node) {
+        return program.acceptExpr(node, this);
+    }
+
+    private void execute(int node) {
+        program.acceptStmt(node, this);
+    }
+
+    void executeBlock(int statements, Object[] frame) {
+        Object[] previous = this.frame;
+        try {
+            this.frame = frame;
+
+            for (int i = 0; i < program.length(statements); i++) {
+                execute(program.element(statements, i));
+            }
+        } finally {
+            this.frame = previous;
         }
+    }
 
-        if (object instanceof Double) {
-            String text = object.toString();
-            if (text.endsWith(".0")) {
-                text = text.substring(0, text.length() - 2);
+    private Void declare(int node, Class<?> type, String message) {
+        Object value = null;
+        int initializer = program.initializer(node);
+        if (initializer >= 0) {
+            value = evaluate(initializer);
+            if (type != null && !type.isInstance(value)) {
+                throw new RuntimeError(program.token(node), message);
             }
-            return text;
         }
+        frame[program.slot(node)] = value;
+        return null;
+    }
 
-        return object.toString();
+    @Override
+    public Object visitAssignExpr(int node) {
+        Object value = evaluate(program.value(node));
+        frame(program.depth(node))[program.slot(node)] = value;
+        return value;
     }
 
     @Override
-    public Void visitIfStmt(If stmt) {
-        if(isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
-        } else if(stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+    public Object visitBinaryExpr(int node) {
+        if (isOperation(program.left(node)))
+            return chain(node);
+        return binary(node, evaluate(program.left(node)));
+    }
+
+    private boolean isOperation(int node) {
+        return program.kind(node) == FlatAst.BINARY || program.kind(node) == FlatAst.LOGICAL;
+    }
+
+    private Object chain(int node) {
+        int base = pendingNodes;
+        try {
+            for (; isOperation(node); node = program.left(node)) {
+                if (pendingNodes == chainNodes.length)
+                    chainNodes = Arrays.copyOf(chainNodes, pendingNodes * 2);
+                chainNodes[pendingNodes++] = node;
+            }
+            Object value = evaluate(node);
+            while (pendingNodes > base) {
+                node = chainNodes[--pendingNodes];
+                value = program.kind(node) == FlatAst.BINARY ? binary(node, value) : logical(node, value);
+            }
+            return value;
+        } finally {
+            pendingNodes = base;
+        }
+    }
+
+    private Object binary(int node, Object left) {
+        Object right = evaluate(program.right(node));
+        try {
+            return Operators.binary(program.operator(node), left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(program.token(node), error.getMessage());
+        }
+    }
+
+    @Override
+    public Object visitGroupingExpr(int node) {
+        return evaluate(program.expression(node));
+    }
+
+    @Override
+    public Object visitLiteralExpr(int node) {
+        return program.literal(node);
+    }
+
+    @Override
+    public Object visitLogicalExpr(int node) {
+        if (isOperation(program.left(node)))
+            return chain(node);
+        return logical(node, evaluate(program.left(node)));
+    }
+
+    private Object logical(int node, Object left) {
+        if (program.operator(node) == TokenType.OR) {
+            if (Operators.isTruthy(left)) return left;
+        } else {
+            if (!Operators.isTruthy(left)) return left;
+        }
+
+        return evaluate(program.right(node));
+    }
+
+    @Override
+    public Object visitUnaryExpr(int node) {
+        Object right = evaluate(program.right(node));
+        try {
+            return Operators.unary(program.operator(node), right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(program.token(node), error.getMessage());
+        }
+    }
+
+    @Override
+    public Object visitVariableExpr(int node) {
+        return frame(program.depth(node))[program.slot(node)];
+    }
+
+    @Override
+    public Void visitBlockStmt(int node) {
+        int size = program.size(node);
+        if (size == 0) {
+            executeBlock(program.statements(node), frame);
+            return null;
+        }
+        Object[] frame = blocks[node];
+        if (frame == null) {
+            frame = new Object[size + 1];
+            blocks[node] = frame;
+        } else {
+            Arrays.fill(frame, 1, frame.length, null);
         }
+        frame[0] = this.frame;
+        executeBlock(program.statements(node), frame);
         return null;
     }
 
     @Override
-    public Void visitWhileStmt(While stmt) {
-        while (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.body);
+    public Void visitExpressionStmt(int node) {
+        evaluate(program.expression(node));
+        return null;
+    }
+
+    @Override
+    public Void visitDisplayStmt(int node) {
+        Object value = evaluate(program.expression(node));
+        Operators.display(value);
+        usedDisplay = true;
+        return null;
+    }
+
+    @Override
+    public Void visitScanStmt(int node) {
+        try {
+            Object scannedValue = Operators.scanInput();
+            String tokenType = program.type(node);
+            Object value = Operators.scanned(tokenType, scannedValue);
+            if (value == null)
+                throw new RuntimeError(program.token(node), "Input must be " + tokenType);
+            frame(program.depth(node))[program.slot(node)] = value;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(int node) {
+        if (Operators.isTruthy(evaluate(program.condition(node)))) {
+            execute(program.thenBranch(node));
+        } else if (program.elseBranch(node) >= 0) {
+            execute(program.elseBranch(node));
         }
         return null;
     }
 
+    @Override
+    public Void visitWhileStmt(int node) {
+        while (Operators.isTruthy(evaluate(program.condition(node)))) {
+            execute(program.body(node));
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitIntStmt(int node) {
+        return declare(node, Integer.class, "Input must be an Integer");
+    }
+
+    @Override
+    public Void visitFloatStmt(int node) {
+        return declare(node, Double.class, "Input must be a float");
+    }
+
+    @Override
+    public Void visitCharStmt(int node) {
+        return declare(node, Character.class, "Input must be a character");
+    }
+
+    @Override
+    public Void visitStringStmt(int node) {
+        return declare(node, String.class, "Input must be a String");
+    }
+
+    @Override
+    public Void visitBoolStmt(int node) {
+        return declare(node, null, null);
+    }
+
 }
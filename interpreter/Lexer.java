@@ -1,20 +1,40 @@
 package interpreter;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static interpreter.TokenType.*;
 
-public class Lexer {
-    private final String source;
+public class Lexer implements TokenStream {
+    private final CharSequence source;
+    private final SourceWindow window;
     private final List<Token> tokens = new ArrayList<>();
-    private static final Map<String, TokenType> keywords;
+    private TokenBuffer packed;
+    // Shared by every lexer so that a name keeps its id across REPL lines.
+    static final SymbolTable symbols;
+    private final SymbolTable table;
     private static final List<Character> characters = new ArrayList<>();
     private int start = 0;
     private int current = 0;
-    private static int line;
+    private int line;
+    // Chunk mode collects errors instead of reporting them, because the line
+    // numbers are only known once the chunks are stitched back together.
+    private List<LexError> errors;
+    // Optional bulk skipping over a char[] copy of the source.
+    private ScanKernel kernel;
+    private char[] sourceChars;
+
+    static class LexError {
+        final int line;
+        final String message;
+
+        LexError(int line, String message) {
+            this.line = line;
+            this.message = message;
+        }
+    }
 
     static {
         characters.add('(');
@@ -38,7 +58,7 @@ public class Lexer {
     }
 
     static {
-        keywords = new HashMap<>();
+        Map<String, TokenType> keywords = new LinkedHashMap<>();
         keywords.put("ELSE", ELSE);
         keywords.put("IF", IF);
         keywords.put("WHILE", WHILE);
@@ -56,11 +76,33 @@ public class Lexer {
         keywords.put("SCAN", SCAN);
         keywords.put("NULL", NULL);
         keywords.put("STRING", STRING);
+        symbols = new SymbolTable(keywords.keySet().toArray(new String[0]),
+                keywords.values().toArray(new TokenType[0]));
     }
 
     // FLOAT var = 5.6
     public Lexer(String source) {
         this.source = source;
+        this.window = null;
+        this.table = symbols;
+    }
+
+    // Chunk mode for ParallelLexer: scans part of a shared source with its own
+    // symbol table, starting from line 0.
+    Lexer(CharSequence source, SymbolTable table) {
+        this.source = source;
+        this.window = null;
+        this.table = table;
+        this.errors = new ArrayList<>();
+    }
+
+    // Streaming mode: characters are pulled from the window and tokens are
+    // produced one at a time through peek/next, so neither the whole source
+    // nor the whole token list is ever held at once.
+    Lexer(SourceWindow window) {
+        this.source = window;
+        this.window = window;
+        this.table = symbols;
     }
 
     List<Token> scanTokens() {
@@ -73,8 +115,93 @@ public class Lexer {
         return tokens;
     }
 
+    // Same scan as scanTokens, but into parallel int arrays with no Token
+    // objects and no lexeme copies.
+    TokenBuffer scanPacked() {
+        packed = new TokenBuffer(source, source.length() / 8);
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+
+        packed.add(EOF, current, 0, line);
+        return packed;
+    }
+
+    // Lets the kernel skip blanks, comments and string bodies in bulk.
+    // sourceChars must hold the same text as the source; it is passed in so
+    // that chunk lexers can share one copy.
+    void useKernel(ScanKernel kernel, char[] sourceChars) {
+        this.kernel = kernel;
+        this.sourceChars = sourceChars;
+    }
+
+    // Scans the tokens that start in [from, to). The last one may run past
+    // 'to' (a string spanning the boundary); position() tells where it ended.
+    // No EOF token is added.
+    TokenBuffer scanRange(int from, int to) {
+        packed = new TokenBuffer(source, (to - from) / 8);
+        current = from;
+        while (current < to && !isAtEnd()) {
+            start = current;
+            scanToken();
+        }
+        return packed;
+    }
+
+    int position() {
+        return current;
+    }
+
+    int line() {
+        return line;
+    }
+
+    List<LexError> errors() {
+        return errors;
+    }
+
+    @Override
+    public Token peek(int k) {
+        while (tokens.size() <= k && scanNext())
+            ;
+        return tokens.get(Math.min(k, tokens.size() - 1));
+    }
+
+    @Override
+    public Token next() {
+        Token token = peek(0);
+        if (token.type != EOF)
+            tokens.remove(0);
+        return token;
+    }
+
+    // Scans until at least one more token is queued. Returns false once the
+    // EOF token has been produced.
+    private boolean scanNext() {
+        if (!tokens.isEmpty() && tokens.get(tokens.size() - 1).type == EOF)
+            return false;
+
+        int queued = tokens.size();
+        while (tokens.size() == queued) {
+            if (isAtEnd()) {
+                tokens.add(new Token(EOF, "", null, line));
+                break;
+            }
+            start = current;
+            if (window != null)
+                window.release(start);
+            scanToken();
+        }
+        return true;
+    }
+
     private boolean isAtEnd() {
-        return current >= source.length();
+        return !available(current);
+    }
+
+    private boolean available(int index) {
+        return index < source.length() || (window != null && window.fill(index));
     }
 
     private void escapeChar() {
@@ -86,7 +213,7 @@ public class Lexer {
         if(current - start != 2) {
             advance();
             if(peek() !=']') {
-            Code.error(line, "Invalid Escape Character.");
+            error("Invalid Escape Character.");
             return;
             }
         }
@@ -99,7 +226,7 @@ public class Lexer {
             addToken(ESCAPECHAR, value);
             return;
         }
-        Code.error(line, "Invalid Escape Character.");
+        error("Invalid Escape Character.");
     }
 
     private void scanToken() {
@@ -161,12 +288,18 @@ public class Lexer {
                 addToken(match('=') ? GREATER_OR_EQUAL : GREATER_THAN);
                 break;
             case '#':
+                if (kernel != null) {
+                    current = kernel.indexOf(sourceChars, current, sourceChars.length, '\n');
+                    break;
+                }
                 while (peek() != '\n' && !isAtEnd())
                     advance();
             case '\t':
             case '\r':
             case ' ':
                 // Ignore whitespace.
+                if (kernel != null)
+                    current = kernel.skipBlanks(sourceChars, current, sourceChars.length);
                 break;
             case '\n':
                 line++;
@@ -179,7 +312,7 @@ public class Lexer {
                 } else if(isAlpha(c)) {
                     identifier();
                 } else {
-                    Code.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
                 break;
         }
@@ -188,11 +321,18 @@ public class Lexer {
     private void identifier() {
         while (isAlphanumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if(type==null) type = IDENTIFIER;
+        int symbol = table.intern(source, start, current);
+        TokenType type = table.keyword(symbol);
+        if (type != null) {
+            addToken(type);
+            return;
+        }
 
-        addToken(type);
+        if (packed != null) {
+            packed.addIdentifier(start, current - start, line, symbol);
+        } else {
+            tokens.add(new Token(IDENTIFIER, text(), null, line, symbol));
+        }
     }
 
     private void number() {
@@ -203,15 +343,25 @@ public class Lexer {
             advance();
 
             while(isDigit(peek())) advance();
-            addToken(TYPEFLOAT, Double.parseDouble(source.substring(start, current)));
+            double value = Double.parseDouble(text());
+            if (packed != null) {
+                packed.addFloat(start, current - start, line, value);
+            } else {
+                addToken(TYPEFLOAT, value);
+            }
             return;
         } //else {
-            addToken(TYPEINT, Integer.parseInt(source.substring(start, current)));
+            int value = Integer.parseInt(source, start, current, 10);
+            if (packed != null) {
+                packed.addInt(start, current - start, line, value);
+            } else {
+                addToken(TYPEINT, value);
+            }
         //}
     }
 
     private char peekNext() {
-        if(current + 1 >= source.length()) return '\0';
+        if(!available(current + 1)) return '\0';
         return source.charAt(current + 1);
     }
 
@@ -226,27 +376,45 @@ public class Lexer {
     }
 
     private void string() {
+        if (kernel != null) {
+            int end = kernel.indexOf(sourceChars, current, sourceChars.length, '"');
+            line += kernel.count(sourceChars, current, end, '\n');
+            current = end;
+        }
         while(peek() != '"' && !isAtEnd()) {
             if(peek() == '\n') line++;
             advance();
         }
 
         if(isAtEnd()) {
-            Code.error(line, "Unterminated String.");
+            error("Unterminated String.");
             return;
         }
 
         // consuming the ending "
         advance();
 
-        String value = source.substring(start+1, current-1);
-        if(value.equals("TRUE")) {
-            addToken(TRUE, Boolean.parseBoolean(value));
-        } else if(value.equals("FALSE")) {
-            addToken(FALSE, Boolean.parseBoolean(value));
+        if(bodyEquals("TRUE")) {
+            addToken(TRUE, true);
+        } else if(bodyEquals("FALSE")) {
+            addToken(FALSE, false);
+        } else if (packed != null) {
+            // the buffer slices string literals itself when asked
+            addToken(TYPESTRING);
         } else {
-            addToken(TYPESTRING, value);
+            addToken(TYPESTRING, source.subSequence(start+1, current-1).toString());
+        }
+    }
+
+    // Compares the text between the quotes without copying it out.
+    private boolean bodyEquals(String word) {
+        if (current - start - 2 != word.length())
+            return false;
+        for (int i = 0; i < word.length(); i++) {
+            if (source.charAt(start + 1 + i) != word.charAt(i))
+                return false;
         }
+        return true;
     }
 
     private void chars() {
@@ -256,7 +424,7 @@ public class Lexer {
         }
 
         if(current - start != 2) {
-            Code.error(line, "Unterminated Character.");
+            error("Unterminated Character.");
             return;
         }
 
@@ -267,6 +435,14 @@ public class Lexer {
         addToken(TYPECHAR, value);
     }
 
+    private void error(String message) {
+        if (errors != null) {
+            errors.add(new LexError(line, message));
+        } else {
+            Code.error(line, message);
+        }
+    }
+
     private boolean match(char expected) {
         if (isAtEnd())
             return false;
@@ -296,7 +472,14 @@ public class Lexer {
     }
 
     private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        if (packed != null) {
+            packed.add(type, start, current - start, line);
+            return;
+        }
+        tokens.add(new Token(type, text(), literal, line));
+    }
+
+    private String text() {
+        return source.subSequence(start, current).toString();
     }
 }
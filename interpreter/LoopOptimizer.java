@@ -0,0 +1,305 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Turns each WHILE into a Loop and plans how to run it: expressions in it
+// that read only variables the loop never assigns are cached as
+// Invariants, and the loop that steps an INT variable towards an invariant
+// bound is run as a counted loop. Inner loops are planned before the loops
+// around them and are left alone by them after that.
+//
+// A variable is named here, relative to the scope the loop runs in, by its
+// depth from that scope in the high 32 bits and its slot in the low ones.
+class LoopOptimizer extends Rewriter {
+    // Plans the loops of a body a lazy parse skipped, now that it has been
+    // parsed.
+    static Stmt.Block optimizeSkipped(Stmt.Block body) {
+        return (Stmt.Block) new LoopOptimizer().rewrite(body);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Stmt.Loop loop = new Stmt.Loop(stmt.condition, rewrite(stmt.body));
+        plan(loop);
+        return loop;
+    }
+
+    // Plans the loop again for what its body now is. The interpreter calls
+    // this once a Lazy body has been parsed.
+    static void plan(Stmt.Loop loop) {
+        Map<Long, Integer> assigned = new HashMap<>();
+        Assignments assignments = new Assignments(assigned);
+        assignments.rewrite(loop.condition);
+        assignments.rewrite(loop.body);
+
+        Hoister hoister = new Hoister(assigned, loop.invariants);
+        loop.condition = hoister.rewrite(loop.condition);
+        loop.body = hoister.rewrite(loop.body);
+        count(loop, assigned);
+    }
+
+    private static long variable(int depth, int slot) {
+        return (long) depth << 32 | slot;
+    }
+
+    private static Expr ungrouped(Expr expr) {
+        while (expr instanceof Expr.Grouping) {
+            expr = ((Expr.Grouping) expr).expression;
+        }
+        return expr;
+    }
+
+    // Whether the expression yields the same value, or fails the same way,
+    // whenever it is evaluated while the loop runs. Concatenation is left
+    // out, since turning some strings into text prints.
+    private static boolean isInvariant(Expr expr, Map<Long, Integer> assigned, int level) {
+        if (Expr.leftOf(expr) != null) {
+            for (Expr node = expr; Expr.leftOf(node) != null; node = Expr.leftOf(node)) {
+                if (!isInvariantOver(node, assigned, level))
+                    return false;
+            }
+            return isInvariant(Expr.bottom(expr), assigned, level);
+        }
+        if (expr instanceof Expr.Literal)
+            return true;
+        if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            return variable.depth >= level
+                    && !assigned.containsKey(variable(variable.depth - level, variable.slot));
+        }
+        if (expr instanceof Expr.Grouping)
+            return isInvariant(((Expr.Grouping) expr).expression, assigned, level);
+        if (expr instanceof Expr.Unary)
+            return isInvariant(((Expr.Unary) expr).right, assigned, level);
+        if (expr instanceof Expr.Specialized)
+            return isInvariant(((Expr.Specialized) expr).right, assigned, level);
+        return false;
+    }
+
+    // Whether a node with two operands is invariant, given that its left
+    // operand is.
+    private static boolean isInvariantOver(Expr expr, Map<Long, Integer> assigned, int level) {
+        if (expr instanceof Expr.Binary && ((Expr.Binary) expr).operator.type == TokenType.CONCAT)
+            return false;
+        if (expr instanceof Expr.Specialized && ((Expr.Specialized) expr).operation == Operation.CONCAT)
+            return false;
+        return isInvariant(Expr.rightOf(expr), assigned, level);
+    }
+
+    // Recognizes a body ending in 'i = i + c' or 'i = i - c', where nothing
+    // else in the loop assigns i, under a condition comparing i with an
+    // invariant bound. A lazy body is planned after fusing, so the step and
+    // the condition may be fused nodes.
+    private static void count(Stmt.Loop loop, Map<Long, Integer> assigned) {
+        if (!(loop.body instanceof Stmt.Block))
+            return;
+        List<Stmt> statements = ((Stmt.Block) loop.body).statements;
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof Stmt.Expression))
+            return;
+        Expr last = Fuser.unfused(((Stmt.Expression) statements.get(statements.size() - 1)).expression);
+        if (!(last instanceof Expr.Assign))
+            return;
+        Expr.Assign step = (Expr.Assign) last;
+        int depth = step.depth - (((Stmt.Block) loop.body).framed ? 1 : 0);
+        Integer stores = depth < 0 ? null : assigned.get(variable(depth, step.slot));
+        if (stores == null || stores != 1)
+            return;
+
+        Expr[] operands = operands(ungrouped(step.value));
+        Token operator = operator(ungrouped(step.value));
+        if (operands == null || !isVariable(operands[0], step.depth, step.slot)
+                || !(operands[1] instanceof Expr.Literal) || !(((Expr.Literal) operands[1]).value instanceof Integer))
+            return;
+        int by = (int) ((Expr.Literal) operands[1]).value;
+        if (operator.type != TokenType.PLUS && operator.type != TokenType.MINUS)
+            return;
+
+        Expr condition = Fuser.unfused(ungrouped(loop.condition));
+        Expr[] compared = operands(condition);
+        Token comparison = operator(condition);
+        if (compared == null || !isVariable(compared[0], depth, step.slot))
+            return;
+        switch (comparison.type) {
+            case LESS_THAN:
+            case LESS_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_OR_EQUAL:
+                break;
+            default:
+                return;
+        }
+        Expr bound = compared[1];
+        if (!(bound instanceof Expr.Invariant) && !isInvariant(bound, assigned, 0))
+            return;
+
+        Stmt.Block counted = new Stmt.Block(new ArrayList<>(statements.subList(0, statements.size() - 1)));
+        counted.size = ((Stmt.Block) loop.body).size;
+        counted.framed = ((Stmt.Block) loop.body).framed;
+        loop.counted = counted;
+        loop.depth = depth;
+        loop.slot = step.slot;
+        loop.comparison = comparison.type;
+        loop.bound = bound;
+        loop.step = operator.type == TokenType.PLUS ? by : -by;
+    }
+
+    private static boolean isVariable(Expr expr, int depth, int slot) {
+        expr = ungrouped(expr);
+        return expr instanceof Expr.Variable && ((Expr.Variable) expr).depth == depth
+                && ((Expr.Variable) expr).slot == slot;
+    }
+
+    // The operands of a binary operation, generic or specialized, or null.
+    private static Expr[] operands(Expr expr) {
+        if (expr instanceof Expr.Binary)
+            return new Expr[] { ((Expr.Binary) expr).left, ((Expr.Binary) expr).right };
+        if (expr instanceof Expr.Specialized && ((Expr.Specialized) expr).left != null)
+            return new Expr[] { ((Expr.Specialized) expr).left, ((Expr.Specialized) expr).right };
+        return null;
+    }
+
+    private static Token operator(Expr expr) {
+        if (expr instanceof Expr.Binary)
+            return ((Expr.Binary) expr).operator;
+        if (expr instanceof Expr.Specialized)
+            return ((Expr.Specialized) expr).operator;
+        return null;
+    }
+
+    // Counts the stores into each variable from outside the loop that the
+    // loop makes, inner loops and skipped bodies included. 'level' is how
+    // many frames into the loop the visit is.
+    private static class Assignments extends Rewriter {
+        private final Map<Long, Integer> assigned;
+        private int level = 0;
+
+        Assignments(Map<Long, Integer> assigned) {
+            this.assigned = assigned;
+        }
+
+        private void store(int depth, int slot) {
+            if (depth >= level)
+                assigned.merge(variable(depth - level, slot), 1, Integer::sum);
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            store(expr.depth, expr.slot);
+            return super.visitAssignExpr(expr);
+        }
+
+        @Override
+        public Expr visitUpdateExpr(Expr.Update expr) {
+            store(expr.depth, expr.slot);
+            return super.visitUpdateExpr(expr);
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.framed)
+                return super.visitBlockStmt(stmt);
+            level++;
+            try {
+                return super.visitBlockStmt(stmt);
+            } finally {
+                level--;
+            }
+        }
+
+        @Override
+        public Stmt visitScanStmt(Stmt.Scan stmt) {
+            store(stmt.depth, stmt.slot);
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitMultiVarStmt(Stmt.MultiVar stmt) {
+            for (int i = 0; i < stmt.names.size(); i++) {
+                store(stmt.depths[i], stmt.slots[i]);
+            }
+            return super.visitMultiVarStmt(stmt);
+        }
+
+        @Override
+        public Stmt visitLazyStmt(Stmt.Lazy stmt) {
+            if (stmt.scope != null) {
+                for (int symbol : stmt.assigned()) {
+                    long binding = stmt.scope.find(symbol);
+                    if (binding >= 0)
+                        store((int) (binding >> 32), (int) binding);
+                }
+            }
+            return stmt;
+        }
+
+        @Override
+        public Stmt visitLoopStmt(Stmt.Loop stmt) {
+            rewrite(stmt.condition);
+            rewrite(stmt.body);
+            return stmt;
+        }
+    }
+
+    // Wraps each largest invariant operation in the loop in an Invariant.
+    private static class Hoister extends Rewriter {
+        private final Map<Long, Integer> assigned;
+        private final List<Expr.Invariant> invariants;
+        private final Map<Expr, Boolean> invariance = new IdentityHashMap<>();
+        private int level = 0;
+
+        Hoister(Map<Long, Integer> assigned, List<Expr.Invariant> invariants) {
+            this.assigned = assigned;
+            this.invariants = invariants;
+        }
+
+        @Override
+        Expr rewrite(Expr expr) {
+            boolean operation = expr instanceof Expr.Binary || expr instanceof Expr.Unary
+                    || expr instanceof Expr.Logical || expr instanceof Expr.Specialized;
+            if (operation && isInvariant(expr)) {
+                Expr.Invariant invariant = new Expr.Invariant(expr);
+                invariants.add(invariant);
+                return invariant;
+            }
+            return super.rewrite(expr);
+        }
+
+        // The walk down a chain stops at the largest invariant part of it.
+        @Override
+        boolean inSpine(Expr expr) {
+            return !isInvariant(expr);
+        }
+
+        // Found for a whole chain in one go, bottom up, rather than once for
+        // each node down it.
+        private boolean isInvariant(Expr expr) {
+            Boolean known = invariance.get(expr);
+            if (known != null)
+                return known;
+            if (Expr.leftOf(expr) == null)
+                return LoopOptimizer.isInvariant(expr, assigned, level);
+            boolean invariant = LoopOptimizer.isInvariant(Expr.bottom(expr), assigned, level);
+            for (Expr node : Expr.spine(expr)) {
+                invariant = invariant && isInvariantOver(node, assigned, level);
+                invariance.put(node, invariant);
+            }
+            return invariant;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            if (!stmt.framed)
+                return super.visitBlockStmt(stmt);
+            level++;
+            try {
+                return super.visitBlockStmt(stmt);
+            } finally {
+                level--;
+            }
+        }
+    }
+}
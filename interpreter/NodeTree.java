@@ -0,0 +1,1528 @@
+package interpreter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A bound program as a tree of nodes that run themselves and specialize
+// themselves on what they see, in the frames the Resolver laid out. A
+// Binary, Unary, Variable or Assign node starts out uninitialized; the first
+// time it runs it looks at the classes of its operands and replaces itself
+// in its parent with a node for those classes, an Operation the TypeChecker
+// would pick for them, or with a generic node when there is none. A node
+// specialized on INTs hands them to its parent unboxed, through
+// evaluateInt(). When a specialized node meets operands of other classes
+// it replaces itself with the generic node for good, which then does what
+// Operators does for any operands.
+//
+// Nothing here is shared between programs, so each node tree specializes on
+// its own program only.
+//
+// A tree built with a Profile either records into it what its nodes did, or
+// starts from what an earlier run recorded: its nodes are built already
+// specialized, the links of an ELSE IF chain that tests one variable against
+// distinct constants are tried most taken first, and a loop that went round
+// HOT times or more is run as the LoopOptimizer plans it, with its
+// invariants cached and a counted loop's count in an int.
+final class NodeTree {
+    // How many nodes have specialized, and how many of those have gone back
+    // to generic since, over all trees.
+    static int specialized = 0;
+    static int deoptimized = 0;
+
+    // How often a profiled loop must have gone round for it to be planned.
+    static final long HOT = 1000;
+
+    // How deep nodes with two operands may nest before a chain is evaluated
+    // in a loop instead of by recursing.
+    static final int TALL = 256;
+
+    private final BlockNode root;
+    private final Profile profile;
+    // How many profiled nodes have been built on each line so far, to key
+    // the next one.
+    private final Map<Integer, Integer> ordinals = new HashMap<>();
+    // The invariants of the hot loop being built, or null.
+    private List<InvariantNode> invariants = null;
+    private boolean unprofiled = false;
+    private boolean displayed = false;
+
+    private NodeTree(List<Stmt> statements, Profile profile) {
+        this.profile = profile;
+        if (profile != null && !profile.recording)
+            statements = new LoopOptimizer().rewrite(statements);
+        root = new BlockNode(false, 0, statements(statements));
+    }
+
+    static NodeTree of(List<Stmt> statements) {
+        return of(statements, null);
+    }
+
+    // A tree that records into the profile, or applies it, as the profile
+    // says; with no profile, the plain tree.
+    static NodeTree of(List<Stmt> statements, Profile profile) {
+        return new NodeTree(statements, profile);
+    }
+
+    static String report() {
+        return "specialized " + specialized + " nodes, " + deoptimized + " of them deoptimized";
+    }
+
+    void execute(Object[] globals) {
+        root.execute(globals);
+    }
+
+    // Whether a DISPLAY has run.
+    boolean displayed() {
+        return displayed;
+    }
+
+    private static Object[] frame(Object[] frame, int depth) {
+        for (int i = 0; i < depth; i++) {
+            frame = (Object[]) frame[0];
+        }
+        return frame;
+    }
+
+    // Thrown by evaluateInt() with the value when it is not an INT, after
+    // the node has been evaluated, so that the caller can go on with it.
+    // It carries no message, cause or stack trace, since it is control flow.
+    static final class UnexpectedType extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        final transient Object value;
+
+        UnexpectedType(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
+    abstract static class Node {
+        Node parent;
+
+        // Puts the replacement where this node is in its parent.
+        <T extends Node> T replace(T replacement) {
+            parent.replaceChild(this, replacement);
+            replacement.parent = parent;
+            return replacement;
+        }
+
+        void replaceChild(Node child, Node replacement) {
+            throw new IllegalStateException("No child to replace");
+        }
+
+        <T extends Node> T adopt(T child) {
+            if (child != null)
+                child.parent = this;
+            return child;
+        }
+    }
+
+    abstract static class ExprNode extends Node {
+        // How deep evaluating the node nests down through the nodes under
+        // it, so that a short chain with a tall one under it still counts
+        // as tall.
+        int height;
+
+        abstract Object evaluate(Object[] frame);
+
+        int evaluateInt(Object[] frame) throws UnexpectedType {
+            return expectInt(evaluate(frame));
+        }
+    }
+
+    // A node with two operands. Operators associate to the left, so a chain
+    // like 'a & b & ...' nests down its left operands as deep as it is long.
+    // A tall one is evaluated down that spine in a loop, its operand at the
+    // bottom first, then each node given the value of its left operand,
+    // unboxed INTs left out.
+    abstract static class OperatorNode extends ExprNode {
+        ExprNode left;
+        ExprNode right;
+
+        OperatorNode(ExprNode left, ExprNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+            height = Math.max(left.height, right.height) + 1;
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            if (height >= TALL)
+                return evaluateChain(frame);
+            return evaluate(left.evaluate(frame), frame);
+        }
+
+        // The value, given the value of the left operand.
+        abstract Object evaluate(Object leftValue, Object[] frame);
+
+        Object evaluateChain(Object[] frame) {
+            List<OperatorNode> spine = new ArrayList<>();
+            ExprNode node = this;
+            for (; node instanceof OperatorNode; node = ((OperatorNode) node).left) {
+                spine.add((OperatorNode) node);
+            }
+            Object value = node.evaluate(frame);
+            for (int i = spine.size() - 1; i >= 0; i--) {
+                value = spine.get(i).evaluate(value, frame);
+            }
+            return value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (left == child)
+                left = (ExprNode) replacement;
+            else
+                right = (ExprNode) replacement;
+        }
+    }
+
+    abstract static class StmtNode extends Node {
+        abstract void execute(Object[] frame);
+    }
+
+    private static int expectInt(Object value) throws UnexpectedType {
+        if (value instanceof Integer)
+            return (int) value;
+        throw new UnexpectedType(value);
+    }
+
+    private static Class<?> classOf(Object value) {
+        return value == null ? null : value.getClass();
+    }
+
+    // Records what a node has become in its profile entry, if it has one.
+    private static void record(Profile.Entry entry, String state) {
+        if (entry != null)
+            entry.state = state;
+    }
+
+    // The class a profile names by its simple name, or null.
+    private static Class<?> valueClass(String name) {
+        switch (name) {
+            case "Integer":
+                return Integer.class;
+            case "Double":
+                return Double.class;
+            case "Float":
+                return Float.class;
+            case "String":
+                return String.class;
+            case "Character":
+                return Character.class;
+            case "Boolean":
+                return Boolean.class;
+            default:
+                return null;
+        }
+    }
+
+    private static boolean isInt(Operation operation) {
+        return operation.ordinal() <= Operation.INT_NOT_EQUAL.ordinal();
+    }
+
+    // Expressions.
+
+    static final class LiteralNode extends ExprNode {
+        private final Object value;
+
+        LiteralNode(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            return value;
+        }
+    }
+
+    static final class LogicalNode extends OperatorNode {
+        private final Token operator;
+
+        LogicalNode(Token operator, ExprNode left, ExprNode right) {
+            super(left, right);
+            this.operator = operator;
+        }
+
+        @Override
+        Object evaluate(Object value, Object[] frame) {
+            if (operator.type == TokenType.OR) {
+                if (Operators.isTruthy(value))
+                    return value;
+            } else {
+                if (!Operators.isTruthy(value))
+                    return value;
+            }
+            return right.evaluate(frame);
+        }
+    }
+
+    abstract static class VariableNode extends ExprNode {
+        final int depth;
+        final int slot;
+        final Profile.Entry entry;
+
+        VariableNode(int depth, int slot, Profile.Entry entry) {
+            this.depth = depth;
+            this.slot = slot;
+            this.entry = entry;
+        }
+    }
+
+    static final class UninitializedVariable extends VariableNode {
+        UninitializedVariable(int depth, int slot, Profile.Entry entry) {
+            super(depth, slot, entry);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object value = frame(frame, depth)[slot];
+            if (value instanceof Integer) {
+                specialized++;
+                record(entry, "int");
+                replace(new IntVariable(depth, slot, entry));
+            } else {
+                record(entry, "generic");
+                replace(new GenericVariable(depth, slot, entry));
+            }
+            return value;
+        }
+    }
+
+    static final class IntVariable extends VariableNode {
+        IntVariable(int depth, int slot, Profile.Entry entry) {
+            super(depth, slot, entry);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object value = frame(frame, depth)[slot];
+            if (!(value instanceof Integer))
+                deoptimize();
+            return value;
+        }
+
+        @Override
+        int evaluateInt(Object[] frame) throws UnexpectedType {
+            Object value = frame(frame, depth)[slot];
+            if (value instanceof Integer)
+                return (int) value;
+            deoptimize();
+            throw new UnexpectedType(value);
+        }
+
+        private void deoptimize() {
+            deoptimized++;
+            record(entry, "generic");
+            replace(new GenericVariable(depth, slot, entry));
+        }
+    }
+
+    static final class GenericVariable extends VariableNode {
+        GenericVariable(int depth, int slot, Profile.Entry entry) {
+            super(depth, slot, entry);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            return frame(frame, depth)[slot];
+        }
+    }
+
+    abstract static class AssignNode extends ExprNode {
+        final int depth;
+        final int slot;
+        final Profile.Entry entry;
+        ExprNode value;
+
+        AssignNode(int depth, int slot, Profile.Entry entry, ExprNode value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.entry = entry;
+            this.value = adopt(value);
+            height = value.height + 1;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            value = (ExprNode) replacement;
+        }
+    }
+
+    static final class UninitializedAssign extends AssignNode {
+        UninitializedAssign(int depth, int slot, Profile.Entry entry, ExprNode value) {
+            super(depth, slot, entry, value);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object result = value.evaluate(frame);
+            frame(frame, depth)[slot] = result;
+            if (result instanceof Integer) {
+                specialized++;
+                record(entry, "int");
+                replace(new IntAssign(depth, slot, entry, value));
+            } else {
+                record(entry, "generic");
+                replace(new GenericAssign(depth, slot, entry, value));
+            }
+            return result;
+        }
+    }
+
+    static final class IntAssign extends AssignNode {
+        IntAssign(int depth, int slot, Profile.Entry entry, ExprNode value) {
+            super(depth, slot, entry, value);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            try {
+                return evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                return unexpected.value;
+            }
+        }
+
+        @Override
+        int evaluateInt(Object[] frame) throws UnexpectedType {
+            int result;
+            try {
+                result = value.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                frame(frame, depth)[slot] = unexpected.value;
+                deoptimized++;
+                record(entry, "generic");
+                replace(new GenericAssign(depth, slot, entry, value));
+                throw unexpected;
+            }
+            frame(frame, depth)[slot] = result;
+            return result;
+        }
+    }
+
+    static final class GenericAssign extends AssignNode {
+        GenericAssign(int depth, int slot, Profile.Entry entry, ExprNode value) {
+            super(depth, slot, entry, value);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object result = value.evaluate(frame);
+            frame(frame, depth)[slot] = result;
+            return result;
+        }
+    }
+
+    abstract static class BinaryNode extends OperatorNode {
+        final Token operator;
+        final Profile.Entry entry;
+
+        BinaryNode(Token operator, Profile.Entry entry, ExprNode left, ExprNode right) {
+            super(left, right);
+            this.operator = operator;
+            this.entry = entry;
+        }
+
+        // Goes back to the generic node for good.
+        GenericBinary deoptimize() {
+            deoptimized++;
+            record(entry, "generic");
+            return replace(new GenericBinary(operator, entry, left, right));
+        }
+    }
+
+    static final class UninitializedBinary extends BinaryNode {
+        UninitializedBinary(Token operator, Profile.Entry entry, ExprNode left, ExprNode right) {
+            super(operator, entry, left, right);
+        }
+
+        @Override
+        Object evaluate(Object leftValue, Object[] frame) {
+            Object rightValue = right.evaluate(frame);
+            Operation operation = TypeChecker.specialize(operator.type, classOf(leftValue), classOf(rightValue));
+            if (operation == null || leftValue == null || rightValue == null) {
+                record(entry, "generic");
+                replace(new GenericBinary(operator, entry, left, right));
+            } else {
+                specialized++;
+                if (isInt(operation)) {
+                    record(entry, "int " + operation);
+                    replace(new IntBinary(operation, operator, entry, left, right));
+                } else {
+                    record(entry, "observed " + operation + " " + leftValue.getClass().getSimpleName() + " "
+                            + rightValue.getClass().getSimpleName());
+                    replace(new ObservedBinary(operation, leftValue.getClass(), rightValue.getClass(), operator,
+                            entry, left, right));
+                }
+            }
+            return GenericBinary.apply(operator, leftValue, rightValue);
+        }
+    }
+
+    // An operation on two INTs, done unboxed.
+    static final class IntBinary extends BinaryNode {
+        private final Operation operation;
+
+        IntBinary(Operation operation, Token operator, Profile.Entry entry, ExprNode left, ExprNode right) {
+            super(operator, entry, left, right);
+            this.operation = operation;
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            if (height >= TALL)
+                return evaluateChain(frame);
+            int leftValue;
+            try {
+                leftValue = left.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                return GenericBinary.apply(operator, unexpected.value, deoptimize().right.evaluate(frame));
+            }
+            return evaluate(leftValue, frame);
+        }
+
+        @Override
+        Object evaluate(Object leftValue, Object[] frame) {
+            if (!(leftValue instanceof Integer))
+                return GenericBinary.apply(operator, leftValue, deoptimize().right.evaluate(frame));
+            return evaluate((int) leftValue, frame);
+        }
+
+        private Object evaluate(int leftValue, Object[] frame) {
+            int rightValue;
+            try {
+                rightValue = right.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                deoptimize();
+                return GenericBinary.apply(operator, leftValue, unexpected.value);
+            }
+            switch (operation) {
+                case INT_LESS:
+                    return leftValue < rightValue;
+                case INT_LESS_EQUAL:
+                    return leftValue <= rightValue;
+                case INT_GREATER:
+                    return leftValue > rightValue;
+                case INT_GREATER_EQUAL:
+                    return leftValue >= rightValue;
+                case INT_EQUAL:
+                    return leftValue == rightValue;
+                case INT_NOT_EQUAL:
+                    return leftValue != rightValue;
+                default:
+                    return arithmetic(leftValue, rightValue);
+            }
+        }
+
+        @Override
+        int evaluateInt(Object[] frame) throws UnexpectedType {
+            if (operation.type != Integer.class || height >= TALL)
+                return super.evaluateInt(frame);
+            int leftValue;
+            try {
+                leftValue = left.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                return expectInt(GenericBinary.apply(operator, unexpected.value, deoptimize().right.evaluate(frame)));
+            }
+            int rightValue;
+            try {
+                rightValue = right.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                deoptimize();
+                return expectInt(GenericBinary.apply(operator, leftValue, unexpected.value));
+            }
+            return arithmetic(leftValue, rightValue);
+        }
+
+        private int arithmetic(int left, int right) {
+            switch (operation) {
+                case INT_ADD:
+                    return left + right;
+                case INT_SUBTRACT:
+                    return left - right;
+                case INT_MULTIPLY:
+                    return left * right;
+                default:
+                    return left % right;
+            }
+        }
+    }
+
+    // An operation on operands of the classes it was first run with, such
+    // as two Doubles, a Double and an INT, or two strings to concatenate.
+    static final class ObservedBinary extends BinaryNode {
+        private final Operation operation;
+        private final Class<?> leftClass;
+        private final Class<?> rightClass;
+
+        ObservedBinary(Operation operation, Class<?> leftClass, Class<?> rightClass, Token operator,
+                Profile.Entry entry, ExprNode left, ExprNode right) {
+            super(operator, entry, left, right);
+            this.operation = operation;
+            this.leftClass = leftClass;
+            this.rightClass = rightClass;
+        }
+
+        @Override
+        Object evaluate(Object leftValue, Object[] frame) {
+            Object rightValue = right.evaluate(frame);
+            if (classOf(leftValue) != leftClass || classOf(rightValue) != rightClass) {
+                deoptimize();
+                return GenericBinary.apply(operator, leftValue, rightValue);
+            }
+            try {
+                return Operators.binary(operation, leftValue, rightValue);
+            } catch (RuntimeError error) {
+                throw new RuntimeError(operator, error.getMessage());
+            }
+        }
+    }
+
+    static final class GenericBinary extends BinaryNode {
+        GenericBinary(Token operator, Profile.Entry entry, ExprNode left, ExprNode right) {
+            super(operator, entry, left, right);
+        }
+
+        @Override
+        Object evaluate(Object leftValue, Object[] frame) {
+            return apply(operator, leftValue, right.evaluate(frame));
+        }
+
+        static Object apply(Token operator, Object left, Object right) {
+            try {
+                return Operators.binary(operator.type, left, right);
+            } catch (RuntimeError error) {
+                throw new RuntimeError(operator, error.getMessage());
+            }
+        }
+    }
+
+    abstract static class UnaryNode extends ExprNode {
+        final Token operator;
+        final Profile.Entry entry;
+        ExprNode right;
+
+        UnaryNode(Token operator, Profile.Entry entry, ExprNode right) {
+            this.operator = operator;
+            this.entry = entry;
+            this.right = adopt(right);
+            height = right.height + 1;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            right = (ExprNode) replacement;
+        }
+
+        GenericUnary deoptimize() {
+            deoptimized++;
+            record(entry, "generic");
+            return replace(new GenericUnary(operator, entry, right));
+        }
+    }
+
+    static final class UninitializedUnary extends UnaryNode {
+        UninitializedUnary(Token operator, Profile.Entry entry, ExprNode right) {
+            super(operator, entry, right);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object value = right.evaluate(frame);
+            Operation operation = TypeChecker.specialize(operator.type, classOf(value));
+            if (operation == null) {
+                record(entry, "generic");
+                replace(new GenericUnary(operator, entry, right));
+            } else {
+                specialized++;
+                if (operation == Operation.INT_NEGATE) {
+                    record(entry, "int " + operation);
+                    replace(new IntNegate(operator, entry, right));
+                } else {
+                    record(entry, "observed " + operation + " " + value.getClass().getSimpleName());
+                    replace(new ObservedUnary(operation, value.getClass(), operator, entry, right));
+                }
+            }
+            return GenericUnary.apply(operator, value);
+        }
+    }
+
+    static final class IntNegate extends UnaryNode {
+        IntNegate(Token operator, Profile.Entry entry, ExprNode right) {
+            super(operator, entry, right);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            try {
+                return evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                return unexpected.value;
+            }
+        }
+
+        @Override
+        int evaluateInt(Object[] frame) throws UnexpectedType {
+            int value;
+            try {
+                value = right.evaluateInt(frame);
+            } catch (UnexpectedType unexpected) {
+                deoptimize();
+                return expectInt(GenericUnary.apply(operator, unexpected.value));
+            }
+            return -1 * value;
+        }
+    }
+
+    static final class ObservedUnary extends UnaryNode {
+        private final Operation operation;
+        private final Class<?> rightClass;
+
+        ObservedUnary(Operation operation, Class<?> rightClass, Token operator, Profile.Entry entry,
+                ExprNode right) {
+            super(operator, entry, right);
+            this.operation = operation;
+            this.rightClass = rightClass;
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            Object value = right.evaluate(frame);
+            if (classOf(value) != rightClass) {
+                deoptimize();
+                return GenericUnary.apply(operator, value);
+            }
+            return Operators.unary(operation, value);
+        }
+    }
+
+    static final class GenericUnary extends UnaryNode {
+        GenericUnary(Token operator, Profile.Entry entry, ExprNode right) {
+            super(operator, entry, right);
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            return apply(operator, right.evaluate(frame));
+        }
+
+        static Object apply(Token operator, Object right) {
+            try {
+                return Operators.unary(operator.type, right);
+            } catch (RuntimeError error) {
+                throw new RuntimeError(operator, error.getMessage());
+            }
+        }
+    }
+
+    // An expression a hot loop caches while it runs, as the Interpreter does
+    // an Invariant; the loop forgets the value each time it starts.
+    static final class InvariantNode extends ExprNode {
+        private ExprNode expression;
+        boolean known = false;
+        private Object value;
+
+        InvariantNode(ExprNode expression) {
+            this.expression = adopt(expression);
+            height = expression.height + 1;
+        }
+
+        @Override
+        Object evaluate(Object[] frame) {
+            if (!known) {
+                value = expression.evaluate(frame);
+                known = true;
+            }
+            return value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            expression = (ExprNode) replacement;
+        }
+    }
+
+    // Statements.
+
+    // A block that declares nothing runs in the frame around it. One that
+    // does keeps its frame from one run to the next, as on the tree path.
+    static final class BlockNode extends StmtNode {
+        private final boolean framed;
+        private final int size;
+        private final StmtNode[] statements;
+        private Object[] frame;
+
+        BlockNode(boolean framed, int size, StmtNode[] statements) {
+            this.framed = framed;
+            this.size = size;
+            this.statements = statements;
+            for (StmtNode statement : statements) {
+                adopt(statement);
+            }
+        }
+
+        @Override
+        void execute(Object[] enclosing) {
+            execute(enclosing, statements.length);
+        }
+
+        // Runs the first 'count' statements only, as a counted loop runs
+        // its body without the step.
+        void execute(Object[] enclosing, int count) {
+            Object[] frame = enclosing;
+            if (framed) {
+                frame = this.frame;
+                if (frame == null) {
+                    frame = new Object[size + 1];
+                    this.frame = frame;
+                } else {
+                    Arrays.fill(frame, 1, frame.length, null);
+                }
+                frame[0] = enclosing;
+            }
+            for (int i = 0; i < count; i++) {
+                statements[i].execute(frame);
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            for (int i = 0; i < statements.length; i++) {
+                if (statements[i] == child)
+                    statements[i] = (StmtNode) replacement;
+            }
+        }
+    }
+
+    static final class ExpressionNode extends StmtNode {
+        private ExprNode expression;
+
+        ExpressionNode(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            expression.evaluate(frame);
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            expression = (ExprNode) replacement;
+        }
+    }
+
+    final class DisplayNode extends StmtNode {
+        private ExprNode expression;
+
+        DisplayNode(ExprNode expression) {
+            this.expression = adopt(expression);
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            Operators.display(expression.evaluate(frame));
+            displayed = true;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            expression = (ExprNode) replacement;
+        }
+    }
+
+    static final class ScanNode extends StmtNode {
+        private final Token name;
+        private final int depth;
+        private final int slot;
+        private final String type;
+
+        ScanNode(Token name, int depth, int slot, String type) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.type = type;
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            try {
+                Object value = Operators.scanned(type, Operators.scanInput());
+                if (value == null)
+                    throw new RuntimeError(name, "Input must be " + type);
+                frame(frame, depth)[slot] = value;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // While recording, counts how often it runs and takes its then branch.
+    static final class IfNode extends StmtNode {
+        private final Profile.Entry entry;
+        private ExprNode condition;
+        private StmtNode thenBranch;
+        private StmtNode elseBranch;
+
+        IfNode(Profile.Entry entry, ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+            this.entry = entry;
+            this.condition = adopt(condition);
+            this.thenBranch = adopt(thenBranch);
+            this.elseBranch = adopt(elseBranch);
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            if (entry != null)
+                entry.runs++;
+            if (Operators.isTruthy(condition.evaluate(frame))) {
+                if (entry != null)
+                    entry.count++;
+                thenBranch.execute(frame);
+            } else if (elseBranch != null) {
+                elseBranch.execute(frame);
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (condition == child)
+                condition = (ExprNode) replacement;
+            else if (thenBranch == child)
+                thenBranch = (StmtNode) replacement;
+            else
+                elseBranch = (StmtNode) replacement;
+        }
+    }
+
+    // While recording, counts how often it goes round.
+    static final class WhileNode extends StmtNode {
+        private final Profile.Entry entry;
+        private ExprNode condition;
+        private StmtNode body;
+
+        WhileNode(Profile.Entry entry, ExprNode condition, StmtNode body) {
+            this.entry = entry;
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            while (Operators.isTruthy(condition.evaluate(frame))) {
+                if (entry != null)
+                    entry.count++;
+                body.execute(frame);
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (condition == child)
+                condition = (ExprNode) replacement;
+            else
+                body = (StmtNode) replacement;
+        }
+    }
+
+    // INT, FLOAT, CHAR, STRING and BOOL declarations. BOOL takes anything.
+    static final class DeclarationNode extends StmtNode {
+        private final Token name;
+        private final int slot;
+        private final Class<?> type;
+        private final boolean typed;
+        private final String message;
+        private ExprNode initializer;
+
+        DeclarationNode(Token name, int slot, Class<?> type, boolean typed, String message, ExprNode initializer) {
+            this.name = name;
+            this.slot = slot;
+            this.type = type;
+            this.typed = typed;
+            this.message = message;
+            this.initializer = adopt(initializer);
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            Object value = null;
+            if (initializer != null) {
+                value = initializer.evaluate(frame);
+                if (type != null && (typed ? value == null : !type.isInstance(value)))
+                    throw new RuntimeError(name, message);
+            }
+            frame[slot] = value;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            initializer = (ExprNode) replacement;
+        }
+    }
+
+    static final class MultiVarNode extends StmtNode {
+        private final int[] depths;
+        private final int[] slots;
+        private final ExprNode[] initializers;
+
+        MultiVarNode(int[] depths, int[] slots, ExprNode[] initializers) {
+            this.depths = depths;
+            this.slots = slots;
+            this.initializers = initializers;
+            for (ExprNode initializer : initializers) {
+                adopt(initializer);
+            }
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            for (int i = 0; i < initializers.length; i++) {
+                Object value = initializers[i] == null ? null : initializers[i].evaluate(frame);
+                frame(frame, depths[i])[slots[i]] = value;
+            }
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            for (int i = 0; i < initializers.length; i++) {
+                if (initializers[i] == child)
+                    initializers[i] = (ExprNode) replacement;
+            }
+        }
+    }
+
+    // A body a lazy parse skipped, replaced with its nodes the first time
+    // it runs.
+    final class LazyNode extends StmtNode {
+        private final Stmt.Lazy stub;
+
+        LazyNode(Stmt.Lazy stub) {
+            this.stub = stub;
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            replace(statement(stub.body())).execute(frame);
+        }
+    }
+
+    // A loop a profile saw go round HOT times or more, run as the
+    // Interpreter runs a planned Loop.
+    final class LoopNode extends StmtNode {
+        private final Stmt.Loop loop;
+        private final List<InvariantNode> invariants = new ArrayList<>();
+        private ExprNode condition;
+        // Null while the body is still to be parsed.
+        private StmtNode body;
+        // The bound of a counted loop, or null.
+        private ExprNode bound;
+
+        LoopNode(Stmt.Loop loop) {
+            this.loop = loop;
+            build();
+        }
+
+        // Builds what the loop has so far, its invariants registered with
+        // it. The bound is a second copy of part of the condition, so it is
+        // not profiled.
+        private void build() {
+            List<InvariantNode> enclosing = NodeTree.this.invariants;
+            NodeTree.this.invariants = invariants;
+            try {
+                if (condition == null)
+                    condition = adopt(expression(loop.condition));
+                if (loop.body instanceof Stmt.Lazy)
+                    return;
+                body = adopt(statement(loop.body));
+                if (loop.counted != null) {
+                    unprofiled = true;
+                    try {
+                        bound = adopt(expression(loop.bound));
+                    } finally {
+                        unprofiled = false;
+                    }
+                }
+            } finally {
+                NodeTree.this.invariants = enclosing;
+            }
+        }
+
+        @Override
+        void execute(Object[] frame) {
+            for (InvariantNode invariant : invariants) {
+                invariant.known = false;
+            }
+            if (body == null) {
+                // The body is parsed, and the loop planned, the first time it runs.
+                if (!Operators.isTruthy(condition.evaluate(frame)))
+                    return;
+                loop.body = ((Stmt.Lazy) loop.body).body();
+                LoopOptimizer.plan(loop);
+                build();
+                body.execute(frame);
+            }
+            if (bound != null && count(frame))
+                return;
+            while (Operators.isTruthy(condition.evaluate(frame))) {
+                body.execute(frame);
+            }
+        }
+
+        // Runs a counted loop with its count in an int, storing each step
+        // back for the body to read, if the count and the bound are INTs.
+        private boolean count(Object[] frame) {
+            Object[] variables = frame(frame, loop.depth);
+            Object start = variables[loop.slot];
+            Object limit = bound.evaluate(frame);
+            if (!(start instanceof Integer) || !(limit instanceof Integer))
+                return false;
+            BlockNode steps = (BlockNode) body;
+            int length = steps.statements.length - 1;
+            int count = (int) start;
+            int last = (int) limit;
+            while (compare(loop.comparison, count, last)) {
+                steps.execute(frame, length);
+                count += loop.step;
+                variables[loop.slot] = count;
+            }
+            return true;
+        }
+
+        @Override
+        void replaceChild(Node child, Node replacement) {
+            if (condition == child)
+                condition = (ExprNode) replacement;
+            else if (body == child)
+                body = (StmtNode) replacement;
+            else
+                bound = (ExprNode) replacement;
+        }
+    }
+
+    private static boolean compare(TokenType comparison, int left, int right) {
+        switch (comparison) {
+            case LESS_THAN:
+                return left < right;
+            case LESS_OR_EQUAL:
+                return left <= right;
+            case GREATER_THAN:
+                return left > right;
+            default:
+                return left >= right;
+        }
+    }
+
+    // Building the nodes.
+
+    private StmtNode[] statements(List<Stmt> statements) {
+        StmtNode[] nodes = new StmtNode[statements.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = statement(statements.get(i));
+        }
+        return nodes;
+    }
+
+    private StmtNode statement(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(builder);
+    }
+
+    // A chain is built down its left spine in a loop. Its nodes take their
+    // profile entries top down before anything under them, as they would
+    // recursing.
+    private ExprNode expression(Expr expr) {
+        if (expr == null)
+            return null;
+        if (Expr.leftOf(expr) == null)
+            return expr.accept(builder);
+        List<Expr> spine = Expr.spine(expr);
+        Profile.Entry[] entries = new Profile.Entry[spine.size()];
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            if (!(spine.get(i) instanceof Expr.Logical))
+                entries[i] = entry(Expr.operatorOf(spine.get(i)).line);
+        }
+        ExprNode node = expression(Expr.bottom(expr));
+        for (int i = 0; i < spine.size(); i++) {
+            Token operator = Expr.operatorOf(spine.get(i));
+            ExprNode right = expression(Expr.rightOf(spine.get(i)));
+            node = spine.get(i) instanceof Expr.Logical ? new LogicalNode(operator, node, right)
+                    : binary(operator, entries[i], node, right);
+        }
+        return node;
+    }
+
+    private final Builder builder = new Builder();
+
+    // The profile entry of the next profiled node on the line, or null.
+    // Nodes are keyed in the order they are built, which is source order,
+    // and a profile only applies to the tree it was recorded from.
+    private Profile.Entry entry(int line) {
+        if (profile == null || unprofiled || line < 0)
+            return null;
+        int ordinal = ordinals.merge(line, 1, Integer::sum) - 1;
+        return profile.entry(line + ":" + ordinal);
+    }
+
+    // The entry for a node to record into: none unless recording.
+    private Profile.Entry recorded(Profile.Entry entry) {
+        return profile != null && profile.recording ? entry : null;
+    }
+
+    // The state a node was recorded in, split into its words, if the
+    // profile is being applied and has one.
+    private String[] state(Profile.Entry entry) {
+        if (entry == null || profile.recording || entry.state == null)
+            return null;
+        return entry.state.split(" ");
+    }
+
+    // The line of the first token in the expression, or -1.
+    private static int line(Expr expr) {
+        if (expr instanceof Expr.Binary)
+            return ((Expr.Binary) expr).operator.line;
+        if (expr instanceof Expr.Specialized)
+            return ((Expr.Specialized) expr).operator.line;
+        if (expr instanceof Expr.Logical)
+            return ((Expr.Logical) expr).operator.line;
+        if (expr instanceof Expr.Unary)
+            return ((Expr.Unary) expr).operator.line;
+        if (expr instanceof Expr.Variable)
+            return ((Expr.Variable) expr).name.line;
+        if (expr instanceof Expr.Assign)
+            return ((Expr.Assign) expr).name.line;
+        if (expr instanceof Expr.Grouping)
+            return line(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Invariant)
+            return line(((Expr.Invariant) expr).expression);
+        return -1;
+    }
+
+    // The nodes a profile says the expression specialized to, checked
+    // against what the TypeChecker would pick for its operator, so that a
+    // profile of another script costs time at worst.
+    private ExprNode binary(Token operator, Profile.Entry entry, ExprNode left, ExprNode right) {
+        String[] state = state(entry);
+        if (state != null) {
+            try {
+                Operation operation;
+                switch (state[0]) {
+                    case "generic":
+                        return new GenericBinary(operator, null, left, right);
+                    case "int":
+                        operation = Operation.valueOf(state[1]);
+                        if (isInt(operation)
+                                && operation == TypeChecker.specialize(operator.type, Integer.class, Integer.class)) {
+                            specialized++;
+                            return new IntBinary(operation, operator, null, left, right);
+                        }
+                        break;
+                    case "observed":
+                        operation = Operation.valueOf(state[1]);
+                        Class<?> leftClass = valueClass(state[2]);
+                        Class<?> rightClass = valueClass(state[3]);
+                        if (leftClass != null && rightClass != null && !isInt(operation)
+                                && operation == TypeChecker.specialize(operator.type, leftClass, rightClass)) {
+                            specialized++;
+                            return new ObservedBinary(operation, leftClass, rightClass, operator, null, left, right);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                // not a state this build knows
+            }
+        }
+        return new UninitializedBinary(operator, recorded(entry), left, right);
+    }
+
+    private ExprNode unary(Token operator, Profile.Entry entry, ExprNode right) {
+        String[] state = state(entry);
+        if (state != null) {
+            try {
+                Operation operation;
+                switch (state[0]) {
+                    case "generic":
+                        return new GenericUnary(operator, null, right);
+                    case "int":
+                        operation = Operation.valueOf(state[1]);
+                        if (operation == Operation.INT_NEGATE
+                                && operation == TypeChecker.specialize(operator.type, Integer.class)) {
+                            specialized++;
+                            return new IntNegate(operator, null, right);
+                        }
+                        break;
+                    case "observed":
+                        operation = Operation.valueOf(state[1]);
+                        Class<?> rightClass = valueClass(state[2]);
+                        if (rightClass != null && operation != Operation.INT_NEGATE
+                                && operation == TypeChecker.specialize(operator.type, rightClass)) {
+                            specialized++;
+                            return new ObservedUnary(operation, rightClass, operator, null, right);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                // not a state this build knows
+            }
+        }
+        return new UninitializedUnary(operator, recorded(entry), right);
+    }
+
+    // A recorded state is "int" or "generic".
+    private static boolean isState(String[] state, String name) {
+        return state != null && state.length == 1 && state[0].equals(name);
+    }
+
+    // The links of an IF ... ELSE IF chain whose conditions test one
+    // variable for equality with a distinct constant each, so that at most
+    // one of them holds and testing them changes nothing: they can be
+    // tested in any order.
+    private static List<Stmt.If> exclusive(Stmt.If stmt) {
+        List<Stmt.If> links = new ArrayList<>();
+        List<Object> constants = new ArrayList<>();
+        SwitchLowerer.Test first = null;
+        Stmt rest = stmt;
+        while (rest instanceof Stmt.If) {
+            Stmt.If link = (Stmt.If) rest;
+            SwitchLowerer.Test test = SwitchLowerer.test(link.condition);
+            if (test == null || constants.contains(test.constant) || first != null
+                    && (test.variable.depth != first.variable.depth || test.variable.slot != first.variable.slot))
+                break;
+            if (first == null)
+                first = test;
+            constants.add(test.constant);
+            links.add(link);
+            rest = link.elseBranch;
+        }
+        return links;
+    }
+
+    // The passes that only the tree path runs leave no nodes here but in
+    // lazily parsed bodies, which go through the LoopOptimizer; the others
+    // are built from the forms they stand for all the same.
+    private class Builder implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+        @Override
+        public ExprNode visitAssignExpr(Expr.Assign expr) {
+            Profile.Entry entry = entry(expr.name.line);
+            ExprNode value = expression(expr.value);
+            String[] state = state(entry);
+            if (isState(state, "int")) {
+                specialized++;
+                return new IntAssign(expr.depth, expr.slot, null, value);
+            }
+            if (isState(state, "generic"))
+                return new GenericAssign(expr.depth, expr.slot, null, value);
+            return new UninitializedAssign(expr.depth, expr.slot, recorded(entry), value);
+        }
+
+        @Override
+        public ExprNode visitBinaryExpr(Expr.Binary expr) {
+            Profile.Entry entry = entry(expr.operator.line);
+            return binary(expr.operator, entry, expression(expr.left), expression(expr.right));
+        }
+
+        @Override
+        public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+            return expression(expr.expression);
+        }
+
+        @Override
+        public ExprNode visitLiteralExpr(Expr.Literal expr) {
+            return new LiteralNode(expr.value);
+        }
+
+        @Override
+        public ExprNode visitLogicalExpr(Expr.Logical expr) {
+            return new LogicalNode(expr.operator, expression(expr.left), expression(expr.right));
+        }
+
+        @Override
+        public ExprNode visitUnaryExpr(Expr.Unary expr) {
+            Profile.Entry entry = entry(expr.operator.line);
+            return unary(expr.operator, entry, expression(expr.right));
+        }
+
+        @Override
+        public ExprNode visitVariableExpr(Expr.Variable expr) {
+            Profile.Entry entry = entry(expr.name.line);
+            String[] state = state(entry);
+            if (isState(state, "int")) {
+                specialized++;
+                return new IntVariable(expr.depth, expr.slot, null);
+            }
+            if (isState(state, "generic"))
+                return new GenericVariable(expr.depth, expr.slot, null);
+            return new UninitializedVariable(expr.depth, expr.slot, recorded(entry));
+        }
+
+        @Override
+        public ExprNode visitSpecializedExpr(Expr.Specialized expr) {
+            Profile.Entry entry = entry(expr.operator.line);
+            if (expr.left == null)
+                return unary(expr.operator, entry, expression(expr.right));
+            return binary(expr.operator, entry, expression(expr.left), expression(expr.right));
+        }
+
+        // Only a hot loop caches its invariants; elsewhere they are plain
+        // expressions.
+        @Override
+        public ExprNode visitInvariantExpr(Expr.Invariant expr) {
+            if (invariants == null)
+                return expression(expr.expression);
+            InvariantNode node = new InvariantNode(expression(expr.expression));
+            invariants.add(node);
+            return node;
+        }
+
+        @Override
+        public ExprNode visitUpdateExpr(Expr.Update expr) {
+            return expression(Fuser.unfused(expr));
+        }
+
+        @Override
+        public ExprNode visitCompareExpr(Expr.Compare expr) {
+            return expression(Fuser.unfused(expr));
+        }
+
+        @Override
+        public ExprNode visitConcatExpr(Expr.Concat expr) {
+            return expression(Fuser.unfused(expr));
+        }
+
+        @Override
+        public StmtNode visitBlockStmt(Stmt.Block stmt) {
+            return new BlockNode(stmt.framed, stmt.size, statements(stmt.statements));
+        }
+
+        @Override
+        public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+            return new ExpressionNode(expression(stmt.expression));
+        }
+
+        @Override
+        public StmtNode visitDisplayStmt(Stmt.Display stmt) {
+            return new DisplayNode(expression(stmt.expression));
+        }
+
+        @Override
+        public StmtNode visitScanStmt(Stmt.Scan stmt) {
+            return new ScanNode(stmt.name, stmt.depth, stmt.slot, stmt.type);
+        }
+
+        @Override
+        public StmtNode visitIfStmt(Stmt.If stmt) {
+            if (profile != null && !profile.recording) {
+                List<Stmt.If> links = exclusive(stmt);
+                if (links.size() >= 2)
+                    return reordered(links);
+            }
+            Profile.Entry entry = entry(line(stmt.condition));
+            return new IfNode(recorded(entry), expression(stmt.condition), statement(stmt.thenBranch),
+                    statement(stmt.elseBranch));
+        }
+
+        // Builds the links in the order they were recorded in, then chains
+        // them most taken first, the rest of the chain last.
+        private StmtNode reordered(List<Stmt.If> links) {
+            int size = links.size();
+            long[] counts = new long[size];
+            ExprNode[] conditions = new ExprNode[size];
+            StmtNode[] branches = new StmtNode[size];
+            List<Integer> order = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Stmt.If link = links.get(i);
+                Profile.Entry entry = entry(line(link.condition));
+                counts[i] = entry == null ? 0 : entry.count;
+                conditions[i] = expression(link.condition);
+                branches[i] = statement(link.thenBranch);
+                order.add(i);
+            }
+            StmtNode chain = statement(links.get(size - 1).elseBranch);
+            order.sort(Comparator.comparingLong(i -> -counts[i]));
+            for (int i = size - 1; i >= 0; i--) {
+                int link = order.get(i);
+                chain = new IfNode(null, conditions[link], branches[link], chain);
+            }
+            return chain;
+        }
+
+        @Override
+        public StmtNode visitWhileStmt(Stmt.While stmt) {
+            Profile.Entry entry = entry(line(stmt.condition));
+            return new WhileNode(recorded(entry), expression(stmt.condition), statement(stmt.body));
+        }
+
+        @Override
+        public StmtNode visitIntStmt(Stmt.Int stmt) {
+            return new DeclarationNode(stmt.name, stmt.slot, Integer.class, stmt.typed, "Input must be an Integer",
+                    expression(stmt.intializer));
+        }
+
+        @Override
+        public StmtNode visitFloatStmt(Stmt.Float stmt) {
+            return new DeclarationNode(stmt.name, stmt.slot, Double.class, stmt.typed, "Input must be a float",
+                    expression(stmt.initializer));
+        }
+
+        @Override
+        public StmtNode visitCharStmt(Stmt.Char stmt) {
+            return new DeclarationNode(stmt.name, stmt.slot, Character.class, stmt.typed,
+                    "Input must be a character", expression(stmt.initializer));
+        }
+
+        @Override
+        public StmtNode visitStringStmt(Stmt.String stmt) {
+            return new DeclarationNode(stmt.name, stmt.slot, String.class, stmt.typed, "Input must be a String",
+                    expression(stmt.initializer));
+        }
+
+        @Override
+        public StmtNode visitBoolStmt(Stmt.Bool stmt) {
+            return new DeclarationNode(stmt.name, stmt.slot, null, false, null, expression(stmt.initializer));
+        }
+
+        @Override
+        public StmtNode visitMultiVarStmt(Stmt.MultiVar stmt) {
+            ExprNode[] initializers = new ExprNode[stmt.initializers.size()];
+            for (int i = 0; i < initializers.length; i++) {
+                initializers[i] = expression(stmt.initializers.get(i));
+            }
+            return new MultiVarNode(stmt.depths, stmt.slots, initializers);
+        }
+
+        @Override
+        public StmtNode visitLazyStmt(Stmt.Lazy stmt) {
+            return new LazyNode(stmt);
+        }
+
+        // A loop the profile saw go round often enough runs as planned; any
+        // other runs as a WHILE, its invariants plain expressions.
+        @Override
+        public StmtNode visitLoopStmt(Stmt.Loop stmt) {
+            Profile.Entry entry = entry(line(stmt.condition));
+            if (entry != null && !profile.recording && entry.count >= HOT)
+                return new LoopNode(stmt);
+            List<InvariantNode> enclosing = invariants;
+            invariants = null;
+            try {
+                return new WhileNode(recorded(entry), expression(stmt.condition), statement(stmt.body));
+            } finally {
+                invariants = enclosing;
+            }
+        }
+
+        @Override
+        public StmtNode visitSwitchStmt(Stmt.Switch stmt) {
+            return statement(SwitchLowerer.unlowered(stmt));
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package interpreter;
+
+// The operations the TypeChecker can pin a Binary or Unary down to once it
+// knows the runtime classes of the operands. Each does what Operators does
+// for those classes without testing them again, and yields 'type'.
+enum Operation {
+    // Integer operands.
+    INT_ADD(TokenType.PLUS, Integer.class),
+    INT_SUBTRACT(TokenType.MINUS, Integer.class),
+    INT_MULTIPLY(TokenType.STAR, Integer.class),
+    INT_MODULO(TokenType.MODULO, Integer.class),
+    INT_LESS(TokenType.LESS_THAN, Boolean.class),
+    INT_LESS_EQUAL(TokenType.LESS_OR_EQUAL, Boolean.class),
+    INT_GREATER(TokenType.GREATER_THAN, Boolean.class),
+    INT_GREATER_EQUAL(TokenType.GREATER_OR_EQUAL, Boolean.class),
+    INT_EQUAL(TokenType.EQUAL_EVAL, Boolean.class),
+    INT_NOT_EQUAL(TokenType.NOT_EQUAL, Boolean.class),
+
+    // Integer or Double operands, at least one of them a Double; division
+    // takes any two of them. Arithmetic is done in float.
+    FLOAT_ADD(TokenType.PLUS, java.lang.Float.class),
+    FLOAT_SUBTRACT(TokenType.MINUS, java.lang.Float.class),
+    FLOAT_MULTIPLY(TokenType.STAR, java.lang.Float.class),
+    FLOAT_DIVIDE(TokenType.SLASH, java.lang.Float.class),
+    DOUBLE_MODULO(TokenType.MODULO, Double.class),
+    DOUBLE_LESS(TokenType.LESS_THAN, Boolean.class),
+    DOUBLE_LESS_EQUAL(TokenType.LESS_OR_EQUAL, Boolean.class),
+    DOUBLE_GREATER(TokenType.GREATER_THAN, Boolean.class),
+    DOUBLE_GREATER_EQUAL(TokenType.GREATER_OR_EQUAL, Boolean.class),
+
+    // Any operands.
+    CONCAT(TokenType.CONCAT, String.class),
+
+    // Unary, on the right operand alone.
+    INT_NEGATE(TokenType.MINUS, Integer.class),
+    DOUBLE_NEGATE(TokenType.MINUS, Double.class),
+    BOOLEAN_NOT(TokenType.NOT, Boolean.class);
+
+    // The operator the operation stands for, which Operators falls back on
+    // for a null operand.
+    final TokenType operator;
+    final Class<?> type;
+
+    Operation(TokenType operator, Class<?> type) {
+        this.operator = operator;
+        this.type = type;
+    }
+
+    boolean isUnary() {
+        return ordinal() >= INT_NEGATE.ordinal();
+    }
+}
@@ -0,0 +1,296 @@
+package interpreter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+// What the language's operators do to runtime values, shared by every way of
+// running a program. Errors are thrown without a token; the caller knows
+// which operator it was evaluating and rethrows with it.
+final class Operators {
+    private Operators() {
+    }
+
+    static Object binary(TokenType type, Object left, Object right) {
+        Number leftValue = getArithmetic(left);
+        Number rightValue = getArithmetic(right);
+        switch (type) {
+            case CONCAT:
+                return stringify(left) + stringify(right);
+            case MINUS:
+                if (leftValue instanceof Integer && rightValue instanceof Integer) {
+                    return leftValue.intValue() - rightValue.intValue();
+                }
+                return leftValue.floatValue() - rightValue.floatValue();
+            case PLUS:
+                if (leftValue instanceof Integer && rightValue instanceof Integer) {
+                    return leftValue.intValue() + rightValue.intValue();
+                }
+                return leftValue.floatValue() + rightValue.floatValue();
+            case STAR:
+                if (leftValue instanceof Integer && rightValue instanceof Integer) {
+                    return leftValue.intValue() * rightValue.intValue();
+                }
+                return leftValue.floatValue() * rightValue.floatValue();
+            case SLASH:
+                if (rightValue.floatValue() == 0) {
+                    throw new RuntimeError(null, "Division by zero.");
+                }
+                return leftValue.floatValue() / rightValue.floatValue();
+            case MODULO:
+                if (leftValue instanceof Integer && rightValue instanceof Integer) {
+                    return leftValue.intValue() % rightValue.intValue();
+                }
+                if (left instanceof Integer) {
+                    left = Double.parseDouble(left.toString());
+                }
+                if (right instanceof Integer) {
+                    right = Double.parseDouble(right.toString());
+                }
+                return (double) left % (double) right;
+            case GREATER_THAN:
+                if (left instanceof Integer) {
+                    left = Double.parseDouble(left.toString());
+                }
+                if (right instanceof Integer) {
+                    right = Double.parseDouble(right.toString());
+                }
+                return (double) left > (double) right;
+            case GREATER_OR_EQUAL:
+                if (left instanceof Integer) {
+                    left = Double.parseDouble(left.toString());
+                }
+                if (right instanceof Integer) {
+                    right = Double.parseDouble(right.toString());
+                }
+                return (double) left >= (double) right;
+            case LESS_THAN:
+                if (left instanceof Integer) {
+                    left = Double.parseDouble(left.toString());
+                }
+                if (right instanceof Integer) {
+                    right = Double.parseDouble(right.toString());
+                }
+                return (double) left < (double) right;
+            case LESS_OR_EQUAL:
+                if (left instanceof Integer) {
+                    left = Double.parseDouble(left.toString());
+                }
+                if (right instanceof Integer) {
+                    right = Double.parseDouble(right.toString());
+                }
+                return (double) left <= (double) right;
+            case NOT_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EVAL:
+                return isEqual(left, right);
+            default:
+                break;
+        }
+        return null;
+    }
+
+    static Object unary(TokenType type, Object right) {
+        switch (type) {
+            case MINUS:
+                checkNumberOperand(right);
+                if (right instanceof Integer) {
+                    return -1 * (int) right;
+                }
+                return -1 * (double) right;
+            case PLUS:
+                if (right instanceof Integer) {
+                    return (int) right;
+                }
+                checkNumberOperand(right);
+                return (double) right;
+            case NOT:
+                return !isTruthy(right);
+            default:
+                break;
+        }
+        return null;
+    }
+
+    // A binary operation on operands the TypeChecker has found to be of the
+    // classes it takes, or null. A null operand goes the generic way, which
+    // decides what it does.
+    static Object binary(Operation operation, Object left, Object right) {
+        if (left == null || right == null)
+            return binary(operation.operator, left, right);
+        switch (operation) {
+            case INT_ADD:
+                return (int) left + (int) right;
+            case INT_SUBTRACT:
+                return (int) left - (int) right;
+            case INT_MULTIPLY:
+                return (int) left * (int) right;
+            case INT_MODULO:
+                return (int) left % (int) right;
+            case INT_LESS:
+                return (int) left < (int) right;
+            case INT_LESS_EQUAL:
+                return (int) left <= (int) right;
+            case INT_GREATER:
+                return (int) left > (int) right;
+            case INT_GREATER_EQUAL:
+                return (int) left >= (int) right;
+            case INT_EQUAL:
+                return (int) left == (int) right;
+            case INT_NOT_EQUAL:
+                return (int) left != (int) right;
+            case FLOAT_ADD:
+                return ((Number) left).floatValue() + ((Number) right).floatValue();
+            case FLOAT_SUBTRACT:
+                return ((Number) left).floatValue() - ((Number) right).floatValue();
+            case FLOAT_MULTIPLY:
+                return ((Number) left).floatValue() * ((Number) right).floatValue();
+            case FLOAT_DIVIDE:
+                if (((Number) right).floatValue() == 0) {
+                    throw new RuntimeError(null, "Division by zero.");
+                }
+                return ((Number) left).floatValue() / ((Number) right).floatValue();
+            case DOUBLE_MODULO:
+                return ((Number) left).doubleValue() % ((Number) right).doubleValue();
+            case DOUBLE_LESS:
+                return ((Number) left).doubleValue() < ((Number) right).doubleValue();
+            case DOUBLE_LESS_EQUAL:
+                return ((Number) left).doubleValue() <= ((Number) right).doubleValue();
+            case DOUBLE_GREATER:
+                return ((Number) left).doubleValue() > ((Number) right).doubleValue();
+            case DOUBLE_GREATER_EQUAL:
+                return ((Number) left).doubleValue() >= ((Number) right).doubleValue();
+            case CONCAT:
+                return stringify(left) + stringify(right);
+            default:
+                break;
+        }
+        return null;
+    }
+
+    static Object unary(Operation operation, Object right) {
+        if (right == null)
+            return unary(operation.operator, right);
+        switch (operation) {
+            case INT_NEGATE:
+                return -1 * (int) right;
+            case DOUBLE_NEGATE:
+                return -1 * (double) right;
+            case BOOLEAN_NOT:
+                return !(boolean) right;
+            default:
+                break;
+        }
+        return null;
+    }
+
+    private static Number getArithmetic(Object obj) {
+        if (obj instanceof Integer) {
+            return (int) obj;
+        }
+        if (obj instanceof Double) {
+            return (double) obj;
+        }
+        return null;
+    }
+
+    private static void checkNumberOperand(Object operand) {
+        if (operand instanceof Double || operand instanceof Integer)
+            return;
+        throw new RuntimeError(null, "Operand must be a number.");
+    }
+
+    static boolean isTruthy(Object object) {
+        if (object == null)
+            return false;
+        if (object instanceof Boolean)
+            return (boolean) object;
+        return true;
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        if (a == null && b == null)
+            return true;
+        if (a == null)
+            return false;
+
+        return a.equals(b);
+    }
+
+    static String stringify(Object object) {
+        if (object == null)
+            return "null";
+
+        if (object.toString().equals("new_line")) {
+            System.out.println();
+        }
+
+        if (object instanceof Boolean) {
+            return object.toString().toUpperCase();
+        }
+
+        if (object instanceof Double) {
+            String text = object.toString();
+            if (text.endsWith(".0")) {
+                text = text.substring(0, text.length() - 2);
+            }
+            return text;
+        }
+
+        return object.toString();
+    }
+
+    static void display(Object value) {
+        if (value.equals("\n")) {
+            System.out.print(stringify(value));
+        } else
+            System.out.println(stringify(value));
+    }
+
+    static Object scanInput() throws IOException {
+        InputStreamReader input = new InputStreamReader(System.in);
+        BufferedReader reader = new BufferedReader(input);
+        String line = reader.readLine().trim();
+
+        try {
+            Integer intValue = Integer.parseInt(line);
+            return intValue;
+        } catch (NumberFormatException ignored) {
+        }
+
+        try {
+            Double doubleValue = Double.parseDouble(line);
+            return doubleValue;
+        } catch (NumberFormatException ignored) {
+        }
+
+        if (line.length() == 1) {
+            char charValue = line.charAt(0);
+            return charValue;
+        }
+
+        return line;
+    }
+
+    // The value a SCAN stores into a variable declared with tokenType, or
+    // null when the input does not fit the type.
+    static Object scanned(String tokenType, Object scannedValue) {
+        // Check if tokenType == scannedValue Type
+        // NOTE: Debug this please the token type recognized for boolean is character
+        // Check the hashMap under Environment to debug
+        // Problem: the saved token type in the hashmap for type BOOL is character
+        if (tokenType.equals("Boolean") & (scannedValue.equals("TRUE") || scannedValue.equals("FALSE"))) {
+            return scannedValue.equals("TRUE");
+        }
+
+        if (tokenType.equals("Float") && scannedValue instanceof Double) {
+            return scannedValue;
+        }
+
+        if (tokenType.equals(scannedValue.getClass().getSimpleName())) {
+            return scannedValue;
+        }
+
+        return null;
+    }
+}
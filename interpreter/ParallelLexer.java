@@ -0,0 +1,142 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import static interpreter.TokenType.EOF;
+
+// Lexes a large source on several cores. The source is cut right after
+// newlines, every chunk is lexed on its own with a private symbol table, and
+// the chunks are stitched back in order. The result is the same token buffer
+// the sequential lexer would produce.
+//
+// A newline is a safe place to cut everywhere except inside a string or
+// character literal that spans lines (a '#' comment always ends at the
+// newline). When that happens the chunk before the cut runs past it, so the
+// next chunk was lexed starting mid-literal; it is thrown away and lexed
+// again from where the previous one really stopped.
+class ParallelLexer {
+    private static final int MIN_CHUNK = 256 * 1024;
+
+    private final CharSequence source;
+    private final SymbolTable symbols;
+    // Keywords only, never interned into, so chunk tasks can copy it while
+    // the calling thread merges earlier chunks into 'symbols'.
+    private final SymbolTable keywords;
+    private final ForkJoinPool pool;
+    private ScanKernel kernel;
+    private char[] sourceChars;
+
+    private static class Chunk {
+        final int from;
+        final int to;
+        final TokenBuffer tokens;
+        final SymbolTable table;
+        final List<Lexer.LexError> errors;
+        final int end;
+        final int lines;
+
+        Chunk(int from, int to, Lexer lexer, TokenBuffer tokens, SymbolTable table) {
+            this.from = from;
+            this.to = to;
+            this.tokens = tokens;
+            this.table = table;
+            this.errors = lexer.errors();
+            this.end = lexer.position();
+            this.lines = lexer.line();
+        }
+    }
+
+    ParallelLexer(CharSequence source, SymbolTable symbols, ForkJoinPool pool) {
+        this.source = source;
+        this.symbols = symbols;
+        this.keywords = symbols.withKeywordsOnly();
+        this.pool = pool;
+    }
+
+    void useKernel(ScanKernel kernel, char[] sourceChars) {
+        this.kernel = kernel;
+        this.sourceChars = sourceChars;
+    }
+
+    TokenBuffer scanTokens() {
+        int[] bounds = split();
+        List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+        for (int i = 0; i + 1 < bounds.length; i++) {
+            int from = bounds[i];
+            int to = bounds[i + 1];
+            tasks.add(pool.submit(() -> lex(from, to)));
+        }
+
+        TokenBuffer tokens = new TokenBuffer(source, source.length() / 8);
+        int position = 0;
+        int line = 0;
+        for (ForkJoinTask<Chunk> task : tasks) {
+            Chunk chunk = task.join();
+            if (chunk.from != position) {
+                if (position >= chunk.to)
+                    continue;
+                chunk = lex(position, chunk.to);
+            }
+
+            tokens.append(chunk.tokens, line, remap(chunk.table));
+            for (Lexer.LexError error : chunk.errors) {
+                Code.error(error.line + line, error.message);
+            }
+            line += chunk.lines;
+            position = chunk.end;
+        }
+
+        tokens.add(EOF, position, 0, line);
+        return tokens;
+    }
+
+    private Chunk lex(int from, int to) {
+        SymbolTable table = keywords.withKeywordsOnly();
+        Lexer lexer = new Lexer(source, table);
+        lexer.useKernel(kernel, sourceChars);
+        TokenBuffer tokens = lexer.scanRange(from, to);
+        return new Chunk(from, to, lexer, tokens, table);
+    }
+
+    // Interning the chunk's names in the order it first saw them, chunk after
+    // chunk, hands out exactly the ids a single pass over the source would.
+    private int[] remap(SymbolTable table) {
+        int[] map = new int[table.size()];
+        for (int id = 0; id < map.length; id++) {
+            if (table.keyword(id) != null) {
+                map[id] = id;
+            } else {
+                String name = table.name(id);
+                map[id] = symbols.intern(name, 0, name.length());
+            }
+        }
+        return map;
+    }
+
+    private int[] split() {
+        int length = source.length();
+        int chunks = Math.max(1, Math.min(length / MIN_CHUNK, pool.getParallelism() * 4));
+
+        List<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        for (int i = 1; i < chunks; i++) {
+            int cut = Math.max((int) ((long) length * i / chunks), bounds.get(bounds.size() - 1));
+            while (cut < length && source.charAt(cut) != '\n')
+                cut++;
+            if (cut < length)
+                cut++;
+            if (cut > bounds.get(bounds.size() - 1) && cut < length)
+                bounds.add(cut);
+        }
+        bounds.add(length);
+
+        int[] result = new int[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+}
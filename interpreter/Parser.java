@@ -3,6 +3,7 @@ package interpreter;
 import static interpreter.TokenType.*;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -12,49 +13,306 @@ public class Parser {
     }
 
     private final String source;
-    private final List<Token> tokens;
+    private final TokenStream tokens;
     private Map<String, Object> symbolTable = new HashMap<>();
     private int current = 0;
+    private Token previous;
+    private Token beforePrevious;
     private Boolean variableDeclarationStarted = false;
     private Boolean executableStarted = false;
     private boolean findBEGIN = false;
     private boolean findEND = false;
     private int line = 0;
+    private BlockSink blocks;
+    private boolean lazy = false;
+    private int errors = 0;
+
+    // Binding level of each binary operator by TokenType ordinal, 0 for
+    // tokens that are not one, and the lowest level the operator's right
+    // operand may contain unparenthesized.
+    private static final int[] LEVEL = new int[TokenType.values().length];
+    private static final int[] RIGHT = new int[TokenType.values().length];
+    private static final int UNARY_ONLY = 7;
+
+    // Kinds of operator stack entries.
+    private static final byte BINARY = 0;
+    private static final byte PREFIX = 1;
+    private static final byte GROUP = 2;
+    private static final byte ASSIGN_TARGET = 3;
+
+    // Deepest expression tree the parser builds, left operands not counted.
+    // Every later pass walks the tree recursively but for left spines, so
+    // this keeps them all well inside the Java stack.
+    static final int MAX_DEPTH = 1000;
+
+    private Expr[] operands = new Expr[16];
+    private int[] depths = new int[16];
+    private int operandCount = 0;
+    private Token[] operators = new Token[16];
+    private byte[] kinds = new byte[16];
+    private int operatorCount = 0;
+
+    static {
+        level(1, OR);
+        level(2, AND);
+        level(3, NOT_EQUAL, EQUAL_EVAL);
+        level(4, GREATER_THAN, GREATER_OR_EQUAL, LESS_THAN, LESS_OR_EQUAL);
+        level(5, MINUS, PLUS, CONCAT);
+        level(6, STAR, SLASH, MODULO);
+        RIGHT[MINUS.ordinal()] = UNARY_ONLY;
+        RIGHT[PLUS.ordinal()] = UNARY_ONLY;
+        RIGHT[CONCAT.ordinal()] = UNARY_ONLY;
+    }
+
+    private static void level(int level, TokenType... types) {
+        for (TokenType type : types) {
+            LEVEL[type.ordinal()] = level;
+            RIGHT[type.ordinal()] = level + 1;
+        }
+    }
+
+    // Told about every BEGIN x ... END x block once it is closed, with its
+    // BEGIN and END tokens. Incremental reparsing uses it to find and re-enter
+    // blocks.
+    interface BlockSink {
+        void block(Token begin, Token end, Body body);
+    }
+
+    // The statements of a block body or of the whole program. While blocks
+    // are being reported it also records where each declaration starts: its
+    // first token, the parser state() before it and the index of its first
+    // statement.
+    static class Body {
+        final List<Stmt> statements = new ArrayList<>();
+        final List<Token> starts = new ArrayList<>();
+        final List<Integer> states = new ArrayList<>();
+        final List<Integer> firsts = new ArrayList<>();
+        int stateBefore;
+        int stateAfter;
+
+        void mark(Token start, int state) {
+            starts.add(start);
+            states.add(state);
+            firsts.add(statements.size());
+        }
+    }
 
     public Parser(List<Token> tokens, String source) {
+        this(TokenStream.of(tokens), source);
+    }
+
+    Parser(TokenStream tokens, String source) {
         this.source = source;
         this.tokens = tokens;
     }
 
-    List<Stmt> parse() {
-        List<Stmt> statements = new ArrayList<>();
-        while (!isAtEnd()) {
-            statements.addAll(declaration());
+    void reportBlocks(BlockSink blocks) {
+        this.blocks = blocks;
+    }
+
+    // Steps over IF and WHILE bodies by matching BEGIN and END, leaving
+    // Stmt.Lazy stubs that are parsed the first time they run. Syntax errors
+    // inside a body only show up then. Needs a stream that can go back.
+    void parseLazily() {
+        this.lazy = true;
+    }
+
+    // Parses a body skipped by a lazy parse, lazily again, as the parser
+    // would have at the time. Errors are reported as usual and then stop the
+    // program, since the parse is happening at run time; the exit status is
+    // the one for a syntax error.
+    static Stmt.Block parseSkipped(Stmt.Lazy stub) {
+        Parser parser = new Parser(stub.tokens, null);
+        parser.lazy = true;
+        parser.resume(stub.state, stub.start);
+        Body body = parser.body(stub.kind);
+        if (parser.position() != stub.end) {
+            parser.error(parser.peek(),
+                    stub.kind == IF ? "Expect 'END IF' after block" : "Expect 'END' after 'WHILE' body.");
         }
+        if (parser.errors > 0)
+            throw RuntimeError.reported(stub.begin);
+        return new Stmt.Block(body.statements);
+    }
+
+    // The flags that decide how the following tokens parse.
+    int state() {
+        return (executableStarted ? 1 : 0) | (findBEGIN ? 2 : 0) | (findEND ? 4 : 0);
+    }
 
-        return statements;
+    // Picks up at a declaration in the middle of the tokens: the stream
+    // starts there, 'consumed' tokens came before it and the parser was in
+    // 'state'. The caller then steps with declaration() until atBodyEnd().
+    void resume(int state, int consumed) {
+        this.executableStarted = (state & 1) != 0;
+        this.findBEGIN = (state & 2) != 0;
+        this.findEND = (state & 4) != 0;
+        this.current = consumed;
     }
 
+    int position() {
+        return current;
+    }
+
+    List<Stmt> parse() {
+        return parseBody().statements;
+    }
+
+    Body parseBody() {
+        return body(null);
+    }
+
+    // Expressions are parsed with explicit operand and operator stacks
+    // instead of one method per precedence level, so the parser itself never
+    // recurses. The trees it builds are still walked recursively by every
+    // later pass, but for the left spine of a chain like "a & b & ...", which
+    // they walk in a loop; so a tree nested deeper than MAX_DEPTH, not
+    // counting left operands, from parentheses, prefix operators, right
+    // operands or assignments, is a parse error. The trees are the ones
+    // the recursive grammar
+    //
+    //   assignment -> or ( "=" assignment )?
+    //   or -> and ( OR and )*
+    //   and -> equality ( AND equality )*
+    //   equality -> comparison ( ( "<>" | "==" ) comparison )*
+    //   comparison -> term ( ( ">" | ">=" | "<" | "<=" ) term )*
+    //   term -> factor ( ( "-" | "+" | "&" ) unary )*
+    //   factor -> unary ( ( "*" | "/" | "%" ) unary )*
+    //   unary -> ( NOT | "-" | "+" ) unary | primary
+    //
+    // builds, including its quirk that a term's right operand is a unary:
+    // "a + b * c" ends before '*'.
     private Expr expression() {
-        // return equality();
-        return assignment();
+        operandCount = 0;
+        operatorCount = 0;
+
+        operand:
+        while (true) {
+            while (match(NOT, MINUS, PLUS)) {
+                pushOperator(previous(), PREFIX);
+            }
+            Expr expr = primary();
+            if (expr == null) {
+                pushOperator(previous(), GROUP);
+                continue;
+            }
+            int depth = 1;
+
+            while (true) {
+                while (operatorCount > 0 && kinds[operatorCount - 1] == PREFIX) {
+                    expr = new Expr.Unary(operators[--operatorCount], expr);
+                    depth++;
+                    executableStarted = true;
+                }
+                pushOperand(expr, depth);
+
+                int level = LEVEL[peek().type.ordinal()];
+                if (level > 0 && shifts(level)) {
+                    pushOperator(advance(), BINARY);
+                    continue operand;
+                }
+                while (operatorCount > 0 && kinds[operatorCount - 1] == BINARY) {
+                    reduce();
+                }
+                if (match(ASSIGN)) {
+                    pushOperator(previous(), ASSIGN_TARGET);
+                    continue operand;
+                }
+
+                expr = assignments();
+                depth = depths[operandCount];
+                if (operatorCount == 0)
+                    return expr;
+                operatorCount--;
+                consume(RIGHT_PAREN, "Expect ')' after the expression.");
+                expr = new Expr.Grouping(expr);
+                depth = deeper(depth, previous());
+            }
+        }
     }
 
-    private Expr assignment() {
-        Expr expr = or();
+    // Whether an operator of the given level continues the expression after
+    // an operand. It goes on top of the stack if the right operand of the
+    // operator below may contain it; otherwise that operator is complete and
+    // reduced. The new one then repeats it (left associative), closes the
+    // next one down, or, when it binds tighter than a term's unary right
+    // operand allows, ends the expression.
+    private boolean shifts(int level) {
+        while (true) {
+            int top = operatorCount - 1;
+            if (top < 0 || kinds[top] != BINARY || level >= RIGHT[operators[top].type.ordinal()])
+                return true;
+            int topLevel = LEVEL[operators[top].type.ordinal()];
+            reduce();
+            if (level == topLevel)
+                return true;
+            if (level > topLevel)
+                return false;
+        }
+    }
 
-        if (match(ASSIGN)) {
-            Token assign = previous();
-            Expr value = assignment();
+    private void reduce() {
+        Token operator = operators[--operatorCount];
+        Expr right = operands[--operandCount];
+        int rightDepth = depths[operandCount];
+        Expr left = operands[--operandCount];
+        depths[operandCount] = Math.max(depths[operandCount], deeper(rightDepth, operator));
+        if (operator.type == OR || operator.type == AND) {
+            operands[operandCount++] = new Expr.Logical(left, operator, right);
+        } else {
+            operands[operandCount++] = new Expr.Binary(left, operator, right);
+            executableStarted = true;
+        }
+    }
 
-            if (expr instanceof Expr.Variable) {
-                Token name = ((Expr.Variable) expr).name;
-                return new Expr.Assign(name, value);
+    // The depth of a node over a subtree of the given depth.
+    private int deeper(int depth, Token at) {
+        if (depth >= MAX_DEPTH)
+            throw error(at, "Expression is nested too deeply.");
+        return depth + 1;
+    }
+
+    // Pops the operand and the assignments waiting for it, innermost first.
+    // The result's depth is left in depths[operandCount].
+    private Expr assignments() {
+        Expr value = operands[--operandCount];
+        int depth = depths[operandCount];
+        while (operatorCount > 0 && kinds[operatorCount - 1] == ASSIGN_TARGET) {
+            Token assign = operators[--operatorCount];
+            Expr target = operands[--operandCount];
+            if (target instanceof Expr.Variable) {
+                value = new Expr.Assign(((Expr.Variable) target).name, value);
+                depth = deeper(depth, assign);
+            } else {
+                error(assign, "Invalid assignment target.");
+                value = target;
+                depth = depths[operandCount];
             }
+        }
+        depths[operandCount] = depth;
+        return value;
+    }
 
-            error(assign, "Invalid assignment target.");
+    private void pushOperand(Expr expr, int depth) {
+        if (operandCount == operands.length) {
+            operands = Arrays.copyOf(operands, operandCount * 2);
+            depths = Arrays.copyOf(depths, operandCount * 2);
         }
-        return expr;
+        depths[operandCount] = depth;
+        operands[operandCount++] = expr;
+    }
+
+    // Every operator on the stack wraps the operand still to come, so a stack
+    // this deep already means a tree deeper than MAX_DEPTH.
+    private void pushOperator(Token operator, byte kind) {
+        if (operatorCount >= MAX_DEPTH)
+            throw error(operator, "Expression is nested too deeply.");
+        if (operatorCount == operators.length) {
+            operators = Arrays.copyOf(operators, operatorCount * 2);
+            kinds = Arrays.copyOf(kinds, operatorCount * 2);
+        }
+        operators[operatorCount] = operator;
+        kinds[operatorCount++] = kind;
     }
 
     // private Stmt declaration() {
@@ -77,31 +335,7 @@ public class Parser {
     // }
     // }
 
-    private Expr or() {
-        Expr expr = and();
-
-        while (match(OR)) {
-            Token operator = previous();
-            Expr right = and();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr and() {
-        Expr expr = equality();
-
-        while (match(AND)) {
-            Token operator = previous();
-            Expr right = equality();
-            expr = new Expr.Logical(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private List<Stmt> declaration() {
+    List<Stmt> declaration() {
         List<Stmt> stmts = new ArrayList<>();
 
         try {
@@ -143,12 +377,13 @@ public class Parser {
             return displayStatement();
         if (match(WHILE))
             return whileStatement();
+        Token begin = peek();
         if (match(BEGIN) && match(CODE)) {
             if (findBEGIN) {
                 throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
             }
             findBEGIN = true;
-            return new Stmt.Block(block());
+            return block(begin);
         }
         if (match(END) && match(CODE) && findEND) {
             throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
@@ -169,15 +404,20 @@ public class Parser {
     }
 
     private Stmt parseBranch() {
+        Token begin = peek();
         if (match(BEGIN) && match(IF)) {
-            List<Stmt> statements = new ArrayList<>();
-            while (!check(END) && !checkNext(IF) && !isAtEnd()) {
-                statements.addAll(declaration());
+            Stmt skipped = skip(begin, IF);
+            if (skipped != null) {
+                if (!(match(END) && match(IF))) {
+                    throw error(peek(), "Expect 'END IF' after block");
+                }
+                return skipped;
             }
+            Body body = body(IF);
             if (!(match(END) && match(IF))) {
                 throw error(peek(), "Expect 'END IF' after block");
             }
-            return new Stmt.Block(statements);
+            return report(begin, body);
         } else {
             throw error(peek(), "Expect 'BEGIN IF' before block");
         }
@@ -204,18 +444,53 @@ public class Parser {
         Expr condition = expression();
         consume(RIGHT_PAREN, "Expect ')' after while condition.");
 
-        consume(BEGIN, "Expect 'BEGIN' before 'WHILE'.");
+        Token begin = consume(BEGIN, "Expect 'BEGIN' before 'WHILE'.");
         consume(WHILE, "Expect 'WHILE' after 'BEGIN'.");
-
-        List<Stmt> body = new ArrayList<>();
-        while (!check(END) && !checkNext(WHILE) && !isAtEnd()) {
-            body.addAll(declaration());
+        Stmt skipped = skip(begin, WHILE);
+        if (skipped != null) {
+            consume(END, "Expect 'END' after 'WHILE' body.");
+            consume(WHILE, "Expect 'WHILE' after 'END'.");
+            return new Stmt.While(condition, skipped);
         }
+        Body body = body(WHILE);
 
         consume(END, "Expect 'END' after 'WHILE' body.");
         consume(WHILE, "Expect 'WHILE' after 'END'.");
 
-        return new Stmt.While(condition, new Stmt.Block(body));
+        return new Stmt.While(condition, report(begin, body));
+    }
+
+    // In lazy mode, moves to the END that closes the body just opened and
+    // returns a stub for the tokens in between. Null when parsing eagerly.
+    private Stmt skip(Token begin, TokenType kind) {
+        if (!lazy || blocks != null)
+            return null;
+        TokenStream replay = tokens.from(current);
+        if (replay == null)
+            return null;
+
+        int start = current;
+        int state = state();
+        int depth = 0;
+        while (!isAtEnd()) {
+            if (check(BEGIN)) {
+                depth++;
+            } else if (check(END)) {
+                if (depth == 0)
+                    break;
+                depth--;
+            }
+            advance();
+        }
+        return new Stmt.Lazy(begin, kind, replay, start, current, state);
+    }
+
+    // Called right after the closing 'END x' has been consumed.
+    private Stmt.Block report(Token begin, Body body) {
+        if (blocks != null) {
+            blocks.block(begin, beforePrevious, body);
+        }
+        return new Stmt.Block(body.statements);
     }
 
     private Stmt scanStatement() {
@@ -237,6 +512,7 @@ public class Parser {
 
         if (executableStarted) {
             Code.error(current, "Cannot declare variable after executable code");
+            errors++;
         }
 
         switch (type) {
@@ -290,7 +566,7 @@ public class Parser {
 
             // // Add the variable and its initializer to the symbol table
             // System.out.println("Initializer value: " + initializer);
-            symbolTable.put(name.lexeme, initializer);
+            symbolTable.put(name.getLexeme(), initializer);
 
             switch (tokenType) {
                 case FLOAT:
@@ -328,12 +604,8 @@ public class Parser {
         return new Stmt.Expression(expr);
     }
 
-    private List<Stmt> block() {
-        List<Stmt> statements = new ArrayList<>();
-
-        while (!check(END) && !checkNext(CODE) && !isAtEnd()) {
-            statements.addAll(declaration());
-        }
+    private Stmt.Block block(Token begin) {
+        Body body = body(CODE);
         if ((findBEGIN && findEND) || (check(BEGIN) && findBEGIN)) {
             throw error(peek(), "Cannot allow multiple BEGIN CODE and END CODE declarations");
         }
@@ -341,72 +613,30 @@ public class Parser {
         consume(END, "Expect END after block.");
         consume(CODE, "Expect CODE after END.");
         findEND = true;
-        return statements;
-    }
-
-    private Expr equality() {
-        Expr expr = comparison();
-
-        while (match(NOT_EQUAL, EQUAL_EVAL)) {
-            Token operator = previous();
-            Expr right = comparison();
-            executableStarted = true;
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr comparison() {
-        Expr expr = term();
-
-        while (match(GREATER_THAN, GREATER_OR_EQUAL, LESS_THAN, LESS_OR_EQUAL)) {
-            Token operator = previous();
-            Expr right = term();
-            executableStarted = true;
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr term() {
-        Expr expr = factor();
-
-        while (match(MINUS, PLUS, CONCAT)) {
-            Token operator = previous();
-            Expr right = unary();
-            executableStarted = true;
-            expr = new Expr.Binary(expr, operator, right);
+        return report(begin, body);
+    }
+
+    // Statements up to the END that closes a BEGIN kind block, or up to the
+    // end of the program when kind is null.
+    private Body body(TokenType kind) {
+        Body body = new Body();
+        body.stateBefore = state();
+        while (!atBodyEnd(kind)) {
+            if (blocks != null)
+                body.mark(peek(), state());
+            body.statements.addAll(declaration());
         }
-
-        return expr;
+        body.stateAfter = state();
+        return body;
     }
 
-    private Expr factor() {
-        Expr expr = unary();
-
-        while (match(STAR, SLASH, MODULO)) {
-            Token operator = previous();
-            Expr right = unary();
-            executableStarted = true;
-            expr = new Expr.Binary(expr, operator, right);
-        }
-
-        return expr;
-    }
-
-    private Expr unary() {
-        if (match(NOT, MINUS, PLUS)) {
-            Token operator = previous();
-            Expr right = unary();
-            executableStarted = true;
-            return new Expr.Unary(operator, right);
-        }
-
-        return primary();
+    boolean atBodyEnd(TokenType kind) {
+        if (kind == null)
+            return isAtEnd();
+        return check(END) || checkNext(kind) || isAtEnd();
     }
 
+    // A literal or a variable, or null after an opening parenthesis.
     private Expr primary() {
         if (match(FALSE))
             return new Expr.Literal(false);
@@ -441,9 +671,7 @@ public class Parser {
         }
 
         if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after the expression.");
-            return new Expr.Grouping(expr);
+            return null;
         }
         if (match(NEW_LINE)) {
             return new Expr.Literal("\n");
@@ -482,8 +710,11 @@ public class Parser {
     }
 
     private Token advance() {
-        if (!isAtEnd())
+        if (!isAtEnd()) {
+            beforePrevious = previous;
+            previous = tokens.next();
             current++;
+        }
         return previous();
     }
 
@@ -492,19 +723,20 @@ public class Parser {
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.peek(0);
     }
 
     private Token peekNext() {
-        return tokens.get(current + 1);
+        return tokens.peek(1);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return previous;
     }
 
     private ParseError error(Token token, String message) {
         Code.error(token, message);
+        errors++;
         return new ParseError();
     }
 
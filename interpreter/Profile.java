@@ -0,0 +1,101 @@
+package interpreter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// What a profiling run of a script saw its nodes do, for later runs of it to
+// start from instead of learning it all again. It is kept as text next to
+// the script, one node per line:
+//
+//   <line>:<n> <count> <runs> <state>
+//
+// A node is keyed by the source line it is on and its place among the
+// profiled nodes of that line. For an IF, 'count' is how often it took its
+// then branch and 'runs' how often it ran; for a WHILE, 'count' is how often
+// it ran its body. 'state' is what a Binary, Unary, Variable or Assign node
+// specialized to, or '-'.
+//
+// A profile that cannot be read is no profile. One that no longer fits its
+// script costs time but never changes what the script does, since every
+// specialization made from it is guarded like one made while running.
+final class Profile {
+    static final class Entry {
+        String state;
+        long count;
+        long runs;
+    }
+
+    // Whether the profile is being recorded, rather than applied.
+    final boolean recording;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private Profile(boolean recording) {
+        this.recording = recording;
+    }
+
+    // An empty profile to record a run into.
+    static Profile recording() {
+        return new Profile(true);
+    }
+
+    // The profile file of a script.
+    static Path of(Path script) {
+        return script.resolveSibling(script.getFileName() + ".profile");
+    }
+
+    // The profile stored in the file, or null.
+    static Profile load(Path file) {
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            Profile profile = new Profile(false);
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 4);
+                Entry entry = new Entry();
+                entry.count = Long.parseLong(fields[1]);
+                entry.runs = Long.parseLong(fields[2]);
+                entry.state = fields[3].equals("-") ? null : fields[3];
+                profile.entries.put(fields[0], entry);
+            }
+            return profile;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // The entry of the node with the key: a new one while recording, or the
+    // one loaded, if any.
+    Entry entry(String key) {
+        if (recording)
+            return entries.computeIfAbsent(key, k -> new Entry());
+        return entries.get(key);
+    }
+
+    // Writes next to the target and renames, like the program cache. A
+    // profile that cannot be written leaves the old one, if any.
+    void save(Path file) {
+        try {
+            Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "profile", ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+                    out.write(entry.getKey() + " " + value.count + " " + value.runs + " "
+                            + (value.state == null ? "-" : value.state));
+                    out.newLine();
+                }
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                return;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // keep the profile there was
+        }
+    }
+}
@@ -0,0 +1,713 @@
+package interpreter;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Parsed programs keyed by a hash of their source, so running a script seen
+// before skips the lexer and the parser. The most recently used programs are
+// kept in memory. Given a directory, every program stored is also written
+// there in a compact binary form, which later runs read back when the memory
+// tier misses. Unreadable or outdated files count as misses.
+//
+// A file is the magic number and format version, a pool of every distinct
+// name, lexeme and string literal, and then the statements as tagged nodes.
+// Strings are referred to by pool index and ints are written as zigzag
+// varints, since nearly all of them are small.
+class ProgramCache {
+    // Bump whenever the layout written below, the Stmt and Expr classes or
+    // the order of TokenType change.
+    static final int FORMAT_VERSION = 1;
+    private static final int MAGIC = 0x434F4445; // "CODE"
+
+    // Node tags. 0 stands for a missing Expr or Stmt.
+    private static final byte NONE = 0;
+    private static final byte ASSIGN = 1;
+    private static final byte BINARY = 2;
+    private static final byte GROUPING = 3;
+    private static final byte LITERAL = 4;
+    private static final byte LOGICAL = 5;
+    private static final byte UNARY = 6;
+    private static final byte VARIABLE = 7;
+    private static final byte BLOCK = 8;
+    private static final byte EXPRESSION = 9;
+    private static final byte DISPLAY = 10;
+    private static final byte SCAN = 11;
+    private static final byte IF = 12;
+    private static final byte WHILE = 13;
+    private static final byte INT = 14;
+    private static final byte FLOAT = 15;
+    private static final byte CHAR = 16;
+    private static final byte STRING = 17;
+    private static final byte BOOL = 18;
+    private static final byte MULTIVAR = 19;
+
+    // Literal value tags.
+    private static final byte NULL_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte DOUBLE_VALUE = 2;
+    private static final byte STRING_VALUE = 3;
+    private static final byte CHAR_VALUE = 4;
+    private static final byte BOOL_VALUE = 5;
+
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final Path directory;
+    private final Map<String, List<Stmt>> recent;
+    private long hits = 0;
+    private long diskHits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    // Keeps up to 'capacity' programs in memory, and on disk under
+    // 'directory' unless it is null.
+    ProgramCache(int capacity, Path directory) {
+        this.directory = directory;
+        this.recent = new LinkedHashMap<String, List<Stmt>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Stmt>> eldest) {
+                if (size() <= capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    // The SHA-256 of the source, in hex.
+    static String key(String source) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(source.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // The program stored under the key, or null.
+    List<Stmt> get(String key) {
+        List<Stmt> statements = recent.get(key);
+        if (statements == null && directory != null) {
+            statements = read(directory.resolve(key + ".ast"));
+            if (statements != null) {
+                diskHits++;
+                recent.put(key, statements);
+            }
+        }
+        if (statements == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return statements;
+    }
+
+    // Stores a program that parsed without errors. It must not contain
+    // Stmt.Lazy stubs.
+    void put(String key, List<Stmt> statements) {
+        recent.put(key, statements);
+        if (directory != null) {
+            write(directory.resolve(key + ".ast"), statements);
+        }
+    }
+
+    long hits() {
+        return hits;
+    }
+
+    // The hits that had to read the program from disk.
+    long diskHits() {
+        return diskHits;
+    }
+
+    long misses() {
+        return misses;
+    }
+
+    long evictions() {
+        return evictions;
+    }
+
+    // The counters as one line, printed to stderr at exit by --cache-stats.
+    String report() {
+        return "Program cache: " + hits + " hits (" + diskHits + " from disk), " + misses + " misses, "
+                + evictions + " evictions, " + recent.size() + " programs in memory";
+    }
+
+    private static List<Stmt> read(Path file) {
+        if (!Files.isRegularFile(file))
+            return null;
+        try {
+            Reader reader = new Reader(Files.readAllBytes(file));
+            if (reader.readInt() != MAGIC || reader.readInt() != FORMAT_VERSION)
+                return null;
+            reader.readPool();
+            return reader.statements();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // Writes next to the target and renames, so a concurrent reader never
+    // sees half a file. A cache that cannot be written is just a cache that
+    // misses next time.
+    private static void write(Path file, List<Stmt> statements) {
+        try {
+            Files.createDirectories(file.getParent());
+            Path temporary = Files.createTempFile(file.getParent(), "program", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                Writer writer = new Writer();
+                writer.statements(statements);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                writer.writeTo(out);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(temporary);
+                return;
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // leave the program uncached on disk
+        }
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        int bits = (value << 1) ^ (value >> 31);
+        while ((bits & ~0x7F) != 0) {
+            out.writeByte(bits & 0x7F | 0x80);
+            bits >>>= 7;
+        }
+        out.writeByte(bits);
+    }
+
+    // Writes the nodes to a buffer while collecting the pool, which has to
+    // go first in the file.
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(body);
+        private final Map<String, Integer> pool = new LinkedHashMap<>();
+
+        void writeTo(DataOutputStream file) throws IOException {
+            writeVarint(file, pool.size());
+            for (String value : pool.keySet()) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarint(file, bytes.length);
+                file.write(bytes);
+            }
+            body.writeTo(file);
+        }
+
+        void statements(List<Stmt> statements) {
+            writeInt(statements.size());
+            for (Stmt statement : statements) {
+                stmt(statement);
+            }
+        }
+
+        private void stmt(Stmt stmt) {
+            if (stmt == null) {
+                writeByte(NONE);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        // A chain is written down its left spine in a loop, as the visits
+        // would write it: the tags top down, the operand at the bottom, then
+        // each operator and right operand bottom up.
+        private void expr(Expr expr) {
+            if (expr == null) {
+                writeByte(NONE);
+            } else if (Expr.leftOf(expr) == null) {
+                expr.accept(this);
+            } else {
+                List<Expr> spine = Expr.spine(expr);
+                for (int i = spine.size() - 1; i >= 0; i--) {
+                    writeByte(spine.get(i) instanceof Expr.Logical ? LOGICAL : BINARY);
+                }
+                expr(Expr.bottom(expr));
+                for (Expr node : spine) {
+                    operator(Expr.operatorOf(node));
+                    expr(Expr.rightOf(node));
+                }
+            }
+        }
+
+        private void name(Token name) {
+            writeString(name.getLexeme());
+            writeInt(name.getLine());
+        }
+
+        private void operator(Token operator) {
+            writeByte(operator.type.ordinal());
+            writeString(operator.getLexeme());
+            writeInt(operator.getLine());
+        }
+
+        private void value(Object value) {
+            if (value == null) {
+                writeByte(NULL_VALUE);
+            } else if (value instanceof Integer) {
+                writeByte(INT_VALUE);
+                writeInt((Integer) value);
+            } else if (value instanceof Double) {
+                writeByte(DOUBLE_VALUE);
+                try {
+                    out.writeDouble((Double) value);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else if (value instanceof String) {
+                writeByte(STRING_VALUE);
+                writeString((String) value);
+            } else if (value instanceof Character) {
+                writeByte(CHAR_VALUE);
+                writeInt((Character) value);
+            } else if (value instanceof Boolean) {
+                writeByte(BOOL_VALUE);
+                writeByte((Boolean) value ? 1 : 0);
+            } else {
+                throw new IllegalArgumentException("Cannot cache a literal of " + value.getClass());
+            }
+        }
+
+        private void writeByte(int value) {
+            try {
+                out.writeByte(value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void writeInt(int value) {
+            try {
+                writeVarint(out, value);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        // Pool index plus one, 0 for null.
+        private void writeString(String value) {
+            if (value == null) {
+                writeInt(0);
+                return;
+            }
+            Integer index = pool.get(value);
+            if (index == null) {
+                index = pool.size();
+                pool.put(value, index);
+            }
+            writeInt(index + 1);
+        }
+
+        private Void declaration(byte tag, Token name, Expr initializer) {
+            writeByte(tag);
+            name(name);
+            expr(initializer);
+            return null;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            writeByte(ASSIGN);
+            name(expr.name);
+            expr(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            writeByte(BINARY);
+            expr(expr.left);
+            operator(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            writeByte(GROUPING);
+            expr(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            writeByte(LITERAL);
+            value(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            writeByte(LOGICAL);
+            expr(expr.left);
+            operator(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            writeByte(UNARY);
+            operator(expr.operator);
+            expr(expr.right);
+            return null;
+        }
+
+        // Specialization happens after a program is cached; should one get
+        // here, it is stored as the operator it stands for.
+        @Override
+        public Void visitSpecializedExpr(Expr.Specialized expr) {
+            if (expr.left == null)
+                return visitUnaryExpr(new Expr.Unary(expr.operator, expr.right));
+            return visitBinaryExpr(new Expr.Binary(expr.left, expr.operator, expr.right));
+        }
+
+        @Override
+        public Void visitInvariantExpr(Expr.Invariant expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Void visitUpdateExpr(Expr.Update expr) {
+            return Fuser.unfused(expr).accept(this);
+        }
+
+        @Override
+        public Void visitCompareExpr(Expr.Compare expr) {
+            return Fuser.unfused(expr).accept(this);
+        }
+
+        @Override
+        public Void visitConcatExpr(Expr.Concat expr) {
+            return Fuser.unfused(expr).accept(this);
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            writeByte(VARIABLE);
+            name(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            writeByte(BLOCK);
+            statements(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            writeByte(EXPRESSION);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitDisplayStmt(Stmt.Display stmt) {
+            writeByte(DISPLAY);
+            expr(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitScanStmt(Stmt.Scan stmt) {
+            return declaration(SCAN, stmt.name, stmt.initializer);
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            writeByte(IF);
+            expr(stmt.condition);
+            stmt(stmt.thenBranch);
+            stmt(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            writeByte(WHILE);
+            expr(stmt.condition);
+            stmt(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIntStmt(Stmt.Int stmt) {
+            return declaration(INT, stmt.name, stmt.intializer);
+        }
+
+        @Override
+        public Void visitFloatStmt(Stmt.Float stmt) {
+            return declaration(FLOAT, stmt.name, stmt.initializer);
+        }
+
+        @Override
+        public Void visitCharStmt(Stmt.Char stmt) {
+            return declaration(CHAR, stmt.name, stmt.initializer);
+        }
+
+        @Override
+        public Void visitStringStmt(Stmt.String stmt) {
+            return declaration(STRING, stmt.name, stmt.initializer);
+        }
+
+        @Override
+        public Void visitBoolStmt(Stmt.Bool stmt) {
+            return declaration(BOOL, stmt.name, stmt.initializer);
+        }
+
+        @Override
+        public Void visitMultiVarStmt(Stmt.MultiVar stmt) {
+            writeByte(MULTIVAR);
+            writeInt(stmt.names.size());
+            for (int i = 0; i < stmt.names.size(); i++) {
+                name(stmt.names.get(i));
+                expr(stmt.initializers.get(i));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLoopStmt(Stmt.Loop stmt) {
+            return visitWhileStmt(new Stmt.While(stmt.condition, stmt.body));
+        }
+
+        @Override
+        public Void visitSwitchStmt(Stmt.Switch stmt) {
+            return visitIfStmt(SwitchLowerer.unlowered(stmt));
+        }
+
+        @Override
+        public Void visitLazyStmt(Stmt.Lazy stmt) {
+            throw new IllegalArgumentException("Cannot cache a lazily parsed body");
+        }
+    }
+
+    // Rebuilds the tree from the bytes of a whole file. Names are interned
+    // again, since symbol ids are only stable within one process. Running
+    // off the end throws, which read() treats as a miss.
+    private static class Reader {
+        private final byte[] bytes;
+        private int position = 0;
+        private String[] pool;
+        private int[] symbols;
+
+        Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int readInt() {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value = value << 8 | bytes[position++] & 0xFF;
+            }
+            return value;
+        }
+
+        private byte readByte() {
+            return bytes[position++];
+        }
+
+        private int readVarint() {
+            int bits = 0;
+            for (int shift = 0;; shift += 7) {
+                int b = bytes[position++] & 0xFF;
+                bits |= (b & 0x7F) << shift;
+                if (b < 0x80)
+                    break;
+            }
+            return (bits >>> 1) ^ -(bits & 1);
+        }
+
+        private double readDouble() {
+            long bits = 0;
+            for (int i = 0; i < 8; i++) {
+                bits = bits << 8 | bytes[position++] & 0xFF;
+            }
+            return Double.longBitsToDouble(bits);
+        }
+
+        void readPool() {
+            pool = new String[readVarint()];
+            symbols = new int[pool.length];
+            for (int i = 0; i < pool.length; i++) {
+                int length = readVarint();
+                pool[i] = new String(bytes, position, length, StandardCharsets.UTF_8);
+                position += length;
+                symbols[i] = -1;
+            }
+        }
+
+        List<Stmt> statements() {
+            int count = readVarint();
+            List<Stmt> statements = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                statements.add(stmt());
+            }
+            return statements;
+        }
+
+        private Token name() {
+            int index = readVarint() - 1;
+            int line = readVarint();
+            if (symbols[index] < 0) {
+                symbols[index] = Lexer.symbols.intern(pool[index], 0, pool[index].length());
+            }
+            return new Token(TokenType.IDENTIFIER, pool[index], null, line, symbols[index]);
+        }
+
+        private Token operator() {
+            TokenType type = TYPES[readByte()];
+            String lexeme = readString();
+            return new Token(type, lexeme, null, readVarint());
+        }
+
+        private Object value() {
+            byte tag = readByte();
+            switch (tag) {
+                case NULL_VALUE:
+                    return null;
+                case INT_VALUE:
+                    return readVarint();
+                case DOUBLE_VALUE:
+                    return readDouble();
+                case STRING_VALUE:
+                    return readString();
+                case CHAR_VALUE:
+                    return (char) readVarint();
+                case BOOL_VALUE:
+                    return readByte() != 0;
+                default:
+                    throw new IllegalStateException("Bad literal tag " + tag);
+            }
+        }
+
+        private String readString() {
+            int index = readVarint();
+            return index == 0 ? null : pool[index - 1];
+        }
+
+        private Expr expr() {
+            byte tag = readByte();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case ASSIGN: {
+                    Token name = name();
+                    return new Expr.Assign(name, expr());
+                }
+                case BINARY:
+                case LOGICAL:
+                    return chain(tag);
+                case GROUPING:
+                    return new Expr.Grouping(expr());
+                case LITERAL:
+                    return new Expr.Literal(value());
+                case UNARY: {
+                    Token operator = operator();
+                    return new Expr.Unary(operator, expr());
+                }
+                case VARIABLE:
+                    return new Expr.Variable(name());
+                default:
+                    throw new IllegalStateException("Bad expression tag " + tag);
+            }
+        }
+
+        // A chain, read down its left spine in a loop.
+        private Expr chain(byte tag) {
+            List<Byte> tags = new ArrayList<>();
+            tags.add(tag);
+            while (bytes[position] == BINARY || bytes[position] == LOGICAL) {
+                tags.add(readByte());
+            }
+            Expr left = expr();
+            for (int i = tags.size() - 1; i >= 0; i--) {
+                Token operator = operator();
+                Expr right = expr();
+                left = tags.get(i) == LOGICAL ? new Expr.Logical(left, operator, right)
+                        : new Expr.Binary(left, operator, right);
+            }
+            return left;
+        }
+
+        private Stmt stmt() {
+            byte tag = readByte();
+            switch (tag) {
+                case NONE:
+                    return null;
+                case BLOCK:
+                    return new Stmt.Block(statements());
+                case EXPRESSION:
+                    return new Stmt.Expression(expr());
+                case DISPLAY:
+                    return new Stmt.Display(expr());
+                case SCAN: {
+                    Token name = name();
+                    return new Stmt.Scan(name, expr());
+                }
+                case IF: {
+                    Expr condition = expr();
+                    Stmt thenBranch = stmt();
+                    return new Stmt.If(condition, thenBranch, stmt());
+                }
+                case WHILE: {
+                    Expr condition = expr();
+                    return new Stmt.While(condition, stmt());
+                }
+                case INT: {
+                    Token name = name();
+                    return new Stmt.Int(name, expr());
+                }
+                case FLOAT: {
+                    Token name = name();
+                    return new Stmt.Float(name, expr());
+                }
+                case CHAR: {
+                    Token name = name();
+                    return new Stmt.Char(name, expr());
+                }
+                case STRING: {
+                    Token name = name();
+                    return new Stmt.String(name, expr());
+                }
+                case BOOL: {
+                    Token name = name();
+                    return new Stmt.Bool(name, expr());
+                }
+                case MULTIVAR: {
+                    int count = readVarint();
+                    List<Token> names = new ArrayList<>(count);
+                    List<Expr> initializers = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        names.add(name());
+                        initializers.add(expr());
+                    }
+                    return new Stmt.MultiVar(null, names, initializers);
+                }
+                default:
+                    throw new IllegalStateException("Bad statement tag " + tag);
+            }
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Binds every variable use to the frame and slot it lives in at run time,
+// before anything runs. Each block that declares variables gets a frame, an
+// Object[] whose slot 0 links to the enclosing frame and whose other slots
+// hold the block's variables, so the interpreter reads a variable by
+// following 'depth' links and indexing, without hashing names. A name that
+// is not declared in any enclosing block at the point of use is reported
+// here, as an error, instead of when the statement runs. That includes the
+// names in bodies a --lazy parse skipped, which are checked on their tokens.
+//
+// The global scope lives as long as the resolver, so a prompt session can
+// use variables declared on earlier lines.
+class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+    // The variables a block has declared so far, by symbol id, with the type
+    // each was declared with, for SCAN. The scope of a block without a frame
+    // declares nothing and does not count towards depths.
+    static class Scope {
+        final Scope enclosing;
+        final boolean framed;
+        final Map<Integer, Integer> slots = new HashMap<>();
+        final Map<Integer, String> types = new HashMap<>();
+        int size = 0;
+
+        Scope(Scope enclosing) {
+            this(enclosing, true);
+        }
+
+        Scope(Scope enclosing, boolean framed) {
+            this.enclosing = enclosing;
+            this.framed = framed;
+        }
+
+        // Depth of the nearest scope declaring the symbol, with its slot in
+        // the low 32 bits, or -1.
+        long find(int symbol) {
+            int depth = 0;
+            for (Scope scope = this; scope != null; scope = scope.enclosing) {
+                Integer slot = scope.slots.get(symbol);
+                if (slot != null)
+                    return (long) depth << 32 | slot;
+                if (scope.framed)
+                    depth++;
+            }
+            return -1;
+        }
+
+        // The slot of the symbol in this scope, added if it is new.
+        int declare(int symbol, String type) {
+            Integer slot = slots.get(symbol);
+            if (slot == null) {
+                slot = ++size;
+                slots.put(symbol, slot);
+            }
+            types.put(symbol, type);
+            return slot;
+        }
+
+        // A copy of the chain as it stands, for a lazily parsed body that
+        // is resolved later, after declarations that follow it were added.
+        Scope snapshot() {
+            Scope copy = new Scope(enclosing == null ? null : enclosing.snapshot(), framed);
+            copy.slots.putAll(slots);
+            copy.types.putAll(types);
+            copy.size = size;
+            return copy;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private Scope globals = new Scope(null);
+    private Scope scope = globals;
+    private int errors = 0;
+    // The globals as they were before the program beginProgram() started.
+    private Scope saved = null;
+
+    Resolver(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    void resolve(List<Stmt> statements) {
+        Scope previous = globals.snapshot();
+        errors = 0;
+        resolve(statements, globals);
+        if (errors > 0) {
+            // nothing of the program runs, so it declared nothing either
+            globals = previous;
+            scope = globals;
+        } else {
+            interpreter.reserveGlobals(globals.size);
+        }
+    }
+
+    // For a parser that binds the names of a program itself as it reads it
+    // (FlatParser): the global scope to declare into, and the end of the
+    // program, which keeps what it declared only if it is going to run.
+    Scope beginProgram() {
+        saved = globals.snapshot();
+        return globals;
+    }
+
+    void endProgram(boolean runs) {
+        if (runs) {
+            interpreter.reserveGlobals(globals.size);
+        } else {
+            globals = saved;
+            scope = globals;
+        }
+        saved = null;
+    }
+
+    // Resolves a body a lazy parse skipped, now that it has been parsed,
+    // against the variables that were in scope where it sits. The names it
+    // uses were already checked against its tokens before the program ran,
+    // so this only finds what that check cannot see, like a variable of a
+    // sibling block; the error stops the program once reported.
+    static void resolveSkipped(Stmt.Lazy stub, Stmt.Block body) {
+        Resolver resolver = new Resolver(null);
+        resolver.scope = stub.scope;
+        body.accept(resolver);
+        if (resolver.errors > 0)
+            throw RuntimeError.reported(stub.begin);
+    }
+
+    private void resolve(List<Stmt> statements, Scope scope) {
+        Scope previous = this.scope;
+        try {
+            this.scope = scope;
+            for (Stmt statement : statements) {
+                resolve(statement);
+            }
+        } finally {
+            this.scope = previous;
+        }
+    }
+
+    private void resolve(Stmt stmt) {
+        if (stmt != null)
+            stmt.accept(this);
+    }
+
+    // A chain is resolved down its left spine in a loop, operands in the
+    // order they run.
+    private void resolve(Expr expr) {
+        if (expr == null)
+            return;
+        if (Expr.leftOf(expr) == null) {
+            expr.accept(this);
+            return;
+        }
+        List<Expr> spine = Expr.spine(expr);
+        resolve(Expr.bottom(expr));
+        for (Expr node : spine) {
+            resolve(Expr.rightOf(node));
+        }
+    }
+
+    private int declare(Token name, String type) {
+        return scope.declare(name.symbol, type);
+    }
+
+    // Depth of the nearest scope declaring the name, with its slot in the
+    // low 32 bits, or -1 after reporting the name as undefined.
+    private long lookup(Token name, String message) {
+        long binding = scope.find(name.symbol);
+        if (binding >= 0)
+            return binding;
+        Code.error(name, message);
+        errors++;
+        return -1;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        resolve(expr.value);
+        long binding = lookup(expr.name, "Undefined variable '" + expr.name.getLexeme() + ".");
+        expr.depth = (int) (binding >> 32);
+        expr.slot = (int) binding;
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        long binding = lookup(expr.name, "Undefined variable '" + expr.name.getLexeme() + "'.");
+        expr.depth = (int) (binding >> 32);
+        expr.slot = (int) binding;
+        return null;
+    }
+
+    @Override
+    public Void visitSpecializedExpr(Expr.Specialized expr) {
+        resolve(expr.left);
+        resolve(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitInvariantExpr(Expr.Invariant expr) {
+        resolve(expr.expression);
+        return null;
+    }
+
+    // Fused nodes are made after resolving and keep what it found.
+    @Override
+    public Void visitUpdateExpr(Expr.Update expr) {
+        resolve(expr.operand);
+        return null;
+    }
+
+    @Override
+    public Void visitCompareExpr(Expr.Compare expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitConcatExpr(Expr.Concat expr) {
+        for (Expr operand : expr.operands) {
+            resolve(operand);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.framed = declares(stmt);
+        Scope block = new Scope(scope, stmt.framed);
+        resolve(stmt.statements, block);
+        stmt.size = block.size;
+        return null;
+    }
+
+    // Declarations only come at the top of a block, never nested in other
+    // statements.
+    static boolean declares(Stmt.Block block) {
+        for (Stmt statement : block.statements) {
+            if (statement instanceof Stmt.Int || statement instanceof Stmt.Float || statement instanceof Stmt.Char
+                    || statement instanceof Stmt.String || statement instanceof Stmt.Bool)
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitDisplayStmt(Stmt.Display stmt) {
+        resolve(stmt.expression);
+        return null;
+    }
+
+    // SCAN checks the input against the type of a variable declared in the
+    // block it is in; for any other variable there is no type to check.
+    @Override
+    public Void visitScanStmt(Stmt.Scan stmt) {
+        long binding = lookup(stmt.name, "Undefined variable '" + stmt.name.getLexeme() + ".");
+        stmt.depth = (int) (binding >> 32);
+        stmt.slot = (int) binding;
+        stmt.type = scope.types.get(stmt.name.symbol);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.thenBranch);
+        resolve(stmt.elseBranch);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitIntStmt(Stmt.Int stmt) {
+        resolve(stmt.intializer);
+        stmt.slot = declare(stmt.name, "Integer");
+        return null;
+    }
+
+    @Override
+    public Void visitFloatStmt(Stmt.Float stmt) {
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name, "Float");
+        return null;
+    }
+
+    @Override
+    public Void visitCharStmt(Stmt.Char stmt) {
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name, "Character");
+        return null;
+    }
+
+    @Override
+    public Void visitStringStmt(Stmt.String stmt) {
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name, "String");
+        return null;
+    }
+
+    @Override
+    public Void visitBoolStmt(Stmt.Bool stmt) {
+        resolve(stmt.initializer);
+        stmt.slot = declare(stmt.name, "Boolean");
+        return null;
+    }
+
+    // Assigns each name in turn, like a row of assignments.
+    @Override
+    public Void visitMultiVarStmt(Stmt.MultiVar stmt) {
+        stmt.depths = new int[stmt.names.size()];
+        stmt.slots = new int[stmt.names.size()];
+        for (int i = 0; i < stmt.names.size(); i++) {
+            Token name = stmt.names.get(i);
+            resolve(stmt.initializers.get(i));
+            long binding = lookup(name, "Undefined variable '" + name.getLexeme() + ".");
+            stmt.depths[i] = (int) (binding >> 32);
+            stmt.slots[i] = (int) binding;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLoopStmt(Stmt.Loop stmt) {
+        resolve(stmt.condition);
+        resolve(stmt.body);
+        return null;
+    }
+
+    @Override
+    public Void visitSwitchStmt(Stmt.Switch stmt) {
+        for (Stmt branch : stmt.branches) {
+            resolve(branch);
+        }
+        resolve(stmt.otherwise);
+        return null;
+    }
+
+    // The body is not parsed yet, but every name in it has to be declared
+    // either where it sits or by the body itself, so that is checked on its
+    // tokens: a name right after a type or a comma is declared, any other
+    // is used.
+    @Override
+    public Void visitLazyStmt(Stmt.Lazy stmt) {
+        stmt.scope = scope.snapshot();
+        Set<Integer> declared = new HashSet<>();
+        List<Token> used = new ArrayList<>();
+        TokenStream tokens = stmt.tokens.from(stmt.start);
+        TokenType before = null;
+        for (int i = stmt.start; i < stmt.end; i++) {
+            Token token = tokens.next();
+            if (token.type == TokenType.IDENTIFIER) {
+                if (isDeclaring(before)) {
+                    declared.add(token.symbol);
+                } else {
+                    used.add(token);
+                }
+            }
+            before = token.type;
+        }
+        for (Token name : used) {
+            if (!declared.contains(name.symbol))
+                lookup(name, "Undefined variable '" + name.getLexeme() + "'.");
+        }
+        return null;
+    }
+
+    private static boolean isDeclaring(TokenType before) {
+        if (before == null)
+            return false;
+        switch (before) {
+            case INT:
+            case FLOAT:
+            case CHAR:
+            case STRING:
+            case BOOL:
+            case COMMA:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
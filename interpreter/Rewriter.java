@@ -0,0 +1,323 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Base for the passes that turn a resolved tree into a faster one. Each
+// visit returns the node to use in place of the one visited; here, that is
+// the node itself unless one of its children was replaced, in which case it
+// is copied around the new children with what the Resolver set on it. A
+// pass overrides the visits for the nodes it replaces. A statement visit
+// may return null to drop the statement.
+class Rewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+    // The same list if no statement in it was replaced or dropped.
+    List<Stmt> rewrite(List<Stmt> statements) {
+        List<Stmt> rewritten = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt replacement = rewrite(statement);
+            if (replacement != statement && rewritten == null) {
+                rewritten = new ArrayList<>(statements.subList(0, i));
+            }
+            if (rewritten != null && replacement != null)
+                rewritten.add(replacement);
+        }
+        return rewritten == null ? statements : rewritten;
+    }
+
+    Stmt rewrite(Stmt stmt) {
+        return stmt == null ? null : stmt.accept(this);
+    }
+
+    // A chain is rewritten down its left spine in a loop: the operand at the
+    // bottom first, then each node up the spine around what its left operand
+    // became, through binary, logical and specialized. The walk stops at a
+    // node the pass does not take as part of the spine, which is rewritten
+    // on its own.
+    Expr rewrite(Expr expr) {
+        if (expr == null)
+            return null;
+        if (Expr.leftOf(expr) == null)
+            return expr.accept(this);
+        List<Expr> spine = new ArrayList<>();
+        Expr node = expr;
+        do {
+            spine.add(node);
+            node = Expr.leftOf(node);
+        } while (Expr.leftOf(node) != null && inSpine(node));
+        Expr left = rewrite(node);
+        for (int i = spine.size() - 1; i >= 0; i--) {
+            left = around(spine.get(i), left);
+        }
+        return left;
+    }
+
+    boolean inSpine(Expr expr) {
+        return true;
+    }
+
+    private Expr around(Expr expr, Expr left) {
+        if (expr instanceof Expr.Binary)
+            return binary((Expr.Binary) expr, left);
+        if (expr instanceof Expr.Logical)
+            return logical((Expr.Logical) expr, left);
+        return specialized((Expr.Specialized) expr, left);
+    }
+
+    // The node to use in place of one with two operands, given what its
+    // left operand has been rewritten to.
+    Expr binary(Expr.Binary expr, Expr left) {
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    Expr logical(Expr.Logical expr, Expr left) {
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    Expr specialized(Expr.Specialized expr, Expr left) {
+        Expr right = rewrite(expr.right);
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Specialized(expr.operation, left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = rewrite(expr.value);
+        if (value == expr.value)
+            return expr;
+        Expr.Assign copy = new Expr.Assign(expr.name, value);
+        copy.depth = expr.depth;
+        copy.slot = expr.slot;
+        return copy;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        return binary(expr, rewrite(expr.left));
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        Expr expression = rewrite(expr.expression);
+        if (expression == expr.expression)
+            return expr;
+        return new Expr.Grouping(expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        return logical(expr, rewrite(expr.left));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        if (right == expr.right)
+            return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitSpecializedExpr(Expr.Specialized expr) {
+        return specialized(expr, rewrite(expr.left));
+    }
+
+    // Invariants and loops belong to the LoopOptimizer's plan for a loop,
+    // which copies would not be part of, so they are left as they are.
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUpdateExpr(Expr.Update expr) {
+        Expr operand = rewrite(expr.operand);
+        if (operand == expr.operand)
+            return expr;
+        return new Expr.Update(expr.name, expr.depth, expr.slot, expr.operation, expr.operator, operand);
+    }
+
+    @Override
+    public Expr visitCompareExpr(Expr.Compare expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitConcatExpr(Expr.Concat expr) {
+        List<Expr> operands = new ArrayList<>(expr.operands.size());
+        boolean changed = false;
+        for (Expr operand : expr.operands) {
+            Expr replacement = rewrite(operand);
+            changed |= replacement != operand;
+            operands.add(replacement);
+        }
+        if (!changed)
+            return expr;
+        return new Expr.Concat(operands, expr.operator);
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = rewrite(stmt.statements);
+        if (statements == stmt.statements)
+            return stmt;
+        Stmt.Block copy = new Stmt.Block(statements);
+        copy.size = stmt.size;
+        copy.framed = stmt.framed;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression)
+            return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitDisplayStmt(Stmt.Display stmt) {
+        Expr expression = rewrite(stmt.expression);
+        if (expression == stmt.expression)
+            return stmt;
+        return new Stmt.Display(expression);
+    }
+
+    @Override
+    public Stmt visitScanStmt(Stmt.Scan stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt thenBranch = rewrite(stmt.thenBranch);
+        Stmt elseBranch = rewrite(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch)
+            return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = rewrite(stmt.condition);
+        Stmt body = rewrite(stmt.body);
+        if (condition == stmt.condition && body == stmt.body)
+            return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    @Override
+    public Stmt visitIntStmt(Stmt.Int stmt) {
+        Expr initializer = rewrite(stmt.intializer);
+        if (initializer == stmt.intializer)
+            return stmt;
+        Stmt.Int copy = new Stmt.Int(stmt.name, initializer);
+        copy.slot = stmt.slot;
+        copy.typed = stmt.typed;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitFloatStmt(Stmt.Float stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        Stmt.Float copy = new Stmt.Float(stmt.name, initializer);
+        copy.slot = stmt.slot;
+        copy.typed = stmt.typed;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitCharStmt(Stmt.Char stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        Stmt.Char copy = new Stmt.Char(stmt.name, initializer);
+        copy.slot = stmt.slot;
+        copy.typed = stmt.typed;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitStringStmt(Stmt.String stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        Stmt.String copy = new Stmt.String(stmt.name, initializer);
+        copy.slot = stmt.slot;
+        copy.typed = stmt.typed;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitBoolStmt(Stmt.Bool stmt) {
+        Expr initializer = rewrite(stmt.initializer);
+        if (initializer == stmt.initializer)
+            return stmt;
+        Stmt.Bool copy = new Stmt.Bool(stmt.name, initializer);
+        copy.slot = stmt.slot;
+        return copy;
+    }
+
+    @Override
+    public Stmt visitMultiVarStmt(Stmt.MultiVar stmt) {
+        List<Expr> initializers = new ArrayList<>(stmt.initializers.size());
+        boolean changed = false;
+        for (Expr initializer : stmt.initializers) {
+            Expr replacement = rewrite(initializer);
+            changed |= replacement != initializer;
+            initializers.add(replacement);
+        }
+        if (!changed)
+            return stmt;
+        Stmt.MultiVar copy = new Stmt.MultiVar(stmt.type, stmt.names, initializers);
+        copy.depths = stmt.depths;
+        copy.slots = stmt.slots;
+        return copy;
+    }
+
+    // A skipped body is not there to rewrite yet.
+    @Override
+    public Stmt visitLazyStmt(Stmt.Lazy stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        return stmt;
+    }
+
+    @Override
+    public Stmt visitSwitchStmt(Stmt.Switch stmt) {
+        List<Stmt> branches = new ArrayList<>(stmt.branches.size());
+        boolean changed = false;
+        for (Stmt branch : stmt.branches) {
+            Stmt replacement = rewrite(branch);
+            changed |= replacement != branch;
+            branches.add(replacement);
+        }
+        Stmt otherwise = rewrite(stmt.otherwise);
+        if (!changed && otherwise == stmt.otherwise)
+            return stmt;
+        return new Stmt.Switch(stmt.name, stmt.depth, stmt.slot, stmt.operator, stmt.constants, branches, otherwise);
+    }
+}
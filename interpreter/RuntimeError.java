@@ -7,4 +7,14 @@ public class RuntimeError extends RuntimeException {
         super(message);
         this.token = token;
     }
+
+    // Stops the program over errors already reported as they were found,
+    // like those in a body that is only parsed when it first runs.
+    static RuntimeError reported(Token token) {
+        return new RuntimeError(token, null);
+    }
+
+    boolean reported() {
+        return getMessage() == null;
+    }
 }
@@ -0,0 +1,29 @@
+package interpreter;
+
+// Bulk character searches the lexer uses to skip over runs that produce no
+// tokens: blanks, comment bodies and string literal bodies. Every method
+// works on [from, to) and returns 'to' when nothing is found.
+interface ScanKernel {
+    // First index that is not ' ', '\t' or '\r'.
+    int skipBlanks(char[] chars, int from, int to);
+
+    // First index holding c.
+    int indexOf(char[] chars, int from, int to, char c);
+
+    // Number of times c occurs.
+    int count(char[] chars, int from, int to, char c);
+
+    // The SIMD kernel, or null when the JVM was started without
+    // --add-modules jdk.incubator.vector or VectorScan (in the separate simd
+    // source root) was not compiled. The class is only loaded after the
+    // module check, so the rest of the lexer runs fine without it.
+    static ScanKernel vector() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+        try {
+            return (ScanKernel) Class.forName("interpreter.VectorScan").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
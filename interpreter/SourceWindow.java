@@ -0,0 +1,167 @@
+package interpreter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A bounded view of a source that is read on demand. Positions are absolute
+// offsets into the whole source, but only the characters from the last
+// released position up to the read frontier are held in memory, so the
+// lexer can walk a script of any size with a flat footprint.
+class SourceWindow implements CharSequence {
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final Reader reader;
+    private char[] buffer;
+    private int base = 0;   // absolute offset of buffer[0]
+    private int filled = 0; // number of valid chars in buffer
+    private int released = 0;
+    private boolean eof = false;
+
+    SourceWindow(Reader reader) {
+        this(reader, DEFAULT_CAPACITY);
+    }
+
+    SourceWindow(Reader reader, int capacity) {
+        this.reader = reader;
+        this.buffer = new char[capacity];
+    }
+
+    static SourceWindow map(Path path, Charset charset) throws IOException {
+        return new SourceWindow(new MappedReader(path, charset));
+    }
+
+    // Makes sure the char at the given absolute index is buffered. Returns
+    // false when the source ends before it.
+    boolean fill(int index) {
+        while (index >= base + filled) {
+            if (eof)
+                return false;
+            compact();
+            try {
+                int n = reader.read(buffer, filled, buffer.length - filled);
+                if (n < 0) {
+                    eof = true;
+                    reader.close();
+                } else {
+                    filled += n;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return true;
+    }
+
+    // Everything before the given absolute index is no longer needed.
+    void release(int index) {
+        released = index;
+    }
+
+    private void compact() {
+        int keep = base + filled - released;
+        if (released > base) {
+            System.arraycopy(buffer, released - base, buffer, 0, keep);
+            filled = keep;
+            base = released;
+        }
+        // A single token longer than the window (a huge string literal) still
+        // has to fit, so grow rather than fail.
+        if (filled == buffer.length) {
+            char[] grown = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, filled);
+            buffer = grown;
+        }
+    }
+
+    // End of the buffered region, not of the whole source.
+    @Override
+    public int length() {
+        return base + filled;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return buffer[index - base];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new String(buffer, start - base, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, filled);
+    }
+
+    // Decodes a file through memory-mapped regions so that the source bytes
+    // live in the page cache instead of on the heap.
+    private static class MappedReader extends Reader {
+        private static final long REGION = 64L * 1024 * 1024;
+
+        private final FileChannel channel;
+        private final CharsetDecoder decoder;
+        private final long size;
+        private long position = 0;
+        private MappedByteBuffer region;
+        private final ByteBuffer carry = ByteBuffer.allocate(16);
+
+        MappedReader(Path path, Charset charset) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+            this.size = channel.size();
+            this.decoder = charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (out.position() == off) {
+                if (region == null || !region.hasRemaining()) {
+                    if (position >= size) {
+                        decoder.decode(ByteBuffer.allocate(0), out, true);
+                        decoder.flush(out);
+                        break;
+                    }
+                    long length = Math.min(REGION, size - position);
+                    region = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                    position += length;
+                }
+                if (carry.position() > 0) {
+                    // A multi-byte sequence was split across two regions.
+                    while (carry.hasRemaining() && region.hasRemaining())
+                        carry.put(region.get());
+                    carry.flip();
+                    decoder.decode(carry, out, false);
+                    carry.compact();
+                    continue;
+                }
+                CoderResult result = decoder.decode(region, out, position >= size);
+                if (result.isUnderflow() && region.hasRemaining())
+                    carry.put(region);
+            }
+            int n = out.position() - off;
+            return n == 0 ? -1 : n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            region = null;
+            channel.close();
+        }
+    }
+}
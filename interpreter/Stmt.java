@@ -1,6 +1,9 @@
 package interpreter;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 abstract class Stmt {
     interface Visitor<R> {
@@ -27,6 +30,12 @@ abstract class Stmt {
         R visitBoolStmt(Bool stmt);
 
         R visitMultiVarStmt(MultiVar stmt);
+
+        R visitLazyStmt(Lazy stmt);
+
+        R visitLoopStmt(Loop stmt);
+
+        R visitSwitchStmt(Switch stmt);
     }
 
     static class Block extends Stmt {
@@ -40,6 +49,14 @@ abstract class Stmt {
         }
 
         final List<Stmt> statements;
+        // Set by the Resolver: how many variables the block declares, and
+        // whether it gets a frame at all. A block that declares nothing
+        // runs in the frame of the block around it.
+        int size;
+        boolean framed = true;
+        // The frame the interpreter runs the block in, kept from one run to
+        // the next.
+        Object[] frame;
     }
 
     static class If extends Stmt {
@@ -75,6 +92,100 @@ abstract class Stmt {
         final Stmt body;
     }
 
+    // A WHILE the LoopOptimizer has gone over. Invariant expressions in it
+    // are cached, and are forgotten each time the loop is entered. When it
+    // counts an INT variable up or down to an invariant bound by a constant
+    // step, the last statement of its body, 'counted' is the body without
+    // that step, and the count is kept unboxed while it runs. A body that is
+    // still Lazy is gone over when it is first run.
+    static class Loop extends Stmt {
+        Loop(Expr condition, Stmt body) {
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLoopStmt(this);
+        }
+
+        Expr condition;
+        Stmt body;
+        final List<Expr.Invariant> invariants = new ArrayList<>();
+        // Set by the LoopOptimizer for a counted loop.
+        Block counted;
+        int depth;
+        int slot;
+        TokenType comparison;
+        Expr bound;
+        int step;
+    }
+
+    // An IF ... ELSE IF chain that compares one variable for equality with a
+    // constant INT, CHAR or STRING in each condition, as the SwitchLowerer
+    // finds it. The branch of the first constant equal to the value runs, or
+    // 'otherwise' when there is none. The branches are looked up in 'table',
+    // at the value less 'low', when the constants are all INTs or all CHARs
+    // close together, and in 'cases' by hash when they are not.
+    static class Switch extends Stmt {
+        Switch(Token name, int depth, int slot, Token operator, List<Object> constants, List<Stmt> branches,
+                Stmt otherwise) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+            this.operator = operator;
+            this.constants = constants;
+            this.branches = branches;
+            this.otherwise = otherwise;
+            for (int i = 0; i < constants.size(); i++) {
+                cases.putIfAbsent(constants.get(i), branches.get(i));
+            }
+
+            boolean integers = true;
+            boolean characters = true;
+            long low = Long.MAX_VALUE;
+            long high = Long.MIN_VALUE;
+            for (Object constant : cases.keySet()) {
+                integers &= constant instanceof Integer;
+                characters &= constant instanceof Character;
+                if (!integers && !characters)
+                    return;
+                long key = constant instanceof Integer ? (int) constant : (char) constant;
+                low = Math.min(low, key);
+                high = Math.max(high, key);
+            }
+            if (high - low >= DENSITY * cases.size())
+                return;
+            this.characters = characters;
+            this.low = (int) low;
+            table = new Stmt[(int) (high - low + 1)];
+            for (Map.Entry<Object, Stmt> entry : cases.entrySet()) {
+                Object constant = entry.getKey();
+                table[(constant instanceof Integer ? (int) constant : (char) constant) - this.low] = entry.getValue();
+            }
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSwitchStmt(this);
+        }
+
+        // The most table entries per case.
+        private static final int DENSITY = 4;
+
+        final Token name;
+        final int depth;
+        final int slot;
+        final Token operator;
+        final List<Object> constants;
+        final List<Stmt> branches;
+        final Stmt otherwise;
+        final Map<Object, Stmt> cases = new HashMap<>();
+        Stmt[] table;
+        boolean characters;
+        int low;
+    }
+
     static class Expression extends Stmt {
         Expression(Expr expression) {
             this.expression = expression;
@@ -114,6 +225,10 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // Set by the Resolver.
+        int depth;
+        int slot;
+        java.lang.String type;
     }
 
     static class Int extends Stmt {
@@ -129,6 +244,11 @@ abstract class Stmt {
 
         final Token name;
         final Expr intializer;
+        // Set by the Resolver.
+        int slot;
+        // Set by the TypeChecker when the initializer can only yield the
+        // declared type or null.
+        boolean typed;
     }
 
     static class Float extends Stmt {
@@ -144,6 +264,11 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // Set by the Resolver.
+        int slot;
+        // Set by the TypeChecker when the initializer can only yield the
+        // declared type or null.
+        boolean typed;
     }
 
     static class Char extends Stmt {
@@ -159,6 +284,11 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // Set by the Resolver.
+        int slot;
+        // Set by the TypeChecker when the initializer can only yield the
+        // declared type or null.
+        boolean typed;
     }
 
     static class String extends Stmt {
@@ -174,6 +304,11 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // Set by the Resolver.
+        int slot;
+        // Set by the TypeChecker when the initializer can only yield the
+        // declared type or null.
+        boolean typed;
     }
 
     static class Bool extends Stmt {
@@ -189,6 +324,8 @@ abstract class Stmt {
 
         final Token name;
         final Expr initializer;
+        // Set by the Resolver.
+        int slot;
     }
 
     static class MultiVar extends Stmt {
@@ -206,6 +343,87 @@ abstract class Stmt {
         final String type;
         final List<Token> names;
         final List<Expr> initializers;
+        // Set by the Resolver.
+        int[] depths;
+        int[] slots;
+    }
+
+    // A BEGIN IF or BEGIN WHILE body that a lazy parse stepped over. The
+    // tokens from 'start' up to the closing END at 'end' are parsed into a
+    // Block, in the parser 'state' of the moment they were skipped, the first
+    // time the body is needed.
+    static class Lazy extends Stmt {
+        Lazy(Token begin, TokenType kind, TokenStream tokens, int start, int end, int state) {
+            this.begin = begin;
+            this.kind = kind;
+            this.tokens = tokens;
+            this.start = start;
+            this.end = end;
+            this.state = state;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLazyStmt(this);
+        }
+
+        Block body() {
+            if (body == null) {
+                Block parsed = Parser.parseSkipped(this);
+                if (scope != null)
+                    Resolver.resolveSkipped(this, parsed);
+                parsed = ConstantFolder.foldSkipped(parsed);
+                if (types != null) {
+                    parsed = CommonSubexpressions.eliminateSkipped(parsed);
+                    parsed = TypeChecker.checkSkipped(this, parsed);
+                }
+                parsed = LoopOptimizer.optimizeSkipped(parsed);
+                if (types != null) {
+                    parsed = Fuser.fuseSkipped(parsed);
+                    parsed = SwitchLowerer.lowerSkipped(parsed);
+                }
+                body = parsed;
+            }
+            return body;
+        }
+
+        // Whether body() has been parsed already.
+        boolean parsed() {
+            return body != null;
+        }
+
+        // The names the body assigns or scans into, read off its tokens, for
+        // the passes that have to know before it is parsed. It may name
+        // variables it only declares.
+        List<Integer> assigned() {
+            if (assigned == null) {
+                assigned = new ArrayList<>();
+                TokenStream tokens = this.tokens.from(start);
+                for (int i = start; i < end; i++) {
+                    Token token = tokens.next();
+                    if (token.type == TokenType.IDENTIFIER && tokens.peek(0).type == TokenType.ASSIGN) {
+                        assigned.add(token.symbol);
+                    } else if (token.type == TokenType.SCAN && tokens.peek(0).type == TokenType.COLON
+                            && tokens.peek(1).type == TokenType.IDENTIFIER) {
+                        assigned.add(tokens.peek(1).symbol);
+                    }
+                }
+            }
+            return assigned;
+        }
+
+        final Token begin;
+        final TokenType kind;
+        final TokenStream tokens;
+        final int start;
+        final int end;
+        final int state;
+        private Block body;
+        private List<Integer> assigned;
+        // Set by the Resolver: the variables in scope where the body sits.
+        Resolver.Scope scope;
+        // Set by the TypeChecker: the types of those variables.
+        TypeChecker.Scope types;
     }
 
     abstract <R> R accept(Visitor<R> visitor);
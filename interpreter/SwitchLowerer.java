@@ -0,0 +1,131 @@
+package interpreter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Turns IF ... ELSE IF chains that test one variable against constants into
+// Switch statements, which find the branch to run in one lookup instead of
+// evaluating the conditions in turn. The chain has to start with at least
+// MINIMUM conditions of the form 'x == c' or 'c == x', for the same x and an
+// INT, CHAR or STRING c; the rest of it, from the first condition that is
+// not, is the Switch's 'otherwise'. Reading a variable and comparing it with
+// a constant neither fails nor has effects, so skipping the conditions that
+// do not match changes nothing but the time taken.
+//
+// It runs after the other passes, so it knows the comparisons in the forms
+// they leave them in.
+class SwitchLowerer extends Rewriter {
+    private static final int MINIMUM = 3;
+
+    // Lowers the chains of a body a lazy parse skipped, after the other
+    // passes.
+    static Stmt.Block lowerSkipped(Stmt.Block body) {
+        return (Stmt.Block) new SwitchLowerer().rewrite(body);
+    }
+
+    // The chain a Switch stands for, for the forms that store or compile the
+    // tree.
+    static Stmt.If unlowered(Stmt.Switch stmt) {
+        Stmt chain = stmt.otherwise;
+        for (int i = stmt.constants.size() - 1; i >= 0; i--) {
+            Expr.Variable variable = new Expr.Variable(stmt.name);
+            variable.depth = stmt.depth;
+            variable.slot = stmt.slot;
+            Expr condition = new Expr.Binary(variable, stmt.operator, new Expr.Literal(stmt.constants.get(i)));
+            chain = new Stmt.If(condition, stmt.branches.get(i), chain);
+        }
+        return (Stmt.If) chain;
+    }
+
+    // A condition comparing a variable with a constant.
+    static class Test {
+        Expr.Variable variable;
+        Token operator;
+        Object constant;
+    }
+
+    static Test test(Expr condition) {
+        while (condition instanceof Expr.Grouping || condition instanceof Expr.Invariant) {
+            condition = condition instanceof Expr.Grouping ? ((Expr.Grouping) condition).expression
+                    : ((Expr.Invariant) condition).expression;
+        }
+        Expr left;
+        Token operator;
+        Expr right;
+        if (condition instanceof Expr.Binary) {
+            left = ((Expr.Binary) condition).left;
+            operator = ((Expr.Binary) condition).operator;
+            right = ((Expr.Binary) condition).right;
+        } else if (condition instanceof Expr.Specialized && ((Expr.Specialized) condition).left != null) {
+            left = ((Expr.Specialized) condition).left;
+            operator = ((Expr.Specialized) condition).operator;
+            right = ((Expr.Specialized) condition).right;
+        } else if (condition instanceof Expr.Compare) {
+            Expr.Compare compare = (Expr.Compare) condition;
+            Expr.Variable variable = new Expr.Variable(compare.name);
+            variable.depth = compare.depth;
+            variable.slot = compare.slot;
+            left = variable;
+            operator = compare.operator;
+            right = new Expr.Literal(compare.constant);
+        } else {
+            return null;
+        }
+        if (operator.type != TokenType.EQUAL_EVAL)
+            return null;
+        if (left instanceof Expr.Literal) {
+            Expr swap = left;
+            left = right;
+            right = swap;
+        }
+        if (!(left instanceof Expr.Variable) || !(right instanceof Expr.Literal))
+            return null;
+        Object constant = ((Expr.Literal) right).value;
+        if (!(constant instanceof Integer) && !(constant instanceof Character) && !(constant instanceof String))
+            return null;
+        Test test = new Test();
+        test.variable = (Expr.Variable) left;
+        test.operator = operator;
+        test.constant = constant;
+        return test;
+    }
+
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        List<Object> constants = new ArrayList<>();
+        List<Stmt> branches = new ArrayList<>();
+        Test first = null;
+        Stmt rest = stmt;
+        while (rest instanceof Stmt.If) {
+            Stmt.If branch = (Stmt.If) rest;
+            Test test = test(branch.condition);
+            if (test == null || first != null
+                    && (test.variable.depth != first.variable.depth || test.variable.slot != first.variable.slot))
+                break;
+            if (first == null)
+                first = test;
+            constants.add(test.constant);
+            branches.add(branch.thenBranch);
+            rest = branch.elseBranch;
+        }
+        if (constants.size() < MINIMUM)
+            return super.visitIfStmt(stmt);
+
+        for (int i = 0; i < branches.size(); i++) {
+            branches.set(i, rewrite(branches.get(i)));
+        }
+        return new Stmt.Switch(first.variable.name, first.variable.depth, first.variable.slot, first.operator,
+                constants, branches, rewrite(rest));
+    }
+
+    // A planned loop is lowered in place, so that its plan still refers to
+    // the nodes that run.
+    @Override
+    public Stmt visitLoopStmt(Stmt.Loop stmt) {
+        stmt.condition = rewrite(stmt.condition);
+        stmt.body = rewrite(stmt.body);
+        if (stmt.counted != null)
+            stmt.counted = (Stmt.Block) rewrite(stmt.counted);
+        return stmt;
+    }
+}
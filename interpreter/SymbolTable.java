@@ -0,0 +1,100 @@
+package interpreter;
+
+import java.util.Arrays;
+
+// Interns identifiers straight out of the source into dense int ids. Lookups
+// hash and compare the characters in place, so only the first occurrence of
+// each distinct name allocates a String. Keywords are interned up front and
+// own the lowest ids, which lets the lexer classify a word with one probe.
+// Not thread-safe: ParallelLexer gives every chunk a table of its own and
+// merges them into the shared one on the calling thread.
+class SymbolTable {
+    private String[] names = new String[64];
+    private int[] hashes = new int[64];
+    private int[] slots = new int[128]; // id + 1, 0 means empty
+    private int size = 0;
+    private final TokenType[] keywords;
+
+    SymbolTable(String[] keywordNames, TokenType[] keywordTypes) {
+        for (String keyword : keywordNames) {
+            intern(keyword, 0, keyword.length());
+        }
+        this.keywords = keywordTypes.clone();
+    }
+
+    // An empty table that knows the same keywords under the same ids.
+    SymbolTable withKeywordsOnly() {
+        return new SymbolTable(Arrays.copyOf(names, keywords.length), keywords);
+    }
+
+    int intern(CharSequence source, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + source.charAt(i);
+        }
+
+        int mask = slots.length - 1;
+        for (int slot = mix(hash) & mask;; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (id < 0) {
+                return add(source.subSequence(start, end).toString(), hash, slot);
+            }
+            if (hashes[id] == hash && matches(names[id], source, start, end)) {
+                return id;
+            }
+        }
+    }
+
+    private static boolean matches(String name, CharSequence source, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != source.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+
+    private int add(String name, int hash, int slot) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        names[size] = name;
+        hashes[size] = hash;
+        slots[slot] = size + 1;
+        size++;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = id + 1;
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    // The keyword type for the id, or null for a plain identifier.
+    TokenType keyword(int id) {
+        return id < keywords.length ? keywords[id] : null;
+    }
+
+    String name(int id) {
+        return names[id];
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,817 @@
+package interpreter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Runs a Chunk as the VirtualMachine does, but with no value boxed. A value
+// is a tag, saying which class it would be on the other paths, and a long
+// holding it: an INT, a CHAR or a BOOL as itself, a FLOAT (a Double) or the
+// Float arithmetic makes of one by its bits. Only a STRING is an object,
+// kept beside the longs in an array of its own, and only written there with
+// its tag: beside any other tag that array holds what it last did, which
+// nothing reads. The operand stack and the frames are each those three
+// arrays, so a loop over INTs, FLOATs, CHARs and BOOLs allocates nothing
+// once it runs.
+//
+// What the values do is still what Operators does with them. Each operator
+// does the cases the loops of numbers take itself, with the same results as
+// Operators, and hands the rest to it boxed, unboxing what it returns, so
+// that errors and odd results are those of the other paths. DISPLAY and
+// SCAN go through Operators boxed as well.
+final class TaggedMachine {
+    static final byte NIL = 0;
+    static final byte INT = 1;
+    static final byte DOUBLE = 2;
+    static final byte FLOAT = 3;
+    static final byte BOOL = 4;
+    static final byte CHAR = 5;
+    static final byte STRING = 6;
+
+    // The variables of a frame the Resolver laid out, by slot; slot 0 is
+    // left unused, as the link is 'enclosing'.
+    static final class Frame {
+        final long[] values;
+        final byte[] tags;
+        final Object[] strings;
+        Frame enclosing;
+
+        Frame(int size) {
+            values = new long[size + 1];
+            tags = new byte[size + 1];
+            strings = new Object[size + 1];
+        }
+    }
+
+    // What the machine keeps for each chunk it runs: its constants as
+    // tagged values, a frame for each block with one, kept from one run of
+    // the block to the next as on the other paths, and the same for each
+    // lazy body it has run, so that running one looks nothing up.
+    private static final class Compiled {
+        final Chunk chunk;
+        final long[] values;
+        final byte[] tags;
+        final Object[] strings;
+        final Frame[] frames;
+        final Compiled[] bodies;
+
+        Compiled(Chunk chunk) {
+            this.chunk = chunk;
+            int size = chunk.constants.length;
+            values = new long[size];
+            tags = new byte[size];
+            strings = new Object[size];
+            for (int i = 0; i < size; i++) {
+                Object constant = chunk.constants[i];
+                if (constant == null || isValue(constant))
+                    set(values, tags, strings, i, constant);
+            }
+            frames = new Frame[chunk.blocks.length];
+            bodies = new Compiled[size];
+        }
+    }
+
+    private boolean displayed = false;
+    // The operand stack, shared by the chunks of lazy bodies, which run on
+    // top of the one that runs them.
+    private long[] values = new long[16];
+    private byte[] tags = new byte[16];
+    private Object[] strings = new Object[16];
+
+    // Whether a DISPLAY has run.
+    boolean displayed() {
+        return displayed;
+    }
+
+    // Runs the chunk in the frame the interpreter keeps its globals in,
+    // tagged for the run and boxed back after it.
+    void run(Chunk chunk, Object[] globals) {
+        Frame frame = new Frame(globals.length - 1);
+        for (int slot = 1; slot < globals.length; slot++) {
+            set(frame.values, frame.tags, frame.strings, slot, globals[slot]);
+        }
+        try {
+            run(new Compiled(chunk), frame, 0);
+        } finally {
+            for (int slot = 1; slot < globals.length; slot++) {
+                globals[slot] = box(frame.tags[slot], frame.values[slot], frame.strings[slot]);
+            }
+        }
+    }
+
+    private void run(Compiled compiled, Frame frame, int top) {
+        Chunk chunk = compiled.chunk;
+        if (top + chunk.maxStack > values.length) {
+            int size = Math.max(values.length * 2, top + chunk.maxStack);
+            values = Arrays.copyOf(values, size);
+            tags = Arrays.copyOf(tags, size);
+            strings = Arrays.copyOf(strings, size);
+        }
+        long[] values = this.values;
+        byte[] tags = this.tags;
+        Object[] strings = this.strings;
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        long[] constantValues = compiled.values;
+        byte[] constantTags = compiled.tags;
+        // The arrays of the innermost frame.
+        long[] localValues = frame.values;
+        byte[] localTags = frame.tags;
+        Object[] localStrings = frame.strings;
+        int pc = 0;
+        for (;;) {
+            byte opcode = code[pc++];
+            switch (opcode) {
+                case Chunk.CONSTANT: {
+                    int index = i32(code, pc);
+                    byte tag = constantTags[index];
+                    values[top] = constantValues[index];
+                    tags[top] = tag;
+                    if (tag == STRING)
+                        strings[top] = compiled.strings[index];
+                    top++;
+                    pc += 4;
+                    break;
+                }
+                case Chunk.NIL:
+                    tags[top++] = NIL;
+                    break;
+                case Chunk.POP:
+                    top--;
+                    break;
+                case Chunk.GET_LOCAL: {
+                    int slot = u16(code, pc);
+                    byte tag = localTags[slot];
+                    values[top] = localValues[slot];
+                    tags[top] = tag;
+                    if (tag == STRING)
+                        strings[top] = localStrings[slot];
+                    top++;
+                    pc += 2;
+                    break;
+                }
+                case Chunk.SET_LOCAL: {
+                    int slot = u16(code, pc);
+                    byte tag = tags[top - 1];
+                    localValues[slot] = values[top - 1];
+                    localTags[slot] = tag;
+                    if (tag == STRING)
+                        localStrings[slot] = strings[top - 1];
+                    pc += 2;
+                    break;
+                }
+                case Chunk.GET: {
+                    Frame target = frame(frame, u8(code, pc));
+                    int slot = u16(code, pc + 1);
+                    byte tag = target.tags[slot];
+                    values[top] = target.values[slot];
+                    tags[top] = tag;
+                    if (tag == STRING)
+                        strings[top] = target.strings[slot];
+                    top++;
+                    pc += 3;
+                    break;
+                }
+                case Chunk.SET: {
+                    Frame target = frame(frame, u8(code, pc));
+                    int slot = u16(code, pc + 1);
+                    byte tag = tags[top - 1];
+                    target.values[slot] = values[top - 1];
+                    target.tags[slot] = tag;
+                    if (tag == STRING)
+                        target.strings[slot] = strings[top - 1];
+                    pc += 3;
+                    break;
+                }
+                case Chunk.DEFINE: {
+                    int slot = u16(code, pc);
+                    byte tag = tags[--top];
+                    localValues[slot] = values[top];
+                    localTags[slot] = tag;
+                    if (tag == STRING)
+                        localStrings[slot] = strings[top];
+                    pc += 2;
+                    break;
+                }
+                case Chunk.CHECK:
+                    check(u8(code, pc), tags[top - 1], (Token) constants[i32(code, pc + 1)]);
+                    pc += 5;
+                    break;
+                case Chunk.BINARY:
+                    top--;
+                    arithmetic((Token) constants[i32(code, pc)], top - 1);
+                    pc += 4;
+                    break;
+                // Two INTs do what Operators does with them, without it.
+                case Chunk.ADD:
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT)
+                        values[top - 1] = (int) values[top - 1] + (int) values[top];
+                    else
+                        arithmetic((Token) constants[i32(code, pc)], top - 1);
+                    pc += 4;
+                    break;
+                case Chunk.SUBTRACT:
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT)
+                        values[top - 1] = (int) values[top - 1] - (int) values[top];
+                    else
+                        arithmetic((Token) constants[i32(code, pc)], top - 1);
+                    pc += 4;
+                    break;
+                case Chunk.MULTIPLY:
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT)
+                        values[top - 1] = (int) values[top - 1] * (int) values[top];
+                    else
+                        arithmetic((Token) constants[i32(code, pc)], top - 1);
+                    pc += 4;
+                    break;
+                case Chunk.MODULO: {
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT) {
+                        values[top - 1] = (int) values[top - 1] % (int) values[top];
+                    } else {
+                        binary((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.LESS: {
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT) {
+                        values[top - 1] = values[top - 1] < values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.LESS_EQUAL: {
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT) {
+                        values[top - 1] = values[top - 1] <= values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.GREATER: {
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT) {
+                        values[top - 1] = values[top - 1] > values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.GREATER_EQUAL: {
+                    top--;
+                    if (tags[top - 1] == INT && tags[top] == INT) {
+                        values[top - 1] = values[top - 1] >= values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.EQUAL: {
+                    top--;
+                    if (tags[top - 1] == tags[top] && isPlain(tags[top])) {
+                        values[top - 1] = values[top - 1] == values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.NOT_EQUAL: {
+                    top--;
+                    if (tags[top - 1] == tags[top] && isPlain(tags[top])) {
+                        values[top - 1] = values[top - 1] != values[top] ? 1 : 0;
+                        tags[top - 1] = BOOL;
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top - 1);
+                    }
+                    pc += 4;
+                    break;
+                }
+                case Chunk.OPERATION: {
+                    Operation operation = Chunk.OPERATIONS[u8(code, pc)];
+                    Token operator = (Token) constants[i32(code, pc + 1)];
+                    pc += 5;
+                    top--;
+                    if (tags[top - 1] != INT || tags[top] != INT || !operation(operation, top - 1)) {
+                        try {
+                            set(top - 1, Operators.binary(operation, box(top - 1), box(top)));
+                        } catch (RuntimeError error) {
+                            throw new RuntimeError(operator, error.getMessage());
+                        }
+                    }
+                    break;
+                }
+                case Chunk.UNARY: {
+                    Token operator = (Token) constants[i32(code, pc)];
+                    pc += 4;
+                    byte tag = tags[top - 1];
+                    if (operator.type == TokenType.NOT) {
+                        values[top - 1] = truthy(tag, values[top - 1]) ? 0 : 1;
+                        tags[top - 1] = BOOL;
+                    } else if (operator.type == TokenType.MINUS && tag == INT) {
+                        values[top - 1] = -(int) values[top - 1];
+                    } else if (operator.type == TokenType.MINUS && tag == DOUBLE) {
+                        values[top - 1] = Double.doubleToRawLongBits(-Double.longBitsToDouble(values[top - 1]));
+                    } else if (operator.type != TokenType.PLUS || !isNumber(tag)) {
+                        try {
+                            set(top - 1, Operators.unary(operator.type, box(top - 1)));
+                        } catch (RuntimeError error) {
+                            throw new RuntimeError(operator, error.getMessage());
+                        }
+                    }
+                    break;
+                }
+                case Chunk.UNARY_OPERATION: {
+                    Operation operation = Chunk.OPERATIONS[u8(code, pc)];
+                    Token operator = (Token) constants[i32(code, pc + 1)];
+                    pc += 5;
+                    byte tag = tags[top - 1];
+                    if (operation == Operation.INT_NEGATE && tag == INT) {
+                        values[top - 1] = -(int) values[top - 1];
+                    } else if (operation == Operation.BOOLEAN_NOT && tag == BOOL) {
+                        values[top - 1] = values[top - 1] == 0 ? 1 : 0;
+                    } else {
+                        try {
+                            set(top - 1, Operators.unary(operation, box(top - 1)));
+                        } catch (RuntimeError error) {
+                            throw new RuntimeError(operator, error.getMessage());
+                        }
+                    }
+                    break;
+                }
+                case Chunk.JUMP:
+                    pc = i32(code, pc);
+                    break;
+                case Chunk.JUMP_IF_FALSE:
+                    top--;
+                    pc = truthy(tags[top], values[top]) ? pc + 4 : i32(code, pc);
+                    break;
+                // A comparison whose result only decides a jump.
+                case Chunk.JUMP_UNLESS_LESS: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == INT && tags[top + 1] == INT) {
+                        holds = values[top] < values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_LESS_EQUAL: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == INT && tags[top + 1] == INT) {
+                        holds = values[top] <= values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_GREATER: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == INT && tags[top + 1] == INT) {
+                        holds = values[top] > values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_GREATER_EQUAL: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == INT && tags[top + 1] == INT) {
+                        holds = values[top] >= values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_EQUAL: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == tags[top + 1] && isPlain(tags[top])) {
+                        holds = values[top] == values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_NOT_EQUAL: {
+                    top -= 2;
+                    boolean holds;
+                    if (tags[top] == tags[top + 1] && isPlain(tags[top])) {
+                        holds = values[top] != values[top + 1];
+                    } else {
+                        compare((Token) constants[i32(code, pc)], top);
+                        holds = truthy(tags[top], values[top]);
+                    }
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.AND:
+                    pc = truthy(tags[top - 1], values[top - 1]) ? pc + 4 : i32(code, pc);
+                    break;
+                case Chunk.OR:
+                    pc = truthy(tags[top - 1], values[top - 1]) ? i32(code, pc) : pc + 4;
+                    break;
+                case Chunk.DISPLAY:
+                    top--;
+                    Operators.display(box(top));
+                    displayed = true;
+                    break;
+                case Chunk.SCAN: {
+                    Frame target = frame(frame, u8(code, pc));
+                    int slot = u16(code, pc + 1);
+                    Token name = (Token) constants[i32(code, pc + 3)];
+                    int type = i32(code, pc + 7);
+                    pc += 11;
+                    scan(target, slot, name, type < 0 ? null : (String) constants[type]);
+                    break;
+                }
+                case Chunk.ENTER: {
+                    int block = u16(code, pc);
+                    pc += 2;
+                    Frame inner = compiled.frames[block];
+                    if (inner == null) {
+                        inner = new Frame(chunk.blocks[block]);
+                        compiled.frames[block] = inner;
+                    } else {
+                        Arrays.fill(inner.tags, NIL);
+                    }
+                    inner.enclosing = frame;
+                    frame = inner;
+                    localValues = frame.values;
+                    localTags = frame.tags;
+                    localStrings = frame.strings;
+                    break;
+                }
+                case Chunk.EXIT:
+                    frame = frame.enclosing;
+                    localValues = frame.values;
+                    localTags = frame.tags;
+                    localStrings = frame.strings;
+                    break;
+                case Chunk.LAZY: {
+                    int index = i32(code, pc);
+                    pc += 4;
+                    Compiled body = compiled.bodies[index];
+                    if (body == null) {
+                        // The body is parsed and compiled the first time it
+                        // runs.
+                        if (constants[index] instanceof Stmt.Lazy)
+                            constants[index] = BytecodeCompiler.compile((Stmt.Lazy) constants[index]);
+                        body = new Compiled((Chunk) constants[index]);
+                        compiled.bodies[index] = body;
+                    }
+                    run(body, frame, top);
+                    // The stack may have grown for it.
+                    values = this.values;
+                    tags = this.tags;
+                    strings = this.strings;
+                    break;
+                }
+                case Chunk.RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException("Bad opcode " + opcode + " at " + (pc - 1));
+            }
+        }
+    }
+
+    private static int u8(byte[] code, int offset) {
+        return code[offset] & 0xff;
+    }
+
+    private static int u16(byte[] code, int offset) {
+        return (code[offset] & 0xff) << 8 | code[offset + 1] & 0xff;
+    }
+
+    private static int i32(byte[] code, int offset) {
+        return code[offset] << 24 | (code[offset + 1] & 0xff) << 16 | (code[offset + 2] & 0xff) << 8
+                | code[offset + 3] & 0xff;
+    }
+
+    private static Frame frame(Frame frame, int depth) {
+        for (int i = 0; i < depth; i++) {
+            frame = frame.enclosing;
+        }
+        return frame;
+    }
+
+    // Whether the value is of a class that has a tag.
+    private static boolean isValue(Object value) {
+        return value instanceof Integer || value instanceof Double || value instanceof Float
+                || value instanceof Boolean || value instanceof Character || value instanceof String;
+    }
+
+    private static byte tag(Object value) {
+        if (value == null)
+            return NIL;
+        if (value instanceof Integer)
+            return INT;
+        if (value instanceof Double)
+            return DOUBLE;
+        if (value instanceof Float)
+            return FLOAT;
+        if (value instanceof Boolean)
+            return BOOL;
+        if (value instanceof Character)
+            return CHAR;
+        if (value instanceof String)
+            return STRING;
+        throw new IllegalStateException("No tag for a " + value.getClass().getSimpleName());
+    }
+
+    private static long value(Object value) {
+        if (value instanceof Integer)
+            return (int) value;
+        if (value instanceof Double)
+            return Double.doubleToRawLongBits((double) value);
+        if (value instanceof Float)
+            return Float.floatToRawIntBits((float) value);
+        if (value instanceof Boolean)
+            return (boolean) value ? 1 : 0;
+        if (value instanceof Character)
+            return (char) value;
+        return 0;
+    }
+
+    private static Object box(byte tag, long value, Object string) {
+        switch (tag) {
+            case INT:
+                return (int) value;
+            case DOUBLE:
+                return Double.longBitsToDouble(value);
+            case FLOAT:
+                return Float.intBitsToFloat((int) value);
+            case BOOL:
+                return value != 0;
+            case CHAR:
+                return (char) value;
+            case STRING:
+                return string;
+            default:
+                return null;
+        }
+    }
+
+    private static void set(long[] values, byte[] tags, Object[] strings, int index, Object value) {
+        values[index] = value(value);
+        tags[index] = tag(value);
+        strings[index] = value instanceof String ? value : null;
+    }
+
+    // The value at the index of the operand stack, boxed.
+    private Object box(int index) {
+        return box(tags[index], values[index], strings[index]);
+    }
+
+    private void set(int index, Object value) {
+        set(values, tags, strings, index, value);
+    }
+
+    // What Operators makes of the two values from the index on, in place of
+    // the first.
+    private void binary(Token operator, int index) {
+        try {
+            set(index, Operators.binary(operator.type, box(index), box(index + 1)));
+        } catch (RuntimeError error) {
+            throw new RuntimeError(operator, error.getMessage());
+        }
+    }
+
+    // An operator on the values from the index on, in place of the first:
+    // the Float arithmetic Operators does with INTs and FLOATs, itself, and
+    // anything else through Operators.
+    private void arithmetic(Token operator, int index) {
+        byte left = tags[index];
+        byte right = tags[index + 1];
+        if (!isNumber(left) || !isNumber(right)) {
+            binary(operator, index);
+            return;
+        }
+        float a = single(left, values[index]);
+        float b = single(right, values[index + 1]);
+        float result;
+        switch (operator.type) {
+            case PLUS:
+                result = a + b;
+                break;
+            case MINUS:
+                result = a - b;
+                break;
+            case STAR:
+                result = a * b;
+                break;
+            case SLASH:
+                if (b == 0)
+                    throw new RuntimeError(operator, "Division by zero.");
+                result = a / b;
+                break;
+            default:
+                binary(operator, index);
+                return;
+        }
+        values[index] = Float.floatToRawIntBits(result);
+        tags[index] = FLOAT;
+    }
+
+    // Whether two values with the tag are equal just when their longs are.
+    private static boolean isPlain(byte tag) {
+        return tag == INT || tag == BOOL || tag == CHAR;
+    }
+
+    private static boolean isNumber(byte tag) {
+        return tag == INT || tag == DOUBLE;
+    }
+
+    // An INT or FLOAT as Operators does arithmetic on it, and as it
+    // compares it.
+    private static float single(byte tag, long value) {
+        return tag == INT ? (float) (int) value : (float) Double.longBitsToDouble(value);
+    }
+
+    private static double real(byte tag, long value) {
+        return tag == INT ? (double) (int) value : Double.longBitsToDouble(value);
+    }
+
+    private static boolean truthy(byte tag, long value) {
+        return tag == BOOL ? value != 0 : tag != NIL;
+    }
+
+    // The comparison of the values from the index on, in place of the
+    // first.
+    private void compare(Token operator, int index) {
+        int holds = compares(operator, index, index + 1);
+        if (holds < 0) {
+            binary(operator, index);
+        } else {
+            values[index] = holds;
+            tags[index] = BOOL;
+        }
+    }
+
+    // Whether the comparison holds of the values at the two indexes, 1 or
+    // 0, or -1 for one left to Operators.
+    private int compares(Token operator, int left, int right) {
+        byte leftTag = tags[left];
+        byte rightTag = tags[right];
+        switch (operator.type) {
+            case EQUAL_EVAL:
+                return equal(left, right) ? 1 : 0;
+            case NOT_EQUAL:
+                return equal(left, right) ? 0 : 1;
+            default:
+                break;
+        }
+        if (isNumber(leftTag) && isNumber(rightTag)) {
+            double a = real(leftTag, values[left]);
+            double b = real(rightTag, values[right]);
+            switch (operator.type) {
+                case LESS_THAN:
+                    return a < b ? 1 : 0;
+                case LESS_OR_EQUAL:
+                    return a <= b ? 1 : 0;
+                case GREATER_THAN:
+                    return a > b ? 1 : 0;
+                case GREATER_OR_EQUAL:
+                    return a >= b ? 1 : 0;
+                default:
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    // Operators.isEqual of the two values: equals() of what they box to.
+    private boolean equal(int left, int right) {
+        byte tag = tags[left];
+        if (tag != tags[right])
+            return false;
+        switch (tag) {
+            case NIL:
+                return true;
+            case DOUBLE:
+                return Double.doubleToLongBits(Double.longBitsToDouble(values[left])) == Double
+                        .doubleToLongBits(Double.longBitsToDouble(values[right]));
+            case FLOAT:
+                return Float.floatToIntBits(Float.intBitsToFloat((int) values[left])) == Float
+                        .floatToIntBits(Float.intBitsToFloat((int) values[right]));
+            case STRING:
+                return strings[left].equals(strings[right]);
+            default:
+                return values[left] == values[right];
+        }
+    }
+
+    // An operation the TypeChecker chose on two INTs, in place of the
+    // first; false for one that does not take them.
+    private boolean operation(Operation operation, int index) {
+        int a = (int) values[index];
+        int b = (int) values[index + 1];
+        switch (operation) {
+            case INT_ADD:
+                values[index] = a + b;
+                return true;
+            case INT_SUBTRACT:
+                values[index] = a - b;
+                return true;
+            case INT_MULTIPLY:
+                values[index] = a * b;
+                return true;
+            case INT_MODULO:
+                values[index] = a % b;
+                return true;
+            case INT_LESS:
+                return bool(index, a < b);
+            case INT_LESS_EQUAL:
+                return bool(index, a <= b);
+            case INT_GREATER:
+                return bool(index, a > b);
+            case INT_GREATER_EQUAL:
+                return bool(index, a >= b);
+            case INT_EQUAL:
+                return bool(index, a == b);
+            case INT_NOT_EQUAL:
+                return bool(index, a != b);
+            default:
+                return false;
+        }
+    }
+
+    private boolean bool(int index, boolean value) {
+        values[index] = value ? 1 : 0;
+        tags[index] = BOOL;
+        return true;
+    }
+
+    private static void check(int kind, byte tag, Token name) {
+        if ((kind & Chunk.TYPED) != 0) {
+            if (tag != NIL)
+                return;
+        } else if (tag == declared(kind)) {
+            return;
+        }
+        switch (kind & ~Chunk.TYPED) {
+            case Chunk.INT:
+                throw new RuntimeError(name, "Input must be an Integer");
+            case Chunk.FLOAT:
+                throw new RuntimeError(name, "Input must be a float");
+            case Chunk.CHAR:
+                throw new RuntimeError(name, "Input must be a character");
+            default:
+                throw new RuntimeError(name, "Input must be a String");
+        }
+    }
+
+    // The tag of the values a declaration of the kind takes.
+    private static byte declared(int kind) {
+        switch (kind) {
+            case Chunk.INT:
+                return INT;
+            case Chunk.FLOAT:
+                return DOUBLE;
+            case Chunk.CHAR:
+                return CHAR;
+            default:
+                return STRING;
+        }
+    }
+
+    private static void scan(Frame frame, int slot, Token name, String type) {
+        try {
+            Object value = Operators.scanned(type, Operators.scanInput());
+            if (value == null)
+                throw new RuntimeError(name, "Input must be " + type);
+            set(frame.values, frame.tags, frame.strings, slot, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
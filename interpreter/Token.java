@@ -2,14 +2,39 @@ package interpreter;
 
 public class Token {
     final TokenType type;
-    final String lexeme;
+    private String lexeme;
     private Object literal;
     final int line;
+    // Interned id of an IDENTIFIER's name, -1 for every other token.
+    final int symbol;
+    // Where the lexeme lives in the source, for tokens that slice it lazily.
+    private final CharSequence source;
+    final int start;
+    final int length;
+
     public Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int symbol) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = symbol;
+        this.source = null;
+        this.start = -1;
+        this.length = lexeme == null ? 0 : lexeme.length();
+    }
+
+    Token(TokenType type, CharSequence source, int start, int length, Object literal, int line, int symbol) {
+        this.type = type;
+        this.literal = literal;
+        this.line = line;
+        this.symbol = symbol;
+        this.source = source;
+        this.start = start;
+        this.length = length;
     }
 
     public void setLiteral(Object literal) {
@@ -21,7 +46,7 @@ public class Token {
         if(type == TokenType.NEW_LINE){
             return "\n";
         }
-        return "Token [type: " + type + " | lexeme: " + lexeme + " | literal: " + literal + " | line: " + line + "]";
+        return "Token [type: " + type + " | lexeme: " + getLexeme() + " | literal: " + literal + " | line: " + getLine() + "]";
     }
 
 
@@ -31,6 +56,9 @@ public class Token {
 
 
     public String getLexeme() {
+        if (lexeme == null && source != null) {
+            lexeme = source.subSequence(start, start + length).toString();
+        }
         return lexeme;
     }
 
@@ -44,5 +72,5 @@ public class Token {
         return line;
     }
 
-    
+
 }
@@ -0,0 +1,203 @@
+package interpreter;
+
+import java.util.Arrays;
+
+// Struct-of-arrays token stream. Each token is four ints instead of a Token
+// object with its own lexeme copy; lexemes are sliced out of the source only
+// when somebody asks for them. Numeric literals and identifier symbol ids are
+// computed once by the lexer and kept in a side table, everything else is
+// rebuilt from the source.
+class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private int[] types;
+    private int[] starts;
+    private int[] lengths;
+    private int[] lines;
+    private int size = 0;
+
+    // token index -> parsed value for TYPEINT and TYPEFLOAT tokens, or symbol
+    // id for IDENTIFIER tokens
+    private int[] valueTokens = new int[16];
+    private long[] values = new long[16];
+    private int valueCount = 0;
+
+    TokenBuffer(CharSequence source) {
+        this(source, 16);
+    }
+
+    TokenBuffer(CharSequence source, int capacity) {
+        this.source = source;
+        capacity = Math.max(capacity, 16);
+        this.types = new int[capacity];
+        this.starts = new int[capacity];
+        this.lengths = new int[capacity];
+        this.lines = new int[capacity];
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (size == types.length)
+            grow();
+        types[size] = type.ordinal();
+        starts[size] = start;
+        lengths[size] = length;
+        lines[size] = line;
+        size++;
+    }
+
+    void addInt(int start, int length, int line, int value) {
+        addValue(size, value);
+        add(TokenType.TYPEINT, start, length, line);
+    }
+
+    void addFloat(int start, int length, int line, double value) {
+        addValue(size, Double.doubleToRawLongBits(value));
+        add(TokenType.TYPEFLOAT, start, length, line);
+    }
+
+    void addIdentifier(int start, int length, int line, int symbol) {
+        addValue(size, symbol);
+        add(TokenType.IDENTIFIER, start, length, line);
+    }
+
+    private void addValue(int index, long value) {
+        if (valueCount == valueTokens.length) {
+            valueTokens = Arrays.copyOf(valueTokens, valueCount * 2);
+            values = Arrays.copyOf(values, valueCount * 2);
+        }
+        valueTokens[valueCount] = index;
+        values[valueCount] = value;
+        valueCount++;
+    }
+
+    // Appends a chunk lexed from the same source, shifting its lines by
+    // lineOffset and translating its identifiers through symbolMap (chunk
+    // symbol id -> id in the shared table).
+    void append(TokenBuffer chunk, int lineOffset, int[] symbolMap) {
+        int base = size;
+        while (types.length < size + chunk.size)
+            grow();
+        System.arraycopy(chunk.types, 0, types, size, chunk.size);
+        System.arraycopy(chunk.starts, 0, starts, size, chunk.size);
+        System.arraycopy(chunk.lengths, 0, lengths, size, chunk.size);
+        for (int i = 0; i < chunk.size; i++) {
+            lines[size + i] = chunk.lines[i] + lineOffset;
+        }
+        size += chunk.size;
+
+        for (int i = 0; i < chunk.valueCount; i++) {
+            int index = chunk.valueTokens[i];
+            long value = chunk.values[i];
+            if (chunk.types[index] == TokenType.IDENTIFIER.ordinal())
+                value = symbolMap[(int) value];
+            addValue(base + index, value);
+        }
+    }
+
+    private void grow() {
+        int capacity = types.length * 2;
+        types = Arrays.copyOf(types, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[index]];
+    }
+
+    int start(int index) {
+        return starts[index];
+    }
+
+    int length(int index) {
+        return lengths[index];
+    }
+
+    int line(int index) {
+        return lines[index];
+    }
+
+    String lexeme(int index) {
+        return source.subSequence(starts[index], starts[index] + lengths[index]).toString();
+    }
+
+    Object literal(int index) {
+        int start = starts[index];
+        switch (type(index)) {
+            case TYPEINT:
+                return (int) value(index);
+            case TYPEFLOAT:
+                return Double.longBitsToDouble(value(index));
+            case TYPESTRING:
+                return source.subSequence(start + 1, start + lengths[index] - 1).toString();
+            case TYPECHAR:
+            case ESCAPECHAR:
+                return source.charAt(start + 1);
+            case TRUE:
+                return true;
+            case FALSE:
+                return false;
+            case NEW_LINE:
+                return "\n";
+            default:
+                return null;
+        }
+    }
+
+    int symbol(int index) {
+        return types[index] == TokenType.IDENTIFIER.ordinal() ? (int) value(index) : -1;
+    }
+
+    private long value(int index) {
+        return values[Arrays.binarySearch(valueTokens, 0, valueCount, index)];
+    }
+
+    Token token(int index) {
+        return new Token(type(index), source, starts[index], lengths[index], literal(index), lines[index],
+                symbol(index));
+    }
+
+    // Hands tokens to the parser one at a time. Only the few tokens inside
+    // the parser's lookahead exist as objects at any moment.
+    TokenStream stream() {
+        return stream(0);
+    }
+
+    TokenStream stream(int start) {
+        return new TokenStream() {
+            private final Token[] window = new Token[4];
+            private final int[] windowIndex = { -1, -1, -1, -1 };
+            private int current = start;
+
+            @Override
+            public Token peek(int k) {
+                int index = Math.min(current + k, size - 1);
+                int slot = index & 3;
+                if (windowIndex[slot] != index) {
+                    window[slot] = token(index);
+                    windowIndex[slot] = index;
+                }
+                return window[slot];
+            }
+
+            @Override
+            public Token next() {
+                Token token = peek(0);
+                if (current < size - 1)
+                    current++;
+                return token;
+            }
+
+            @Override
+            public TokenStream from(int index) {
+                return stream(index);
+            }
+        };
+    }
+}
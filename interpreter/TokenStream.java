@@ -0,0 +1,51 @@
+package interpreter;
+
+import java.util.List;
+
+// Pull interface between the lexer and the parser. The parser only ever
+// looks a couple of tokens ahead, so a source does not have to hold the
+// whole token list in memory.
+interface TokenStream {
+    // Returns the token k positions ahead of the next one without consuming
+    // it. Peeking past the end keeps returning the EOF token.
+    Token peek(int k);
+
+    // Consumes and returns the next token. Once EOF is reached it is returned
+    // on every call.
+    Token next();
+
+    // Lazy parsing comes back for skipped tokens later. Returns a stream over
+    // the same tokens positioned 'index' tokens from their start, or null if
+    // this source cannot go back.
+    default TokenStream from(int index) {
+        return null;
+    }
+
+    static TokenStream of(List<Token> tokens) {
+        return of(tokens, 0);
+    }
+
+    private static TokenStream of(List<Token> tokens, int start) {
+        return new TokenStream() {
+            private int current = start;
+
+            @Override
+            public Token peek(int k) {
+                return tokens.get(Math.min(current + k, tokens.size() - 1));
+            }
+
+            @Override
+            public Token next() {
+                Token token = tokens.get(current);
+                if (current < tokens.size() - 1)
+                    current++;
+                return token;
+            }
+
+            @Override
+            public TokenStream from(int index) {
+                return of(tokens, index);
+            }
+        };
+    }
+}
@@ -0,0 +1,100 @@
+package interpreter;
+
+import java.lang.invoke.MethodHandles;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Compiles the loops the tree interpreter spends its time in to JVM code
+// while the program runs. Each WHILE and planned loop counts the iterations
+// the interpreter runs of it; at THRESHOLD it is recorded, with the classes
+// the values of the variables around it have at that moment, and the
+// ClassCompiler makes it a Trace. The Trace is loaded as a hidden class, so
+// that it goes as soon as the loop is no longer needed, and HotSpot compiles
+// it like any other code.
+//
+// A Trace runs the rest of the loop, from the state the interpreter leaves
+// in the frames, and stores the variables it changed back into them when it
+// stops. It checks first that the variables it keeps as ints still hold
+// INTs. When one does not, the interpreter runs the loop instead, and the
+// loop is recorded again with the new classes once it is hot again, up to
+// RECORDINGS times.
+final class Tracer {
+    static final int THRESHOLD = 1000;
+    private static final int RECORDINGS = 4;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // A loop compiled for the frames it runs in.
+    interface Trace {
+        // Runs the loop to its end and returns true, or returns false, having
+        // done nothing, when the variables do not hold the classes it was
+        // recorded with.
+        boolean run(Object[] frame);
+    }
+
+    // What the tracer knows of one loop.
+    static final class Site {
+        private final Stmt loop;
+        private int iterations = 0;
+        private int recordings = 0;
+        private Trace trace = null;
+        private boolean failed = false;
+
+        private Site(Stmt loop) {
+            this.loop = loop;
+        }
+
+        // Counts an iteration the interpreter ran, true when the loop has
+        // just turned hot.
+        boolean hot() {
+            return ++iterations == THRESHOLD;
+        }
+
+        // Runs the loop in the frame through its trace, recording one first
+        // if the loop is hot. False when there is none to run, or it does
+        // not fit the frame, and the interpreter is to run the loop.
+        boolean run(Object[] frame) {
+            if (trace == null && (iterations < THRESHOLD || !record(frame)))
+                return false;
+            if (trace.run(frame))
+                return true;
+            trace = null;
+            iterations = 0;
+            return false;
+        }
+
+        private boolean record(Object[] frame) {
+            if (failed || recordings == RECORDINGS) {
+                failed = true;
+                return false;
+            }
+            byte[] bytes;
+            try {
+                bytes = ClassCompiler.trace(loop, frame, "interpreter.Trace");
+            } catch (IllegalStateException error) {
+                // Too big for a method.
+                failed = true;
+                return false;
+            }
+            if (bytes == null) {
+                // Some of the body has not run yet, so it is not parsed.
+                iterations = 0;
+                return false;
+            }
+            recordings++;
+            try {
+                Class<?> type = lookup.defineHiddenClass(bytes, true).lookupClass();
+                trace = (Trace) type.getConstructor().newInstance();
+            } catch (ReflectiveOperationException error) {
+                throw new IllegalStateException(error);
+            }
+            return true;
+        }
+    }
+
+    private final Map<Stmt, Site> sites = new IdentityHashMap<>();
+
+    Site site(Stmt loop) {
+        return sites.computeIfAbsent(loop, Site::new);
+    }
+}
@@ -0,0 +1,391 @@
+package interpreter;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Works out, from the declarations and every store into a variable, which
+// class of value each variable and expression can hold, and rewrites each
+// Binary and Unary whose operands are known into a Specialized node that
+// does not test them at run time.
+//
+// A type is the runtime class of the values, or null, that an expression
+// can yield: NONE when it is always null, ANY when it is not known. A
+// variable's type is the join of the types of everything ever stored into
+// it, whatever the order, so a use can rely on it anywhere in the program.
+// Types only ever go up, from NONE to a class to ANY, and the stores are
+// visited until none of them changes a variable any more.
+class TypeChecker extends Rewriter {
+    static final Class<?> NONE = Void.class;
+    static final Class<?> ANY = Object.class;
+
+    // The types of the variables of a block, by the slots the Resolver gave
+    // them.
+    static class Scope {
+        final Scope enclosing;
+        Class<?>[] types;
+
+        Scope(Scope enclosing, int size) {
+            this.enclosing = enclosing;
+            this.types = new Class<?>[size + 1];
+            Arrays.fill(types, NONE);
+        }
+    }
+
+    // The global scope lives as long as the checker, so that stores made by
+    // earlier prompt lines still count.
+    private final Scope globals = new Scope(null, 0);
+    private Scope scope = globals;
+    private final Map<Stmt.Block, Scope> blocks = new IdentityHashMap<>();
+    private boolean rewriting;
+    private boolean changed;
+    // The type of the expression visited last.
+    private Class<?> type;
+
+    // Specializes a program the Resolver has bound.
+    List<Stmt> check(List<Stmt> statements) {
+        return check(statements, globals);
+    }
+
+    // Checks a body a lazy parse skipped, now that it has been parsed and
+    // resolved, against the types of the variables where it sits. Whatever
+    // the body may store into those was already taken as ANY.
+    static Stmt.Block checkSkipped(Stmt.Lazy stub, Stmt.Block body) {
+        return (Stmt.Block) new TypeChecker().check(List.of(body), stub.types).get(0);
+    }
+
+    private List<Stmt> check(List<Stmt> statements, Scope scope) {
+        this.scope = scope;
+        rewriting = false;
+        do {
+            changed = false;
+            rewrite(statements);
+        } while (changed);
+        rewriting = true;
+        List<Stmt> checked = rewrite(statements);
+        blocks.clear();
+        return checked;
+    }
+
+    private static Class<?> join(Class<?> a, Class<?> b) {
+        if (a == NONE || a == b)
+            return b;
+        if (b == NONE)
+            return a;
+        return ANY;
+    }
+
+    private Class<?>[] types(int depth, int slot) {
+        Scope scope = this.scope;
+        for (int i = 0; i < depth; i++) {
+            scope = scope.enclosing;
+        }
+        if (slot >= scope.types.length) {
+            int length = scope.types.length;
+            scope.types = Arrays.copyOf(scope.types, slot + 1);
+            Arrays.fill(scope.types, length, slot + 1, NONE);
+        }
+        return scope.types;
+    }
+
+    private Class<?> load(int depth, int slot) {
+        return types(depth, slot)[slot];
+    }
+
+    private void store(int depth, int slot, Class<?> type) {
+        Class<?>[] types = types(depth, slot);
+        Class<?> joined = join(types[slot], type);
+        if (joined != types[slot]) {
+            types[slot] = joined;
+            changed = true;
+        }
+    }
+
+    @Override
+    Expr rewrite(Expr expr) {
+        if (expr == null) {
+            type = ANY;
+            return null;
+        }
+        return super.rewrite(expr);
+    }
+
+    // The operation a binary operator comes down to on operands of these
+    // types, or null if it has to look at them when it runs.
+    static Operation specialize(TokenType operator, Class<?> left, Class<?> right) {
+        boolean ints = left == Integer.class && right == Integer.class;
+        boolean numbers = (left == Integer.class || left == Double.class)
+                && (right == Integer.class || right == Double.class);
+        switch (operator) {
+            case PLUS:
+                return ints ? Operation.INT_ADD : numbers ? Operation.FLOAT_ADD : null;
+            case MINUS:
+                return ints ? Operation.INT_SUBTRACT : numbers ? Operation.FLOAT_SUBTRACT : null;
+            case STAR:
+                return ints ? Operation.INT_MULTIPLY : numbers ? Operation.FLOAT_MULTIPLY : null;
+            case SLASH:
+                return numbers ? Operation.FLOAT_DIVIDE : null;
+            case MODULO:
+                return ints ? Operation.INT_MODULO : numbers ? Operation.DOUBLE_MODULO : null;
+            case LESS_THAN:
+                return ints ? Operation.INT_LESS : numbers ? Operation.DOUBLE_LESS : null;
+            case LESS_OR_EQUAL:
+                return ints ? Operation.INT_LESS_EQUAL : numbers ? Operation.DOUBLE_LESS_EQUAL : null;
+            case GREATER_THAN:
+                return ints ? Operation.INT_GREATER : numbers ? Operation.DOUBLE_GREATER : null;
+            case GREATER_OR_EQUAL:
+                return ints ? Operation.INT_GREATER_EQUAL : numbers ? Operation.DOUBLE_GREATER_EQUAL : null;
+            case EQUAL_EVAL:
+                return ints ? Operation.INT_EQUAL : null;
+            case NOT_EQUAL:
+                return ints ? Operation.INT_NOT_EQUAL : null;
+            case CONCAT:
+                return Operation.CONCAT;
+            default:
+                return null;
+        }
+    }
+
+    static Operation specialize(TokenType operator, Class<?> right) {
+        switch (operator) {
+            case MINUS:
+                return right == Integer.class ? Operation.INT_NEGATE
+                        : right == Double.class ? Operation.DOUBLE_NEGATE : null;
+            case NOT:
+                return right == Boolean.class ? Operation.BOOLEAN_NOT : null;
+            default:
+                return null;
+        }
+    }
+
+    // What a generic operator yields whatever its operands.
+    private static Class<?> typeOf(TokenType operator) {
+        switch (operator) {
+            case SLASH:
+                return java.lang.Float.class;
+            case LESS_THAN:
+            case LESS_OR_EQUAL:
+            case GREATER_THAN:
+            case GREATER_OR_EQUAL:
+            case EQUAL_EVAL:
+            case NOT_EQUAL:
+            case NOT:
+                return Boolean.class;
+            default:
+                return ANY;
+        }
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr rewritten = super.visitAssignExpr(expr);
+        store(expr.depth, expr.slot, type);
+        return rewritten;
+    }
+
+    @Override
+    Expr binary(Expr.Binary expr, Expr left) {
+        Class<?> leftType = type;
+        Expr right = rewrite(expr.right);
+        Operation operation = specialize(expr.operator.type, leftType, type);
+        if (operation == null) {
+            type = typeOf(expr.operator.type);
+            if (left == expr.left && right == expr.right)
+                return expr;
+            return new Expr.Binary(left, expr.operator, right);
+        }
+        type = operation.type;
+        if (!rewriting)
+            return expr;
+        return new Expr.Specialized(operation, left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        type = expr.value == null ? NONE : expr.value.getClass();
+        return expr;
+    }
+
+    // Yields one of its operands.
+    @Override
+    Expr logical(Expr.Logical expr, Expr left) {
+        Class<?> leftType = type;
+        Expr right = rewrite(expr.right);
+        type = join(leftType, type);
+        if (left == expr.left && right == expr.right)
+            return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = rewrite(expr.right);
+        Operation operation = specialize(expr.operator.type, type);
+        if (operation == null) {
+            type = typeOf(expr.operator.type);
+            if (right == expr.right)
+                return expr;
+            return new Expr.Unary(expr.operator, right);
+        }
+        type = operation.type;
+        if (!rewriting)
+            return expr;
+        return new Expr.Specialized(operation, null, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        type = load(expr.depth, expr.slot);
+        return expr;
+    }
+
+    @Override
+    Expr specialized(Expr.Specialized expr, Expr left) {
+        Expr rewritten = super.specialized(expr, left);
+        type = expr.operation.type;
+        return rewritten;
+    }
+
+    // Loops are gone over after type checking; should a planned one get
+    // here, its invariants are taken as unknown.
+    @Override
+    public Expr visitInvariantExpr(Expr.Invariant expr) {
+        type = ANY;
+        return expr;
+    }
+
+    // Fusing comes after type checking as well.
+    @Override
+    public Expr visitUpdateExpr(Expr.Update expr) {
+        Expr rewritten = super.visitUpdateExpr(expr);
+        store(expr.depth, expr.slot, ANY);
+        type = ANY;
+        return rewritten;
+    }
+
+    @Override
+    public Expr visitCompareExpr(Expr.Compare expr) {
+        type = Boolean.class;
+        return expr;
+    }
+
+    @Override
+    public Expr visitConcatExpr(Expr.Concat expr) {
+        Expr rewritten = super.visitConcatExpr(expr);
+        type = String.class;
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        if (!stmt.framed)
+            return super.visitBlockStmt(stmt);
+        Scope previous = scope;
+        try {
+            scope = blocks.computeIfAbsent(stmt, block -> new Scope(previous, block.size));
+            return super.visitBlockStmt(stmt);
+        } finally {
+            scope = previous;
+        }
+    }
+
+    // SCAN only stores input that fits the declared type.
+    @Override
+    public Stmt visitScanStmt(Stmt.Scan stmt) {
+        if (stmt.type != null) {
+            switch (stmt.type) {
+                case "Integer":
+                    store(stmt.depth, stmt.slot, Integer.class);
+                    break;
+                case "Float":
+                    store(stmt.depth, stmt.slot, Double.class);
+                    break;
+                case "Character":
+                    store(stmt.depth, stmt.slot, Character.class);
+                    break;
+                case "String":
+                    store(stmt.depth, stmt.slot, String.class);
+                    break;
+                case "Boolean":
+                    store(stmt.depth, stmt.slot, Boolean.class);
+                    break;
+                default:
+                    store(stmt.depth, stmt.slot, ANY);
+                    break;
+            }
+        }
+        return stmt;
+    }
+
+    // A declaration stores its initializer only if it is of the declared
+    // type; it fails otherwise.
+    @Override
+    public Stmt visitIntStmt(Stmt.Int stmt) {
+        Stmt.Int rewritten = (Stmt.Int) super.visitIntStmt(stmt);
+        rewritten.typed = type == Integer.class;
+        if (stmt.intializer != null)
+            store(0, stmt.slot, Integer.class);
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitFloatStmt(Stmt.Float stmt) {
+        Stmt.Float rewritten = (Stmt.Float) super.visitFloatStmt(stmt);
+        rewritten.typed = type == Double.class;
+        if (stmt.initializer != null)
+            store(0, stmt.slot, Double.class);
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitCharStmt(Stmt.Char stmt) {
+        Stmt.Char rewritten = (Stmt.Char) super.visitCharStmt(stmt);
+        rewritten.typed = type == Character.class;
+        if (stmt.initializer != null)
+            store(0, stmt.slot, Character.class);
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitStringStmt(Stmt.String stmt) {
+        Stmt.String rewritten = (Stmt.String) super.visitStringStmt(stmt);
+        rewritten.typed = type == String.class;
+        if (stmt.initializer != null)
+            store(0, stmt.slot, String.class);
+        return rewritten;
+    }
+
+    // BOOL does not check its initializer.
+    @Override
+    public Stmt visitBoolStmt(Stmt.Bool stmt) {
+        Stmt rewritten = super.visitBoolStmt(stmt);
+        if (stmt.initializer != null)
+            store(0, stmt.slot, type);
+        return rewritten;
+    }
+
+    @Override
+    public Stmt visitMultiVarStmt(Stmt.MultiVar stmt) {
+        Stmt rewritten = super.visitMultiVarStmt(stmt);
+        for (int i = 0; i < stmt.names.size(); i++) {
+            store(stmt.depths[i], stmt.slots[i], ANY);
+        }
+        return rewritten;
+    }
+
+    // The body is not parsed yet, so any variable in scope that it names
+    // on the left of an assignment or in a SCAN may end up holding anything.
+    @Override
+    public Stmt visitLazyStmt(Stmt.Lazy stmt) {
+        stmt.types = scope;
+        if (stmt.scope == null)
+            return stmt;
+        for (int symbol : stmt.assigned()) {
+            long binding = stmt.scope.find(symbol);
+            if (binding >= 0)
+                store((int) (binding >> 32), (int) binding, ANY);
+        }
+        return stmt;
+    }
+}
@@ -0,0 +1,406 @@
+package interpreter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// Runs a Chunk in one dispatch loop over its code, with an operand stack
+// and the frames the Resolver laid out, so that a step costs a switch on an
+// opcode instead of a virtual call per node. Everything the values do is
+// left to Operators, as on the tree path, and errors carry the same tokens.
+final class VirtualMachine {
+    private boolean displayed = false;
+
+    // Whether a DISPLAY has run.
+    boolean displayed() {
+        return displayed;
+    }
+
+    void run(Chunk chunk, Object[] frame) {
+        byte[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        Object[] stack = new Object[chunk.maxStack];
+        int top = 0;
+        int pc = 0;
+        for (;;) {
+            byte opcode = code[pc++];
+            switch (opcode) {
+                case Chunk.CONSTANT:
+                    stack[top++] = constants[i32(code, pc)];
+                    pc += 4;
+                    break;
+                case Chunk.NIL:
+                    stack[top++] = null;
+                    break;
+                case Chunk.POP:
+                    top--;
+                    break;
+                case Chunk.GET_LOCAL:
+                    stack[top++] = frame[u16(code, pc)];
+                    pc += 2;
+                    break;
+                case Chunk.SET_LOCAL:
+                    frame[u16(code, pc)] = stack[top - 1];
+                    pc += 2;
+                    break;
+                case Chunk.GET:
+                    stack[top++] = frame(frame, u8(code, pc))[u16(code, pc + 1)];
+                    pc += 3;
+                    break;
+                case Chunk.SET:
+                    frame(frame, u8(code, pc))[u16(code, pc + 1)] = stack[top - 1];
+                    pc += 3;
+                    break;
+                case Chunk.DEFINE:
+                    frame[u16(code, pc)] = stack[--top];
+                    pc += 2;
+                    break;
+                case Chunk.CHECK:
+                    check(u8(code, pc), stack[top - 1], (Token) constants[i32(code, pc + 1)]);
+                    pc += 5;
+                    break;
+                case Chunk.BINARY: {
+                    Object right = stack[--top];
+                    stack[top - 1] = binary((Token) constants[i32(code, pc)], stack[top - 1], right);
+                    pc += 4;
+                    break;
+                }
+                // Two INTs do what Operators does with them, without the
+                // detour through doubles it takes to compare them.
+                case Chunk.ADD: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left + (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.SUBTRACT: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left - (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.MULTIPLY: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left * (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.MODULO: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left % (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.LESS: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left < (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.LESS_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left <= (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.GREATER: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left > (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.GREATER_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left >= (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left == (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.NOT_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[top - 1];
+                    if (left instanceof Integer && right instanceof Integer)
+                        stack[top - 1] = (int) left != (int) right;
+                    else
+                        stack[top - 1] = binary((Token) constants[i32(code, pc)], left, right);
+                    pc += 4;
+                    break;
+                }
+                case Chunk.OPERATION: {
+                    Operation operation = Chunk.OPERATIONS[u8(code, pc)];
+                    Token operator = (Token) constants[i32(code, pc + 1)];
+                    pc += 5;
+                    Object right = stack[--top];
+                    try {
+                        stack[top - 1] = Operators.binary(operation, stack[top - 1], right);
+                    } catch (RuntimeError error) {
+                        throw new RuntimeError(operator, error.getMessage());
+                    }
+                    break;
+                }
+                case Chunk.UNARY: {
+                    Token operator = (Token) constants[i32(code, pc)];
+                    pc += 4;
+                    try {
+                        stack[top - 1] = Operators.unary(operator.type, stack[top - 1]);
+                    } catch (RuntimeError error) {
+                        throw new RuntimeError(operator, error.getMessage());
+                    }
+                    break;
+                }
+                case Chunk.UNARY_OPERATION: {
+                    Operation operation = Chunk.OPERATIONS[u8(code, pc)];
+                    Token operator = (Token) constants[i32(code, pc + 1)];
+                    pc += 5;
+                    try {
+                        stack[top - 1] = Operators.unary(operation, stack[top - 1]);
+                    } catch (RuntimeError error) {
+                        throw new RuntimeError(operator, error.getMessage());
+                    }
+                    break;
+                }
+                case Chunk.JUMP:
+                    pc = i32(code, pc);
+                    break;
+                case Chunk.JUMP_IF_FALSE: {
+                    Object condition = stack[--top];
+                    pc = Operators.isTruthy(condition) ? pc + 4 : i32(code, pc);
+                    break;
+                }
+                // A comparison whose result only decides a jump.
+                case Chunk.JUMP_UNLESS_LESS: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left < (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_LESS_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left <= (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_GREATER: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left > (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_GREATER_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left >= (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left == (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.JUMP_UNLESS_NOT_EQUAL: {
+                    Object right = stack[--top];
+                    Object left = stack[--top];
+                    boolean holds;
+                    if (left instanceof Integer && right instanceof Integer)
+                        holds = (int) left != (int) right;
+                    else
+                        holds = Operators.isTruthy(binary((Token) constants[i32(code, pc)], left, right));
+                    pc = holds ? pc + 8 : i32(code, pc + 4);
+                    break;
+                }
+                case Chunk.AND:
+                    pc = Operators.isTruthy(stack[top - 1]) ? pc + 4 : i32(code, pc);
+                    break;
+                case Chunk.OR:
+                    pc = Operators.isTruthy(stack[top - 1]) ? i32(code, pc) : pc + 4;
+                    break;
+                case Chunk.DISPLAY: {
+                    Object value = stack[--top];
+                    Operators.display(value);
+                    displayed = true;
+                    break;
+                }
+                case Chunk.SCAN: {
+                    Object[] target = frame(frame, u8(code, pc));
+                    int slot = u16(code, pc + 1);
+                    Token name = (Token) constants[i32(code, pc + 3)];
+                    int type = i32(code, pc + 7);
+                    pc += 11;
+                    scan(target, slot, name, type < 0 ? null : (String) constants[type]);
+                    break;
+                }
+                case Chunk.ENTER: {
+                    int block = u16(code, pc);
+                    pc += 2;
+                    // Nothing can run a block again before it has finished,
+                    // so each keeps one frame, as on the tree path.
+                    Object[] inner = chunk.frames[block];
+                    if (inner == null) {
+                        inner = new Object[chunk.blocks[block] + 1];
+                        chunk.frames[block] = inner;
+                    } else {
+                        Arrays.fill(inner, 1, inner.length, null);
+                    }
+                    inner[0] = frame;
+                    frame = inner;
+                    break;
+                }
+                case Chunk.EXIT:
+                    frame = (Object[]) frame[0];
+                    break;
+                case Chunk.LAZY: {
+                    int index = i32(code, pc);
+                    pc += 4;
+                    // The body is parsed and compiled the first time it runs.
+                    if (constants[index] instanceof Stmt.Lazy)
+                        constants[index] = BytecodeCompiler.compile((Stmt.Lazy) constants[index]);
+                    run((Chunk) constants[index], frame);
+                    break;
+                }
+                case Chunk.RETURN:
+                    return;
+                default:
+                    throw new IllegalStateException("Bad opcode " + opcode + " at " + (pc - 1));
+            }
+        }
+    }
+
+    // Operands are read off the local code array rather than through the
+    // chunk, which keeps the loads in the dispatch loop.
+    private static int u8(byte[] code, int offset) {
+        return code[offset] & 0xff;
+    }
+
+    private static int u16(byte[] code, int offset) {
+        return (code[offset] & 0xff) << 8 | code[offset + 1] & 0xff;
+    }
+
+    private static int i32(byte[] code, int offset) {
+        return code[offset] << 24 | (code[offset + 1] & 0xff) << 16 | (code[offset + 2] & 0xff) << 8
+                | code[offset + 3] & 0xff;
+    }
+
+    private static Object binary(Token operator, Object left, Object right) {
+        try {
+            return Operators.binary(operator.type, left, right);
+        } catch (RuntimeError error) {
+            throw new RuntimeError(operator, error.getMessage());
+        }
+    }
+
+    private static Object[] frame(Object[] frame, int depth) {
+        for (int i = 0; i < depth; i++) {
+            frame = (Object[]) frame[0];
+        }
+        return frame;
+    }
+
+    private static void check(int kind, Object value, Token name) {
+        if ((kind & Chunk.TYPED) != 0) {
+            if (value != null)
+                return;
+        } else if (isInstance(kind, value)) {
+            return;
+        }
+        switch (kind & ~Chunk.TYPED) {
+            case Chunk.INT:
+                throw new RuntimeError(name, "Input must be an Integer");
+            case Chunk.FLOAT:
+                throw new RuntimeError(name, "Input must be a float");
+            case Chunk.CHAR:
+                throw new RuntimeError(name, "Input must be a character");
+            default:
+                throw new RuntimeError(name, "Input must be a String");
+        }
+    }
+
+    private static boolean isInstance(int kind, Object value) {
+        switch (kind) {
+            case Chunk.INT:
+                return value instanceof Integer;
+            case Chunk.FLOAT:
+                return value instanceof Double;
+            case Chunk.CHAR:
+                return value instanceof Character;
+            default:
+                return value instanceof String;
+        }
+    }
+
+    private static void scan(Object[] frame, int slot, Token name, String type) {
+        try {
+            Object value = Operators.scanned(type, Operators.scanInput());
+            if (value == null)
+                throw new RuntimeError(name, "Input must be " + type);
+            frame[slot] = value;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package interpreter;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+// ScanKernel on the incubating Vector API: compares a whole vector of chars
+// (16 to 64 bytes, depending on the CPU) per step and finishes the tail one
+// char at a time. It lives in its own source root so the plain
+// 'javac interpreter/*.java' build needs no incubator module; build it on top
+// of that output with
+//   javac --add-modules jdk.incubator.vector -cp out -d out simd/interpreter/VectorScan.java
+// and run with --add-modules jdk.incubator.vector. ScanKernel.vector() only
+// loads it when the module is present and the class was built.
+class VectorScan implements ScanKernel {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    // Most runs are short (one space between tokens, a closing quote a few
+    // chars away), so look at a few chars one by one before paying for a
+    // vector load.
+    private static final int PROBE = 8;
+
+    @Override
+    public int skipBlanks(char[] chars, int from, int to) {
+        int probeEnd = Math.min(from + PROBE, to);
+        for (int i = from; i < probeEnd; i++) {
+            char c = chars[i];
+            if (c != ' ' && c != '\t' && c != '\r')
+                return i;
+        }
+        int i = probeEnd;
+        int bound = i + SPECIES.loopBound(to - i);
+        for (; i < bound; i += SPECIES.length()) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> blank = v.eq((short) ' ')
+                    .or(v.eq((short) '\t'))
+                    .or(v.eq((short) '\r'));
+            if (!blank.allTrue())
+                return i + blank.not().firstTrue();
+        }
+        for (; i < to; i++) {
+            char c = chars[i];
+            if (c != ' ' && c != '\t' && c != '\r')
+                return i;
+        }
+        return to;
+    }
+
+    @Override
+    public int indexOf(char[] chars, int from, int to, char c) {
+        int probeEnd = Math.min(from + PROBE, to);
+        for (int i = from; i < probeEnd; i++) {
+            if (chars[i] == c)
+                return i;
+        }
+        int i = probeEnd;
+        int bound = i + SPECIES.loopBound(to - i);
+        for (; i < bound; i += SPECIES.length()) {
+            VectorMask<Short> hit = ShortVector.fromCharArray(SPECIES, chars, i).eq((short) c);
+            if (hit.anyTrue())
+                return i + hit.firstTrue();
+        }
+        for (; i < to; i++) {
+            if (chars[i] == c)
+                return i;
+        }
+        return to;
+    }
+
+    @Override
+    public int count(char[] chars, int from, int to, char c) {
+        int i = from;
+        int n = 0;
+        int bound = from + SPECIES.loopBound(to - from);
+        for (; i < bound; i += SPECIES.length()) {
+            n += ShortVector.fromCharArray(SPECIES, chars, i).eq((short) c).trueCount();
+        }
+        for (; i < to; i++) {
+            if (chars[i] == c)
+                n++;
+        }
+        return n;
+    }
+}
@@ -35,7 +35,8 @@ public class GenerateAst {
                 "Char: Token name, Expr initializer",
                 "String: Token name, Expr initializer",
                 "Bool: Token name, Expr initializer",
-                "While: Expr condition, Stmt body"));
+                "While: Expr condition, Stmt body",
+                "Lazy: Token begin, TokenType kind, TokenStream tokens, int start, int end, int state"));
     }
 
     private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {